@@ -0,0 +1,8 @@
+#!/bin/bash
+# runs the offline unit tests (the others need real AWS credentials)
+cd /root/project/camel-sns
+export JAVA_HOME=/root/.sdkman/candidates/java/8.0.392-tem
+T=$(cd src/test/java/com/massfords/aws/sns && grep -L "extends AbstractUseCase\|extends DeleteUseCase\|class DeleteUseCase\|class AbstractUseCase" $(grep -rl "@Test" . ) | sed 's#^\./##; s#\.java$##; s#/#.#g' | grep -v "^SNSConsumerTest$" | paste -sd, -)
+echo "tests: $T"
+timeout 900 mvn -B -q test -Dtest="$T" 2>&1 | tee /tmp/last-test.log | grep -v "DEBUG\|^\s*at \|^java.lang.IllegalStateException: fail" | tail -40
+echo "exit=${PIPESTATUS[0]}"
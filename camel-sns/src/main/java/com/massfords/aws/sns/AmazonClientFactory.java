@@ -6,7 +6,9 @@ import org.apache.commons.logging.LogFactory;
 import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.sns.AmazonSNS;
 import com.amazonaws.services.sns.AmazonSNSClient;
+import com.amazonaws.services.sqs.AmazonSQS;
 import com.amazonaws.services.sqs.AmazonSQSClient;
 
 /**
@@ -18,13 +20,28 @@ import com.amazonaws.services.sqs.AmazonSQSClient;
 public class AmazonClientFactory {
     
     private static Log sLog = LogFactory.getLog(AmazonClientFactory.class);
+
+    /** source of clients that talk to AWS, the registry's default */
+    public static final AmazonClientSource AWS = new AmazonClientSource() {
+        public AmazonSNS createSNSClient(String aAccessKey, String aSecretKey, ClientConfiguration aConfig) {
+            return AmazonClientFactory.createSNSClient(aAccessKey, aSecretKey, aConfig);
+        }
+
+        public AmazonSQS createSQSClient(String aAccessKey, String aSecretKey, ClientConfiguration aConfig) {
+            return AmazonClientFactory.createSQSClient(aAccessKey, aSecretKey, aConfig);
+        }
+    };
     
     public static AmazonSNSClient createSNSClient(AWSCredentials aCredentials) {
         return createSNSClient(aCredentials.getAWSAccessKeyId(), aCredentials.getAWSSecretKey());
     }
 
     public static AmazonSNSClient createSNSClient(String aAccessKey, String aSecretKey) {
-        AmazonSNSClient client = new AmazonSNSClient(new BasicAWSCredentials(aAccessKey, aSecretKey), new ClientConfiguration().withProxyHost(getProxyHost()).withProxyPort(getProxyPort()));
+        return createSNSClient(aAccessKey, aSecretKey, createClientConfiguration());
+    }
+
+    public static AmazonSNSClient createSNSClient(String aAccessKey, String aSecretKey, ClientConfiguration aConfig) {
+        AmazonSNSClient client = new AmazonSNSClient(new BasicAWSCredentials(aAccessKey, aSecretKey), aConfig);
         return client;
     }
     
@@ -33,9 +50,20 @@ public class AmazonClientFactory {
     }
 
     public static AmazonSQSClient createSQSClient(String aAccessKey, String aSecretKey) {
-        AmazonSQSClient client = new AmazonSQSClient(new BasicAWSCredentials(aAccessKey, aSecretKey), new ClientConfiguration().withProxyHost(getProxyHost()).withProxyPort(getProxyPort()));
+        return createSQSClient(aAccessKey, aSecretKey, createClientConfiguration());
+    }
+
+    public static AmazonSQSClient createSQSClient(String aAccessKey, String aSecretKey, ClientConfiguration aConfig) {
+        AmazonSQSClient client = new AmazonSQSClient(new BasicAWSCredentials(aAccessKey, aSecretKey), aConfig);
         return client;
     }
+
+    /**
+     * Creates a client configuration with the proxy settings from the system properties applied.
+     */
+    public static ClientConfiguration createClientConfiguration() {
+        return new ClientConfiguration().withProxyHost(getProxyHost()).withProxyPort(getProxyPort());
+    }
     
     private static String getProxyHost() {
         String proxyHost = System.getProperty("http.proxyHost");
@@ -0,0 +1,162 @@
+package com.massfords.aws.sns;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.services.sns.AmazonSNS;
+import com.amazonaws.services.sqs.AmazonSQS;
+
+/**
+ * Registry of long-lived SNS and SQS clients. The AWS clients are thread safe and each one
+ * owns its own pool of http connections so they're shared by every endpoint that has the same
+ * credentials and connection settings instead of being created for each call.
+ *
+ * The registry is scoped to the {@link SNSComponent} and is cleared when the component stops.
+ * The clients come from AWS unless another {@link AmazonClientSource} such as the emulator
+ * is set.
+ */
+public class AmazonClientRegistry {
+
+    private static Log sLog = LogFactory.getLog(AmazonClientRegistry.class);
+
+    private final ConcurrentMap<ClientKey, AmazonSNS> mSNSClients = new ConcurrentHashMap<ClientKey, AmazonSNS>();
+    private final ConcurrentMap<ClientKey, AmazonSQS> mSQSClients = new ConcurrentHashMap<ClientKey, AmazonSQS>();
+    private volatile AmazonClientSource mClientSource = AmazonClientFactory.AWS;
+
+    public AmazonSNS getSNSClient(SNSEndpoint aEndpoint) {
+        ClientKey key = new ClientKey(aEndpoint);
+        AmazonSNS client = mSNSClients.get(key);
+        if (client == null) {
+            sLog.debug("creating sns client for " + key);
+            AmazonSNS created = mClientSource.createSNSClient(key.mAccessKey, key.mSecretKey,
+                    key.toClientConfiguration());
+            client = mSNSClients.putIfAbsent(key, created);
+            if (client == null)
+                client = created;
+        }
+        return client;
+    }
+
+    public AmazonSQS getSQSClient(SNSEndpoint aEndpoint) {
+        ClientKey key = new ClientKey(aEndpoint);
+        AmazonSQS client = mSQSClients.get(key);
+        if (client == null) {
+            sLog.debug("creating sqs client for " + key);
+            AmazonSQS created = mClientSource.createSQSClient(key.mAccessKey, key.mSecretKey,
+                    key.toClientConfiguration());
+            client = mSQSClients.putIfAbsent(key, created);
+            if (client == null)
+                client = created;
+        }
+        return client;
+    }
+
+    public AmazonClientSource getClientSource() {
+        return mClientSource;
+    }
+
+    /**
+     * Sets where the clients come from, the clients created by the previous source are released.
+     */
+    public void setClientSource(AmazonClientSource aClientSource) {
+        if (aClientSource == null)
+            throw new IllegalArgumentException("clientSource is required");
+        mClientSource = aClientSource;
+        shutdown();
+    }
+
+    /**
+     * @return the number of clients currently held by the registry
+     */
+    public int size() {
+        return mSNSClients.size() + mSQSClients.size();
+    }
+
+    /**
+     * Releases all of the clients. The SDK clients don't have an explicit shutdown so the
+     * connections are released once the clients are no longer referenced.
+     */
+    public void shutdown() {
+        sLog.debug("releasing " + size() + " clients");
+        mSNSClients.clear();
+        mSQSClients.clear();
+    }
+
+    /**
+     * Key for the clients made up of the credentials and the connection settings.
+     */
+    static class ClientKey {
+        private final String mAccessKey;
+        private final String mSecretKey;
+        private final Integer mMaxConnections;
+        private final Integer mSocketTimeout;
+        private final Integer mConnectionTimeout;
+        private final Integer mMaxErrorRetry;
+
+        ClientKey(SNSEndpoint aEndpoint) {
+            mAccessKey = aEndpoint.getAccessKey();
+            mSecretKey = aEndpoint.getSecretKey();
+            mMaxConnections = aEndpoint.getMaxConnections();
+            mSocketTimeout = aEndpoint.getSocketTimeout();
+            mConnectionTimeout = aEndpoint.getConnectionTimeout();
+            mMaxErrorRetry = aEndpoint.getMaxErrorRetry();
+        }
+
+        ClientConfiguration toClientConfiguration() {
+            ClientConfiguration config = AmazonClientFactory.createClientConfiguration();
+            if (mMaxConnections != null)
+                config.setMaxConnections(mMaxConnections);
+            if (mSocketTimeout != null)
+                config.setSocketTimeout(mSocketTimeout);
+            if (mConnectionTimeout != null)
+                config.setConnectionTimeout(mConnectionTimeout);
+            if (mMaxErrorRetry != null)
+                config.setMaxErrorRetry(mMaxErrorRetry);
+            return config;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = 17;
+            result = 31 * result + hash(mAccessKey);
+            result = 31 * result + hash(mSecretKey);
+            result = 31 * result + hash(mMaxConnections);
+            result = 31 * result + hash(mSocketTimeout);
+            result = 31 * result + hash(mConnectionTimeout);
+            result = 31 * result + hash(mMaxErrorRetry);
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object aObj) {
+            if (this == aObj)
+                return true;
+            if (!(aObj instanceof ClientKey))
+                return false;
+            ClientKey other = (ClientKey) aObj;
+            return eq(mAccessKey, other.mAccessKey) && eq(mSecretKey, other.mSecretKey)
+                    && eq(mMaxConnections, other.mMaxConnections) && eq(mSocketTimeout, other.mSocketTimeout)
+                    && eq(mConnectionTimeout, other.mConnectionTimeout) && eq(mMaxErrorRetry, other.mMaxErrorRetry);
+        }
+
+        @Override
+        public String toString() {
+            // masked the same as the endpoint uris, this ends up in logs and exception messages
+            return SNSEndpoint.stripCredentials("accessKey=" + mAccessKey + "&maxConnections=" + mMaxConnections
+                    + "&socketTimeout=" + mSocketTimeout + "&connectionTimeout=" + mConnectionTimeout
+                    + "&maxErrorRetry=" + mMaxErrorRetry);
+        }
+
+        private static int hash(Object aObj) {
+            return aObj == null ? 0 : aObj.hashCode();
+        }
+
+        private static boolean eq(Object aLeft, Object aRight) {
+            return aLeft == null ? aRight == null : aLeft.equals(aRight);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.massfords.aws.sns;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.services.sns.AmazonSNS;
+import com.amazonaws.services.sqs.AmazonSQS;
+
+/**
+ * Source of the SNS and SQS clients the {@link AmazonClientRegistry} hands out.
+ * {@link AmazonClientFactory#AWS} creates clients that talk to AWS, an
+ * emulator can be plugged in instead to run the component without AWS.
+ */
+public interface AmazonClientSource {
+
+    AmazonSNS createSNSClient(String aAccessKey, String aSecretKey, ClientConfiguration aConfig);
+
+    AmazonSQS createSQSClient(String aAccessKey, String aSecretKey, ClientConfiguration aConfig);
+}
@@ -0,0 +1,290 @@
+package com.massfords.aws.sns;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.camel.util.concurrent.ExecutorServiceHelper;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+
+/**
+ * Deletes the processed messages of a queue asynchronously, off of the
+ * consumers' threads. The receipt handles are collected and a flush is
+ * triggered once flushSize of them are pending or every flushInterval millis,
+ * whichever comes first. Deletes that fail are put back and retried on the
+ * next flush up to maxRetries times.
+ *
+ * This doesn't reduce the number of calls made to SQS. The version of the SDK
+ * we're on doesn't have DeleteMessageBatch, so every message is still deleted
+ * with its own DeleteMessage, the flush only issues them concurrently over a
+ * small pool. What it buys is a consumer that goes back to processing instead
+ * of waiting on the delete, at the cost of the message being redelivered if
+ * the JVM dies before its delete is flushed.
+ *
+ * One acknowledger is shared by all of the consumers of a queue, so they all
+ * have to agree on its settings. It's reference counted and flushes
+ * everything that's pending when the last consumer releases it, a message
+ * acknowledged after that is deleted on the caller's thread.
+ */
+public class MessageAcknowledger {
+
+    private static Log sLog = LogFactory.getLog(MessageAcknowledger.class);
+
+    /** upper bound on the number of concurrent deletes in a flush */
+    private static final int MAX_DELETE_THREADS = 4;
+
+    private final String mQueueURL;
+    private final AmazonSQS mClient;
+    private final int mFlushSize;
+    private final long mFlushInterval;
+    private final int mMaxRetries;
+
+    private final LinkedBlockingQueue<Entry> mPending = new LinkedBlockingQueue<Entry>();
+    private final AtomicBoolean mFlushQueued = new AtomicBoolean();
+    /** serializes the flushes, separate from the lifecycle lock so release() can wait on a running flush */
+    private final Object mFlushLock = new Object();
+    private final AtomicLong mAcknowledged = new AtomicLong();
+    private final AtomicLong mRetried = new AtomicLong();
+    private final AtomicLong mFailed = new AtomicLong();
+
+    private volatile ScheduledExecutorService mScheduler;
+    private volatile ExecutorService mDeletePool;
+    private int mUsers;
+
+    private final Runnable mFlushTask = new Runnable() {
+        public void run() {
+            mFlushQueued.set(false);
+            try {
+                flush();
+            } catch (Exception e) {
+                sLog.error("error flushing acknowledgements for " + mQueueURL, e);
+            }
+        }
+    };
+
+    public MessageAcknowledger(String aQueueURL, AmazonSQS aClient, int aFlushSize, long aFlushInterval,
+            int aMaxRetries) {
+        mQueueURL = aQueueURL;
+        mClient = aClient;
+        mFlushSize = aFlushSize;
+        mFlushInterval = aFlushInterval;
+        mMaxRetries = aMaxRetries;
+    }
+
+    /**
+     * Registers a consumer of the queue, the background flush starts with the first one.
+     */
+    public synchronized void acquire() {
+        if (mUsers++ == 0) {
+            sLog.debug("starting acknowledger for " + mQueueURL);
+            mScheduler = ExecutorServiceHelper.newScheduledThreadPool(1, "SNSAcknowledger[" + mQueueURL + "]", true);
+            mDeletePool = ExecutorServiceHelper.newFixedThreadPool(Math.min(mFlushSize, MAX_DELETE_THREADS),
+                    "SNSAcknowledger[" + mQueueURL + "]", true);
+            mScheduler.scheduleWithFixedDelay(mFlushTask, mFlushInterval, mFlushInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Unregisters a consumer of the queue. When the last one is gone the
+     * pending acknowledgements are flushed before the threads are stopped.
+     *
+     * @return true if this was the last consumer
+     */
+    public synchronized boolean release() throws InterruptedException {
+        if (--mUsers > 0)
+            return false;
+        sLog.debug("stopping acknowledger for " + mQueueURL + ", pending=" + getPending());
+        // cleared first so anything acknowledged from here on is either drained below or deleted by its caller
+        ScheduledExecutorService scheduler = mScheduler;
+        mScheduler = null;
+        scheduler.shutdown();
+        scheduler.awaitTermination(30, TimeUnit.SECONDS);
+        drain();
+        synchronized (mFlushLock) {
+            mDeletePool.shutdown();
+            mDeletePool = null;
+        }
+        return true;
+    }
+
+    /**
+     * Queues the receipt handle for deletion.
+     */
+    public void acknowledge(String aReceiptHandle) {
+        acknowledge(aReceiptHandle, null);
+    }
+
+    /**
+     * Queues the receipt handle for deletion.
+     *
+     * @param aOnDeleted run on the flush's thread once the message is deleted, null for nothing
+     */
+    public void acknowledge(String aReceiptHandle, Runnable aOnDeleted) {
+        mPending.add(new Entry(aReceiptHandle, aOnDeleted));
+        ScheduledExecutorService scheduler = mScheduler;
+        if (scheduler == null) {
+            // released, there's no background flush left to pick it up
+            try {
+                drain();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+        if (mPending.size() >= mFlushSize && mFlushQueued.compareAndSet(false, true)) {
+            try {
+                scheduler.execute(mFlushTask);
+            } catch (RejectedExecutionException e) {
+                // being released, which drains what's pending
+                mFlushQueued.set(false);
+            }
+        }
+    }
+
+    /**
+     * Flushes until everything pending is either deleted or given up on.
+     */
+    private void drain() throws InterruptedException {
+        while (!mPending.isEmpty()) {
+            flush();
+        }
+    }
+
+    /**
+     * Deletes everything that's currently pending. Failed deletes are put back
+     * on the pending queue until they run out of retries.
+     */
+    protected void flush() throws InterruptedException {
+        synchronized (mFlushLock) {
+            doFlush();
+        }
+    }
+
+    private void doFlush() throws InterruptedException {
+        ExecutorService deletePool = mDeletePool;
+        List<Entry> batch = new ArrayList<Entry>(mFlushSize);
+        while (mPending.drainTo(batch, mFlushSize) > 0) {
+            List<Future<?>> results = new ArrayList<Future<?>>(batch.size());
+            for (final Entry entry : batch) {
+                Callable<Object> delete = new Callable<Object>() {
+                    public Object call() {
+                        mClient.deleteMessage(new DeleteMessageRequest().withQueueUrl(mQueueURL)
+                                .withReceiptHandle(entry.mReceiptHandle));
+                        return null;
+                    }
+                };
+                if (deletePool != null) {
+                    results.add(deletePool.submit(delete));
+                } else {
+                    // released, the delete is made on the caller's thread
+                    FutureTask<Object> task = new FutureTask<Object>(delete);
+                    task.run();
+                    results.add(task);
+                }
+            }
+            List<Entry> retries = new ArrayList<Entry>();
+            for (int i = 0; i < batch.size(); i++) {
+                Entry entry = batch.get(i);
+                try {
+                    results.get(i).get();
+                    mAcknowledged.incrementAndGet();
+                    if (entry.mOnDeleted != null)
+                        runOnDeleted(entry.mOnDeleted);
+                } catch (ExecutionException e) {
+                    if (++entry.mAttempts > mMaxRetries) {
+                        sLog.error("giving up deleting message from " + mQueueURL + " after " + entry.mAttempts
+                                + " attempts, it will be redelivered", e.getCause());
+                        mFailed.incrementAndGet();
+                    } else {
+                        sLog.debug("delete failed, will retry: " + e.getCause());
+                        mRetried.incrementAndGet();
+                        retries.add(entry);
+                    }
+                }
+            }
+            batch.clear();
+            if (!retries.isEmpty()) {
+                // retried entries wait for the next flush
+                mPending.addAll(retries);
+                return;
+            }
+        }
+    }
+
+    private void runOnDeleted(Runnable aOnDeleted) {
+        try {
+            aOnDeleted.run();
+        } catch (RuntimeException e) {
+            sLog.warn("error after deleting message from " + mQueueURL, e);
+        }
+    }
+
+    public String getQueueURL() {
+        return mQueueURL;
+    }
+
+    public int getFlushSize() {
+        return mFlushSize;
+    }
+
+    public long getFlushInterval() {
+        return mFlushInterval;
+    }
+
+    public int getMaxRetries() {
+        return mMaxRetries;
+    }
+
+    /**
+     * @return number of receipt handles waiting to be deleted
+     */
+    public int getPending() {
+        return mPending.size();
+    }
+
+    /**
+     * @return number of messages successfully deleted
+     */
+    public long getAcknowledged() {
+        return mAcknowledged.get();
+    }
+
+    /**
+     * @return number of deletes that failed and were retried
+     */
+    public long getRetried() {
+        return mRetried.get();
+    }
+
+    /**
+     * @return number of deletes that were given up on after all of the retries failed
+     */
+    public long getFailed() {
+        return mFailed.get();
+    }
+
+    private static class Entry {
+        private final String mReceiptHandle;
+        private final Runnable mOnDeleted;
+        private int mAttempts;
+
+        Entry(String aReceiptHandle, Runnable aOnDeleted) {
+            mReceiptHandle = aReceiptHandle;
+            mOnDeleted = aOnDeleted;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package com.massfords.aws.sns;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.Exchange;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.massfords.aws.sns.support.PayloadCodec;
+
+/**
+ * Packs the messages of several exchanges into one SNS message so a burst of
+ * small exchanges costs one publish instead of one each. A pack is published
+ * once it has packSize messages, once the next message would take it over
+ * packBytes or packLinger millis after its first message arrived, whichever
+ * comes first. SNS has one subject per message so only messages with the
+ * same subject are packed together, a message with a different subject
+ * publishes the open pack.
+ *
+ * Each exchange in a pack gets the pack's message id followed by a colon and
+ * its index as its SNS:MessageId header, the same id the consumer gives the
+ * message when it unpacks it. A pack with a single message is published as
+ * a plain message.
+ */
+public class MessagePacker {
+
+    private static Log sLog = LogFactory.getLog(MessagePacker.class);
+
+    /**
+     * Publishes a message and returns the id SNS assigned it.
+     */
+    public interface Publisher {
+        String publish(String aSubject, String aMessage) throws Exception;
+    }
+
+    private final Publisher mPublisher;
+    private final int mMaxCount;
+    private final int mMaxBytes;
+    private final long mLinger;
+    private final ExecutorService mPublishPool;
+    private final ScheduledExecutorService mScheduler;
+    private final AtomicLong mPacksPublished = new AtomicLong();
+    private final AtomicLong mMessagesPublished = new AtomicLong();
+
+    /** pack that messages are being added to, guarded by this */
+    private Pack mOpen;
+
+    /**
+     * @param aPublishPool runs the publishes
+     * @param aScheduler publishes packs once they've lingered
+     */
+    public MessagePacker(Publisher aPublisher, int aMaxCount, int aMaxBytes, long aLinger,
+            ExecutorService aPublishPool, ScheduledExecutorService aScheduler) {
+        mPublisher = aPublisher;
+        mMaxCount = aMaxCount;
+        mMaxBytes = aMaxBytes;
+        mLinger = aLinger;
+        mPublishPool = aPublishPool;
+        mScheduler = aScheduler;
+    }
+
+    /**
+     * Adds the message to the open pack. The callback is invoked once the
+     * pack is published, with the exception set on the exchange if it failed.
+     */
+    public void add(Exchange aExchange, String aSubject, String aMessage, AsyncCallback aCallback) {
+        int size = PayloadCodec.getFrameSize(aMessage);
+        Pack closed = null;
+        Pack full = null;
+        synchronized (this) {
+            if (mOpen != null && (!equal(mOpen.mSubject, aSubject) || mOpen.mBytes + size > mMaxBytes)) {
+                closed = close();
+            }
+            if (mOpen == null) {
+                final Pack pack = new Pack(aSubject);
+                pack.mLinger = mScheduler.schedule(new Runnable() {
+                    public void run() {
+                        publishIfOpen(pack);
+                    }
+                }, mLinger, TimeUnit.MILLISECONDS);
+                mOpen = pack;
+            }
+            mOpen.add(aExchange, aMessage, size, aCallback);
+            if (mOpen.mExchanges.size() >= mMaxCount || mOpen.mBytes >= mMaxBytes)
+                full = close();
+        }
+        if (closed != null)
+            publish(closed);
+        if (full != null)
+            publish(full);
+    }
+
+    /**
+     * Publishes the open pack without waiting for it to fill up or linger.
+     */
+    public void flush() {
+        Pack pack;
+        synchronized (this) {
+            pack = close();
+        }
+        if (pack != null)
+            publish(pack);
+    }
+
+    private void publishIfOpen(Pack aPack) {
+        synchronized (this) {
+            if (mOpen != aPack)
+                return;
+            mOpen = null;
+        }
+        publish(aPack);
+    }
+
+    /**
+     * @return the open pack, which is no longer open, or null if there isn't one
+     */
+    private Pack close() {
+        Pack pack = mOpen;
+        mOpen = null;
+        if (pack != null)
+            pack.mLinger.cancel(false);
+        return pack;
+    }
+
+    private void publish(final Pack aPack) {
+        Runnable task = new Runnable() {
+            public void run() {
+                aPack.publish();
+            }
+        };
+        try {
+            mPublishPool.execute(task);
+        } catch (RejectedExecutionException e) {
+            // stopping, the pack still has to go out
+            task.run();
+        }
+    }
+
+    private static boolean equal(String aLeft, String aRight) {
+        return aLeft == null ? aRight == null : aLeft.equals(aRight);
+    }
+
+    /**
+     * @return number of SNS messages published with more than one message packed into them
+     */
+    public long getPacksPublished() {
+        return mPacksPublished.get();
+    }
+
+    /**
+     * @return number of messages published, packed or not
+     */
+    public long getMessagesPublished() {
+        return mMessagesPublished.get();
+    }
+
+    private class Pack {
+        private final String mSubject;
+        private final List<Exchange> mExchanges = new ArrayList<Exchange>();
+        private final List<String> mMessages = new ArrayList<String>();
+        private final List<AsyncCallback> mCallbacks = new ArrayList<AsyncCallback>();
+        private int mBytes = PayloadCodec.PACK_MARKER.length();
+        private int mChars = PayloadCodec.PACK_MARKER.length();
+        private ScheduledFuture<?> mLinger;
+
+        Pack(String aSubject) {
+            mSubject = aSubject;
+        }
+
+        void add(Exchange aExchange, String aMessage, int aSize, AsyncCallback aCallback) {
+            mExchanges.add(aExchange);
+            mMessages.add(aMessage);
+            mCallbacks.add(aCallback);
+            mBytes += aSize;
+            // room for the longest length and its colon
+            mChars += aMessage.length() + 11;
+        }
+
+        void publish() {
+            try {
+                if (mMessages.size() == 1) {
+                    String messageId = mPublisher.publish(mSubject, mMessages.get(0));
+                    mExchanges.get(0).getIn().setHeader("SNS:MessageId", messageId);
+                } else {
+                    StringBuilder pack = new StringBuilder(mChars).append(PayloadCodec.PACK_MARKER);
+                    for (String message : mMessages) {
+                        PayloadCodec.appendFrame(pack, message);
+                    }
+                    String messageId = mPublisher.publish(mSubject, pack.toString());
+                    for (int i = 0; i < mExchanges.size(); i++) {
+                        mExchanges.get(i).getIn().setHeader("SNS:MessageId", messageId + ":" + i);
+                    }
+                    mPacksPublished.incrementAndGet();
+                }
+                mMessagesPublished.addAndGet(mMessages.size());
+            } catch (Exception e) {
+                sLog.debug("publishing a pack of " + mMessages.size() + " messages failed", e);
+                for (Exchange exchange : mExchanges) {
+                    exchange.setException(e);
+                }
+            } finally {
+                for (int i = 0; i < mExchanges.size(); i++) {
+                    mCallbacks.get(i).onTaskCompleted(mExchanges.get(i));
+                }
+            }
+        }
+    }
+}
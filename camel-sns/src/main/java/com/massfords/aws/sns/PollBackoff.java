@@ -0,0 +1,75 @@
+package com.massfords.aws.sns;
+
+/**
+ * Tracks consecutive empty receives for a queue and decides when the next
+ * receive is due. Each empty receive multiplies the wait by the multiplier,
+ * capped at the max delay. Receiving a message resets the backoff so a busy
+ * queue is polled back to back.
+ */
+public class PollBackoff {
+
+    private final long mBaseDelay;
+    private final double mMultiplier;
+    private final long mMaxDelay;
+
+    private int mEmptyReceives;
+    private long mCurrentDelay;
+    private long mNextPoll;
+
+    /**
+     * @param aBaseDelay millis between polls when the queue isn't backing off
+     * @param aMultiplier factor the delay grows by for each consecutive empty receive
+     * @param aMaxDelay upper bound on the delay between polls
+     */
+    public PollBackoff(long aBaseDelay, double aMultiplier, long aMaxDelay) {
+        if (aMultiplier < 1)
+            throw new IllegalArgumentException("multiplier must be at least 1 but was " + aMultiplier);
+        mBaseDelay = aBaseDelay;
+        mMultiplier = aMultiplier;
+        mMaxDelay = aMaxDelay;
+    }
+
+    /**
+     * @return true if enough time has passed since the last empty receive to poll again
+     */
+    public synchronized boolean isPollDue(long aNow) {
+        return aNow >= mNextPoll;
+    }
+
+    /**
+     * @return millis until the next poll is due, 0 if it's due now
+     */
+    public synchronized long getTimeUntilDue(long aNow) {
+        return Math.max(0, mNextPoll - aNow);
+    }
+
+    /**
+     * Records a receive that returned messages, the next poll is due immediately.
+     */
+    public synchronized void onMessages() {
+        mEmptyReceives = 0;
+        mCurrentDelay = 0;
+        mNextPoll = 0;
+    }
+
+    /**
+     * Records a receive that came back empty and pushes out the next poll.
+     */
+    public synchronized void onEmpty(long aNow) {
+        mEmptyReceives++;
+        double delay = mBaseDelay * Math.pow(mMultiplier, mEmptyReceives - 1);
+        mCurrentDelay = (long) Math.min(delay, mMaxDelay);
+        mNextPoll = aNow + mCurrentDelay;
+    }
+
+    /**
+     * @return millis to wait before the next poll, 0 if the queue isn't backing off
+     */
+    public synchronized long getCurrentDelay() {
+        return mCurrentDelay;
+    }
+
+    public synchronized int getEmptyReceives() {
+        return mEmptyReceives;
+    }
+}
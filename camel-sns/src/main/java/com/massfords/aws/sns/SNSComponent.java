@@ -1,19 +1,168 @@
 package com.massfords.aws.sns;
 
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
 import org.apache.camel.Endpoint;
 import org.apache.camel.impl.DefaultComponent;
+import org.apache.camel.util.concurrent.ExecutorServiceHelper;
 
 /**
  * Standard component that creates SNSEndpoints given a uri and params.
- * 
+ *
+ * The component owns the resources that are shared between its endpoints such as the
+ * registry of SNS/SQS clients, the acknowledgers for each queue, the groups of consumers sharing a
+ * subscription and the pool that provisions the consumers' topics, queues and subscriptions in parallel.
+ *
  * @author markford
  */
 public class SNSComponent extends DefaultComponent {
 
+    private final AmazonClientRegistry mClientRegistry = new AmazonClientRegistry();
+    /** acknowledgers shared by the consumers of each queue, keyed by queue url */
+    private final Map<String, MessageAcknowledger> mAcknowledgers = new HashMap<String, MessageAcknowledger>();
+    private int mProvisioningThreads = 10;
+    private ExecutorService mProvisioningExecutor;
+    private int mPollerThreads = 2;
+    private SharedPoller mSharedPoller;
+    /** groups of consumers sharing a subscription, keyed by group name */
+    private final Map<String, SubscriptionGroup> mSubscriptionGroups = new HashMap<String, SubscriptionGroup>();
+
     protected Endpoint createEndpoint(String aUri, String aRemaining, Map aParams) throws Exception {
-        return new SNSEndpoint(aUri, getCamelContext());
+        return new SNSEndpoint(aUri, this);
+    }
+
+    public AmazonClientRegistry getClientRegistry() {
+        return mClientRegistry;
+    }
+
+    /**
+     * Returns the acknowledger for the endpoint's queue, creating it for the first consumer of the queue.
+     *
+     * @throws IllegalArgumentException if the endpoint's ack settings differ from the ones the queue's
+     *             acknowledger was created with
+     */
+    public synchronized MessageAcknowledger acquireAcknowledger(SNSEndpoint aEndpoint) {
+        MessageAcknowledger acknowledger = mAcknowledgers.get(aEndpoint.getQueueURL());
+        if (acknowledger == null) {
+            acknowledger = aEndpoint.createAcknowledger();
+            mAcknowledgers.put(aEndpoint.getQueueURL(), acknowledger);
+        } else if (acknowledger.getFlushSize() != aEndpoint.getAckFlushSize()
+                || acknowledger.getFlushInterval() != aEndpoint.getAckFlushInterval()
+                || acknowledger.getMaxRetries() != aEndpoint.getAckMaxRetries()) {
+            throw new IllegalArgumentException("the consumers of " + aEndpoint.getQueueURL()
+                    + " share an acknowledger with ackFlushSize=" + acknowledger.getFlushSize()
+                    + " ackFlushInterval=" + acknowledger.getFlushInterval() + " ackMaxRetries="
+                    + acknowledger.getMaxRetries() + ", " + SNSEndpoint.stripCredentials(aEndpoint.getEndpointUri())
+                    + " has different settings");
+        }
+        acknowledger.acquire();
+        return acknowledger;
+    }
+
+    /**
+     * Releases the consumer's hold on the acknowledger, the last consumer out flushes it.
+     */
+    public synchronized void releaseAcknowledger(MessageAcknowledger aAcknowledger) throws Exception {
+        if (aAcknowledger.release()) {
+            mAcknowledgers.remove(aAcknowledger.getQueueURL());
+        }
+    }
+
+    /**
+     * @return the named group of consumers sharing a subscription, created for its first member
+     */
+    public synchronized SubscriptionGroup getSubscriptionGroup(String aName) {
+        SubscriptionGroup group = mSubscriptionGroups.get(aName);
+        if (group == null) {
+            group = new SubscriptionGroup(aName);
+            mSubscriptionGroups.put(aName, group);
+        }
+        return group;
+    }
+
+    /**
+     * Takes the consumer out of its group, the group is dropped with its last member.
+     *
+     * @return true if the consumer was the last member of the group
+     */
+    public synchronized boolean leaveSubscriptionGroup(SubscriptionGroup aGroup, SNSConsumer aConsumer)
+            throws Exception {
+        if (aGroup.leave(aConsumer)) {
+            mSubscriptionGroups.remove(aGroup.getName());
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return pool the consumers provision their topics, queues and subscriptions on when they start
+     */
+    public synchronized ExecutorService getProvisioningExecutor() {
+        if (mProvisioningExecutor == null) {
+            mProvisioningExecutor = ExecutorServiceHelper.newFixedThreadPool(mProvisioningThreads,
+                    "SNS provisioning", true);
+        }
+        return mProvisioningExecutor;
+    }
+
+    public int getProvisioningThreads() {
+        return mProvisioningThreads;
+    }
+
+    /**
+     * @param aProvisioningThreads number of consumers that can be provisioned at the same time
+     */
+    public void setProvisioningThreads(int aProvisioningThreads) {
+        mProvisioningThreads = aProvisioningThreads;
+    }
+
+    /**
+     * @return poller for the consumers that have the sharedPoller option set
+     */
+    public synchronized SharedPoller getSharedPoller() {
+        if (mSharedPoller == null) {
+            mSharedPoller = new SharedPoller(mPollerThreads);
+        }
+        return mSharedPoller;
+    }
+
+    public int getPollerThreads() {
+        return mPollerThreads;
+    }
+
+    /**
+     * @param aPollerThreads number of threads the shared poller polls the queues with
+     */
+    public void setPollerThreads(int aPollerThreads) {
+        mPollerThreads = aPollerThreads;
+    }
+
+    /**
+     * @param aClientSource where the endpoints' SNS and SQS clients come from, e.g. an
+     *            {@link com.massfords.aws.sns.emulator.AWSEmulator} to run without AWS
+     */
+    public void setClientSource(AmazonClientSource aClientSource) {
+        mClientRegistry.setClientSource(aClientSource);
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        super.doStop();
+        synchronized (this) {
+            if (mSharedPoller != null) {
+                mSharedPoller.shutdown();
+                mSharedPoller = null;
+            }
+        }
+        synchronized (this) {
+            if (mProvisioningExecutor != null) {
+                mProvisioningExecutor.shutdownNow();
+                mProvisioningExecutor = null;
+            }
+        }
+        mClientRegistry.shutdown();
     }
 
 }
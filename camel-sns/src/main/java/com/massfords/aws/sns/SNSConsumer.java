@@ -1,30 +1,59 @@
 package com.massfords.aws.sns;
 
+import java.io.IOException;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.camel.Exchange;
 import org.apache.camel.ExchangePattern;
 import org.apache.camel.Processor;
+import org.apache.camel.impl.DefaultUnitOfWork;
 import org.apache.camel.impl.ScheduledPollConsumer;
+import org.apache.camel.impl.SynchronizationAdapter;
+import org.apache.camel.spi.IdempotentRepository;
+import org.apache.camel.util.ServiceHelper;
+import org.apache.camel.util.concurrent.ExecutorServiceHelper;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import com.amazonaws.services.sns.AmazonSNSClient;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.sns.AmazonSNS;
+import com.amazonaws.services.sns.model.ListSubscriptionsByTopicRequest;
+import com.amazonaws.services.sns.model.ListSubscriptionsByTopicResult;
 import com.amazonaws.services.sns.model.SubscribeRequest;
 import com.amazonaws.services.sns.model.SubscribeResult;
+import com.amazonaws.services.sns.model.Subscription;
 import com.amazonaws.services.sns.model.UnsubscribeRequest;
-import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.AmazonSQS;
 import com.amazonaws.services.sqs.model.CreateQueueRequest;
 import com.amazonaws.services.sqs.model.DeleteMessageRequest;
 import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
 import com.amazonaws.services.sqs.model.Message;
 import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
-import com.amazonaws.services.sqs.model.ReceiveMessageResult;
 import com.amazonaws.services.sqs.model.SetQueueAttributesRequest;
+import com.massfords.aws.sns.management.ConsumerMetrics;
+import com.massfords.aws.sns.management.FlightEvent;
+import com.massfords.aws.sns.support.LatencyStamp;
+import com.massfords.aws.sns.support.NotificationFilter;
+import com.massfords.aws.sns.support.ProvisioningCache;
 import com.massfords.aws.sns.support.SQSObject;
 import com.massfords.aws.sns.support.SQSTypeConverter;
 
@@ -37,17 +66,10 @@ import com.massfords.aws.sns.support.SQSTypeConverter;
 public class SNSConsumer extends ScheduledPollConsumer {
 
     private static Log sLog = LogFactory.getLog(SNSConsumer.class);
-
-    /** Headers on the message received by from the topic */
-    private static String[] HEADERS = { "MessageId", 
-                                        "Timestamp", 
-                                        "TopicArn", 
-                                        "Type", 
-                                        "UnsubscribeURL",
-                                         "Message", 
-                                         "Subject", 
-                                         "Signature", 
-                                         "SignatureVersion" };
+    /** millis the shared poller waits before checking again when the worker pool is full */
+    private static final long BUSY_WAIT = 10;
+    /** policy template read once from the classpath */
+    private static String sPolicyTemplate;
 
     /**
      * subscription arn is kept in order to unsubscribe when the consumer is
@@ -55,12 +77,80 @@ public class SNSConsumer extends ScheduledPollConsumer {
      */
     private String mSubscriptionArn;
     /**
-     * Set of previously processed messages kept when the idempotent flag is set
+     * Provisioning running on the component's pool, null once it's done
+     */
+    private volatile Future<?> mProvisioning;
+    /**
+     * Store of previously processed messages, only used when the idempotent flag is set
+     */
+    private volatile IdempotentRepository<String> mIdempotentRepository;
+    /**
+     * Pool used to process the messages from a batch in parallel, only created when
+     * more than one message is received per poll
+     */
+    private volatile ExecutorService mWorkerPool;
+    /**
+     * Deletes the processed messages in the background, only used with the asyncAck option
+     */
+    private volatile MessageAcknowledger mAcknowledger;
+    /**
+     * Spaces out the receives while the queue is empty, only used when maxBackoffDelay is set
+     */
+    private volatile PollBackoff mBackoff;
+    /**
+     * Receive loops, one for each of the concurrent consumers
+     */
+    private final List<ScheduledFuture<?>> mReceiveLoops = new ArrayList<ScheduledFuture<?>>();
+    /**
+     * Endpoint's pool the receive loops run on, acquired when the consumer starts
+     */
+    private ScheduledExecutorService mExecutor;
+    /**
+     * Component's poller when the sharedPoller option is set, the consumer doesn't run a poll loop of its own
+     */
+    private volatile SharedPoller mSharedPoller;
+    /**
+     * Room left on the worker pool for messages from the shared poller
      */
-    private LinkedHashSet mAlreadyProcessed = new LinkedHashSet();
+    private volatile Semaphore mInFlight;
+    /**
+     * Consumers sharing the subscription when the subscriptionGroup option is set
+     */
+    private volatile SubscriptionGroup mGroup;
+    /**
+     * Notifications the group queued on the consumer that it hasn't finished with
+     */
+    private final AtomicInteger mGroupQueued = new AtomicInteger();
+    /**
+     * Most notifications the group can queue on the consumer, its workers and a receive batch
+     */
+    private volatile int mGroupQueueLimit;
+    /**
+     * Messages the consumer received for its group that the members haven't all finished with
+     */
+    private final AtomicInteger mUnacknowledged = new AtomicInteger();
+    /**
+     * Conditions on the envelope checked before an exchange is created, null if there aren't any
+     */
+    private volatile NotificationFilter mFilter;
+    private final AtomicLong mFiltered = new AtomicLong();
+    private final AtomicLong mDelivered = new AtomicLong();
+    /**
+     * Endpoint's metrics, shared with the other consumers of the endpoint
+     */
+    private final ConsumerMetrics mMetrics;
+    /**
+     * Set when the endpoint tracks latency, the stamps and timestamps are only read then
+     */
+    private volatile boolean mTrackLatency;
+    /**
+     * Keys of the checked in bodies to delete once their messages are deleted, by receipt handle
+     */
+    private final ConcurrentMap<String, List<String>> mBlobKeys = new ConcurrentHashMap<String, List<String>>();
 
     public SNSConsumer(SNSEndpoint aEndpoint, Processor aProcessor) {
         super(aEndpoint, aProcessor);
+        mMetrics = aEndpoint.getConsumerMetrics();
     }
 
     @Override
@@ -72,39 +162,170 @@ public class SNSConsumer extends ScheduledPollConsumer {
         return (SNSEndpoint) super.getEndpoint();
     }
 
+    /**
+     * Provisions the topic, queue and subscription on the component's pool so
+     * the consumers of a context are provisioned in parallel instead of one
+     * after the other. The consumer starts right away and skips its polls
+     * until provisioning is done.
+     */
     public void start() throws Exception {
 
         sLog.debug("starting");
 
+        if (joinSubscriptionGroup()) {
+            if (!submitProvisioning())
+                provision();
+        }
+
+        super.start();
+    }
+
+    /**
+     * @return false if the consumer joined a group whose subscription is provisioned by another member
+     */
+    private boolean joinSubscriptionGroup() throws Exception {
+        String name = getEndpoint().getSubscriptionGroup();
+        if (name == null)
+            return true;
+        if (!(getEndpoint().getComponent() instanceof SNSComponent)) {
+            sLog.debug("subscription groups are only available to endpoints created by the SNSComponent");
+            return true;
+        }
+        SubscriptionGroup group = ((SNSComponent) getEndpoint().getComponent()).getSubscriptionGroup(name);
+        boolean leader = group.join(this);
+        mGroup = group;
+        return leader;
+    }
+
+    /**
+     * Takes over the queue and subscription of the group's previous leader.
+     */
+    protected void adoptSubscription(SNSConsumer aPrevious) throws Exception {
+        SNSEndpoint from = aPrevious.getEndpoint();
+        SNSEndpoint to = getEndpoint();
+        if (from != to) {
+            to.setResolvedTopicArn(from.getTopicArn());
+            to.setQueueURL(from.getQueueURL());
+            to.setQueueArn(from.getQueueArn());
+        }
+        setSubscriptionArn(aPrevious.getSubscriptionArn());
+    }
+
+    /**
+     * @return false if the endpoint isn't part of an SNSComponent and has to be provisioned inline
+     */
+    private boolean submitProvisioning() {
+        if (!(getEndpoint().getComponent() instanceof SNSComponent))
+            return false;
+        ExecutorService executor = ((SNSComponent) getEndpoint().getComponent()).getProvisioningExecutor();
+        mProvisioning = executor.submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                provision();
+                return null;
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Resolves the topic, creates the queue with a policy that lets the topic
+     * send to it and subscribes the queue to the topic unless it already is.
+     * Values found in the provisioning cache are used as is, unless AWS
+     * reports one of them doesn't exist, then they're dropped and resolved
+     * again.
+     */
+    protected void provision() throws Exception {
+        try {
+            provisionOnce();
+        } catch (AmazonServiceException e) {
+            if (!isNotFound(e) || !forgetProvisioning())
+                throw e;
+            sLog.warn("cached provisioning values are stale, provisioning again", e);
+            provisionOnce();
+        }
+    }
+
+    /**
+     * Provisions the consumer again after its queue was found to be gone,
+     * unless that's already under way.
+     */
+    private synchronized void reprovision() throws Exception {
+        if (mProvisioning != null)
+            return;
+        sLog.warn("queue " + getEndpoint().getQueueURL() + " doesn't exist, provisioning again");
+        forgetProvisioning();
+        releaseAcknowledger();
+        if (!submitProvisioning())
+            provision();
+    }
+
+    /**
+     * Drops the consumer's values from the provisioning cache along with the
+     * ones provisioning set on the endpoint.
+     *
+     * @return true if there were cached values
+     */
+    private boolean forgetProvisioning() throws Exception {
         SNSEndpoint endpoint = getEndpoint();
+        ProvisioningCache cache = endpoint.getProvisioningCacheFile();
+        boolean cached = cache != null && cache.removeAll(endpoint.getProvisioningKey());
+        endpoint.clearProvisioning();
+        setSubscriptionArn(null);
+        return cached;
+    }
 
-        AmazonSNSClient client = AmazonClientFactory.createSNSClient(endpoint.getAccessKey(),
-                endpoint.getSecretKey());
+    /**
+     * @return true if the error says the queue, topic or subscription doesn't exist
+     */
+    protected static boolean isNotFound(Exception aError) {
+        if (!(aError instanceof AmazonServiceException))
+            return false;
+        String code = ((AmazonServiceException) aError).getErrorCode();
+        return "AWS.SimpleQueueService.NonExistentQueue".equals(code) || "NotFound".equals(code);
+    }
+
+    private void provisionOnce() throws Exception {
+        long start = System.nanoTime();
+        SNSEndpoint endpoint = getEndpoint();
+        ProvisioningCache cache = endpoint.getProvisioningCacheFile();
+        String key = endpoint.getProvisioningKey();
 
+        if (cache != null && cache.get(key, "topicArn") != null) {
+            endpoint.setResolvedTopicArn(cache.get(key, "topicArn"));
+        }
         String topicArn = endpoint.getTopicArn();
         sLog.debug("topicArn:" + topicArn);
+        if (cache != null)
+            cache.put(key, "topicArn", topicArn);
+
         // create the queue if it doesn't exist
-        AmazonSQSClient qClient = AmazonClientFactory.createSQSClient(endpoint.getAccessKey(),
-                endpoint.getSecretKey());
+        AmazonSQS qClient = endpoint.getSQSClient();
 
         if (endpoint.getQueueArn() == null) {
-            sLog.debug("queueArn not set, creating queue from queue name");
-            String queueURL = qClient.createQueue(
-                    new CreateQueueRequest().withQueueName(endpoint.getQueueName())).getQueueUrl();
+            String queueURL = cache == null ? null : cache.get(key, "queueURL");
+            String queueArn = cache == null ? null : cache.get(key, "queueArn");
+            if (queueURL == null || queueArn == null) {
+                sLog.debug("queueArn not set, creating queue from queue name");
+                queueURL = qClient.createQueue(new CreateQueueRequest().withQueueName(endpoint.getQueueName()))
+                        .getQueueUrl();
+                queueArn = getQueueArn(qClient, queueURL);
+
+                // set policy
+                Map<String, String> policyMap = new HashMap<String, String>();
+                String policy = getPolicy(topicArn, queueArn, queueURL);
+                policyMap.put("Policy", policy);
+                sLog.debug("setting policy on newly created queue:" + policy);
+                qClient.setQueueAttributes(new SetQueueAttributesRequest().withQueueUrl(queueURL).withAttributes(
+                        policyMap));
+                if (cache != null) {
+                    cache.put(key, "queueURL", queueURL);
+                    cache.put(key, "queueArn", queueArn);
+                }
+            }
             endpoint.setQueueURL(queueURL);
+            endpoint.setQueueArn(queueArn);
             sLog.debug("queueURL=" + queueURL);
-
-            String queueArn = getQueueArn(qClient, queueURL);
             sLog.debug("queueArn=" + queueArn);
-            endpoint.setQueueArn(queueArn);
-
-            // set policy
-            Map<String, String> policyMap = new HashMap();
-            String policy = getPolicy(topicArn, queueArn, queueURL);
-            policyMap.put("Policy", policy);
-            sLog.debug("setting policy on newly created queue:" + policy);
-            qClient.setQueueAttributes(new SetQueueAttributesRequest().withQueueUrl(queueURL).withAttributes(
-                    policyMap));
         } else {
             String queueArn = endpoint.getQueueArn();
             String queueURL = SNSEndpoint.toQueueURL(queueArn);
@@ -114,12 +335,67 @@ public class SNSConsumer extends ScheduledPollConsumer {
         }
 
         // subscribe
-        SubscribeResult subresult = client.subscribe(new SubscribeRequest().withProtocol("sqs").withTopicArn(
-                topicArn).withEndpoint(endpoint.getQueueArn()));
-        sLog.debug("subscribed to topic: " + subresult.getSubscriptionArn());
-        setSubscriptionArn(subresult.getSubscriptionArn());
+        String subscriptionArn = cache == null ? null : cache.get(key, "subscriptionArn");
+        if (subscriptionArn == null) {
+            AmazonSNS client = endpoint.getSNSClient();
+            subscriptionArn = findSubscription(client, topicArn, endpoint.getQueueArn());
+            if (subscriptionArn == null) {
+                SubscribeResult subresult = client.subscribe(new SubscribeRequest().withProtocol("sqs")
+                        .withTopicArn(topicArn).withEndpoint(endpoint.getQueueArn()));
+                subscriptionArn = subresult.getSubscriptionArn();
+                sLog.debug("subscribed to topic: " + subscriptionArn);
+            } else {
+                sLog.debug("reusing subscription to topic: " + subscriptionArn);
+            }
+            if (cache != null)
+                cache.put(key, "subscriptionArn", subscriptionArn);
+        }
+        setSubscriptionArn(subscriptionArn);
+        if (endpoint.isAsyncAck()) {
+            // acquired now that the queue url is known so conflicting settings fail the provisioning
+            acquireAcknowledger();
+        }
+        mMetrics.provisioned(start);
+    }
 
-        super.start();
+    /**
+     * @return arn of the queue's existing subscription to the topic or null if it isn't subscribed
+     */
+    protected static String findSubscription(AmazonSNS aClient, String aTopicArn, String aQueueArn) {
+        String nextToken = null;
+        do {
+            ListSubscriptionsByTopicResult result = aClient.listSubscriptionsByTopic(
+                    new ListSubscriptionsByTopicRequest().withTopicArn(aTopicArn).withNextToken(nextToken));
+            for (Subscription subscription : result.getSubscriptions()) {
+                // a subscription that's still waiting on confirmation doesn't have an arn yet
+                if ("sqs".equals(subscription.getProtocol()) && aQueueArn.equals(subscription.getEndpoint())
+                        && subscription.getSubscriptionArn().startsWith("arn:"))
+                    return subscription.getSubscriptionArn();
+            }
+            nextToken = result.getNextToken();
+        } while (nextToken != null);
+        return null;
+    }
+
+    /**
+     * @return true once the topic, queue and subscription are provisioned. A
+     *         failed provisioning is reported and tried again.
+     */
+    protected synchronized boolean isProvisioned() throws Exception {
+        Future<?> provisioning = mProvisioning;
+        if (provisioning == null)
+            return true;
+        if (!provisioning.isDone())
+            return false;
+        mProvisioning = null;
+        try {
+            provisioning.get();
+            return true;
+        } catch (ExecutionException e) {
+            sLog.debug("provisioning failed, retrying");
+            submitProvisioning();
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
     }
 
     public void stop() throws Exception {
@@ -128,20 +404,45 @@ public class SNSConsumer extends ScheduledPollConsumer {
             return;
         }
         sLog.debug("stopping consumer...");
+        // stop polling and flush the acknowledgements before the queue could be deleted
+        super.stop();
+
+        Future<?> provisioning = mProvisioning;
+        if (provisioning != null) {
+            try {
+                provisioning.get(30, TimeUnit.SECONDS);
+            } catch (Exception e) {
+                sLog.warn("consumer stopped before it was provisioned", e);
+            }
+            mProvisioning = null;
+        }
+
         SNSEndpoint endpoint = (SNSEndpoint) getEndpoint();
+        SubscriptionGroup group = mGroup;
+        if (group != null) {
+            mGroup = null;
+            if (!((SNSComponent) endpoint.getComponent()).leaveSubscriptionGroup(group, this)) {
+                // the remaining members still use the queue and subscription
+                return;
+            }
+        }
         endpoint.stop();
 
-        if (!endpoint.isDeleteTopicOnStop()) {
+        ProvisioningCache cache = endpoint.getProvisioningCacheFile();
+        String key = endpoint.getProvisioningKey();
+        if (cache != null && (endpoint.isDeleteTopicOnStop() || endpoint.isDeleteQueueOnStop()))
+            cache.removeAll(key);
+
+        if (!endpoint.isDeleteTopicOnStop() && endpoint.isUnsubscribeOnStop() && mSubscriptionArn != null) {
             sLog.debug("unsubscribing from topic");
-            AmazonSNSClient client = AmazonClientFactory.createSNSClient(endpoint.getAccessKey(),
-                    endpoint.getSecretKey());
+            AmazonSNS client = endpoint.getSNSClient();
             client.unsubscribe(new UnsubscribeRequest().withSubscriptionArn(mSubscriptionArn));
+            if (cache != null)
+                cache.remove(key, "subscriptionArn");
         }
-
-        super.stop();
     }
 
-    protected static String getQueueArn(AmazonSQSClient qClient, String queueURL) {
+    protected static String getQueueArn(AmazonSQS qClient, String queueURL) {
         String queueArn = qClient.getQueueAttributes(
                 new GetQueueAttributesRequest().withQueueUrl(queueURL).withAttributeNames(
                         "QueueArn")).getAttributes().get("QueueArn");
@@ -150,8 +451,7 @@ public class SNSConsumer extends ScheduledPollConsumer {
 
     protected static String getPolicy(String aTopicArn, String aQueueArn, String aQueueURL)
             throws Exception {
-        // FIXME can make this more efficient
-        String s = IOUtils.toString(SNSConsumer.class.getResourceAsStream("/default-sqs-policy-template.json"));
+        String s = getPolicyTemplate();
         s = s.replace("$SNS_ARN", aTopicArn);
         s = s.replace("$SQS_ARN", aQueueArn);
         s = s.replace("$SQS_URL", new URI(aQueueURL).getPath());
@@ -160,63 +460,655 @@ public class SNSConsumer extends ScheduledPollConsumer {
         return s;
     }
 
+    private static synchronized String getPolicyTemplate() throws Exception {
+        if (sPolicyTemplate == null) {
+            sPolicyTemplate = IOUtils.toString(SNSConsumer.class
+                    .getResourceAsStream("/default-sqs-policy-template.json"));
+        }
+        return sPolicyTemplate;
+    }
+
     protected boolean alreadyProcessed(String aMessageId) {
-        boolean alreadyProcessed = !mAlreadyProcessed.add(aMessageId);
-        if (mAlreadyProcessed.size() > 100) {
-            Object oldest = mAlreadyProcessed.iterator().next();
-            mAlreadyProcessed.remove(oldest);
+        return !mIdempotentRepository.add(aMessageId);
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        mMetrics.acquire(getEndpoint().getMBeanServer());
+        mTrackLatency = getEndpoint().isTrackLatency();
+        mMetrics.setLatencySummaryInterval(mTrackLatency ? getEndpoint().getLatencySummaryInterval() : 0);
+        mFilter = getEndpoint().getNotificationFilter();
+        getEndpoint().getCompressionCodec();
+        // each exchange's unit of work needs it and the context creates it lazily without a lock
+        getEndpoint().getCamelContext().getManagementStrategy();
+        if (getEndpoint().isIdempotent()) {
+            mIdempotentRepository = getEndpoint().getIdempotentRepository();
+            ServiceHelper.startService(mIdempotentRepository);
+        }
+        if (getEndpoint().isVerify()) {
+            ServiceHelper.startService(getEndpoint().getCertificateProvider());
+        }
+        int batchSize = getEndpoint().getMaxMessagesPerPoll();
+        boolean shared = getEndpoint().isSharedPoller() && getEndpoint().getComponent() instanceof SNSComponent;
+        if (batchSize > 1 || shared || mGroup != null) {
+            int workers = batchSize * getEndpoint().getConcurrentConsumers();
+            mWorkerPool = ExecutorServiceHelper.newFixedThreadPool(workers, toString(), true);
+            if (shared)
+                mInFlight = new Semaphore(workers);
+            mGroupQueueLimit = workers + SNSEndpoint.MAX_RECEIVE_BATCH;
+        }
+        long delay = getTimeUnit().toMillis(getDelay());
+        if (getEndpoint().getMaxBackoffDelay() > 0) {
+            mBackoff = new PollBackoff(delay, getEndpoint().getBackoffMultiplier(), getEndpoint().getMaxBackoffDelay());
+        } else if (shared) {
+            // without backoff an empty queue is polled again after the consumer's delay
+            mBackoff = new PollBackoff(delay, 1, delay);
+        }
+        if (shared) {
+            mSharedPoller = ((SNSComponent) getEndpoint().getComponent()).getSharedPoller();
+            mSharedPoller.register(this);
+        } else {
+            if (getEndpoint().isSharedPoller())
+                sLog.debug("shared poller is only available to endpoints created by the SNSComponent");
+            // the base class would schedule on the pool the consumer was made with, which is shut down once
+            // the endpoint's consumers have all stopped, so this only does what DefaultConsumer does
+            ServiceHelper.startService(getProcessor());
+            scheduleReceiveLoops();
         }
-        return alreadyProcessed;
     }
 
+    /**
+     * Schedules a receive loop for each of the concurrent consumers on the
+     * endpoint's pool, with the base class's timing.
+     */
+    private void scheduleReceiveLoops() {
+        int count = Math.max(1, getEndpoint().getConcurrentConsumers());
+        mExecutor = getEndpoint().acquireExecutorService();
+        sLog.debug("starting " + count + " concurrent consumers");
+        for (int i = 0; i < count; i++) {
+            ScheduledFuture<?> future;
+            if (isUseFixedDelay()) {
+                future = mExecutor.scheduleWithFixedDelay(this, getInitialDelay(), getDelay(), getTimeUnit());
+            } else {
+                future = mExecutor.scheduleAtFixedRate(this, getInitialDelay(), getDelay(), getTimeUnit());
+            }
+            mReceiveLoops.add(future);
+        }
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        for (ScheduledFuture<?> future : mReceiveLoops) {
+            future.cancel(false);
+        }
+        mReceiveLoops.clear();
+        if (mExecutor != null) {
+            getEndpoint().releaseExecutorService();
+            mExecutor = null;
+        }
+        if (mSharedPoller != null) {
+            mSharedPoller.unregister(this);
+            mSharedPoller = null;
+        }
+        super.doStop();
+        if (mWorkerPool != null) {
+            mWorkerPool.shutdown();
+            if (!mWorkerPool.awaitTermination(30, TimeUnit.SECONDS)) {
+                sLog.warn("timed out waiting for messages to finish processing");
+                mWorkerPool.shutdownNow();
+            }
+            mWorkerPool = null;
+            mInFlight = null;
+        }
+        awaitGroupDeliveries();
+        if (mIdempotentRepository != null) {
+            ServiceHelper.stopService(mIdempotentRepository);
+            mIdempotentRepository = null;
+        }
+        if (getEndpoint().isVerify()) {
+            ServiceHelper.stopService(getEndpoint().getCertificateProvider());
+        }
+        releaseAcknowledger();
+        mMetrics.release();
+    }
+
+    /**
+     * Waits for the other members of the group to finish with the messages
+     * the consumer received, so it's still there to delete them.
+     */
+    private void awaitGroupDeliveries() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 30000;
+        synchronized (mUnacknowledged) {
+            while (mUnacknowledged.get() > 0) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    sLog.warn("timed out waiting for the subscription group to finish with "
+                            + mUnacknowledged.get() + " message(s), they'll be redelivered");
+                    return;
+                }
+                mUnacknowledged.wait(remaining);
+            }
+        }
+    }
+
+    /**
+     * The acknowledger is acquired once the consumer is provisioned, or with
+     * the first delete when the queue url was set on the endpoint, rather
+     * than at start since the queue url isn't known until then.
+     */
+    private synchronized MessageAcknowledger acquireAcknowledger() {
+        if (mAcknowledger == null)
+            mAcknowledger = getEndpoint().acquireAcknowledger();
+        return mAcknowledger;
+    }
+
+    private synchronized void releaseAcknowledger() throws Exception {
+        if (mAcknowledger != null) {
+            getEndpoint().releaseAcknowledger(mAcknowledger);
+            mAcknowledger = null;
+        }
+    }
+
+    /**
+     * @return false if the consumer is in a group that another member polls the queue for
+     */
+    private boolean isPolling() {
+        SubscriptionGroup group = mGroup;
+        return group == null || group.isLeader(this);
+    }
+
+    /**
+     * @return the acknowledger used by the consumer or null if each message is deleted as it's processed
+     */
+    public MessageAcknowledger getAcknowledger() {
+        return mAcknowledger;
+    }
+
+    /**
+     * Receives up to maxMessagesPerPoll messages from the queue. As long as the
+     * queue keeps returning full batches we keep going instead of waiting for
+     * the next scheduled poll.
+     *
+     * When backoff is enabled we also keep going as long as any messages are
+     * returned, and each consecutive empty receive pushes the next poll further
+     * out so an idle queue is rarely hit.
+     */
     protected void poll() throws Exception {
 
+        if (!isPolling() || !isProvisioned()) {
+            return;
+        }
+
+        PollBackoff backoff = mBackoff;
+        if (backoff != null && !backoff.isPollDue(System.currentTimeMillis())) {
+            return;
+        }
+
         SNSEndpoint endpoint = (SNSEndpoint) getEndpoint();
         String queueURL = endpoint.getQueueURL();
+        int batchSize = endpoint.getMaxMessagesPerPoll();
+
+        AmazonSQS qClient = endpoint.getSQSClient();
+        List<Message> messages;
+        boolean more;
+        do {
+            SubscriptionGroup group = mGroup;
+            int max = group == null ? batchSize : group.getRoom(batchSize);
+            if (max == 0) {
+                // a member's queue is full, polled again on the next tick
+                return;
+            }
+            sLog.debug("polling queue...");
+            messages = receive(qClient, queueURL, max);
+            if (messages.isEmpty()) {
+                if (backoff != null) {
+                    backoff.onEmpty(System.currentTimeMillis());
+                    if (sLog.isDebugEnabled())
+                        sLog.debug("queue empty, backing off for " + backoff.getCurrentDelay() + "ms");
+                }
+                more = false;
+            } else {
+                sLog.debug("received " + messages.size() + " message(s)");
+                more = messages.size() >= max;
+                if (backoff != null) {
+                    backoff.onMessages();
+                    more = true;
+                }
+                processBatch(qClient, queueURL, messages);
+            }
+        } while (more && isRunAllowed() && !isSuspended());
+    }
+
+    /**
+     * One turn of the shared poller, receives as many messages as the worker
+     * pool has room for if the queue is due and hands them to the pool.
+     *
+     * @return 0 to be polled again right away or the millis until the queue is due
+     */
+    protected long pollShared() throws Exception {
+        long delay = Math.max(1, getTimeUnit().toMillis(getDelay()));
+        if (!isRunAllowed() || isSuspended() || !isPolling() || !isProvisioned())
+            return delay;
+        PollBackoff backoff = mBackoff;
+        long now = System.currentTimeMillis();
+        long untilDue = backoff.getTimeUntilDue(now);
+        if (untilDue > 0)
+            return untilDue;
+        SubscriptionGroup group = mGroup;
+        int capacity = group != null ? group.getRoom(getEndpoint().getMaxMessagesPerPoll()) : Math.min(
+                getEndpoint().getMaxMessagesPerPoll(), mInFlight.availablePermits());
+        if (capacity == 0)
+            return BUSY_WAIT;
+
+        SNSEndpoint endpoint = getEndpoint();
+        AmazonSQS qClient = endpoint.getSQSClient();
+        String queueURL = endpoint.getQueueURL();
+        List<Message> messages = receive(qClient, queueURL, capacity);
+        if (messages.isEmpty()) {
+            backoff.onEmpty(now);
+            return Math.max(1, backoff.getCurrentDelay());
+        }
+        backoff.onMessages();
+        if (group != null) {
+            // queued on the members' pools, so it's only parsed here
+            processBatch(qClient, queueURL, messages);
+            return 0;
+        }
+        for (Message message : messages) {
+            dispatch(qClient, queueURL, message);
+        }
+        return 0;
+    }
+
+    /**
+     * @return up to aMax messages from the queue, the call is counted and timed in the endpoint's metrics and
+     *         recorded as a {@link FlightEvent#POLL} event
+     */
+    private List<Message> receive(AmazonSQS aClient, String aQueueURL, int aMax) throws Exception {
+        long start = mMetrics.receiveStarted();
+        Object event = FlightEvent.POLL.begin();
+        List<Message> messages;
+        try {
+            messages = aClient.receiveMessage(
+                    new ReceiveMessageRequest().withQueueUrl(aQueueURL).withMaxNumberOfMessages(aMax)).getMessages();
+        } catch (RuntimeException e) {
+            mMetrics.receiveFailed();
+            FlightEvent.POLL.commit(event, mMetrics.getEndpointUri(), 0, 0);
+            if (isNotFound(e))
+                reprovision();
+            throw e;
+        }
+        mMetrics.receiveCompleted(start, messages.size());
+        if (event != null) {
+            long size = 0;
+            for (Message message : messages) {
+                size += message.getBody().length();
+            }
+            FlightEvent.POLL.commit(event, mMetrics.getEndpointUri(), size, messages.size());
+        }
+        if (mTrackLatency)
+            mMetrics.summarizeIfDue();
+        return messages;
+    }
+
+    /**
+     * Processes the message on the worker pool and deletes it if it was handled.
+     */
+    private void dispatch(final AmazonSQS aClient, final String aQueueURL, final Message aMessage) {
+        final Semaphore inFlight = mInFlight;
+        inFlight.acquireUninterruptibly();
+        try {
+            mWorkerPool.execute(new Runnable() {
+                public void run() {
+                    try {
+                        if (processMessage(aMessage))
+                            deleteMessage(aClient, aQueueURL, aMessage);
+                    } catch (Exception e) {
+                        sLog.error("error processing message " + aMessage.getMessageId(), e);
+                    } finally {
+                        inFlight.release();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.release();
+            throw e;
+        }
+    }
+
+    /**
+     * @return number of notifications deleted without being sent to the route because they didn't match the filter
+     */
+    public long getFilteredCount() {
+        return mFiltered.get();
+    }
+
+    /**
+     * @return number of notifications sent to the route
+     */
+    public long getDeliveredCount() {
+        return mDelivered.get();
+    }
+
+    /**
+     * @return the backoff for empty receives or null if backoff isn't enabled
+     */
+    public PollBackoff getBackoff() {
+        return mBackoff;
+    }
+
+    /**
+     * Hands each of the messages to the processor, in parallel on the worker
+     * pool if there's more than one, and deletes the ones that were handled.
+     * Messages whose processing failed are left on the queue to be redelivered.
+     */
+    protected void processBatch(AmazonSQS aClient, String aQueueURL, List<Message> aMessages) throws Exception {
+        ExecutorService workerPool = mWorkerPool;
+        Exception failure = null;
+
+        if (aMessages.size() == 1 || workerPool == null || mGroup != null) {
+            for (Message message : aMessages) {
+                try {
+                    if (processMessage(message))
+                        deleteMessage(aClient, aQueueURL, message);
+                } catch (Exception e) {
+                    sLog.error("error processing message " + message.getMessageId(), e);
+                    if (failure == null)
+                        failure = e;
+                }
+            }
+        } else {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>(aMessages.size());
+            for (final Message message : aMessages) {
+                results.add(workerPool.submit(new Callable<Boolean>() {
+                    public Boolean call() throws Exception {
+                        return processMessage(message);
+                    }
+                }));
+            }
+            for (int i = 0; i < aMessages.size(); i++) {
+                Message message = aMessages.get(i);
+                try {
+                    if (results.get(i).get())
+                        deleteMessage(aClient, aQueueURL, message);
+                } catch (ExecutionException e) {
+                    sLog.error("error processing message " + message.getMessageId(), e.getCause());
+                    if (failure == null)
+                        failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+        }
+
+        if (failure != null)
+            throw failure;
+    }
+
+    /**
+     * Converts the SQS message into an exchange and sends it to the processor.
+     *
+     * @return true if the message is done with and should be deleted from the queue
+     */
+    protected boolean processMessage(Message aMessage) throws Exception {
+        SNSEndpoint endpoint = (SNSEndpoint) getEndpoint();
 
-        sLog.debug("polling queue...");
+        String messageBody = aMessage.getBody();
+        SQSObject sqsObject = SQSTypeConverter.toSQSObject(messageBody, mMetrics.getEndpointUri());
+        // a message from a publisher that doesn't stamp could start like a stamp
+        sqsObject.setStamped(mTrackLatency);
 
-        AmazonSQSClient qClient = AmazonClientFactory.createSQSClient(endpoint.getAccessKey(),
-                endpoint.getSecretKey());
-        ReceiveMessageResult result = qClient.receiveMessage(new ReceiveMessageRequest().withQueueUrl(
-                queueURL).withMaxNumberOfMessages(1));
-        if (!result.getMessages().isEmpty()) {
+        if (endpoint.isVerify()
+                && !SQSTypeConverter.verify(endpoint.getSignatureVerifier(), sqsObject, mMetrics.getEndpointUri())) {
+            sLog.debug("message failed verification, deleting");
+            mMetrics.verificationFailed();
+            return true;
+        }
 
-            sLog.debug("received message");
+        if (mTrackLatency) {
+            long sentToTopic = LatencyStamp.parseTimestamp(sqsObject.getTimestamp());
+            if (sentToTopic > 0)
+                mMetrics.recordQueueDwell(sqsObject.getTopicArn(), LatencyStamp.currentTimeMicros() - sentToTopic
+                        * 1000);
+        }
 
-            Message message = result.getMessages().get(0);
-            String receiptHandle = message.getReceiptHandle();
+        // only read after verification so a forged message can't have a blob deleted
+        List<String> blobKeys = endpoint.isDeleteBlobs() && endpoint.getBlobStore() != null ? getBlobKeys(sqsObject)
+                : null;
+        SubscriptionGroup group = mGroup;
+        if (group != null) {
+            deliver(group, aMessage, sqsObject, blobKeys);
+            // deleted once the last member is done with it
+            return false;
+        }
+        boolean done = processNotification(sqsObject);
+        if (done && blobKeys != null && !blobKeys.isEmpty())
+            mBlobKeys.put(aMessage.getReceiptHandle(), blobKeys);
+        return done;
+    }
 
-            String messageBody = message.getBody();
-            SQSObject sqsObject = SQSTypeConverter.toSQSObject(messageBody);
+    /**
+     * @return keys of the checked in bodies of the message or of the messages packed into it
+     */
+    private List<String> getBlobKeys(SQSObject aSqsObject) {
+        List<String> keys = new ArrayList<String>(1);
+        List<SQSObject> unpacked = unpack(aSqsObject);
+        for (SQSObject sqsObject : unpacked != null ? unpacked : Collections.singletonList(aSqsObject)) {
+            String key = sqsObject.getBlobKey();
+            if (key != null)
+                keys.add(key);
+        }
+        return keys;
+    }
 
-            boolean verified = true;
-            if (endpoint.isVerify() && !verifyMessage(sqsObject)) {
-                sLog.debug("message failed verification, deleting");
-                verified = false;
+    /**
+     * Queues the notification on the group's members, the message is deleted
+     * by the member that finishes with it last.
+     */
+    private void deliver(SubscriptionGroup aGroup, final Message aMessage, SQSObject aSqsObject,
+            final List<String> aBlobKeys) {
+        mUnacknowledged.incrementAndGet();
+        aGroup.deliver(aSqsObject, new SubscriptionGroup.Acknowledgement() {
+            public void onDelivered(boolean aDone, Exception aFailure) {
+                try {
+                    if (aFailure != null) {
+                        sLog.error("error processing message " + aMessage.getMessageId(), aFailure);
+                    } else if (aDone) {
+                        if (aBlobKeys != null && !aBlobKeys.isEmpty())
+                            mBlobKeys.put(aMessage.getReceiptHandle(), aBlobKeys);
+                        deleteMessage(getEndpoint().getSQSClient(), getEndpoint().getQueueURL(), aMessage);
+                    }
+                } catch (RuntimeException e) {
+                    sLog.error("error deleting message " + aMessage.getMessageId(), e);
+                } finally {
+                    synchronized (mUnacknowledged) {
+                        if (mUnacknowledged.decrementAndGet() == 0)
+                            mUnacknowledged.notifyAll();
+                    }
+                }
             }
+        });
+    }
 
-            if (verified) {
-                String messageId = sqsObject.getMessageId();
-                if (endpoint.isIdempotent() & alreadyProcessed(messageId)) {
-                    sLog.debug("message already processed and idempotent flag set, ignoring message");
-                    return;
+    /**
+     * @return how many more notifications the group can queue on the consumer
+     */
+    protected int getGroupRoom() {
+        // one that isn't running is skipped by queueNotification
+        if (mWorkerPool == null)
+            return Integer.MAX_VALUE;
+        return mGroupQueueLimit - mGroupQueued.get();
+    }
+
+    /**
+     * Processes a notification the leader of the consumer's group received on
+     * the worker pool, without waiting for it.
+     *
+     * @return false if the consumer is stopped and didn't take the notification
+     */
+    protected boolean queueNotification(final SQSObject aSqsObject, final SubscriptionGroup.Delivery aDelivery) {
+        ExecutorService workerPool = mWorkerPool;
+        if (workerPool == null)
+            return false;
+        mGroupQueued.incrementAndGet();
+        try {
+            workerPool.execute(new Runnable() {
+                public void run() {
+                    boolean done = false;
+                    Exception failure = null;
+                    try {
+                        done = processNotification(aSqsObject);
+                    } catch (Exception e) {
+                        failure = e;
+                    } finally {
+                        mGroupQueued.decrementAndGet();
+                    }
+                    aDelivery.memberDone(done, failure);
                 }
-    
-                Exchange exchange = endpoint.createExchange(ExchangePattern.InOnly);
-                if (sLog.isTraceEnabled())
-                    sLog.trace(sqsObject.toString());
-                org.apache.camel.Message camelMessage = exchange.getIn();
-                camelMessage.setBody(sqsObject.getMessage());
-                for (String header : HEADERS) {
-                    camelMessage.setHeader("SNS:" + header, sqsObject.getString(header));
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            mGroupQueued.decrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * @return the messages packed into the notification, null if it isn't a
+     *         pack, the endpoint doesn't unpack or its frames are malformed
+     */
+    private List<SQSObject> unpack(SQSObject aSqsObject) {
+        if (!getEndpoint().isUnpacked() || !aSqsObject.isPacked())
+            return null;
+        try {
+            return aSqsObject.unpack();
+        } catch (IllegalArgumentException e) {
+            sLog.warn("sending the text of message " + aSqsObject.getMessageId() + " to the route, it couldn't be"
+                    + " unpacked", e);
+            return null;
+        }
+    }
+
+    /**
+     * Sends the parsed and verified notification to the processor unless it
+     * doesn't match the consumer's filter. With the packSize option a
+     * notification with messages packed into it is unpacked and each of them
+     * is sent on its own, if the idempotent option is set they're checked for
+     * duplicates by their own ids so the ones that were processed are skipped
+     * when a pack is redelivered.
+     *
+     * @return true if the consumer is done with the notification
+     */
+    protected boolean processNotification(SQSObject aSqsObject) throws Exception {
+        List<SQSObject> unpacked = unpack(aSqsObject);
+        if (unpacked != null) {
+            // each packed message is its own exchange, a failed one doesn't stop the rest
+            Exception failure = null;
+            for (SQSObject packed : unpacked) {
+                try {
+                    processNotification(packed);
+                } catch (Exception e) {
+                    sLog.error("error processing packed message " + packed.getMessageId(), e);
+                    if (failure == null)
+                        failure = e;
                 }
-    
-                getProcessor().process(exchange);
             }
+            if (failure != null)
+                throw failure;
+            return true;
+        }
+
+        NotificationFilter filter = mFilter;
+        if (filter != null && !filter.accept(aSqsObject)) {
+            mFiltered.incrementAndGet();
+            mMetrics.filtered();
+            return true;
+        }
 
-            qClient.deleteMessage(new DeleteMessageRequest().withQueueUrl(queueURL).withReceiptHandle(
-                    receiptHandle));
+        SNSEndpoint endpoint = getEndpoint();
+        String messageId = aSqsObject.getMessageId();
+        if (endpoint.isIdempotent() && alreadyProcessed(messageId)) {
+            sLog.debug("message already processed and idempotent flag set, deleting duplicate");
+            mMetrics.duplicate();
+            return true;
+        }
+
+        Exchange exchange = endpoint.createExchange(ExchangePattern.InOnly);
+        if (sLog.isTraceEnabled())
+            sLog.trace(aSqsObject.toString());
+        // the body and headers are read from the envelope when the route asks for them
+        final SNSMessage message = new SNSMessage(aSqsObject, endpoint.isDecoded(aSqsObject.getEncoding()),
+                endpoint.getBlobStore(), endpoint.getMaxDecompressedSize());
+        exchange.setIn(message);
+        // the route may still be using the body when process returns, e.g. after it handed the exchange to another thread
+        exchange.addOnCompletion(new SynchronizationAdapter() {
+            @Override
+            public void onDone(Exchange aExchange) {
+                message.closeBlob();
+            }
+        });
+
+        if (mTrackLatency) {
+            LatencyStamp stamp = aSqsObject.getStamp();
+            if (stamp != null)
+                mMetrics.recordEndToEnd(aSqsObject.getTopicArn(), LatencyStamp.currentTimeMicros()
+                        - stamp.getSentTime());
+        }
+        mDelivered.incrementAndGet();
+        long start = mMetrics.processingStarted();
+        boolean processed = false;
+        // the route joins this unit of work, or hands its completions over with the exchange, so they always run
+        DefaultUnitOfWork unitOfWork = new DefaultUnitOfWork(exchange);
+        exchange.setUnitOfWork(unitOfWork);
+        unitOfWork.start();
+        try {
+            getProcessor().process(exchange);
+            processed = true;
+        } catch (Exception e) {
+            if (endpoint.isIdempotent())
+                mIdempotentRepository.remove(messageId);
+            throw e;
+        } finally {
+            mMetrics.processingCompleted(start, processed);
+            unitOfWork.done(exchange);
+            unitOfWork.stop();
+            exchange.setUnitOfWork(null);
+        }
+        return true;
+    }
+
+    protected void deleteMessage(AmazonSQS aClient, String aQueueURL, Message aMessage) {
+        final List<String> blobKeys = mBlobKeys.isEmpty() ? null : mBlobKeys.remove(aMessage.getReceiptHandle());
+        MessageAcknowledger acknowledger = mAcknowledger;
+        if (acknowledger == null && getEndpoint().isAsyncAck())
+            acknowledger = acquireAcknowledger();
+        if (acknowledger != null) {
+            // the blob has to outlive the message in case the delete fails and the message is redelivered
+            acknowledger.acknowledge(aMessage.getReceiptHandle(), blobKeys == null ? null : new Runnable() {
+                public void run() {
+                    deleteBlobs(blobKeys);
+                }
+            });
+            mMetrics.deleted();
+            return;
+        }
+        try {
+            aClient.deleteMessage(new DeleteMessageRequest().withQueueUrl(aQueueURL).withReceiptHandle(
+                    aMessage.getReceiptHandle()));
+        } catch (RuntimeException e) {
+            mMetrics.deleteFailed();
+            throw e;
+        }
+        mMetrics.deleted();
+        if (blobKeys != null)
+            deleteBlobs(blobKeys);
+    }
+
+    private void deleteBlobs(List<String> aKeys) {
+        for (String key : aKeys) {
+            try {
+                getEndpoint().getBlobStore().delete(key);
+            } catch (IOException e) {
+                sLog.warn("couldn't delete blob " + key + ", it's left in the store", e);
+            }
         }
     }
 
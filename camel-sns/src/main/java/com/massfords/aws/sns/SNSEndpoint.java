@@ -1,27 +1,51 @@
 package com.massfords.aws.sns;
 
+import java.io.File;
+import java.lang.management.ManagementFactory;
 import java.net.URI;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+
+import javax.management.MBeanServer;
 
 import org.apache.camel.CamelContext;
 import org.apache.camel.Consumer;
 import org.apache.camel.Processor;
 import org.apache.camel.Producer;
 import org.apache.camel.impl.ScheduledPollEndpoint;
+import org.apache.camel.spi.IdempotentRepository;
 import org.apache.camel.util.concurrent.ExecutorServiceHelper;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import com.amazonaws.services.sns.AmazonSNSClient;
+import com.amazonaws.services.sns.AmazonSNS;
 import com.amazonaws.services.sns.model.CreateTopicRequest;
 import com.amazonaws.services.sns.model.CreateTopicResult;
 import com.amazonaws.services.sns.model.DeleteTopicRequest;
-import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.AmazonSQS;
 import com.amazonaws.services.sqs.model.DeleteQueueRequest;
+import com.massfords.aws.sns.management.ConsumerMetrics;
+import com.massfords.aws.sns.management.ProducerMetrics;
+import com.massfords.aws.sns.support.BlobStore;
+import com.massfords.aws.sns.support.CachingCertificateProvider;
+import com.massfords.aws.sns.support.CertificateProvider;
+import com.massfords.aws.sns.support.CompressionCodec;
+import com.massfords.aws.sns.support.CompressionCodecs;
+import com.massfords.aws.sns.support.FileBlobStore;
+import com.massfords.aws.sns.support.FileMessageIdRepository;
+import com.massfords.aws.sns.support.MemoryMessageIdRepository;
+import com.massfords.aws.sns.support.NotificationFilter;
+import com.massfords.aws.sns.support.PayloadCodec;
+import com.massfords.aws.sns.support.ProvisioningCache;
+import com.massfords.aws.sns.support.SQSObject;
+import com.massfords.aws.sns.support.SignatureVerifier;
 
 public class SNSEndpoint extends ScheduledPollEndpoint {
 
     private static final Log sLog = LogFactory.getLog(SNSEndpoint.class);
+
+    /** largest number of messages SQS will return from a single receive */
+    public static final int MAX_RECEIVE_BATCH = 10;
     
     private String mQueueName;
     private String mSecretKey;
@@ -32,13 +56,73 @@ public class SNSEndpoint extends ScheduledPollEndpoint {
     private String mTopicArn;
     private boolean mDeleteTopicOnStop;
     private boolean mDeleteQueueOnStop;
+    private boolean mUnsubscribeOnStop = true;
+    private String mProvisioningCache;
     private boolean mIdempotent;
+    private IdempotentRepository<String> mIdempotentRepository;
+    private int mIdempotentCapacity = 10000;
+    private long mIdempotentTtl;
+    private String mIdempotentFile;
     private boolean mVerify;
+    private int mVerifyCacheSize = 10000;
+    private SignatureVerifier mSignatureVerifier;
+    private CertificateProvider mCertificateProvider;
+    private String mCertificateLocations;
+    private long mCertificateRefreshInterval = 24 * 60 * 60 * 1000L;
+    private Integer mMaxConnections;
+    private Integer mSocketTimeout;
+    private Integer mConnectionTimeout;
+    private Integer mMaxErrorRetry;
+    private int mPublishPoolSize = 10;
+    private int mMaxInFlight = 100;
+    private int mMaxMessagesPerPoll = 1;
+    private boolean mAsyncAck;
+    private int mAckFlushSize = 10;
+    private long mAckFlushInterval = 1000;
+    private int mAckMaxRetries = 3;
+    private long mMaxBackoffDelay;
+    private double mBackoffMultiplier = 2;
+    private int mConcurrentConsumers = 1;
+    private boolean mSharedPoller;
+    private String mSubscriptionGroup;
+    private String mFilterSubject;
+    private String mFilterSubjectPrefix;
+    private String mFilterSubjectPattern;
+    private String mFilterTopicArn;
+    private String mFilterType;
+    private String mContentFilter;
+    private boolean mBinaryBodies;
+    private String mCompression;
+    private int mCompressionThreshold = 1024;
+    private int mMaxDecompressedSize = PayloadCodec.MAX_DECOMPRESSED_SIZE;
+    private CompressionCodec mCompressionCodec;
+    private BlobStore mBlobStore;
+    private String mBlobDirectory;
+    private int mClaimCheckThreshold = 8 * 1024;
+    private boolean mDeleteBlobs;
+    private int mPackSize = 1;
+    private int mPackBytes = 8 * 1024;
+    private long mPackLinger = 10;
+    private NotificationFilter mNotificationFilter;
+    private boolean mJmx = true;
+    private boolean mTrackLatency;
+    private long mLatencySummaryInterval = 60000;
+    private ProducerMetrics mProducerMetrics;
+    private ConsumerMetrics mConsumerMetrics;
+    private ScheduledExecutorService mExecutorService;
+    /** number of started consumers using the pool */
+    private int mExecutorServiceUsers;
+    /** registry used when the endpoint wasn't created by the SNSComponent */
+    private AmazonClientRegistry mClientRegistry;
     
     public SNSEndpoint(String aUri, CamelContext aContext) {
         super(aUri, aContext);
     }
 
+    public SNSEndpoint(String aUri, SNSComponent aComponent) {
+        super(aUri, aComponent);
+    }
+
     public Consumer createConsumer(Processor aProcessor) throws Exception {
         sLog.debug("creating consumer for endpoint:" + stripCredentials(getEndpointUri()));
         SNSConsumer consumer = new SNSConsumer(this, aProcessor);
@@ -51,14 +135,42 @@ public class SNSEndpoint extends ScheduledPollEndpoint {
         return "Endpoint[" + stripCredentials(getEndpointUri()) + "]";
     }
     
+    /**
+     * The scheduled pool that runs the consumers' receive loops, with a thread
+     * for each of the concurrent consumers. It's shared by the endpoint's
+     * consumers while any of them is running, see
+     * {@link #acquireExecutorService()}, and made again if it was shut down.
+     */
     @Override
     public synchronized ExecutorService getExecutorService() {
-        return ExecutorServiceHelper.newScheduledThreadPool(10, stripCredentials(getEndpointUri()), true);
+        if (mExecutorService == null || mExecutorService.isShutdown()) {
+            mExecutorService = ExecutorServiceHelper.newScheduledThreadPool(getConcurrentConsumers(),
+                    stripCredentials(getEndpointUri()), true);
+        }
+        return mExecutorService;
+    }
+
+    /**
+     * Called by a consumer when it starts, the pool is shut down when the last
+     * consumer that acquired it releases it.
+     */
+    protected synchronized ScheduledExecutorService acquireExecutorService() {
+        mExecutorServiceUsers++;
+        return (ScheduledExecutorService) getExecutorService();
+    }
+
+    protected synchronized void releaseExecutorService() {
+        if (--mExecutorServiceUsers > 0 || mExecutorService == null)
+            return;
+        sLog.debug("shutting down consumer threads");
+        mExecutorService.shutdown();
+        mExecutorService = null;
     }
 
     protected static String stripCredentials(String aUri) {
-        return aUri.replaceAll("(accessKey=)[A-Za-z0-9]+", "$1hidden")
-                   .replaceAll("(secretKey=)[A-Za-z0-9]+", "$1hidden");
+        // secret keys have / and + in them, which may or may not be escaped in the uri
+        return aUri.replaceAll("(accessKey=)[^&]+", "$1hidden")
+                   .replaceAll("(secretKey=)[^&]+", "$1hidden");
     }
     
     protected String createEndpointUri() {
@@ -74,6 +186,58 @@ public class SNSEndpoint extends ScheduledPollEndpoint {
         return true;
     }
     
+    /**
+     * @return shared SNS client for this endpoint's credentials and connection settings
+     */
+    public AmazonSNS getSNSClient() {
+        return getClientRegistry().getSNSClient(this);
+    }
+
+    /**
+     * @return shared SQS client for this endpoint's credentials and connection settings
+     */
+    public AmazonSQS getSQSClient() {
+        return getClientRegistry().getSQSClient(this);
+    }
+
+    protected synchronized AmazonClientRegistry getClientRegistry() {
+        if (getComponent() instanceof SNSComponent) {
+            return ((SNSComponent) getComponent()).getClientRegistry();
+        }
+        if (mClientRegistry == null) {
+            mClientRegistry = new AmazonClientRegistry();
+        }
+        return mClientRegistry;
+    }
+    
+    /**
+     * Acknowledgers are shared by all of the consumers of a queue when the endpoint belongs to an SNSComponent.
+     *
+     * @return acknowledger that deletes the processed messages from the queue in the background
+     * @throws IllegalArgumentException if the queue's acknowledger was created with different settings
+     */
+    public MessageAcknowledger acquireAcknowledger() {
+        if (getComponent() instanceof SNSComponent) {
+            return ((SNSComponent) getComponent()).acquireAcknowledger(this);
+        }
+        MessageAcknowledger acknowledger = createAcknowledger();
+        acknowledger.acquire();
+        return acknowledger;
+    }
+
+    public void releaseAcknowledger(MessageAcknowledger aAcknowledger) throws Exception {
+        if (getComponent() instanceof SNSComponent) {
+            ((SNSComponent) getComponent()).releaseAcknowledger(aAcknowledger);
+        } else {
+            aAcknowledger.release();
+        }
+    }
+
+    protected MessageAcknowledger createAcknowledger() {
+        return new MessageAcknowledger(getQueueURL(), getSQSClient(), getAckFlushSize(), getAckFlushInterval(),
+                getAckMaxRetries());
+    }
+
     public String getTopicArn() throws Exception {
 
         if (mTopicArn == null) {
@@ -86,7 +250,7 @@ public class SNSEndpoint extends ScheduledPollEndpoint {
                 
                 sLog.debug("creating a new topic by name:" + topic);
 
-                AmazonSNSClient client = AmazonClientFactory.createSNSClient(getAccessKey(), getSecretKey());
+                AmazonSNS client = getSNSClient();
                 CreateTopicResult result = client.createTopic(new CreateTopicRequest().withName(topic));
                 topicArn = result.getTopicArn();
             } else {
@@ -96,15 +260,33 @@ public class SNSEndpoint extends ScheduledPollEndpoint {
         }
         return mTopicArn;
     }
+
+    /**
+     * Sets the resolved topic arn, used when it's known from the provisioning cache.
+     */
+    protected void setResolvedTopicArn(String aTopicArn) {
+        mTopicArn = aTopicArn;
+    }
     
+    /**
+     * Forgets the topic and queue resolved by provisioning so they're resolved
+     * again, the ones given in the uri are kept.
+     */
+    protected void clearProvisioning() {
+        mTopicArn = null;
+        if (mQueueName != null) {
+            mQueueArn = null;
+            mQueueURL = null;
+        }
+    }
+
     protected void stop() {
         sLog.debug("stopping endpoint");
         if (isDeleteTopicOnStop()) {
             try {
                 String topicArn = getTopicArn();
                 sLog.debug("deleting topic on consumer stop:" + topicArn);
-                AmazonSNSClient client = AmazonClientFactory.createSNSClient(getAccessKey(),
-                        getSecretKey());
+                AmazonSNS client = getSNSClient();
                 client.deleteTopic(new DeleteTopicRequest().withTopicArn(topicArn));
             } catch (Exception e) {
                 sLog.error("error deleting topic during stop", e);
@@ -114,7 +296,7 @@ public class SNSEndpoint extends ScheduledPollEndpoint {
         if (isDeleteQueueOnStop()) {
             sLog.debug("deleting queue on consumer stop:" + getQueueURL());
             try {
-                AmazonSQSClient client = AmazonClientFactory.createSQSClient(getAccessKey(), getSecretKey());
+                AmazonSQS client = getSQSClient();
                 client.deleteQueue(new DeleteQueueRequest().withQueueUrl(getQueueURL()));
             } catch (Exception e) {
                 sLog.error("error deleting queue during stop", e);
@@ -211,6 +393,48 @@ public class SNSEndpoint extends ScheduledPollEndpoint {
         mDeleteQueueOnStop = aDeleteQueueOnStop;
     }
 
+    public boolean isUnsubscribeOnStop() {
+        return mUnsubscribeOnStop;
+    }
+
+    /**
+     * @param aUnsubscribeOnStop false to leave the queue subscribed when the
+     *            consumer stops so the next start reuses the subscription and
+     *            messages published in between wait on the queue
+     */
+    public void setUnsubscribeOnStop(boolean aUnsubscribeOnStop) {
+        mUnsubscribeOnStop = aUnsubscribeOnStop;
+    }
+
+    public String getProvisioningCache() {
+        return mProvisioningCache;
+    }
+
+    /**
+     * @param aProvisioningCache path of a file to remember the resolved topic,
+     *            queue and subscription in so a restart skips resolving them
+     */
+    public void setProvisioningCache(String aProvisioningCache) {
+        mProvisioningCache = aProvisioningCache;
+    }
+
+    /**
+     * @return the cache named by the provisioningCache option or null if it isn't set
+     */
+    protected ProvisioningCache getProvisioningCacheFile() throws Exception {
+        return mProvisioningCache == null ? null : ProvisioningCache.forFile(mProvisioningCache);
+    }
+
+    /**
+     * @return key of the consumer's values in the provisioning cache, the
+     *         credentials are left out save for the access key
+     */
+    protected String getProvisioningKey() throws Exception {
+        // the queue arn is filled in by provisioning so the name takes precedence
+        String queue = mQueueName != null ? mQueueName : mQueueArn;
+        return mAccessKey + "/" + getArn(getEndpointUri()) + "/" + queue;
+    }
+
     public boolean isIdempotent() {
         return mIdempotent;
     }
@@ -219,6 +443,65 @@ public class SNSEndpoint extends ScheduledPollEndpoint {
         mIdempotent = aIdempotent;
     }
 
+    /**
+     * @return store of the processed message ids, one is created from the
+     *         idempotent options if it wasn't set
+     */
+    public synchronized IdempotentRepository<String> getIdempotentRepository() {
+        if (mIdempotentRepository == null) {
+            if (mIdempotentFile != null) {
+                mIdempotentRepository = new FileMessageIdRepository(new File(mIdempotentFile), mIdempotentCapacity,
+                        mIdempotentTtl);
+            } else {
+                mIdempotentRepository = new MemoryMessageIdRepository(mIdempotentCapacity, mIdempotentTtl);
+            }
+        }
+        return mIdempotentRepository;
+    }
+
+    /**
+     * @param aIdempotentRepository store of the processed message ids, use a #ref to share one between endpoints
+     */
+    public synchronized void setIdempotentRepository(IdempotentRepository<String> aIdempotentRepository) {
+        mIdempotentRepository = aIdempotentRepository;
+    }
+
+    public int getIdempotentCapacity() {
+        return mIdempotentCapacity;
+    }
+
+    /**
+     * @param aIdempotentCapacity number of message ids remembered when the idempotent flag is set
+     */
+    public void setIdempotentCapacity(int aIdempotentCapacity) {
+        if (aIdempotentCapacity < 1)
+            throw new IllegalArgumentException("idempotentCapacity must be at least 1 but was "
+                    + aIdempotentCapacity);
+        mIdempotentCapacity = aIdempotentCapacity;
+    }
+
+    public long getIdempotentTtl() {
+        return mIdempotentTtl;
+    }
+
+    /**
+     * @param aIdempotentTtl millis a message id is remembered for, 0 keeps it until it's evicted for capacity
+     */
+    public void setIdempotentTtl(long aIdempotentTtl) {
+        mIdempotentTtl = aIdempotentTtl;
+    }
+
+    public String getIdempotentFile() {
+        return mIdempotentFile;
+    }
+
+    /**
+     * @param aIdempotentFile path of a file to keep the message ids in so they survive a restart
+     */
+    public void setIdempotentFile(String aIdempotentFile) {
+        mIdempotentFile = aIdempotentFile;
+    }
+
     public boolean isVerify() {
         return mVerify;
     }
@@ -227,4 +510,638 @@ public class SNSEndpoint extends ScheduledPollEndpoint {
         mVerify = aVerify;
     }
 
+    public int getVerifyCacheSize() {
+        return mVerifyCacheSize;
+    }
+
+    /**
+     * @param aVerifyCacheSize number of signature verdicts remembered by message id, 0 disables the cache
+     */
+    public void setVerifyCacheSize(int aVerifyCacheSize) {
+        mVerifyCacheSize = aVerifyCacheSize;
+    }
+
+    /**
+     * @return verifier for the signatures on the notifications, shared by the consumer's threads
+     */
+    public synchronized SignatureVerifier getSignatureVerifier() {
+        if (mSignatureVerifier == null) {
+            mSignatureVerifier = new SignatureVerifier(mVerifyCacheSize, getCertificateProvider());
+        }
+        return mSignatureVerifier;
+    }
+
+    public synchronized void setSignatureVerifier(SignatureVerifier aSignatureVerifier) {
+        mSignatureVerifier = aSignatureVerifier;
+    }
+
+    /**
+     * @return source of the signing certificates, one is created from the
+     *         certificate options if it wasn't set
+     */
+    public synchronized CertificateProvider getCertificateProvider() {
+        if (mCertificateProvider == null) {
+            mCertificateProvider = new CachingCertificateProvider(mCertificateLocations, mCertificateRefreshInterval);
+        }
+        return mCertificateProvider;
+    }
+
+    /**
+     * @param aCertificateProvider source of the signing certificates, use a #ref to share one between endpoints
+     */
+    public synchronized void setCertificateProvider(CertificateProvider aCertificateProvider) {
+        mCertificateProvider = aCertificateProvider;
+    }
+
+    public String getCertificateLocations() {
+        return mCertificateLocations;
+    }
+
+    /**
+     * @param aCertificateLocations comma separated signing certificates to
+     *            preload, each one is either classpath:path or a file path
+     */
+    public void setCertificateLocations(String aCertificateLocations) {
+        mCertificateLocations = aCertificateLocations;
+    }
+
+    public long getCertificateRefreshInterval() {
+        return mCertificateRefreshInterval;
+    }
+
+    /**
+     * @param aCertificateRefreshInterval millis between downloading the signing certificates again, 0 to never refresh
+     */
+    public void setCertificateRefreshInterval(long aCertificateRefreshInterval) {
+        mCertificateRefreshInterval = aCertificateRefreshInterval;
+    }
+
+    public Integer getMaxConnections() {
+        return mMaxConnections;
+    }
+
+    /**
+     * @param aMaxConnections size of the http connection pool for the clients, the SDK default is used if not set
+     */
+    public void setMaxConnections(Integer aMaxConnections) {
+        mMaxConnections = aMaxConnections;
+    }
+
+    public Integer getSocketTimeout() {
+        return mSocketTimeout;
+    }
+
+    /**
+     * @param aSocketTimeout millis to wait for data on an open connection
+     */
+    public void setSocketTimeout(Integer aSocketTimeout) {
+        mSocketTimeout = aSocketTimeout;
+    }
+
+    public Integer getConnectionTimeout() {
+        return mConnectionTimeout;
+    }
+
+    /**
+     * @param aConnectionTimeout millis to wait when establishing a connection
+     */
+    public void setConnectionTimeout(Integer aConnectionTimeout) {
+        mConnectionTimeout = aConnectionTimeout;
+    }
+
+    public Integer getMaxErrorRetry() {
+        return mMaxErrorRetry;
+    }
+
+    /**
+     * @param aMaxErrorRetry number of times the client retries a failed request
+     */
+    public void setMaxErrorRetry(Integer aMaxErrorRetry) {
+        mMaxErrorRetry = aMaxErrorRetry;
+    }
+
+    public int getPublishPoolSize() {
+        return mPublishPoolSize;
+    }
+
+    /**
+     * @param aPublishPoolSize number of threads the producer uses for async publishes
+     */
+    public void setPublishPoolSize(int aPublishPoolSize) {
+        mPublishPoolSize = aPublishPoolSize;
+    }
+
+    public int getMaxInFlight() {
+        return mMaxInFlight;
+    }
+
+    /**
+     * @param aMaxInFlight max number of async publishes waiting on SNS before the route is blocked
+     */
+    public void setMaxInFlight(int aMaxInFlight) {
+        mMaxInFlight = aMaxInFlight;
+    }
+
+    public int getConcurrentConsumers() {
+        return mConcurrentConsumers;
+    }
+
+    /**
+     * @param aConcurrentConsumers number of receive loops polling the queue in parallel
+     */
+    public void setConcurrentConsumers(int aConcurrentConsumers) {
+        if (aConcurrentConsumers < 1)
+            throw new IllegalArgumentException("concurrentConsumers must be at least 1 but was "
+                    + aConcurrentConsumers);
+        mConcurrentConsumers = aConcurrentConsumers;
+    }
+
+    public boolean isSharedPoller() {
+        return mSharedPoller;
+    }
+
+    /**
+     * @param aSharedPoller true to have the component's shared poller receive
+     *            from the queue instead of a poll loop of the consumer's own.
+     *            The messages are processed on the consumer's worker pool
+     *            which is sized by maxMessagesPerPoll * concurrentConsumers.
+     */
+    public void setSharedPoller(boolean aSharedPoller) {
+        mSharedPoller = aSharedPoller;
+    }
+
+    public String getSubscriptionGroup() {
+        return mSubscriptionGroup;
+    }
+
+    /**
+     * @param aSubscriptionGroup name shared by consumers of the topic that
+     *            should receive each notification through a single queue and
+     *            subscription. The first consumer of the group to start
+     *            provisions and polls the queue for all of them, the
+     *            notifications are processed on each consumer's worker pool
+     *            which is sized by maxMessagesPerPoll * concurrentConsumers.
+     *            Each member needs an endpoint of its own, i.e. a distinct uri.
+     */
+    public void setSubscriptionGroup(String aSubscriptionGroup) {
+        mSubscriptionGroup = aSubscriptionGroup;
+    }
+
+    public String getFilterSubject() {
+        return mFilterSubject;
+    }
+
+    /**
+     * @param aFilterSubject only notifications with this subject are sent to the route, the others are deleted
+     */
+    public synchronized void setFilterSubject(String aFilterSubject) {
+        mFilterSubject = aFilterSubject;
+        mNotificationFilter = null;
+    }
+
+    public String getFilterSubjectPrefix() {
+        return mFilterSubjectPrefix;
+    }
+
+    /**
+     * @param aFilterSubjectPrefix only notifications whose subject starts with this are sent to the route
+     */
+    public synchronized void setFilterSubjectPrefix(String aFilterSubjectPrefix) {
+        mFilterSubjectPrefix = aFilterSubjectPrefix;
+        mNotificationFilter = null;
+    }
+
+    public String getFilterSubjectPattern() {
+        return mFilterSubjectPattern;
+    }
+
+    /**
+     * @param aFilterSubjectPattern regular expression the whole subject has
+     *            to match for the notification to be sent to the route
+     */
+    public synchronized void setFilterSubjectPattern(String aFilterSubjectPattern) {
+        mFilterSubjectPattern = aFilterSubjectPattern;
+        mNotificationFilter = null;
+    }
+
+    public String getFilterTopicArn() {
+        return mFilterTopicArn;
+    }
+
+    /**
+     * @param aFilterTopicArn only notifications published to this topic are sent to the route
+     */
+    public synchronized void setFilterTopicArn(String aFilterTopicArn) {
+        mFilterTopicArn = aFilterTopicArn;
+        mNotificationFilter = null;
+    }
+
+    public String getFilterType() {
+        return mFilterType;
+    }
+
+    /**
+     * @param aFilterType only envelopes of this Type, e.g. Notification, are sent to the route
+     */
+    public synchronized void setFilterType(String aFilterType) {
+        mFilterType = aFilterType;
+        mNotificationFilter = null;
+    }
+
+    public String getContentFilter() {
+        return mContentFilter;
+    }
+
+    /**
+     * @param aContentFilter path predicate on the XML message body such as
+     *            <code>//Priority = 'Rush'</code>, checked with a streaming
+     *            scan. Only the subset of XPath described by
+     *            {@link com.massfords.aws.sns.support.ContentFilter} is supported.
+     */
+    public synchronized void setContentFilter(String aContentFilter) {
+        mContentFilter = aContentFilter;
+        mNotificationFilter = null;
+    }
+
+    /**
+     * @return filter built from the filter options or null if none of them are set
+     */
+    public synchronized NotificationFilter getNotificationFilter() {
+        if (mNotificationFilter == null) {
+            NotificationFilter filter = new NotificationFilter().withSubject(mFilterSubject)
+                    .withSubjectPrefix(mFilterSubjectPrefix).withSubjectPattern(mFilterSubjectPattern)
+                    .withTopicArn(mFilterTopicArn).withType(mFilterType).withContent(mContentFilter)
+                    .withDecompression(mCompression != null).withMaxDecompressedSize(mMaxDecompressedSize);
+            if (filter.isEmpty())
+                return null;
+            mNotificationFilter = filter;
+        }
+        return mNotificationFilter;
+    }
+
+    public boolean isBinaryBodies() {
+        return mBinaryBodies;
+    }
+
+    /**
+     * @param aBinaryBodies true for the producer to send byte[], ByteBuffer
+     *            and InputStream bodies base64 encoded behind a marker
+     *            instead of converting them to a String, and for the
+     *            consumer to decode them into a byte[] body
+     */
+    public void setBinaryBodies(boolean aBinaryBodies) {
+        mBinaryBodies = aBinaryBodies;
+    }
+
+    /**
+     * The consumer only undoes the encodings that the same options turn on
+     * for the producer, base64 with binaryBodies and compression with
+     * compression, a message with any other marker is sent to the route as
+     * the text it was published with.
+     *
+     * @param aEncoding encoding in the message's marker, see {@link SQSObject#getEncoding()}
+     * @return true if the consumer decodes a message with the encoding
+     */
+    public boolean isDecoded(String aEncoding) {
+        if (aEncoding == null)
+            return false;
+        if (PayloadCodec.BASE64.equals(aEncoding))
+            return isBinaryBodies();
+        return getCompression() != null && (isBinaryBodies() || !PayloadCodec.isBinaryEncoding(aEncoding));
+    }
+
+    /**
+     * @return true if the consumer sends each of the messages packed into a notification to the route on its own
+     */
+    public boolean isUnpacked() {
+        return getPackSize() > 1;
+    }
+
+    public String getCompression() {
+        return mCompression;
+    }
+
+    /**
+     * @param aCompression name of the codec the producer compresses bodies
+     *            with, gzip, deflate, a codec registered with
+     *            {@link CompressionCodecs} or a {@link CompressionCodec} bound
+     *            in the registry under this name. A consumer with the
+     *            option decompresses the messages of any registered codec,
+     *            without it compressed messages are left as their text.
+     */
+    public synchronized void setCompression(String aCompression) {
+        mCompression = aCompression;
+        mNotificationFilter = null;
+    }
+
+    public int getMaxDecompressedSize() {
+        return mMaxDecompressedSize;
+    }
+
+    /**
+     * @param aMaxDecompressedSize most bytes the consumer decompresses a
+     *            message to, a message that would be larger is sent to the
+     *            route as the text it was published with
+     */
+    public synchronized void setMaxDecompressedSize(int aMaxDecompressedSize) {
+        if (aMaxDecompressedSize < 1)
+            throw new IllegalArgumentException("maxDecompressedSize has to be at least 1 but was "
+                    + aMaxDecompressedSize);
+        mMaxDecompressedSize = aMaxDecompressedSize;
+        mNotificationFilter = null;
+    }
+
+    public int getCompressionThreshold() {
+        return mCompressionThreshold;
+    }
+
+    /**
+     * @param aCompressionThreshold bodies shorter than this many characters,
+     *            or bytes for binary bodies, are sent uncompressed
+     */
+    public void setCompressionThreshold(int aCompressionThreshold) {
+        if (aCompressionThreshold < 0)
+            throw new IllegalArgumentException("compressionThreshold can't be negative but was "
+                    + aCompressionThreshold);
+        mCompressionThreshold = aCompressionThreshold;
+    }
+
+    /**
+     * @return codec named by the compression option, null if it isn't set
+     */
+    public synchronized CompressionCodec getCompressionCodec() {
+        if (mCompressionCodec == null && mCompression != null) {
+            CompressionCodec codec = CompressionCodecs.get(mCompression);
+            if (codec == null) {
+                codec = getCamelContext().getRegistry().lookup(mCompression, CompressionCodec.class);
+                if (codec == null)
+                    throw new IllegalArgumentException("unknown compression codec " + mCompression);
+                // so consumers in this JVM can decompress what it produces
+                CompressionCodecs.register(codec);
+            }
+            mCompressionCodec = codec;
+        }
+        return mCompressionCodec;
+    }
+
+    /**
+     * @return store for the bodies that are too big to publish, one is
+     *         created for the blobDirectory if it wasn't set, null if neither
+     *         was set
+     */
+    public synchronized BlobStore getBlobStore() {
+        if (mBlobStore == null && mBlobDirectory != null)
+            mBlobStore = new FileBlobStore(new File(mBlobDirectory));
+        return mBlobStore;
+    }
+
+    /**
+     * @param aBlobStore store the producer checks big bodies in to and the
+     *            consumer reads them back from, use a #ref to share one
+     *            between endpoints
+     */
+    public synchronized void setBlobStore(BlobStore aBlobStore) {
+        mBlobStore = aBlobStore;
+    }
+
+    public String getBlobDirectory() {
+        return mBlobDirectory;
+    }
+
+    /**
+     * @param aBlobDirectory directory for a {@link FileBlobStore}, it has to
+     *            be shared by the producer and the consumers
+     */
+    public void setBlobDirectory(String aBlobDirectory) {
+        mBlobDirectory = aBlobDirectory;
+    }
+
+    public int getClaimCheckThreshold() {
+        return mClaimCheckThreshold;
+    }
+
+    /**
+     * @param aClaimCheckThreshold bodies of at least this many characters, or
+     *            bytes for binary bodies, are checked in to the blob store and
+     *            published as a reference. Stream bodies are always checked in
+     *            since their size isn't known up front.
+     */
+    public void setClaimCheckThreshold(int aClaimCheckThreshold) {
+        if (aClaimCheckThreshold < 0)
+            throw new IllegalArgumentException("claimCheckThreshold can't be negative but was "
+                    + aClaimCheckThreshold);
+        mClaimCheckThreshold = aClaimCheckThreshold;
+    }
+
+    public boolean isDeleteBlobs() {
+        return mDeleteBlobs;
+    }
+
+    /**
+     * @param aDeleteBlobs true for the consumer to delete a checked in body
+     *            once its message has been deleted from the queue. Leave it
+     *            off when more than one queue is subscribed to the topic, the
+     *            other subscribers still need the blob.
+     */
+    public void setDeleteBlobs(boolean aDeleteBlobs) {
+        mDeleteBlobs = aDeleteBlobs;
+    }
+
+    public int getPackSize() {
+        return mPackSize;
+    }
+
+    /**
+     * @param aPackSize most exchanges the producer packs into one SNS
+     *            message, 1 publishes each exchange on its own. A consumer
+     *            with more than 1 unpacks packed messages into an exchange
+     *            each, otherwise a pack is sent to the route as its text.
+     *            Only exchanges that are sent concurrently, e.g. with
+     *            toAsync or threads(), share a pack. A sequential route
+     *            publishes each exchange alone after waiting packLinger.
+     */
+    public void setPackSize(int aPackSize) {
+        if (aPackSize < 1)
+            throw new IllegalArgumentException("packSize must be at least 1 but was " + aPackSize);
+        mPackSize = aPackSize;
+    }
+
+    public int getPackBytes() {
+        return mPackBytes;
+    }
+
+    /**
+     * @param aPackBytes most UTF-8 bytes in a packed message, keep it under
+     *            the topic's message size limit
+     */
+    public void setPackBytes(int aPackBytes) {
+        mPackBytes = aPackBytes;
+    }
+
+    public long getPackLinger() {
+        return mPackLinger;
+    }
+
+    /**
+     * @param aPackLinger millis a pack waits for more exchanges after its
+     *            first one before it's published
+     */
+    public void setPackLinger(long aPackLinger) {
+        mPackLinger = aPackLinger;
+    }
+
+    public int getMaxMessagesPerPoll() {
+        return mMaxMessagesPerPoll;
+    }
+
+    /**
+     * @param aMaxMessagesPerPoll number of messages to receive in a single call, SQS allows up to 10
+     */
+    public void setMaxMessagesPerPoll(int aMaxMessagesPerPoll) {
+        if (aMaxMessagesPerPoll < 1 || aMaxMessagesPerPoll > MAX_RECEIVE_BATCH)
+            throw new IllegalArgumentException("maxMessagesPerPoll must be between 1 and " + MAX_RECEIVE_BATCH
+                    + " but was " + aMaxMessagesPerPoll);
+        mMaxMessagesPerPoll = aMaxMessagesPerPoll;
+    }
+
+    public boolean isAsyncAck() {
+        return mAsyncAck;
+    }
+
+    /**
+     * @param aAsyncAck true to delete the processed messages in the background with a
+     *            {@link MessageAcknowledger} instead of on the consumer's thread. Each message is
+     *            still deleted with its own call, this SDK doesn't have DeleteMessageBatch.
+     */
+    public void setAsyncAck(boolean aAsyncAck) {
+        mAsyncAck = aAsyncAck;
+    }
+
+    public int getAckFlushSize() {
+        return mAckFlushSize;
+    }
+
+    /**
+     * @param aAckFlushSize number of processed messages pending deletion that triggers a flush with asyncAck
+     */
+    public void setAckFlushSize(int aAckFlushSize) {
+        if (aAckFlushSize < 1)
+            throw new IllegalArgumentException("ackFlushSize must be at least 1 but was " + aAckFlushSize);
+        mAckFlushSize = aAckFlushSize;
+    }
+
+    public long getAckFlushInterval() {
+        return mAckFlushInterval;
+    }
+
+    /**
+     * @param aAckFlushInterval max millis a processed message waits to be deleted with asyncAck
+     */
+    public void setAckFlushInterval(long aAckFlushInterval) {
+        mAckFlushInterval = aAckFlushInterval;
+    }
+
+    public int getAckMaxRetries() {
+        return mAckMaxRetries;
+    }
+
+    /**
+     * @param aAckMaxRetries number of times a failed delete is retried before the message is left for redelivery
+     */
+    public void setAckMaxRetries(int aAckMaxRetries) {
+        mAckMaxRetries = aAckMaxRetries;
+    }
+
+    public long getMaxBackoffDelay() {
+        return mMaxBackoffDelay;
+    }
+
+    /**
+     * @param aMaxBackoffDelay upper bound in millis on the delay between polls of an empty queue, backoff is
+     *            disabled if this isn't set
+     */
+    public void setMaxBackoffDelay(long aMaxBackoffDelay) {
+        mMaxBackoffDelay = aMaxBackoffDelay;
+    }
+
+    public double getBackoffMultiplier() {
+        return mBackoffMultiplier;
+    }
+
+    /**
+     * @param aBackoffMultiplier factor the delay between polls grows by for each consecutive empty receive
+     */
+    public void setBackoffMultiplier(double aBackoffMultiplier) {
+        mBackoffMultiplier = aBackoffMultiplier;
+    }
+
+    public boolean isJmx() {
+        return mJmx;
+    }
+
+    /**
+     * @param aJmx false to keep the endpoint's metrics without registering them as MBeans
+     */
+    public void setJmx(boolean aJmx) {
+        mJmx = aJmx;
+    }
+
+    public boolean isTrackLatency() {
+        return mTrackLatency;
+    }
+
+    /**
+     * The stamp is a prefix of the SNS message, SNS has no other place for it
+     * in this SDK, so every subscriber of the topic sees it. It should only be
+     * turned on for a producer if the topic's consumers all track latency too,
+     * they're the ones that take the stamp off the body.
+     *
+     * @param aTrackLatency true for the producer to stamp each message with its send time and correlation id
+     *            and for the consumer to take the stamp off and record the end to end and queue dwell latencies
+     *            by topic
+     */
+    public void setTrackLatency(boolean aTrackLatency) {
+        mTrackLatency = aTrackLatency;
+    }
+
+    public long getLatencySummaryInterval() {
+        return mLatencySummaryInterval;
+    }
+
+    /**
+     * @param aLatencySummaryInterval millis between the latency summaries the consumer logs when trackLatency
+     *            is set, 0 to not log them
+     */
+    public void setLatencySummaryInterval(long aLatencySummaryInterval) {
+        if (aLatencySummaryInterval < 0)
+            throw new IllegalArgumentException("latencySummaryInterval can't be negative but was "
+                    + aLatencySummaryInterval);
+        mLatencySummaryInterval = aLatencySummaryInterval;
+    }
+
+    /**
+     * @return server the metrics are registered with, null if the jmx option is off
+     */
+    public MBeanServer getMBeanServer() {
+        return mJmx ? ManagementFactory.getPlatformMBeanServer() : null;
+    }
+
+    /**
+     * @return metrics shared by the endpoint's producers, kept for as long as the endpoint
+     */
+    public synchronized ProducerMetrics getProducerMetrics() {
+        if (mProducerMetrics == null)
+            mProducerMetrics = new ProducerMetrics(getCamelContext().getName(), stripCredentials(getEndpointUri()));
+        return mProducerMetrics;
+    }
+
+    /**
+     * @return metrics shared by the endpoint's consumers, kept for as long as the endpoint
+     */
+    public synchronized ConsumerMetrics getConsumerMetrics() {
+        if (mConsumerMetrics == null)
+            mConsumerMetrics = new ConsumerMetrics(getCamelContext().getName(), stripCredentials(getEndpointUri()));
+        return mConsumerMetrics;
+    }
+
 }
@@ -0,0 +1,187 @@
+package com.massfords.aws.sns;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+import org.apache.camel.RuntimeCamelException;
+import org.apache.camel.impl.DefaultMessage;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.massfords.aws.sns.support.BlobStore;
+import com.massfords.aws.sns.support.LatencyStamp;
+import com.massfords.aws.sns.support.PayloadCodec;
+import com.massfords.aws.sns.support.SQSObject;
+
+/**
+ * Message the consumer sends to the route for each notification. The body and
+ * the SNS:* headers are read from the parsed envelope when the route first
+ * asks for them rather than copied in up front, so a route that only looks
+ * at the body never pays for the headers. Reading a single SNS header doesn't
+ * create the header map either, it's only created once the route sets a
+ * header or asks for all of them.
+ *
+ * The SNS:Message header is the same String as the body, not a copy. The
+ * envelope is let go once the body and headers have both been read from it.
+ *
+ * A binary message is decoded into a byte[] body and a compressed message is
+ * decompressed when the consumer asks for it, the SNS:Message header keeps
+ * the encoded text in both cases. A message that isn't valid for its marker
+ * is left as its text. A body the producer checked in to a blob store is
+ * streamed from the store.
+ *
+ * On a consumer with the trackLatency option, a message stamped by a
+ * producer with the option has the stamp's correlation id and send time in
+ * micros as the SNS:CorrelationId and SNS:SentTime headers. The stamp isn't
+ * part of the body but it's left on the SNS:Message header, which is the
+ * text as SNS signed it. Without the option the stamp is left in the body.
+ */
+public class SNSMessage extends DefaultMessage {
+
+    private static Log sLog = LogFactory.getLog(SNSMessage.class);
+
+    /** Headers on the message received by from the topic */
+    static final String[] HEADERS = { "MessageId",
+                                      "Timestamp",
+                                      "TopicArn",
+                                      "Type",
+                                      "UnsubscribeURL",
+                                      "Message",
+                                      "Subject",
+                                      "Signature",
+                                      "SignatureVersion" };
+
+    private static final String PREFIX = "SNS:";
+
+    private SQSObject mSqsObject;
+    private final boolean mDecode;
+    private final BlobStore mBlobStore;
+    private final int mMaxDecompressedSize;
+    /** stream over the checked in body, closed once the route's done with the message */
+    private InputStream mBlobStream;
+    private boolean mBodyCreated;
+    private boolean mHeadersCreated;
+
+    public SNSMessage(SQSObject aSqsObject) {
+        this(aSqsObject, true);
+    }
+
+    /**
+     * @param aDecode true to decode a binary message into a byte[] body and
+     *            decompress a compressed one, false to leave them as their text
+     */
+    public SNSMessage(SQSObject aSqsObject, boolean aDecode) {
+        this(aSqsObject, aDecode, null);
+    }
+
+    /**
+     * @param aBlobStore store to read checked in bodies from, null to leave references as the body
+     */
+    public SNSMessage(SQSObject aSqsObject, boolean aDecode, BlobStore aBlobStore) {
+        this(aSqsObject, aDecode, aBlobStore, PayloadCodec.MAX_DECOMPRESSED_SIZE);
+    }
+
+    /**
+     * @param aMaxDecompressedSize a compressed message that decompresses to
+     *            more bytes than this is sent to the route as its text
+     */
+    public SNSMessage(SQSObject aSqsObject, boolean aDecode, BlobStore aBlobStore, int aMaxDecompressedSize) {
+        mSqsObject = aSqsObject;
+        mDecode = aDecode;
+        mBlobStore = aBlobStore;
+        mMaxDecompressedSize = aMaxDecompressedSize;
+        // saves generating an id for each message
+        setMessageId(aSqsObject.getMessageId());
+    }
+
+    @Override
+    public Object getHeader(String aName) {
+        if (hasPopulatedHeaders() || aName == null)
+            return super.getHeader(aName);
+        // the initial headers are all SNS headers, so anything else isn't there yet
+        if (!aName.regionMatches(true, 0, PREFIX, 0, PREFIX.length()))
+            return null;
+        for (String header : HEADERS) {
+            if (header.length() == aName.length() - PREFIX.length()
+                    && aName.regionMatches(true, PREFIX.length(), header, 0, header.length()))
+                return mSqsObject.getString(header);
+        }
+        if (SNSProducer.CORRELATION_ID.equalsIgnoreCase(aName)) {
+            LatencyStamp stamp = mSqsObject.getStamp();
+            return stamp == null ? null : stamp.getCorrelationId();
+        }
+        if (SNSProducer.SENT_TIME.equalsIgnoreCase(aName)) {
+            LatencyStamp stamp = mSqsObject.getStamp();
+            return stamp == null ? null : stamp.getSentTime();
+        }
+        return null;
+    }
+
+    @Override
+    protected void populateInitialHeaders(Map<String, Object> aMap) {
+        for (String header : HEADERS) {
+            aMap.put(PREFIX + header, mSqsObject.getString(header));
+        }
+        LatencyStamp stamp = mSqsObject.getStamp();
+        if (stamp != null) {
+            aMap.put(SNSProducer.SENT_TIME, stamp.getSentTime());
+            if (stamp.getCorrelationId() != null)
+                aMap.put(SNSProducer.CORRELATION_ID, stamp.getCorrelationId());
+        }
+        mHeadersCreated = true;
+        release();
+    }
+
+    @Override
+    protected Object createBody() {
+        if (mSqsObject == null)
+            return null;
+        mBodyCreated = true;
+        Object body;
+        String blobKey = mBlobStore == null ? null : mSqsObject.getBlobKey();
+        if (blobKey != null) {
+            try {
+                mBlobStream = mBlobStore.get(blobKey);
+            } catch (IOException e) {
+                throw new RuntimeCamelException("couldn't read the body of message " + getMessageId()
+                        + " from blob " + blobKey, e);
+            }
+            body = mBlobStream;
+        } else if (mDecode && mSqsObject.getEncoding() != null) {
+            try {
+                body = mSqsObject.isBinaryMessage() ? mSqsObject.getMessageBytes(mMaxDecompressedSize) : mSqsObject
+                        .getDecodedMessage(mMaxDecompressedSize);
+            } catch (IllegalArgumentException e) {
+                sLog.warn("sending the text of message " + getMessageId() + " to the route, it couldn't be decoded", e);
+                body = mSqsObject.getMessage();
+            }
+        } else {
+            body = mSqsObject.getMessage();
+        }
+        release();
+        return body;
+    }
+
+    /**
+     * Closes the stream over the checked in body if the route opened it.
+     */
+    void closeBlob() {
+        InputStream blobStream = mBlobStream;
+        if (blobStream != null) {
+            try {
+                blobStream.close();
+            } catch (IOException e) {
+                // nothing left to read from it anyway
+            }
+        }
+    }
+
+    /**
+     * Drops the envelope once nothing more will be read from it.
+     */
+    private void release() {
+        if (mBodyCreated && mHeadersCreated)
+            mSqsObject = null;
+    }
+}
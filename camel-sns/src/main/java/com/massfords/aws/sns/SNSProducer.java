@@ -1,48 +1,365 @@
 package com.massfords.aws.sns;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.AsyncProcessor;
 import org.apache.camel.Endpoint;
 import org.apache.camel.Exchange;
 import org.apache.camel.impl.DefaultProducer;
+import org.apache.camel.util.concurrent.ExecutorServiceHelper;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import com.amazonaws.services.sns.AmazonSNSClient;
+import com.amazonaws.services.sns.AmazonSNS;
 import com.amazonaws.services.sns.model.PublishRequest;
 import com.amazonaws.services.sns.model.PublishResult;
+import com.massfords.aws.sns.management.FlightEvent;
+import com.massfords.aws.sns.management.ProducerMetrics;
+import com.massfords.aws.sns.support.BlobStore;
+import com.massfords.aws.sns.support.CompressionCodec;
+import com.massfords.aws.sns.support.LatencyStamp;
+import com.massfords.aws.sns.support.PayloadCodec;
+
+/**
+ * Publishes the body of the exchange to the endpoint's topic. The message id
+ * assigned by SNS is set on the exchange as the SNS:MessageId header.
+ *
+ * With the binaryBodies option byte[], ByteBuffer and InputStream bodies are
+ * sent base64 encoded, a consumer with the option decodes them back into a
+ * byte[]. With the compression option bodies above the compressionThreshold
+ * are compressed, a consumer with the option decompresses them. Any other
+ * consumer gets the text as it was published, see
+ * {@link SNSEndpoint#isDecoded(String)}. With a blob store bodies above the
+ * claimCheckThreshold are checked in to the store and a reference to them is
+ * published instead. With the packSize option the messages of several
+ * exchanges are packed into one SNS message by a {@link MessagePacker}.
+ *
+ * Packing only pays off when exchanges reach the producer at the same time,
+ * from toAsync or from concurrent callers such as threads() or a seda
+ * consumer with concurrentConsumers. A synchronous caller waits for its
+ * exchange's pack to be published, so a plain to("sns:...") route hands the
+ * producer one exchange at a time and each of them waits out the packLinger
+ * to be published on its own, which is slower than not packing at all.
+ *
+ * When called as an {@link AsyncProcessor} the publish is handed off to a
+ * bounded pool of I/O threads and the callback is invoked once SNS returns
+ * the result. At most maxInFlight publishes are outstanding at once, callers
+ * block until there's room in the window.
+ *
+ * The publishes are counted and timed in the endpoint's {@link ProducerMetrics}
+ * and recorded as {@link FlightEvent#PUBLISH} events while JFR is recording.
+ * With the trackLatency option each message is stamped with the time it was
+ * handed to the producer and a correlation id, see {@link LatencyStamp}.
+ */
+public class SNSProducer extends DefaultProducer implements AsyncProcessor {
 
-public class SNSProducer extends DefaultProducer {
-    
     private static final Log sLog = LogFactory.getLog(SNSProducer.class);
 
+    /** exchange property with the micros the exchange was handed to the producer at, when latency is tracked */
+    public static final String SENT_TIME = "SNS:SentTime";
+    /** header with the correlation id to stamp on the message, the exchange id is used if it isn't set */
+    public static final String CORRELATION_ID = "SNS:CorrelationId";
+    /** exchange property with the key the body was checked in to the blob store under */
+    public static final String BLOB_KEY = "SNS:BlobKey";
+
+    /** pool that runs the async publishes */
+    private volatile ExecutorService mPublishPool;
+    /** permits for the publishes that are allowed to be in flight */
+    private volatile Semaphore mWindow;
+    /** publishes the packs when the packSize option is set */
+    private volatile ScheduledExecutorService mPackScheduler;
+    private volatile MessagePacker mPacker;
+    /** endpoint's metrics, shared with the other producers of the endpoint */
+    private final ProducerMetrics mMetrics;
+
     public SNSProducer(Endpoint aEndpoint) {
         super(aEndpoint);
+        mMetrics = ((SNSEndpoint) aEndpoint).getProducerMetrics();
     }
 
     public void process(Exchange aExchange) throws Exception {
-        
+        if (mPacker == null) {
+            publish(aExchange);
+            return;
+        }
+        // waits for the exchange's pack to be published
+        final CountDownLatch done = new CountDownLatch(1);
+        process(aExchange, new AsyncCallback() {
+            public void onTaskCompleted(Exchange aCompleted) {
+                done.countDown();
+            }
+        });
+        done.await();
+        Exception failure = aExchange.getException();
+        if (failure != null) {
+            aExchange.setException(null);
+            throw failure;
+        }
+    }
+
+    public void process(final Exchange aExchange, final AsyncCallback aCallback) throws Exception {
+        final Semaphore window = mWindow;
+        if (window == null) {
+            // not started, fall back to the caller's thread
+            try {
+                publish(aExchange);
+            } catch (Exception e) {
+                aExchange.setException(e);
+            }
+            aCallback.onTaskCompleted(aExchange);
+            return;
+        }
+
+        if (((SNSEndpoint) getEndpoint()).isTrackLatency())
+            aExchange.setProperty(SENT_TIME, LatencyStamp.currentTimeMicros());
+        // blocks the caller while the window is full
+        window.acquire();
+        MessagePacker packer = mPacker;
+        if (packer != null) {
+            pack(packer, aExchange, window, aCallback);
+            return;
+        }
+        try {
+            mPublishPool.execute(new Runnable() {
+                public void run() {
+                    try {
+                        publish(aExchange);
+                    } catch (Exception e) {
+                        aExchange.setException(e);
+                    } finally {
+                        window.release();
+                        aCallback.onTaskCompleted(aExchange);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            window.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Adds the exchange's message to the open pack, the callback is invoked
+     * and the window released once the pack is published.
+     */
+    private void pack(MessagePacker aPacker, Exchange aExchange, final Semaphore aWindow,
+            final AsyncCallback aCallback) {
         SNSEndpoint endpoint = (SNSEndpoint) getEndpoint();
-        
-        String topicArn = endpoint.getTopicArn();
-        String subject = (String) aExchange.getIn().getHeader("SNS:Subject");
-        if (subject == null)
-            subject = endpoint.getSubject();
-        String message = aExchange.getIn().getBody(String.class);
-        
+        String message;
+        try {
+            message = createMessage(aExchange, endpoint);
+        } catch (Exception e) {
+            aWindow.release();
+            aExchange.setException(e);
+            aCallback.onTaskCompleted(aExchange);
+            return;
+        }
+        aPacker.add(aExchange, getSubject(aExchange, endpoint), message, new AsyncCallback() {
+            public void onTaskCompleted(Exchange aCompleted) {
+                if (aCompleted.getException() != null)
+                    deleteCheckedInBody(aCompleted);
+                aWindow.release();
+                aCallback.onTaskCompleted(aCompleted);
+            }
+        });
+    }
+
+    protected void publish(Exchange aExchange) throws Exception {
+
+        SNSEndpoint endpoint = (SNSEndpoint) getEndpoint();
+
+        String subject = getSubject(aExchange, endpoint);
+        String message = createMessage(aExchange, endpoint);
+        try {
+            aExchange.getIn().setHeader("SNS:MessageId", publish(endpoint, subject, message));
+        } catch (Exception e) {
+            deleteCheckedInBody(aExchange);
+            throw e;
+        }
+    }
+
+    /**
+     * Deletes the body the exchange checked in to the blob store, nobody else
+     * will since its reference was never published.
+     */
+    private void deleteCheckedInBody(Exchange aExchange) {
+        String key = aExchange.getProperty(BLOB_KEY, String.class);
+        if (key == null)
+            return;
+        aExchange.removeProperty(BLOB_KEY);
+        try {
+            ((SNSEndpoint) getEndpoint()).getBlobStore().delete(key);
+        } catch (IOException e) {
+            sLog.warn("couldn't delete blob " + key + " after its publish failed, it's left in the store", e);
+        }
+    }
+
+    /**
+     * @return id SNS assigned to the message
+     */
+    protected String publish(SNSEndpoint aEndpoint, String aSubject, String aMessage) throws Exception {
         if (sLog.isDebugEnabled())
-            sLog.debug("producing sns message: subject | message=" + subject + " | " + message);
-        
-        AmazonSNSClient client = AmazonClientFactory.createSNSClient(endpoint.getAccessKey(), endpoint.getSecretKey());
-        
-        PublishResult result = client.publish(new PublishRequest().withTopicArn(topicArn).withMessage(message).withSubject(subject));
+            sLog.debug("producing sns message: subject | message=" + aSubject + " | " + aMessage);
+
+        AmazonSNS client = aEndpoint.getSNSClient();
+
+        long start = mMetrics.publishStarted();
+        Object event = FlightEvent.PUBLISH.begin();
+        PublishResult result;
+        boolean published = false;
+        try {
+            result = client.publish(new PublishRequest().withTopicArn(aEndpoint.getTopicArn()).withMessage(aMessage)
+                    .withSubject(aSubject));
+            published = true;
+        } finally {
+            mMetrics.publishCompleted(start, published);
+            FlightEvent.PUBLISH.commit(event, mMetrics.getEndpointUri(), aMessage.length());
+        }
         sLog.debug("publish result:" + result.getMessageId());
+        return result.getMessageId();
+    }
+
+    private String getSubject(Exchange aExchange, SNSEndpoint aEndpoint) {
+        String subject = (String) aExchange.getIn().getHeader("SNS:Subject");
+        if (subject == null)
+            subject = aEndpoint.getSubject();
+        return subject;
+    }
+
+    /**
+     * @return text of the message to publish for the exchange's body, stamped with its send time and
+     *         correlation id if the endpoint tracks latency
+     */
+    protected String createMessage(Exchange aExchange, SNSEndpoint aEndpoint) throws Exception {
+        String message = encodeBody(aExchange, aEndpoint);
+        if (!aEndpoint.isTrackLatency())
+            return message;
+        Long sentTime = aExchange.getProperty(SENT_TIME, Long.class);
+        String correlationId = aExchange.getIn().getHeader(CORRELATION_ID, String.class);
+        return LatencyStamp.stamp(message, sentTime == null ? LatencyStamp.currentTimeMicros() : sentTime,
+                correlationId == null ? aExchange.getExchangeId() : correlationId);
+    }
+
+    private String encodeBody(Exchange aExchange, SNSEndpoint aEndpoint) throws Exception {
+        Object body = aExchange.getIn().getBody();
+        BlobStore store = aEndpoint.getBlobStore();
+        int claimCheckThreshold = aEndpoint.getClaimCheckThreshold();
+        if (store != null && PayloadCodec.isBinary(body)) {
+            int size = PayloadCodec.sizeOf(body);
+            if (size < 0)
+                return checkedIn(aExchange, store.put((InputStream) body));
+            if (size >= claimCheckThreshold)
+                return checkedIn(aExchange, store.put(body instanceof byte[] ? ByteBuffer.wrap((byte[]) body)
+                        : (ByteBuffer) body));
+        }
+        CompressionCodec codec = aEndpoint.getCompressionCodec();
+        String message;
+        if (aEndpoint.isBinaryBodies() && PayloadCodec.isBinary(body)) {
+            // encoded straight from the bytes instead of converting them to a String first
+            int size = PayloadCodec.sizeOf(body);
+            if (codec != null && (size < 0 || size >= aEndpoint.getCompressionThreshold()))
+                message = PayloadCodec.compress(body, codec);
+            else
+                message = PayloadCodec.encode(body);
+        } else {
+            message = aExchange.getIn().getBody(String.class);
+            if (store != null && message != null && message.length() >= claimCheckThreshold)
+                return checkedIn(aExchange, store.put(ByteBuffer.wrap(message.getBytes("UTF-8"))));
+            if (codec != null && message != null && message.length() >= aEndpoint.getCompressionThreshold()) {
+                String compressed = PayloadCodec.compress(message, codec);
+                // base64 adds a third so text that barely compresses is better off as is
+                if (compressed.length() < message.length())
+                    message = compressed;
+            }
+        }
+        return message;
+    }
+
+    /**
+     * @return reference to the checked in body, its key is kept on the exchange to delete it if the publish fails
+     */
+    private static String checkedIn(Exchange aExchange, String aKey) {
+        aExchange.setProperty(BLOB_KEY, aKey);
+        return PayloadCodec.reference(aKey);
     }
-    
+
+    /**
+     * @return number of async publishes waiting for a result from SNS
+     */
+    public int getInFlight() {
+        Semaphore window = mWindow;
+        if (window == null)
+            return 0;
+        return ((SNSEndpoint) getEndpoint()).getMaxInFlight() - window.availablePermits();
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        super.doStart();
+        SNSEndpoint endpoint = (SNSEndpoint) getEndpoint();
+        mMetrics.acquire(endpoint.getMBeanServer());
+        mPublishPool = ExecutorServiceHelper.newFixedThreadPool(endpoint.getPublishPoolSize(), "SNSProducer["
+                + SNSEndpoint.stripCredentials(endpoint.getEndpointUri()) + "]", true);
+        mWindow = new Semaphore(endpoint.getMaxInFlight());
+        if (endpoint.getPackSize() > 1) {
+            final SNSEndpoint packEndpoint = endpoint;
+            mPackScheduler = ExecutorServiceHelper.newScheduledThreadPool(1, "SNSPacker["
+                    + SNSEndpoint.stripCredentials(endpoint.getEndpointUri()) + "]", true);
+            mPacker = new MessagePacker(new MessagePacker.Publisher() {
+                public String publish(String aSubject, String aMessage) throws Exception {
+                    return SNSProducer.this.publish(packEndpoint, aSubject, aMessage);
+                }
+            }, endpoint.getPackSize(), endpoint.getPackBytes(), endpoint.getPackLinger(), mPublishPool,
+                    mPackScheduler);
+        }
+    }
+
+    /**
+     * @return packer for the packSize option, null if exchanges are published on their own
+     */
+    public MessagePacker getPacker() {
+        return mPacker;
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        MessagePacker packer = mPacker;
+        if (packer != null) {
+            // the open pack goes out with the rest of the in flight publishes
+            packer.flush();
+            mPacker = null;
+            mPackScheduler.shutdownNow();
+            mPackScheduler = null;
+        }
+        if (mPublishPool != null) {
+            sLog.debug("waiting for in flight publishes: " + getInFlight());
+            mPublishPool.shutdown();
+            if (!mPublishPool.awaitTermination(30, TimeUnit.SECONDS)) {
+                sLog.warn("timed out waiting for in flight publishes, " + getInFlight() + " remaining");
+                mPublishPool.shutdownNow();
+            }
+            mPublishPool = null;
+            mWindow = null;
+        }
+        mMetrics.release();
+        super.doStop();
+    }
+
     public void stop() throws Exception {
         if (this.isStopped())
             return;
+        // drain the in flight publishes before the endpoint is torn down
+        super.stop();
         SNSEndpoint endpoint = (SNSEndpoint) getEndpoint();
         endpoint.stop();
-        super.stop();
     }
 
 }
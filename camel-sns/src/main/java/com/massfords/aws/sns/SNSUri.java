@@ -37,6 +37,11 @@ public class SNSUri {
         return this;
     }
     
+    public SNSUri withSubscriptionGroup(String aGroup) {
+        addProperty("subscriptionGroup", aGroup);
+        return this;
+    }
+
     public SNSUri withDeleteQueueOnStop(boolean aDeleteQueueOnStop) {
         addProperty("deleteQueueOnStop", String.valueOf(aDeleteQueueOnStop));
         return this;
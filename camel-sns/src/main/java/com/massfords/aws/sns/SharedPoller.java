@@ -0,0 +1,161 @@
+package com.massfords.aws.sns;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.camel.util.concurrent.ExecutorServiceHelper;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Polls the queues of every consumer that has the sharedPoller option set
+ * from a small fixed set of threads, so the thread count doesn't grow with
+ * the number of endpoints.
+ *
+ * The threads take turns over the consumers round-robin. A consumer is only
+ * polled by one thread at a time, and only when its backoff says it's due and
+ * its worker pool has room for more messages. The messages received are
+ * handed to the consumer's worker pool so a slow route never holds up the
+ * polling of the others. When none of the consumers are due the threads
+ * sleep until the earliest one is.
+ */
+public class SharedPoller {
+
+    private static Log sLog = LogFactory.getLog(SharedPoller.class);
+
+    /** longest a poller thread sleeps before looking at the consumers again */
+    private static final long MAX_IDLE = 1000;
+
+    private static class Registration {
+        final SNSConsumer mConsumer;
+        /** set while one of the threads is polling the consumer */
+        final AtomicBoolean mBusy = new AtomicBoolean();
+
+        Registration(SNSConsumer aConsumer) {
+            mConsumer = aConsumer;
+        }
+    }
+
+    private final int mThreads;
+    private final List<Registration> mRegistrations = new CopyOnWriteArrayList<Registration>();
+    private final AtomicInteger mCursor = new AtomicInteger();
+    private final Object mIdle = new Object();
+    private volatile boolean mRunning;
+    private ExecutorService mPool;
+
+    /**
+     * @param aThreads number of threads polling the queues
+     */
+    public SharedPoller(int aThreads) {
+        if (aThreads < 1)
+            throw new IllegalArgumentException("pollerThreads must be at least 1 but was " + aThreads);
+        mThreads = aThreads;
+    }
+
+    /**
+     * Adds the consumer to the rotation, the threads are started with the first one.
+     */
+    public synchronized void register(SNSConsumer aConsumer) {
+        mRegistrations.add(new Registration(aConsumer));
+        if (mPool == null) {
+            sLog.debug("starting " + mThreads + " shared poller threads");
+            mRunning = true;
+            mPool = ExecutorServiceHelper.newFixedThreadPool(mThreads, "SNS shared poller", true);
+            for (int i = 0; i < mThreads; i++) {
+                mPool.execute(new Runnable() {
+                    public void run() {
+                        loop();
+                    }
+                });
+            }
+        }
+        wakeUp();
+    }
+
+    /**
+     * Takes the consumer out of the rotation, waiting for a receive that's in
+     * progress for it to finish.
+     */
+    public void unregister(SNSConsumer aConsumer) throws InterruptedException {
+        for (Registration registration : mRegistrations) {
+            if (registration.mConsumer == aConsumer) {
+                mRegistrations.remove(registration);
+                while (registration.mBusy.get()) {
+                    Thread.sleep(10);
+                }
+            }
+        }
+    }
+
+    public synchronized void shutdown() throws InterruptedException {
+        mRunning = false;
+        mRegistrations.clear();
+        if (mPool != null) {
+            wakeUp();
+            mPool.shutdown();
+            if (!mPool.awaitTermination(30, TimeUnit.SECONDS))
+                mPool.shutdownNow();
+            mPool = null;
+        }
+    }
+
+    /**
+     * @return number of consumers being polled
+     */
+    public int size() {
+        return mRegistrations.size();
+    }
+
+    private void loop() {
+        while (mRunning) {
+            long wait = pollNext();
+            if (wait > 0) {
+                synchronized (mIdle) {
+                    try {
+                        mIdle.wait(Math.min(wait, MAX_IDLE));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    private void wakeUp() {
+        synchronized (mIdle) {
+            mIdle.notifyAll();
+        }
+    }
+
+    /**
+     * Goes around the consumers once starting after the last one polled and
+     * polls the first one that's due.
+     *
+     * @return 0 if a consumer was polled or how long to wait until one is due
+     */
+    private long pollNext() {
+        Object[] registrations = mRegistrations.toArray();
+        long wait = MAX_IDLE;
+        for (int i = 0; i < registrations.length && mRunning; i++) {
+            int next = (mCursor.getAndIncrement() & Integer.MAX_VALUE) % registrations.length;
+            Registration registration = (Registration) registrations[next];
+            if (!registration.mBusy.compareAndSet(false, true))
+                continue;
+            try {
+                long due = registration.mConsumer.pollShared();
+                if (due == 0)
+                    return 0;
+                wait = Math.min(wait, due);
+            } catch (Exception e) {
+                sLog.error("error polling " + registration.mConsumer, e);
+            } finally {
+                registration.mBusy.set(false);
+            }
+        }
+        return wait;
+    }
+}
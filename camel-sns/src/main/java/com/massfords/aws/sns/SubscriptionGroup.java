@@ -0,0 +1,176 @@
+package com.massfords.aws.sns;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.massfords.aws.sns.support.SQSObject;
+
+/**
+ * Consumers that declare the same subscriptionGroup share a single queue and
+ * subscription to the topic instead of each having their own.
+ *
+ * The first member to join provisions the queue and subscription and is the
+ * group's leader. Only the leader polls the queue. Each notification is parsed
+ * and verified once and then queued on every member, each of them processes
+ * it on its own worker pool at its own pace. A member queues up to a full
+ * receive batch beyond what its pool is processing, the leader only receives
+ * as many messages as every member has room for, so a slow route holds up
+ * the others only once its queue is full.
+ *
+ * The message is deleted from the queue once the last of the members has
+ * processed it. If any of them fails it's left on the queue and redelivered
+ * to all of them, set the idempotent option on the routes that shouldn't see
+ * it twice.
+ *
+ * When the leader stops the next member takes over the queue and
+ * subscription. Only the last member out unsubscribes or deletes them.
+ *
+ * Every member applies its own filters and idempotent option to the
+ * notifications it's handed. The topic, queue, access key, verify and
+ * trackLatency options are the leader's for the whole group, a member that
+ * joins with different ones is rejected.
+ */
+public class SubscriptionGroup {
+
+    private static Log sLog = LogFactory.getLog(SubscriptionGroup.class);
+
+    private final String mName;
+    private final List<SNSConsumer> mMembers = new CopyOnWriteArrayList<SNSConsumer>();
+
+    public SubscriptionGroup(String aName) {
+        mName = aName;
+    }
+
+    /**
+     * @return true if the consumer is the first member and is responsible for
+     *         provisioning the queue and subscription
+     * @throws IllegalArgumentException if the consumer's subscription,
+     *             verify or trackLatency option differs from the group's
+     */
+    public synchronized boolean join(SNSConsumer aConsumer) throws Exception {
+        if (!mMembers.isEmpty()) {
+            SNSEndpoint leader = mMembers.get(0).getEndpoint();
+            SNSEndpoint endpoint = aConsumer.getEndpoint();
+            if (!leader.getProvisioningKey().equals(endpoint.getProvisioningKey()))
+                throw new IllegalArgumentException(endpoint + " can't join subscription group " + mName
+                        + ", its topic, queue or access key differ from " + leader);
+            if (leader.isVerify() != endpoint.isVerify())
+                throw new IllegalArgumentException(endpoint + " can't join subscription group " + mName
+                        + ", the group's notifications are verified by its leader and it has verify="
+                        + leader.isVerify());
+            if (leader.isTrackLatency() != endpoint.isTrackLatency())
+                throw new IllegalArgumentException(endpoint + " can't join subscription group " + mName
+                        + ", the group's notifications are parsed by its leader and it has trackLatency="
+                        + leader.isTrackLatency());
+        }
+        mMembers.add(aConsumer);
+        sLog.debug(aConsumer + " joined subscription group " + mName + ", members=" + mMembers.size());
+        return mMembers.size() == 1;
+    }
+
+    /**
+     * Removes the consumer from the group. If it was the leader the next
+     * member takes over its queue and subscription.
+     *
+     * @return true if the consumer was the last member
+     */
+    public synchronized boolean leave(SNSConsumer aConsumer) throws Exception {
+        boolean leader = isLeader(aConsumer);
+        mMembers.remove(aConsumer);
+        sLog.debug(aConsumer + " left subscription group " + mName + ", members=" + mMembers.size());
+        if (mMembers.isEmpty())
+            return true;
+        if (leader) {
+            SNSConsumer next = mMembers.get(0);
+            sLog.debug(next + " is taking over subscription group " + mName);
+            next.adoptSubscription(aConsumer);
+        }
+        return false;
+    }
+
+    public boolean isLeader(SNSConsumer aConsumer) {
+        Object[] members = mMembers.toArray();
+        return members.length > 0 && members[0] == aConsumer;
+    }
+
+    /**
+     * @return how many notifications every member has room to queue, up to aMax
+     */
+    public int getRoom(int aMax) {
+        int room = aMax;
+        for (SNSConsumer member : mMembers) {
+            room = Math.min(room, member.getGroupRoom());
+        }
+        return Math.max(0, room);
+    }
+
+    /**
+     * Queues the notification on each of the members without waiting for
+     * them. The acknowledgement is called on the thread of the last member to
+     * finish with it.
+     */
+    public void deliver(SQSObject aSqsObject, Acknowledgement aAcknowledgement) {
+        Delivery delivery = new Delivery(aAcknowledgement);
+        int queued = 0;
+        for (SNSConsumer member : mMembers) {
+            // counted first so a member that's quick can't finish the delivery before it's queued on the rest
+            delivery.mRemaining.incrementAndGet();
+            if (member.queueNotification(aSqsObject, delivery)) {
+                queued++;
+            } else {
+                // the member stopped since we looked
+                delivery.mRemaining.decrementAndGet();
+            }
+        }
+        // nobody processed it if every member stopped, it's left for redelivery
+        delivery.memberDone(queued > 0, null);
+    }
+
+    /**
+     * Called once all of the members are done with a notification.
+     */
+    public interface Acknowledgement {
+        /**
+         * @param aDone true if every member is done with the notification and the message can be deleted
+         * @param aFailure first failure of a member's route, null if none failed
+         */
+        void onDelivered(boolean aDone, Exception aFailure);
+    }
+
+    /**
+     * Counts down the members a notification was queued on.
+     */
+    static class Delivery {
+        private final Acknowledgement mAcknowledgement;
+        /** members still processing the notification, plus one until it's been queued on all of them */
+        private final AtomicInteger mRemaining = new AtomicInteger(1);
+        private volatile boolean mDone = true;
+        private volatile Exception mFailure;
+
+        Delivery(Acknowledgement aAcknowledgement) {
+            mAcknowledgement = aAcknowledgement;
+        }
+
+        void memberDone(boolean aDone, Exception aFailure) {
+            synchronized (this) {
+                mDone &= aDone;
+                if (mFailure == null)
+                    mFailure = aFailure;
+            }
+            if (mRemaining.decrementAndGet() == 0)
+                mAcknowledgement.onDelivered(mDone && mFailure == null, mFailure);
+        }
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public int size() {
+        return mMembers.size();
+    }
+}
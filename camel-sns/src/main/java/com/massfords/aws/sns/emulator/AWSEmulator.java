@@ -0,0 +1,212 @@
+package com.massfords.aws.sns.emulator;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.binary.Hex;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.services.sns.AmazonSNS;
+import com.amazonaws.services.sns.model.Subscription;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.massfords.aws.sns.AmazonClientSource;
+
+/**
+ * In-process stand-in for SNS and SQS so the component can be run, load
+ * tested and measured without AWS. The emulator keeps its topics,
+ * subscriptions and queues in memory, a message published to a topic is
+ * wrapped in a notification envelope and sent to each of the queues
+ * subscribed to it the same as SNS does. There's no policy propagation
+ * delay, a queue gets the topic's messages as soon as it's subscribed.
+ *
+ * Plug it in with {@link com.massfords.aws.sns.SNSComponent#setClientSource}
+ * and every endpoint of the component gets the emulator's clients whatever
+ * its credentials. Latency, throttling and errors are added with the
+ * {@link FaultInjector} from {@link #getFaults()}.
+ *
+ * The notifications aren't signed, consumers have to run without the verify
+ * option. The only protocol subscriptions are delivered over is sqs.
+ */
+public class AWSEmulator implements AmazonClientSource {
+
+    static final String REGION = "us-east-1";
+    static final String ACCOUNT = "000000000000";
+
+    private static final ThreadLocal<SimpleDateFormat> sTimestampFormat = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            return format;
+        }
+    };
+
+    private final FaultInjector mFaults = new FaultInjector();
+    private final EmulatedSNS mSNS = new EmulatedSNS(this);
+    private final EmulatedSQS mSQS = new EmulatedSQS(this);
+    /** topics keyed by arn */
+    private final ConcurrentMap<String, Topic> mTopics = new ConcurrentHashMap<String, Topic>();
+    /** queues keyed by name */
+    private final ConcurrentMap<String, EmulatedQueue> mQueues = new ConcurrentHashMap<String, EmulatedQueue>();
+    private final AtomicLong mIds = new AtomicLong();
+    private final AtomicLong mPublished = new AtomicLong();
+    private int mMaxMessageBytes = 256 * 1024;
+
+    /**
+     * Returns the emulator's SNS client, the credentials and configuration are ignored.
+     */
+    public AmazonSNS createSNSClient(String aAccessKey, String aSecretKey, ClientConfiguration aConfig) {
+        return mSNS;
+    }
+
+    /**
+     * Returns the emulator's SQS client, the credentials and configuration are ignored.
+     */
+    public AmazonSQS createSQSClient(String aAccessKey, String aSecretKey, ClientConfiguration aConfig) {
+        return mSQS;
+    }
+
+    public AmazonSNS getSNSClient() {
+        return mSNS;
+    }
+
+    public AmazonSQS getSQSClient() {
+        return mSQS;
+    }
+
+    public FaultInjector getFaults() {
+        return mFaults;
+    }
+
+    /**
+     * @return the queue with the name or null if there isn't one
+     */
+    public EmulatedQueue getQueue(String aName) {
+        return mQueues.get(aName);
+    }
+
+    /**
+     * @return messages published to the topics
+     */
+    public long getPublishedCount() {
+        return mPublished.get();
+    }
+
+    public int getMaxMessageBytes() {
+        return mMaxMessageBytes;
+    }
+
+    /**
+     * @param aMaxMessageBytes largest message that can be published or sent, in UTF-8 bytes
+     */
+    public void setMaxMessageBytes(int aMaxMessageBytes) {
+        mMaxMessageBytes = aMaxMessageBytes;
+    }
+
+    /**
+     * Clock for the visibility timeouts, tests override it to move time along.
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * @return id shaped like the ones AWS hands out, unique within the emulator
+     */
+    String nextId() {
+        return new UUID(0x5e7a1a7e00004000L, 0x8000000000000000L | mIds.incrementAndGet()).toString();
+    }
+
+    ConcurrentMap<String, Topic> getTopics() {
+        return mTopics;
+    }
+
+    ConcurrentMap<String, EmulatedQueue> getQueues() {
+        return mQueues;
+    }
+
+    /**
+     * Wraps the message in a notification envelope and sends it to each of the queues subscribed to the topic.
+     *
+     * @return id of the notification
+     */
+    String publish(Topic aTopic, String aSubject, String aMessage) {
+        String messageId = nextId();
+        String envelope = toEnvelope(aTopic.mArn, messageId, aSubject, aMessage);
+        for (Subscription subscription : aTopic.mSubscriptions) {
+            if (!"sqs".equals(subscription.getProtocol()))
+                continue;
+            String endpoint = subscription.getEndpoint();
+            EmulatedQueue queue = mQueues.get(endpoint.substring(endpoint.lastIndexOf(':') + 1));
+            if (queue != null && queue.getArn().equals(endpoint))
+                queue.send(envelope);
+        }
+        mPublished.incrementAndGet();
+        return messageId;
+    }
+
+    private String toEnvelope(String aTopicArn, String aMessageId, String aSubject, String aMessage) {
+        try {
+            JSONObject envelope = new JSONObject();
+            envelope.put("Type", "Notification");
+            envelope.put("MessageId", aMessageId);
+            envelope.put("TopicArn", aTopicArn);
+            if (aSubject != null)
+                envelope.put("Subject", aSubject);
+            envelope.put("Message", aMessage);
+            envelope.put("Timestamp", sTimestampFormat.get().format(new Date(currentTimeMillis())));
+            envelope.put("SignatureVersion", "1");
+            envelope.put("Signature", "EMULATED");
+            envelope.put("SigningCertURL", "https://sns." + REGION + ".amazonaws.com/emulated.pem");
+            envelope.put("UnsubscribeURL", "https://sns." + REGION + ".amazonaws.com/?Action=Unsubscribe");
+            return envelope.toString();
+        } catch (JSONException e) {
+            throw new IllegalStateException("couldn't create the envelope for " + aMessageId, e);
+        }
+    }
+
+    static int utf8Length(String aText) {
+        try {
+            return aText.getBytes("UTF-8").length;
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String md5(String aText) {
+        try {
+            return new String(Hex.encodeHex(MessageDigest.getInstance("MD5").digest(aText.getBytes("UTF-8"))));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Topic and the subscriptions to it.
+     */
+    static class Topic {
+        final String mArn;
+        final List<Subscription> mSubscriptions = new CopyOnWriteArrayList<Subscription>();
+        final Map<String, String> mAttributes = new HashMap<String, String>();
+
+        Topic(String aName) {
+            mArn = "arn:aws:sns:" + REGION + ":" + ACCOUNT + ":" + aName;
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package com.massfords.aws.sns.emulator;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import com.amazonaws.services.sqs.model.Message;
+
+/**
+ * Queue held by the {@link AWSEmulator}. Like a standard SQS queue a
+ * received message is hidden for the visibility timeout and then becomes
+ * visible again unless it's deleted first, each receive gives it a new
+ * receipt handle and only the latest one deletes it. Redelivered messages go
+ * to the back of the queue so the order isn't strictly first in first out.
+ *
+ * A receive waits for up to the queue's ReceiveMessageWaitTimeSeconds for a
+ * message to arrive when the queue's empty, the same as long polling.
+ */
+public class EmulatedQueue {
+
+    /** how often a waiting receive checks for messages whose visibility timeout ran out */
+    private static final long EXPIRY_CHECK_MILLIS = 50;
+
+    private final AWSEmulator mEmulator;
+    private final String mName;
+    private final String mUrl;
+    private final String mArn;
+    private final long mCreated;
+
+    /** everything below is guarded by this */
+    private final Map<String, String> mAttributes = new HashMap<String, String>();
+    private int mVisibilityTimeout;
+    private int mWaitTimeSeconds;
+    private final LinkedList<Entry> mVisible = new LinkedList<Entry>();
+    private final PriorityQueue<Entry> mInFlight = new PriorityQueue<Entry>();
+    private final Map<String, Entry> mByHandle = new HashMap<String, Entry>();
+    private boolean mDeleted;
+
+    private long mSent;
+    private long mReceived;
+    private long mRedelivered;
+    private long mDeletedMessages;
+
+    EmulatedQueue(AWSEmulator aEmulator, String aName, int aVisibilityTimeout) {
+        mEmulator = aEmulator;
+        mName = aName;
+        mUrl = "https://queue.amazonaws.com/" + AWSEmulator.ACCOUNT + "/" + aName;
+        mArn = "arn:aws:sqs:" + AWSEmulator.REGION + ":" + AWSEmulator.ACCOUNT + ":" + aName;
+        mVisibilityTimeout = aVisibilityTimeout;
+        mCreated = aEmulator.currentTimeMillis();
+    }
+
+    synchronized Message send(String aBody) {
+        Entry entry = new Entry(mEmulator.nextId(), aBody, mEmulator.currentTimeMillis());
+        mVisible.add(entry);
+        mSent++;
+        notifyAll();
+        return new Message().withMessageId(entry.mId).withMD5OfBody(entry.mMD5);
+    }
+
+    /**
+     * @param aVisibilityTimeout seconds the messages are hidden for, null for the queue's timeout
+     * @param aAttributeNames attributes to return with the messages
+     */
+    synchronized List<Message> receive(int aMax, Integer aVisibilityTimeout, Collection<String> aAttributeNames)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + mWaitTimeSeconds * 1000L;
+        long now = mEmulator.currentTimeMillis();
+        expire(now);
+        while (mVisible.isEmpty() && !mDeleted) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0)
+                break;
+            wait(Math.min(remaining, EXPIRY_CHECK_MILLIS));
+            now = mEmulator.currentTimeMillis();
+            expire(now);
+        }
+        long timeout = (aVisibilityTimeout == null ? mVisibilityTimeout : aVisibilityTimeout) * 1000L;
+        List<Message> messages = new ArrayList<Message>(Math.min(aMax, mVisible.size()));
+        while (messages.size() < aMax && !mVisible.isEmpty()) {
+            Entry entry = mVisible.removeFirst();
+            if (entry.mReceiveCount++ > 0)
+                mRedelivered++;
+            if (entry.mFirstReceived == 0)
+                entry.mFirstReceived = now;
+            entry.mHandle = mEmulator.nextId();
+            entry.mVisibleAt = now + timeout;
+            mInFlight.add(entry);
+            mByHandle.put(entry.mHandle, entry);
+            messages.add(entry.toMessage(aAttributeNames));
+        }
+        mReceived += messages.size();
+        return messages;
+    }
+
+    /**
+     * Makes the in flight messages whose visibility timeout ran out visible again.
+     */
+    private void expire(long aNow) {
+        while (!mInFlight.isEmpty() && mInFlight.peek().mVisibleAt <= aNow) {
+            Entry entry = mInFlight.poll();
+            mByHandle.remove(entry.mHandle);
+            entry.mHandle = null;
+            mVisible.add(entry);
+        }
+    }
+
+    /**
+     * Deletes the message if the handle is the one from its latest receive,
+     * a stale handle is ignored the same as SQS ignores it.
+     *
+     * @return true if the message was deleted
+     */
+    synchronized boolean delete(String aReceiptHandle) {
+        expire(mEmulator.currentTimeMillis());
+        Entry entry = mByHandle.remove(aReceiptHandle);
+        if (entry == null)
+            return false;
+        mInFlight.remove(entry);
+        mDeletedMessages++;
+        return true;
+    }
+
+    /**
+     * @return false if the handle isn't for a message that's in flight
+     */
+    synchronized boolean changeVisibility(String aReceiptHandle, int aVisibilityTimeout) {
+        long now = mEmulator.currentTimeMillis();
+        expire(now);
+        Entry entry = mByHandle.get(aReceiptHandle);
+        if (entry == null)
+            return false;
+        mInFlight.remove(entry);
+        entry.mVisibleAt = now + aVisibilityTimeout * 1000L;
+        mInFlight.add(entry);
+        if (aVisibilityTimeout == 0) {
+            expire(now);
+            notifyAll();
+        }
+        return true;
+    }
+
+    synchronized Map<String, String> getAttributes(Collection<String> aNames) {
+        expire(mEmulator.currentTimeMillis());
+        Map<String, String> attributes = new HashMap<String, String>(mAttributes);
+        attributes.put("QueueArn", mArn);
+        attributes.put("ApproximateNumberOfMessages", String.valueOf(mVisible.size()));
+        attributes.put("ApproximateNumberOfMessagesNotVisible", String.valueOf(mInFlight.size()));
+        attributes.put("VisibilityTimeout", String.valueOf(mVisibilityTimeout));
+        attributes.put("ReceiveMessageWaitTimeSeconds", String.valueOf(mWaitTimeSeconds));
+        attributes.put("CreatedTimestamp", String.valueOf(mCreated / 1000));
+        if (aNames == null || aNames.contains("All"))
+            return attributes;
+        attributes.keySet().retainAll(aNames);
+        return attributes;
+    }
+
+    synchronized void setAttributes(Map<String, String> aAttributes) {
+        for (Map.Entry<String, String> attribute : aAttributes.entrySet()) {
+            String name = attribute.getKey();
+            String value = attribute.getValue();
+            if ("VisibilityTimeout".equals(name))
+                mVisibilityTimeout = Integer.parseInt(value);
+            else if ("ReceiveMessageWaitTimeSeconds".equals(name))
+                mWaitTimeSeconds = Integer.parseInt(value);
+            else
+                mAttributes.put(name, value);
+        }
+    }
+
+    /**
+     * Drops the messages and wakes up the receives waiting on the queue.
+     */
+    synchronized void markDeleted() {
+        mDeleted = true;
+        mVisible.clear();
+        mInFlight.clear();
+        mByHandle.clear();
+        notifyAll();
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public String getUrl() {
+        return mUrl;
+    }
+
+    public String getArn() {
+        return mArn;
+    }
+
+    /**
+     * @return messages that can be received right now
+     */
+    public synchronized int getVisibleCount() {
+        expire(mEmulator.currentTimeMillis());
+        return mVisible.size();
+    }
+
+    /**
+     * @return messages that have been received but haven't been deleted or become visible again
+     */
+    public synchronized int getInFlightCount() {
+        expire(mEmulator.currentTimeMillis());
+        return mInFlight.size();
+    }
+
+    public synchronized long getSentCount() {
+        return mSent;
+    }
+
+    /**
+     * @return receives of messages, counting each redelivery
+     */
+    public synchronized long getReceivedCount() {
+        return mReceived;
+    }
+
+    /**
+     * @return receives of messages that had been received before
+     */
+    public synchronized long getRedeliveredCount() {
+        return mRedelivered;
+    }
+
+    public synchronized long getDeletedCount() {
+        return mDeletedMessages;
+    }
+
+    private static class Entry implements Comparable<Entry> {
+        private final String mId;
+        private final String mBody;
+        private final String mMD5;
+        private final long mSent;
+        private long mFirstReceived;
+        private int mReceiveCount;
+        private String mHandle;
+        private long mVisibleAt;
+
+        Entry(String aId, String aBody, long aSent) {
+            mId = aId;
+            mBody = aBody;
+            mMD5 = AWSEmulator.md5(aBody);
+            mSent = aSent;
+        }
+
+        Message toMessage(Collection<String> aAttributeNames) {
+            Message message = new Message().withMessageId(mId).withReceiptHandle(mHandle).withBody(mBody)
+                    .withMD5OfBody(mMD5);
+            if (aAttributeNames != null && !aAttributeNames.isEmpty()) {
+                boolean all = aAttributeNames.contains("All");
+                Map<String, String> attributes = new HashMap<String, String>();
+                if (all || aAttributeNames.contains("SentTimestamp"))
+                    attributes.put("SentTimestamp", String.valueOf(mSent));
+                if (all || aAttributeNames.contains("ApproximateReceiveCount"))
+                    attributes.put("ApproximateReceiveCount", String.valueOf(mReceiveCount));
+                if (all || aAttributeNames.contains("ApproximateFirstReceiveTimestamp"))
+                    attributes.put("ApproximateFirstReceiveTimestamp", String.valueOf(mFirstReceived));
+                message.setAttributes(attributes);
+            }
+            return message;
+        }
+
+        public int compareTo(Entry aOther) {
+            return mVisibleAt < aOther.mVisibleAt ? -1 : mVisibleAt == aOther.mVisibleAt ? 0 : 1;
+        }
+    }
+}
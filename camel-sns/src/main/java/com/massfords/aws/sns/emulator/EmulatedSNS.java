@@ -0,0 +1,218 @@
+package com.massfords.aws.sns.emulator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.amazonaws.services.sns.AmazonSNS;
+import com.amazonaws.services.sns.model.AddPermissionRequest;
+import com.amazonaws.services.sns.model.ConfirmSubscriptionRequest;
+import com.amazonaws.services.sns.model.ConfirmSubscriptionResult;
+import com.amazonaws.services.sns.model.CreateTopicRequest;
+import com.amazonaws.services.sns.model.CreateTopicResult;
+import com.amazonaws.services.sns.model.DeleteTopicRequest;
+import com.amazonaws.services.sns.model.GetTopicAttributesRequest;
+import com.amazonaws.services.sns.model.GetTopicAttributesResult;
+import com.amazonaws.services.sns.model.InvalidParameterException;
+import com.amazonaws.services.sns.model.ListSubscriptionsByTopicRequest;
+import com.amazonaws.services.sns.model.ListSubscriptionsByTopicResult;
+import com.amazonaws.services.sns.model.ListSubscriptionsRequest;
+import com.amazonaws.services.sns.model.ListSubscriptionsResult;
+import com.amazonaws.services.sns.model.ListTopicsRequest;
+import com.amazonaws.services.sns.model.ListTopicsResult;
+import com.amazonaws.services.sns.model.NotFoundException;
+import com.amazonaws.services.sns.model.PublishRequest;
+import com.amazonaws.services.sns.model.PublishResult;
+import com.amazonaws.services.sns.model.RemovePermissionRequest;
+import com.amazonaws.services.sns.model.SetTopicAttributesRequest;
+import com.amazonaws.services.sns.model.SubscribeRequest;
+import com.amazonaws.services.sns.model.SubscribeResult;
+import com.amazonaws.services.sns.model.Subscription;
+import com.amazonaws.services.sns.model.Topic;
+import com.amazonaws.services.sns.model.UnsubscribeRequest;
+
+/**
+ * SNS client backed by the {@link AWSEmulator}. Permissions are accepted and
+ * ignored, subscriptions are confirmed as soon as they're made.
+ */
+class EmulatedSNS implements AmazonSNS {
+
+    /** subscriptions and topics returned by each list call, the same page size as SNS */
+    private static final int PAGE_SIZE = 100;
+
+    private final AWSEmulator mEmulator;
+
+    EmulatedSNS(AWSEmulator aEmulator) {
+        mEmulator = aEmulator;
+    }
+
+    public void setEndpoint(String aEndpoint) {
+        // there's only the one region
+    }
+
+    public CreateTopicResult createTopic(CreateTopicRequest aRequest) {
+        call("CreateTopic");
+        String name = aRequest.getName();
+        if (name == null || !name.matches("[A-Za-z0-9_-]{1,256}"))
+            throw invalid("invalid topic name " + name);
+        AWSEmulator.Topic topic = new AWSEmulator.Topic(name);
+        AWSEmulator.Topic existing = mEmulator.getTopics().putIfAbsent(topic.mArn, topic);
+        return new CreateTopicResult().withTopicArn((existing == null ? topic : existing).mArn);
+    }
+
+    public void deleteTopic(DeleteTopicRequest aRequest) {
+        call("DeleteTopic");
+        // deleting a topic that doesn't exist isn't an error
+        mEmulator.getTopics().remove(aRequest.getTopicArn());
+    }
+
+    public ListTopicsResult listTopics() {
+        return listTopics(new ListTopicsRequest());
+    }
+
+    public ListTopicsResult listTopics(ListTopicsRequest aRequest) {
+        call("ListTopics");
+        List<Topic> topics = new ArrayList<Topic>();
+        for (String arn : mEmulator.getTopics().keySet()) {
+            topics.add(new Topic().withTopicArn(arn));
+        }
+        int start = start(aRequest.getNextToken());
+        return new ListTopicsResult().withTopics(page(topics, start)).withNextToken(next(topics, start));
+    }
+
+    public GetTopicAttributesResult getTopicAttributes(GetTopicAttributesRequest aRequest) {
+        call("GetTopicAttributes");
+        AWSEmulator.Topic topic = getTopic(aRequest.getTopicArn());
+        Map<String, String> attributes;
+        synchronized (topic.mAttributes) {
+            attributes = new HashMap<String, String>(topic.mAttributes);
+        }
+        attributes.put("TopicArn", topic.mArn);
+        attributes.put("Owner", AWSEmulator.ACCOUNT);
+        attributes.put("SubscriptionsConfirmed", String.valueOf(topic.mSubscriptions.size()));
+        attributes.put("SubscriptionsPending", "0");
+        return new GetTopicAttributesResult().withAttributes(attributes);
+    }
+
+    public void setTopicAttributes(SetTopicAttributesRequest aRequest) {
+        call("SetTopicAttributes");
+        AWSEmulator.Topic topic = getTopic(aRequest.getTopicArn());
+        synchronized (topic.mAttributes) {
+            topic.mAttributes.put(aRequest.getAttributeName(), aRequest.getAttributeValue());
+        }
+    }
+
+    public SubscribeResult subscribe(SubscribeRequest aRequest) {
+        call("Subscribe");
+        AWSEmulator.Topic topic = getTopic(aRequest.getTopicArn());
+        if (!"sqs".equals(aRequest.getProtocol()))
+            throw invalid("the emulator only delivers to sqs subscriptions, not " + aRequest.getProtocol());
+        if (aRequest.getEndpoint() == null || !aRequest.getEndpoint().startsWith("arn:aws:sqs:"))
+            throw invalid("invalid sqs endpoint " + aRequest.getEndpoint());
+        synchronized (topic) {
+            for (Subscription subscription : topic.mSubscriptions) {
+                if (subscription.getEndpoint().equals(aRequest.getEndpoint()))
+                    return new SubscribeResult().withSubscriptionArn(subscription.getSubscriptionArn());
+            }
+            Subscription subscription = new Subscription().withTopicArn(topic.mArn).withProtocol("sqs")
+                    .withEndpoint(aRequest.getEndpoint()).withOwner(AWSEmulator.ACCOUNT)
+                    .withSubscriptionArn(topic.mArn + ":" + mEmulator.nextId());
+            topic.mSubscriptions.add(subscription);
+            return new SubscribeResult().withSubscriptionArn(subscription.getSubscriptionArn());
+        }
+    }
+
+    public ConfirmSubscriptionResult confirmSubscription(ConfirmSubscriptionRequest aRequest) {
+        call("ConfirmSubscription");
+        throw invalid("no subscription to " + aRequest.getTopicArn() + " is waiting for confirmation");
+    }
+
+    public void unsubscribe(UnsubscribeRequest aRequest) {
+        call("Unsubscribe");
+        String arn = aRequest.getSubscriptionArn();
+        for (AWSEmulator.Topic topic : mEmulator.getTopics().values()) {
+            for (Subscription subscription : topic.mSubscriptions) {
+                if (subscription.getSubscriptionArn().equals(arn)) {
+                    topic.mSubscriptions.remove(subscription);
+                    return;
+                }
+            }
+        }
+        throw new NotFoundException("no subscription " + arn);
+    }
+
+    public ListSubscriptionsResult listSubscriptions() {
+        return listSubscriptions(new ListSubscriptionsRequest());
+    }
+
+    public ListSubscriptionsResult listSubscriptions(ListSubscriptionsRequest aRequest) {
+        call("ListSubscriptions");
+        List<Subscription> subscriptions = new ArrayList<Subscription>();
+        for (AWSEmulator.Topic topic : mEmulator.getTopics().values()) {
+            subscriptions.addAll(topic.mSubscriptions);
+        }
+        int start = start(aRequest.getNextToken());
+        return new ListSubscriptionsResult().withSubscriptions(page(subscriptions, start)).withNextToken(
+                next(subscriptions, start));
+    }
+
+    public ListSubscriptionsByTopicResult listSubscriptionsByTopic(ListSubscriptionsByTopicRequest aRequest) {
+        call("ListSubscriptionsByTopic");
+        List<Subscription> subscriptions = new ArrayList<Subscription>(getTopic(aRequest.getTopicArn()).mSubscriptions);
+        int start = start(aRequest.getNextToken());
+        return new ListSubscriptionsByTopicResult().withSubscriptions(page(subscriptions, start)).withNextToken(
+                next(subscriptions, start));
+    }
+
+    public PublishResult publish(PublishRequest aRequest) {
+        call("Publish");
+        AWSEmulator.Topic topic = getTopic(aRequest.getTopicArn());
+        String message = aRequest.getMessage();
+        if (message == null)
+            throw invalid("message is required");
+        if (AWSEmulator.utf8Length(message) > mEmulator.getMaxMessageBytes())
+            throw invalid("message is longer than " + mEmulator.getMaxMessageBytes() + " bytes");
+        String subject = aRequest.getSubject();
+        if (subject != null && (subject.length() == 0 || subject.length() > 100))
+            throw invalid("subject has to be 1 to 100 characters");
+        return new PublishResult().withMessageId(mEmulator.publish(topic, subject, message));
+    }
+
+    public void addPermission(AddPermissionRequest aRequest) {
+        call("AddPermission");
+        getTopic(aRequest.getTopicArn());
+    }
+
+    public void removePermission(RemovePermissionRequest aRequest) {
+        call("RemovePermission");
+        getTopic(aRequest.getTopicArn());
+    }
+
+    private void call(String aOperation) {
+        mEmulator.getFaults().beforeCall("sns", aOperation);
+    }
+
+    private AWSEmulator.Topic getTopic(String aArn) {
+        AWSEmulator.Topic topic = aArn == null ? null : mEmulator.getTopics().get(aArn);
+        if (topic == null)
+            throw new NotFoundException("no topic " + aArn);
+        return topic;
+    }
+
+    private static InvalidParameterException invalid(String aMessage) {
+        return new InvalidParameterException(aMessage);
+    }
+
+    private static int start(String aNextToken) {
+        return aNextToken == null ? 0 : Integer.parseInt(aNextToken);
+    }
+
+    private static <T> List<T> page(List<T> aItems, int aStart) {
+        return aItems.subList(Math.min(aStart, aItems.size()), Math.min(aStart + PAGE_SIZE, aItems.size()));
+    }
+
+    private static String next(List<?> aItems, int aStart) {
+        return aStart + PAGE_SIZE < aItems.size() ? String.valueOf(aStart + PAGE_SIZE) : null;
+    }
+}
@@ -0,0 +1,159 @@
+package com.massfords.aws.sns.emulator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonServiceException.ErrorType;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.AddPermissionRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityRequest;
+import com.amazonaws.services.sqs.model.CreateQueueRequest;
+import com.amazonaws.services.sqs.model.CreateQueueResult;
+import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.DeleteQueueRequest;
+import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.GetQueueAttributesResult;
+import com.amazonaws.services.sqs.model.ListQueuesRequest;
+import com.amazonaws.services.sqs.model.ListQueuesResult;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.RemovePermissionRequest;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageResult;
+import com.amazonaws.services.sqs.model.SetQueueAttributesRequest;
+
+/**
+ * SQS client backed by the {@link AWSEmulator}. A receive returns up to 10
+ * messages the same as SQS, permissions are accepted and ignored.
+ */
+class EmulatedSQS implements AmazonSQS {
+
+    /** most messages a single receive can return */
+    static final int MAX_MESSAGES = 10;
+    /** visibility timeout of a queue created without one */
+    static final int DEFAULT_VISIBILITY_TIMEOUT = 30;
+
+    private final AWSEmulator mEmulator;
+
+    EmulatedSQS(AWSEmulator aEmulator) {
+        mEmulator = aEmulator;
+    }
+
+    public void setEndpoint(String aEndpoint) {
+        // there's only the one region
+    }
+
+    public CreateQueueResult createQueue(CreateQueueRequest aRequest) {
+        call("CreateQueue");
+        String name = aRequest.getQueueName();
+        if (name == null || !name.matches("[A-Za-z0-9_-]{1,80}"))
+            throw invalid("InvalidParameterValue", "invalid queue name " + name);
+        Integer timeout = aRequest.getDefaultVisibilityTimeout();
+        EmulatedQueue queue = new EmulatedQueue(mEmulator, name, timeout == null ? DEFAULT_VISIBILITY_TIMEOUT
+                : timeout);
+        EmulatedQueue existing = mEmulator.getQueues().putIfAbsent(name, queue);
+        return new CreateQueueResult().withQueueUrl((existing == null ? queue : existing).getUrl());
+    }
+
+    public void deleteQueue(DeleteQueueRequest aRequest) {
+        call("DeleteQueue");
+        EmulatedQueue queue = getQueue(aRequest.getQueueUrl());
+        mEmulator.getQueues().remove(queue.getName(), queue);
+        queue.markDeleted();
+    }
+
+    public ListQueuesResult listQueues() {
+        return listQueues(new ListQueuesRequest());
+    }
+
+    public ListQueuesResult listQueues(ListQueuesRequest aRequest) {
+        call("ListQueues");
+        String prefix = aRequest.getQueueNamePrefix();
+        List<String> urls = new ArrayList<String>();
+        for (EmulatedQueue queue : mEmulator.getQueues().values()) {
+            if (prefix == null || queue.getName().startsWith(prefix))
+                urls.add(queue.getUrl());
+        }
+        return new ListQueuesResult().withQueueUrls(urls);
+    }
+
+    public GetQueueAttributesResult getQueueAttributes(GetQueueAttributesRequest aRequest) {
+        call("GetQueueAttributes");
+        return new GetQueueAttributesResult().withAttributes(getQueue(aRequest.getQueueUrl()).getAttributes(
+                aRequest.getAttributeNames()));
+    }
+
+    public void setQueueAttributes(SetQueueAttributesRequest aRequest) {
+        call("SetQueueAttributes");
+        getQueue(aRequest.getQueueUrl()).setAttributes(aRequest.getAttributes());
+    }
+
+    public SendMessageResult sendMessage(SendMessageRequest aRequest) {
+        call("SendMessage");
+        EmulatedQueue queue = getQueue(aRequest.getQueueUrl());
+        String body = aRequest.getMessageBody();
+        if (body == null || AWSEmulator.utf8Length(body) > mEmulator.getMaxMessageBytes())
+            throw invalid("InvalidParameterValue", "message body is missing or longer than "
+                    + mEmulator.getMaxMessageBytes() + " bytes");
+        Message sent = queue.send(body);
+        return new SendMessageResult().withMessageId(sent.getMessageId()).withMD5OfMessageBody(sent.getMD5OfBody());
+    }
+
+    public ReceiveMessageResult receiveMessage(ReceiveMessageRequest aRequest) {
+        call("ReceiveMessage");
+        EmulatedQueue queue = getQueue(aRequest.getQueueUrl());
+        Integer max = aRequest.getMaxNumberOfMessages();
+        if (max != null && (max < 1 || max > MAX_MESSAGES))
+            throw invalid("InvalidParameterValue", "maxNumberOfMessages has to be between 1 and " + MAX_MESSAGES
+                    + " but was " + max);
+        try {
+            return new ReceiveMessageResult().withMessages(queue.receive(max == null ? 1 : max,
+                    aRequest.getVisibilityTimeout(), aRequest.getAttributeNames()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AmazonClientException("interrupted while waiting for messages on " + queue.getUrl(), e);
+        }
+    }
+
+    public void deleteMessage(DeleteMessageRequest aRequest) {
+        call("DeleteMessage");
+        getQueue(aRequest.getQueueUrl()).delete(aRequest.getReceiptHandle());
+    }
+
+    public void changeMessageVisibility(ChangeMessageVisibilityRequest aRequest) {
+        call("ChangeMessageVisibility");
+        Integer timeout = aRequest.getVisibilityTimeout();
+        if (timeout == null || timeout < 0)
+            throw invalid("InvalidParameterValue", "invalid visibility timeout " + timeout);
+        if (!getQueue(aRequest.getQueueUrl()).changeVisibility(aRequest.getReceiptHandle(), timeout))
+            throw invalid("MessageNotInflight", "message for " + aRequest.getReceiptHandle() + " isn't in flight");
+    }
+
+    public void addPermission(AddPermissionRequest aRequest) {
+        call("AddPermission");
+        getQueue(aRequest.getQueueUrl());
+    }
+
+    public void removePermission(RemovePermissionRequest aRequest) {
+        call("RemovePermission");
+        getQueue(aRequest.getQueueUrl());
+    }
+
+    private void call(String aOperation) {
+        mEmulator.getFaults().beforeCall("sqs", aOperation);
+    }
+
+    private EmulatedQueue getQueue(String aUrl) {
+        EmulatedQueue queue = aUrl == null ? null : mEmulator.getQueues().get(aUrl.substring(aUrl.lastIndexOf('/') + 1));
+        if (queue == null || !queue.getUrl().equals(aUrl))
+            throw invalid("AWS.SimpleQueueService.NonExistentQueue", "no queue " + aUrl);
+        return queue;
+    }
+
+    private static AmazonServiceException invalid(String aErrorCode, String aMessage) {
+        return FaultInjector.fault("sqs", aErrorCode, aMessage, 400, ErrorType.Client);
+    }
+}
@@ -0,0 +1,202 @@
+package com.massfords.aws.sns.emulator;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonServiceException.ErrorType;
+
+/**
+ * Latency, throttling and errors the emulator adds to the calls it's made,
+ * so the component can be measured against a service that's slow or
+ * misbehaving without being at the mercy of the real one. Everything is off
+ * until it's set, and only applies to the operations named with
+ * {@link #setOperations(String)} once they're set.
+ *
+ * The errors and the latency jitter are drawn from a Random seeded with
+ * {@link #setSeed(long)}, so a single threaded run sees the same faults every
+ * time. The emulated clients don't retry the way the SDK's clients do, the
+ * caller sees every fault.
+ */
+public class FaultInjector {
+
+    private volatile long mLatency;
+    private volatile long mLatencyJitter;
+    private volatile double mErrorRate;
+    private volatile int mThrottleRate;
+    private volatile Set<String> mOperations;
+    private Random mRandom = new Random(0);
+
+    /** calls the throttle has room for, guarded by this */
+    private double mTokens;
+    private long mRefilledAt = System.nanoTime();
+
+    private final AtomicLong mCalls = new AtomicLong();
+    private final AtomicLong mThrottled = new AtomicLong();
+    private final AtomicLong mErrors = new AtomicLong();
+
+    /**
+     * Applies the faults to a call, sleeping for the latency and throwing if
+     * the call is throttled or picked to fail.
+     *
+     * @param aService sns or sqs
+     * @param aOperation name of the API action, e.g. Publish or ReceiveMessage
+     */
+    public void beforeCall(String aService, String aOperation) {
+        mCalls.incrementAndGet();
+        Set<String> operations = mOperations;
+        if (operations != null && !operations.contains(aOperation))
+            return;
+        long latency = mLatency;
+        if (mLatencyJitter > 0)
+            latency += nextLong(mLatencyJitter + 1);
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AmazonClientException("interrupted while calling " + aOperation, e);
+            }
+        }
+        if (mThrottleRate > 0 && !acquire()) {
+            mThrottled.incrementAndGet();
+            throw fault(aService, "Throttling", aOperation + ": rate exceeded", 400, ErrorType.Client);
+        }
+        if (mErrorRate > 0 && nextDouble() < mErrorRate) {
+            mErrors.incrementAndGet();
+            throw fault(aService, "InternalFailure", aOperation + ": injected failure", 500, ErrorType.Service);
+        }
+    }
+
+    /**
+     * Token bucket that refills at the throttle rate and holds a second's worth of calls.
+     */
+    private synchronized boolean acquire() {
+        long now = System.nanoTime();
+        int rate = mThrottleRate;
+        mTokens = Math.min(rate, mTokens + (now - mRefilledAt) * rate / 1e9);
+        mRefilledAt = now;
+        if (mTokens < 1)
+            return false;
+        mTokens--;
+        return true;
+    }
+
+    private synchronized long nextLong(long aBound) {
+        return (long) (mRandom.nextDouble() * aBound);
+    }
+
+    private synchronized double nextDouble() {
+        return mRandom.nextDouble();
+    }
+
+    static AmazonServiceException fault(String aService, String aErrorCode, String aMessage, int aStatusCode,
+            ErrorType aErrorType) {
+        AmazonServiceException e = new AmazonServiceException(aMessage);
+        e.setServiceName(aService);
+        e.setErrorCode(aErrorCode);
+        e.setStatusCode(aStatusCode);
+        e.setErrorType(aErrorType);
+        return e;
+    }
+
+    public long getLatency() {
+        return mLatency;
+    }
+
+    /**
+     * @param aLatency millis each call takes
+     */
+    public void setLatency(long aLatency) {
+        if (aLatency < 0)
+            throw new IllegalArgumentException("latency can't be negative but was " + aLatency);
+        mLatency = aLatency;
+    }
+
+    public long getLatencyJitter() {
+        return mLatencyJitter;
+    }
+
+    /**
+     * @param aLatencyJitter up to this many millis are added to the latency of each call at random
+     */
+    public void setLatencyJitter(long aLatencyJitter) {
+        if (aLatencyJitter < 0)
+            throw new IllegalArgumentException("latencyJitter can't be negative but was " + aLatencyJitter);
+        mLatencyJitter = aLatencyJitter;
+    }
+
+    public double getErrorRate() {
+        return mErrorRate;
+    }
+
+    /**
+     * @param aErrorRate fraction of the calls that fail with an InternalFailure, 0 to 1
+     */
+    public void setErrorRate(double aErrorRate) {
+        if (aErrorRate < 0 || aErrorRate > 1)
+            throw new IllegalArgumentException("errorRate has to be between 0 and 1 but was " + aErrorRate);
+        mErrorRate = aErrorRate;
+    }
+
+    public int getThrottleRate() {
+        return mThrottleRate;
+    }
+
+    /**
+     * @param aThrottleRate calls a second that are let through before the rest are throttled, 0 for no limit
+     */
+    public synchronized void setThrottleRate(int aThrottleRate) {
+        if (aThrottleRate < 0)
+            throw new IllegalArgumentException("throttleRate can't be negative but was " + aThrottleRate);
+        mThrottleRate = aThrottleRate;
+        mTokens = aThrottleRate;
+        mRefilledAt = System.nanoTime();
+    }
+
+    /**
+     * @param aOperations comma separated API actions the faults apply to, e.g. Publish,DeleteMessage,
+     *            null for all of them
+     */
+    public void setOperations(String aOperations) {
+        if (aOperations == null) {
+            mOperations = null;
+            return;
+        }
+        Set<String> operations = new HashSet<String>();
+        for (String operation : aOperations.split(",")) {
+            if (operation.trim().length() > 0)
+                operations.add(operation.trim());
+        }
+        mOperations = Collections.unmodifiableSet(operations);
+    }
+
+    /**
+     * @param aSeed seed for the errors and the latency jitter
+     */
+    public synchronized void setSeed(long aSeed) {
+        mRandom = new Random(aSeed);
+    }
+
+    /**
+     * @return calls made to the emulator, faulted or not
+     */
+    public long getCalls() {
+        return mCalls.get();
+    }
+
+    public long getThrottled() {
+        return mThrottled.get();
+    }
+
+    /**
+     * @return calls that failed with an injected error
+     */
+    public long getErrors() {
+        return mErrors.get();
+    }
+}
@@ -0,0 +1,320 @@
+package com.massfords.aws.sns.management;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Counts and times the receives, deliveries and deletes of an endpoint's
+ * consumers. When the endpoint tracks latency the end to end and queue dwell
+ * latencies are kept by topic in a {@link LatencyTracker}, and the ones for
+ * each summary interval are logged at info.
+ */
+public class ConsumerMetrics extends EndpointMetrics implements ConsumerMetricsMBean {
+
+    private static Log sLog = LogFactory.getLog(ConsumerMetrics.class);
+
+    private final Meter mReceives = new Meter();
+    private final AtomicLong mReceiveFailures = new AtomicLong();
+    private final AtomicLong mEmptyReceives = new AtomicLong();
+    private final Meter mMessages = new Meter();
+    private final LatencyHistogram mReceiveLatency = new LatencyHistogram();
+    private final Meter mDelivered = new Meter();
+    private final AtomicLong mProcessingFailures = new AtomicLong();
+    private final LatencyHistogram mProcessingLatency = new LatencyHistogram();
+    private final AtomicInteger mInFlight = new AtomicInteger();
+    private final AtomicLong mFiltered = new AtomicLong();
+    private final AtomicLong mDuplicates = new AtomicLong();
+    private final AtomicLong mVerificationFailures = new AtomicLong();
+    private final Meter mDeletes = new Meter();
+    private final AtomicLong mDeleteFailures = new AtomicLong();
+    private volatile long mProvisioningTime = -1;
+    private final LatencyTracker mLatency = new LatencyTracker();
+    /** latencies since the last summary, swapped for an empty tracker when it's logged */
+    private final AtomicReference<LatencyTracker> mIntervalLatency = new AtomicReference<LatencyTracker>(
+            new LatencyTracker());
+    private volatile long mSummaryInterval;
+    private final AtomicLong mNextSummary = new AtomicLong();
+
+    public ConsumerMetrics(String aContextName, String aEndpointUri) {
+        super("consumers", aContextName, aEndpointUri);
+    }
+
+    /**
+     * @return start time to pass to {@link #receiveCompleted(long, int)} or {@link #receiveFailed()}
+     */
+    public long receiveStarted() {
+        return System.nanoTime();
+    }
+
+    public void receiveCompleted(long aStart, int aMessages) {
+        mReceiveLatency.recordSince(aStart);
+        mReceives.mark();
+        if (aMessages == 0)
+            mEmptyReceives.incrementAndGet();
+        else
+            mMessages.mark(aMessages);
+    }
+
+    public void receiveFailed() {
+        mReceives.mark();
+        mReceiveFailures.incrementAndGet();
+    }
+
+    /**
+     * @return start time to pass to {@link #processingCompleted(long, boolean)}
+     */
+    public long processingStarted() {
+        mInFlight.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    public void processingCompleted(long aStart, boolean aSucceeded) {
+        mProcessingLatency.recordSince(aStart);
+        mInFlight.decrementAndGet();
+        mDelivered.mark();
+        if (!aSucceeded)
+            mProcessingFailures.incrementAndGet();
+    }
+
+    public void filtered() {
+        mFiltered.incrementAndGet();
+    }
+
+    public void duplicate() {
+        mDuplicates.incrementAndGet();
+    }
+
+    public void verificationFailed() {
+        mVerificationFailures.incrementAndGet();
+    }
+
+    public void deleted() {
+        mDeletes.mark();
+    }
+
+    public void deleteFailed() {
+        mDeleteFailures.incrementAndGet();
+    }
+
+    /**
+     * @param aStart System.nanoTime() when provisioning started
+     */
+    public void provisioned(long aStart) {
+        mProvisioningTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - aStart);
+    }
+
+    /**
+     * @param aMicros time from the producer's stamp to the message being handed to the route
+     */
+    public void recordEndToEnd(String aTopicArn, long aMicros) {
+        mLatency.recordEndToEnd(aTopicArn, aMicros);
+        mIntervalLatency.get().recordEndToEnd(aTopicArn, aMicros);
+    }
+
+    /**
+     * @param aMicros time from SNS accepting the message to the consumer starting on it
+     */
+    public void recordQueueDwell(String aTopicArn, long aMicros) {
+        mLatency.recordQueueDwell(aTopicArn, aMicros);
+        mIntervalLatency.get().recordQueueDwell(aTopicArn, aMicros);
+    }
+
+    /**
+     * @return latencies by topic since the metrics were created or reset
+     */
+    public LatencyTracker getLatencyTracker() {
+        return mLatency;
+    }
+
+    /**
+     * @param aSummaryInterval millis between the latency summaries that are logged, 0 to not log them
+     */
+    public void setLatencySummaryInterval(long aSummaryInterval) {
+        mSummaryInterval = aSummaryInterval;
+    }
+
+    /**
+     * Logs the latencies recorded since the last summary if the interval is
+     * up. Called by the consumers as they poll, whichever gets there first
+     * logs the summary.
+     */
+    public void summarizeIfDue() {
+        long interval = mSummaryInterval;
+        if (interval <= 0)
+            return;
+        long now = System.currentTimeMillis();
+        long next = mNextSummary.get();
+        if (now < next || !mNextSummary.compareAndSet(next, now + interval) || next == 0)
+            return;
+        LatencyTracker latency = mIntervalLatency.getAndSet(new LatencyTracker());
+        if (!latency.isEmpty() && sLog.isInfoEnabled())
+            sLog.info("latency over the last " + interval + "ms for " + getEndpointUri()
+                    + "\n" + latency);
+    }
+
+    public long getReceiveCount() {
+        return mReceives.getCount();
+    }
+
+    public long getReceiveFailureCount() {
+        return mReceiveFailures.get();
+    }
+
+    public double getReceiveRate() {
+        return mReceives.getOneMinuteRate();
+    }
+
+    public long getEmptyReceiveCount() {
+        return mEmptyReceives.get();
+    }
+
+    public double getEmptyReceiveRatio() {
+        long receives = mReceives.getCount();
+        return receives == 0 ? 0 : mEmptyReceives.get() / (double) receives;
+    }
+
+    public long getMessagesReceivedCount() {
+        return mMessages.getCount();
+    }
+
+    public double getMessageRate() {
+        return mMessages.getOneMinuteRate();
+    }
+
+    public double getReceiveLatencyMean() {
+        return millis(mReceiveLatency.getMean());
+    }
+
+    public double getReceiveLatency50thPercentile() {
+        return millis(mReceiveLatency.getPercentile(0.5));
+    }
+
+    public double getReceiveLatency95thPercentile() {
+        return millis(mReceiveLatency.getPercentile(0.95));
+    }
+
+    public double getReceiveLatency99thPercentile() {
+        return millis(mReceiveLatency.getPercentile(0.99));
+    }
+
+    public double getReceiveLatencyMax() {
+        return millis(mReceiveLatency.getMax());
+    }
+
+    public long getDeliveredCount() {
+        return mDelivered.getCount();
+    }
+
+    public long getProcessingFailureCount() {
+        return mProcessingFailures.get();
+    }
+
+    public int getInFlight() {
+        return mInFlight.get();
+    }
+
+    public double getProcessingLatencyMean() {
+        return millis(mProcessingLatency.getMean());
+    }
+
+    public double getProcessingLatency50thPercentile() {
+        return millis(mProcessingLatency.getPercentile(0.5));
+    }
+
+    public double getProcessingLatency95thPercentile() {
+        return millis(mProcessingLatency.getPercentile(0.95));
+    }
+
+    public double getProcessingLatency99thPercentile() {
+        return millis(mProcessingLatency.getPercentile(0.99));
+    }
+
+    public double getProcessingLatencyMax() {
+        return millis(mProcessingLatency.getMax());
+    }
+
+    public long getFilteredCount() {
+        return mFiltered.get();
+    }
+
+    public long getDuplicateCount() {
+        return mDuplicates.get();
+    }
+
+    public long getVerificationFailureCount() {
+        return mVerificationFailures.get();
+    }
+
+    public long getDeleteCount() {
+        return mDeletes.getCount();
+    }
+
+    public long getDeleteFailureCount() {
+        return mDeleteFailures.get();
+    }
+
+    public double getDeleteRate() {
+        return mDeletes.getOneMinuteRate();
+    }
+
+    public long getProvisioningTime() {
+        return mProvisioningTime;
+    }
+
+    public double getEndToEndLatency50thPercentile() {
+        return millis(mLatency.getEndToEnd().getPercentile(0.5));
+    }
+
+    public double getEndToEndLatency99thPercentile() {
+        return millis(mLatency.getEndToEnd().getPercentile(0.99));
+    }
+
+    public double getQueueDwell50thPercentile() {
+        return millis(mLatency.getQueueDwell().getPercentile(0.5));
+    }
+
+    public double getQueueDwell99thPercentile() {
+        return millis(mLatency.getQueueDwell().getPercentile(0.99));
+    }
+
+    public String getLatencySummary() {
+        return mLatency.toString();
+    }
+
+    /**
+     * @return latencies of the receive calls in microseconds
+     */
+    public LatencyHistogram getReceiveLatency() {
+        return mReceiveLatency;
+    }
+
+    /**
+     * @return time the route took with each notification in microseconds
+     */
+    public LatencyHistogram getProcessingLatency() {
+        return mProcessingLatency;
+    }
+
+    public void resetStatistics() {
+        mReceives.reset();
+        mReceiveFailures.set(0);
+        mEmptyReceives.set(0);
+        mMessages.reset();
+        mReceiveLatency.reset();
+        mDelivered.reset();
+        mProcessingFailures.set(0);
+        mProcessingLatency.reset();
+        mFiltered.set(0);
+        mDuplicates.set(0);
+        mVerificationFailures.set(0);
+        mDeletes.reset();
+        mDeleteFailures.set(0);
+        mLatency.reset();
+        mIntervalLatency.set(new LatencyTracker());
+    }
+}
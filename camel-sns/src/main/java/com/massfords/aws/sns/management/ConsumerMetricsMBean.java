@@ -0,0 +1,125 @@
+package com.massfords.aws.sns.management;
+
+/**
+ * Receives, deliveries and deletes made by the consumers of an endpoint,
+ * latencies are in millis.
+ */
+public interface ConsumerMetricsMBean {
+
+    /**
+     * @return receive calls made to SQS
+     */
+    long getReceiveCount();
+
+    long getReceiveFailureCount();
+
+    /**
+     * @return receive calls a second over the last minute
+     */
+    double getReceiveRate();
+
+    long getEmptyReceiveCount();
+
+    /**
+     * @return fraction of the receive calls that came back without any messages
+     */
+    double getEmptyReceiveRatio();
+
+    /**
+     * @return messages returned by the receive calls
+     */
+    long getMessagesReceivedCount();
+
+    /**
+     * @return messages received a second over the last minute
+     */
+    double getMessageRate();
+
+    double getReceiveLatencyMean();
+
+    double getReceiveLatency50thPercentile();
+
+    double getReceiveLatency95thPercentile();
+
+    double getReceiveLatency99thPercentile();
+
+    double getReceiveLatencyMax();
+
+    /**
+     * @return notifications sent to the route, a pack counts once for each message in it
+     */
+    long getDeliveredCount();
+
+    /**
+     * @return notifications the route failed on
+     */
+    long getProcessingFailureCount();
+
+    /**
+     * @return notifications being processed by the route
+     */
+    int getInFlight();
+
+    double getProcessingLatencyMean();
+
+    double getProcessingLatency50thPercentile();
+
+    double getProcessingLatency95thPercentile();
+
+    double getProcessingLatency99thPercentile();
+
+    double getProcessingLatencyMax();
+
+    /**
+     * @return notifications dropped because they didn't match the consumer's filter
+     */
+    long getFilteredCount();
+
+    /**
+     * @return notifications dropped because the idempotent repository had already seen them
+     */
+    long getDuplicateCount();
+
+    /**
+     * @return messages dropped because their signature didn't verify
+     */
+    long getVerificationFailureCount();
+
+    /**
+     * @return messages deleted from the queue, or handed to the acknowledger with asyncAck
+     */
+    long getDeleteCount();
+
+    long getDeleteFailureCount();
+
+    /**
+     * @return deletes a second over the last minute
+     */
+    double getDeleteRate();
+
+    /**
+     * @return millis it took to provision the topic, queue and subscription the last time, -1 if it hasn't been
+     */
+    long getProvisioningTime();
+
+    /**
+     * @return end to end latency of the stamped messages across all topics, see {@link LatencyTracker}
+     */
+    double getEndToEndLatency50thPercentile();
+
+    double getEndToEndLatency99thPercentile();
+
+    /**
+     * @return time the messages spent in SNS and SQS across all topics
+     */
+    double getQueueDwell50thPercentile();
+
+    double getQueueDwell99thPercentile();
+
+    /**
+     * @return the end to end and queue dwell latencies of each topic
+     */
+    String getLatencySummary();
+
+    void resetStatistics();
+}
@@ -0,0 +1,111 @@
+package com.massfords.aws.sns.management;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Base of the metrics kept for an endpoint's producers and consumers. The
+ * metrics live as long as the endpoint so the counts carry over when a route
+ * is restarted, they're registered as an MBean while at least one producer
+ * or consumer is using them.
+ *
+ * The MBeans are registered with the platform MBeanServer under
+ * com.massfords.aws.sns:context=&lt;camel context&gt;,type=&lt;producers or
+ * consumers&gt;,name=&lt;endpoint uri without the credentials&gt;. Camel's own
+ * JMX support in this version needs Spring so it isn't used.
+ */
+public abstract class EndpointMetrics {
+
+    private static Log sLog = LogFactory.getLog(EndpointMetrics.class);
+
+    public static final String DOMAIN = "com.massfords.aws.sns";
+
+    private final String mEndpointUri;
+    private final ObjectName mObjectName;
+    /** guarded by this */
+    private int mUsers;
+    private MBeanServer mServer;
+
+    protected EndpointMetrics(String aType, String aContextName, String aEndpointUri) {
+        mEndpointUri = aEndpointUri;
+        try {
+            mObjectName = new ObjectName(DOMAIN + ":context=" + ObjectName.quote(String.valueOf(aContextName))
+                    + ",type=" + aType + ",name=" + ObjectName.quote(aEndpointUri));
+        } catch (MalformedObjectNameException e) {
+            throw new IllegalArgumentException("can't create an MBean name for " + aEndpointUri, e);
+        }
+    }
+
+    /**
+     * @return uri of the endpoint without the credentials
+     */
+    public String getEndpointUri() {
+        return mEndpointUri;
+    }
+
+    public ObjectName getObjectName() {
+        return mObjectName;
+    }
+
+    /**
+     * Registers a producer or consumer of the endpoint, the MBean is
+     * registered with the first one. A failed registration is logged, the
+     * metrics are still kept. When another endpoint with the same uri already
+     * registered its MBean this one isn't registered.
+     *
+     * @param aServer server to register the MBean with, null to keep the metrics without registering them
+     */
+    public synchronized void acquire(MBeanServer aServer) {
+        if (mUsers++ > 0 || aServer == null)
+            return;
+        try {
+            aServer.registerMBean(this, mObjectName);
+            mServer = aServer;
+        } catch (InstanceAlreadyExistsException e) {
+            sLog.debug("MBean " + mObjectName + " is already registered by another endpoint with the same uri");
+        } catch (JMException e) {
+            sLog.warn("couldn't register MBean " + mObjectName, e);
+        } catch (SecurityException e) {
+            sLog.warn("not allowed to register MBean " + mObjectName, e);
+        }
+    }
+
+    /**
+     * Unregisters a producer or consumer of the endpoint, the MBean is unregistered with the last one.
+     */
+    public synchronized void release() {
+        if (mUsers == 0 || --mUsers > 0 || mServer == null)
+            return;
+        try {
+            mServer.unregisterMBean(mObjectName);
+        } catch (JMException e) {
+            sLog.debug("couldn't unregister MBean " + mObjectName + ": " + e);
+        }
+        mServer = null;
+    }
+
+    /**
+     * @return true while the MBean is registered
+     */
+    public synchronized boolean isRegistered() {
+        return mServer != null;
+    }
+
+    /**
+     * Starts all of the counts, rates and latencies over.
+     */
+    public abstract void resetStatistics();
+
+    /**
+     * @return microseconds as fractional millis
+     */
+    protected static double millis(double aMicros) {
+        return aMicros / 1000;
+    }
+}
@@ -0,0 +1,306 @@
+package com.massfords.aws.sns.management;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * JDK Flight Recorder events for the publishes, polls, parses and signature
+ * verifications, so a recording shows where the time went when the latency
+ * spikes. Each event has the endpoint's uri, the size of the message text and
+ * the duration, the poll and verify events also have the number of messages
+ * and the verdict.
+ *
+ * The component is built for Java 6 so the events are made through
+ * jdk.jfr.EventFactory by reflection, on a JVM without the JFR API (older
+ * than 8u262) they're never made and {@link #begin()} always returns null.
+ * Nothing is registered with JFR until a recording is started, and until
+ * then the cost of an event is the read of a volatile. The events are
+ * disabled by default and don't take stack traces, a recording has to turn
+ * them on by name, e.g. with com.massfords.aws.sns.Publish#enabled=true in
+ * its .jfc settings or Recording.enable("com.massfords.aws.sns.Publish").
+ *
+ * A failure of the reflection is logged once and turns the events off for
+ * the life of the JVM, it never reaches the caller.
+ */
+public class FlightEvent {
+
+    private static Log sLog = LogFactory.getLog(FlightEvent.class);
+
+    public static final String PREFIX = EndpointMetrics.DOMAIN + ".";
+
+    public static final FlightEvent PUBLISH = new FlightEvent("Publish", "SNS Publish",
+            "Publish of a message to an SNS topic", null, null);
+    public static final FlightEvent POLL = new FlightEvent("Poll", "SQS Poll",
+            "Receive of messages from a subscription's SQS queue", "messages", Integer.TYPE);
+    public static final FlightEvent PARSE = new FlightEvent("Parse", "SNS Notification Parse",
+            "Parse of the SNS notification in an SQS message", null, null);
+    public static final FlightEvent VERIFY = new FlightEvent("Verify", "SNS Signature Verification",
+            "Verification of an SNS notification's signature", "verified", Boolean.TYPE);
+
+    private static final List<FlightEvent> sEvents = Collections.unmodifiableList(Arrays.asList(PUBLISH, POLL,
+            PARSE, VERIFY));
+
+    /** null if the JFR API isn't there or the reflection failed */
+    private static volatile Api sApi = Api.load();
+    /** true while the flight recorder has a recording running */
+    private static volatile boolean sRecording;
+
+    static {
+        if (sApi != null) {
+            try {
+                sApi.listen();
+            } catch (Throwable t) {
+                disable(t);
+            }
+        }
+    }
+
+    private final String mName;
+    private final String mLabel;
+    private final String mDescription;
+    private final String mExtraName;
+    private final Class<?> mExtraType;
+    /** the jdk.jfr.EventFactory, made when the first recording is started */
+    private volatile Object mFactory;
+
+    private FlightEvent(String aName, String aLabel, String aDescription, String aExtraName, Class<?> aExtraType) {
+        mName = PREFIX + aName;
+        mLabel = aLabel;
+        mDescription = aDescription;
+        mExtraName = aExtraName;
+        mExtraType = aExtraType;
+    }
+
+    /**
+     * @return true if the JVM has the JFR API the events are made with
+     */
+    public static boolean isAvailable() {
+        return sApi != null;
+    }
+
+    public static List<FlightEvent> getEvents() {
+        return sEvents;
+    }
+
+    /**
+     * @return name of the event in the recordings
+     */
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Starts timing an event.
+     *
+     * @return the event to pass to commit, null if no recording wants it
+     */
+    public Object begin() {
+        if (!sRecording)
+            return null;
+        Object factory = mFactory;
+        Api api = sApi;
+        if (factory == null || api == null)
+            return null;
+        try {
+            Object event = api.mNewEvent.invoke(factory);
+            if (!((Boolean) api.mIsEnabled.invoke(event)).booleanValue())
+                return null;
+            api.mBegin.invoke(event);
+            return event;
+        } catch (Throwable t) {
+            disable(t);
+            return null;
+        }
+    }
+
+    /**
+     * Ends the event and commits it if it's over the recording's threshold,
+     * does nothing for a null event.
+     */
+    public void commit(Object aEvent, String aEndpointUri, long aSize) {
+        if (aEvent != null)
+            commit(aEvent, aEndpointUri, aSize, null);
+    }
+
+    public void commit(Object aEvent, String aEndpointUri, long aSize, int aMessages) {
+        if (aEvent != null)
+            commit(aEvent, aEndpointUri, aSize, Integer.valueOf(aMessages));
+    }
+
+    public void commit(Object aEvent, String aEndpointUri, long aSize, boolean aVerified) {
+        if (aEvent != null)
+            commit(aEvent, aEndpointUri, aSize, Boolean.valueOf(aVerified));
+    }
+
+    private void commit(Object aEvent, String aEndpointUri, long aSize, Object aExtra) {
+        Api api = sApi;
+        if (api == null)
+            return;
+        try {
+            api.mEnd.invoke(aEvent);
+            if (((Boolean) api.mShouldCommit.invoke(aEvent)).booleanValue()) {
+                api.mSet.invoke(aEvent, Integer.valueOf(0), aEndpointUri);
+                api.mSet.invoke(aEvent, Integer.valueOf(1), Long.valueOf(aSize));
+                if (aExtra != null)
+                    api.mSet.invoke(aEvent, Integer.valueOf(2), aExtra);
+                api.mCommit.invoke(aEvent);
+            }
+        } catch (Throwable t) {
+            disable(t);
+        }
+    }
+
+    private static void disable(Throwable aCause) {
+        if (sApi != null) {
+            sApi = null;
+            sRecording = false;
+            sLog.warn("couldn't use the flight recorder, its events are off", aCause);
+        }
+    }
+
+    /**
+     * Called by the flight recorder when a recording changes state, the
+     * events are made the first time one is running.
+     */
+    private static synchronized void recordingChanged() {
+        Api api = sApi;
+        if (api == null)
+            return;
+        try {
+            boolean running = api.isRecording();
+            if (running) {
+                for (FlightEvent event : sEvents) {
+                    if (event.mFactory == null)
+                        event.mFactory = api.createFactory(event);
+                }
+            }
+            sRecording = running;
+        } catch (Throwable t) {
+            disable(t);
+        }
+    }
+
+    /**
+     * The JFR classes and methods the events need, looked up once.
+     */
+    private static class Api {
+        private final Class<?> mFlightRecorder;
+        private final Class<?> mAnnotationElement;
+        private final Class<?> mValueDescriptor;
+        private final Class<?> mEventFactory;
+        private final Method mNewEvent;
+        private final Method mIsEnabled;
+        private final Method mShouldCommit;
+        private final Method mBegin;
+        private final Method mEnd;
+        private final Method mSet;
+        private final Method mCommit;
+
+        private Api() throws Exception {
+            mFlightRecorder = Class.forName("jdk.jfr.FlightRecorder");
+            mAnnotationElement = Class.forName("jdk.jfr.AnnotationElement");
+            mValueDescriptor = Class.forName("jdk.jfr.ValueDescriptor");
+            mEventFactory = Class.forName("jdk.jfr.EventFactory");
+            Class<?> event = Class.forName("jdk.jfr.Event");
+            mNewEvent = mEventFactory.getMethod("newEvent");
+            mIsEnabled = event.getMethod("isEnabled");
+            mShouldCommit = event.getMethod("shouldCommit");
+            mBegin = event.getMethod("begin");
+            mEnd = event.getMethod("end");
+            mSet = event.getMethod("set", Integer.TYPE, Object.class);
+            mCommit = event.getMethod("commit");
+        }
+
+        static Api load() {
+            try {
+                return new Api();
+            } catch (ClassNotFoundException e) {
+                sLog.debug("no flight recorder in this JVM, its events are off");
+            } catch (Throwable t) {
+                sLog.warn("couldn't use the flight recorder, its events are off", t);
+            }
+            return null;
+        }
+
+        /**
+         * Listens for recordings starting and stopping, without initializing
+         * the flight recorder if it isn't already.
+         */
+        void listen() throws Exception {
+            Class<?> listenerType = Class.forName("jdk.jfr.FlightRecorderListener");
+            Object listener = Proxy.newProxyInstance(FlightEvent.class.getClassLoader(),
+                    new Class<?>[] { listenerType }, new InvocationHandler() {
+                        public Object invoke(Object aProxy, Method aMethod, Object[] aArgs) {
+                            if (aMethod.getDeclaringClass() == Object.class) {
+                                if (aMethod.getName().equals("equals"))
+                                    return Boolean.valueOf(aProxy == aArgs[0]);
+                                if (aMethod.getName().equals("hashCode"))
+                                    return Integer.valueOf(System.identityHashCode(aProxy));
+                                return "FlightEvent listener";
+                            }
+                            recordingChanged();
+                            return null;
+                        }
+                    });
+            mFlightRecorder.getMethod("addListener", listenerType).invoke(null, listener);
+            // recordings started before the listener was added aren't reported to it
+            if (((Boolean) mFlightRecorder.getMethod("isInitialized").invoke(null)).booleanValue())
+                recordingChanged();
+        }
+
+        boolean isRecording() throws Exception {
+            if (!((Boolean) mFlightRecorder.getMethod("isInitialized").invoke(null)).booleanValue())
+                return false;
+            Object recorder = mFlightRecorder.getMethod("getFlightRecorder").invoke(null);
+            for (Object recording : (List<?>) mFlightRecorder.getMethod("getRecordings").invoke(recorder)) {
+                Object state = recording.getClass().getMethod("getState").invoke(recording);
+                if ("RUNNING".equals(String.valueOf(state)))
+                    return true;
+            }
+            return false;
+        }
+
+        Object createFactory(FlightEvent aEvent) throws Exception {
+            List<Object> annotations = new ArrayList<Object>();
+            annotations.add(annotation("Name", aEvent.mName));
+            annotations.add(annotation("Label", aEvent.mLabel));
+            annotations.add(annotation("Description", aEvent.mDescription));
+            annotations.add(annotation("Category", new String[] { "Camel", "SNS" }));
+            annotations.add(annotation("Enabled", Boolean.FALSE));
+            annotations.add(annotation("StackTrace", Boolean.FALSE));
+
+            List<Object> fields = new ArrayList<Object>();
+            fields.add(field(String.class, "endpoint", annotation("Label", "Endpoint")));
+            fields.add(field(Long.TYPE, "size", annotation("Label", "Message Size"), annotation("DataAmount",
+                    "BYTES")));
+            if (aEvent.mExtraName != null)
+                fields.add(field(aEvent.mExtraType, aEvent.mExtraName, annotation("Label", Character
+                        .toUpperCase(aEvent.mExtraName.charAt(0))
+                        + aEvent.mExtraName.substring(1))));
+
+            return mEventFactory.getMethod("create", List.class, List.class).invoke(null, annotations, fields);
+        }
+
+        @SuppressWarnings("unchecked")
+        private Object annotation(String aType, Object aValue) throws Exception {
+            Class<? extends Annotation> type = (Class<? extends Annotation>) Class.forName("jdk.jfr." + aType);
+            Constructor<?> constructor = mAnnotationElement.getConstructor(Class.class, Object.class);
+            return constructor.newInstance(type, aValue);
+        }
+
+        private Object field(Class<?> aType, String aName, Object... aAnnotations) throws Exception {
+            Constructor<?> constructor = mValueDescriptor.getConstructor(Class.class, String.class, List.class);
+            return constructor.newInstance(aType, aName, Arrays.asList(aAnnotations));
+        }
+    }
+}
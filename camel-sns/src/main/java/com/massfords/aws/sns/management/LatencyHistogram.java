@@ -0,0 +1,161 @@
+package com.massfords.aws.sns.management;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in microseconds with log-linear buckets: each power
+ * of two is split into 8 buckets so a percentile is off by at most 12.5%
+ * from any latency it's read from, from a microsecond up to days. Recording
+ * a latency increments one bucket of an AtomicLongArray along with the count
+ * and the sum, there's no lock and nothing is allocated.
+ *
+ * The percentiles are read from the buckets as they are at the time, a
+ * latency that's recorded while they're being read may or may not be
+ * included.
+ */
+public class LatencyHistogram {
+
+    /** buckets for each power of two */
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /** values below SUB_BUCKETS get a bucket of their own, the rest share one for each eighth of a power of two */
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * @param aStart System.nanoTime() at the start of what's being timed
+     */
+    public void recordSince(long aStart) {
+        record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - aStart));
+    }
+
+    /**
+     * @param aMicros latency in microseconds, negative values are recorded as 0
+     */
+    public void record(long aMicros) {
+        long value = Math.max(0, aMicros);
+        mBuckets.incrementAndGet(bucketOf(value));
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+        long max = mMax.get();
+        while (value > max && !mMax.compareAndSet(max, value)) {
+            max = mMax.get();
+        }
+    }
+
+    static int bucketOf(long aValue) {
+        if (aValue < SUB_BUCKETS)
+            return (int) aValue;
+        int exponent = 63 - Long.numberOfLeadingZeros(aValue);
+        int subBucket = (int) (aValue >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return smallest value that falls in the bucket
+     */
+    static long lowerBoundOf(int aBucket) {
+        if (aBucket < SUB_BUCKETS)
+            return aBucket;
+        int exponent = aBucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = aBucket % SUB_BUCKETS;
+        return (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    /**
+     * @return largest value that falls in the bucket
+     */
+    static long upperBoundOf(int aBucket) {
+        return aBucket == BUCKETS - 1 ? Long.MAX_VALUE : lowerBoundOf(aBucket + 1) - 1;
+    }
+
+    /**
+     * @param aPercentile between 0 and 1, e.g. 0.99
+     * @return microseconds that the given fraction of the latencies were at or under, 0 if nothing's recorded
+     */
+    public long getPercentile(double aPercentile) {
+        if (aPercentile < 0 || aPercentile > 1)
+            throw new IllegalArgumentException("percentile has to be between 0 and 1 but was " + aPercentile);
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = mBuckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(aPercentile * total));
+        long seen = 0;
+        int bucket = 0;
+        for (; bucket < BUCKETS - 1; bucket++) {
+            seen += counts[bucket];
+            if (seen >= rank)
+                break;
+        }
+        // the top of the bucket, but never more than the largest latency seen
+        return Math.min(upperBoundOf(bucket), getMax());
+    }
+
+    /**
+     * @return number of latencies recorded
+     */
+    public long getCount() {
+        return mCount.get();
+    }
+
+    /**
+     * @return mean latency in microseconds, 0 if nothing's recorded
+     */
+    public double getMean() {
+        long count = mCount.get();
+        return count == 0 ? 0 : mSum.get() / (double) count;
+    }
+
+    /**
+     * @return largest latency recorded in microseconds
+     */
+    public long getMax() {
+        return mMax.get();
+    }
+
+    /**
+     * Adds the latencies recorded by the other histogram to this one, e.g. to
+     * combine the histograms of several consumers or topics. The buckets are
+     * the same for every histogram so nothing is lost in the merge.
+     */
+    public void merge(LatencyHistogram aOther) {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            long bucket = aOther.mBuckets.get(i);
+            if (bucket > 0) {
+                mBuckets.addAndGet(i, bucket);
+                count += bucket;
+            }
+        }
+        mCount.addAndGet(count);
+        mSum.addAndGet(aOther.mSum.get());
+        long otherMax = aOther.getMax();
+        long max = mMax.get();
+        while (otherMax > max && !mMax.compareAndSet(max, otherMax)) {
+            max = mMax.get();
+        }
+    }
+
+    /**
+     * Empties the histogram. Latencies recorded while it's being reset may or may not be kept.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mSum.set(0);
+        mMax.set(0);
+    }
+}
@@ -0,0 +1,134 @@
+package com.massfords.aws.sns.management;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * End to end and queue dwell latencies by topic. End to end is from the
+ * producer's send time stamped on the message to the consumer handing it to
+ * the route, queue dwell is from the Timestamp SNS put on the notification
+ * to the consumer starting on the message, so the time the message spent in
+ * SNS and SQS. Both are in microseconds.
+ *
+ * Trackers merge the same way their histograms do, so the trackers of
+ * several endpoints can be added up to see a topic across all of its
+ * consumers.
+ */
+public class LatencyTracker {
+
+    private final ConcurrentMap<String, TopicLatency> mTopics = new ConcurrentHashMap<String, TopicLatency>();
+
+    public void recordEndToEnd(String aTopicArn, long aMicros) {
+        getTopic(aTopicArn).mEndToEnd.record(aMicros);
+    }
+
+    public void recordQueueDwell(String aTopicArn, long aMicros) {
+        getTopic(aTopicArn).mQueueDwell.record(aMicros);
+    }
+
+    private TopicLatency getTopic(String aTopicArn) {
+        String topicArn = aTopicArn == null ? "" : aTopicArn;
+        TopicLatency topic = mTopics.get(topicArn);
+        if (topic == null) {
+            TopicLatency created = new TopicLatency();
+            topic = mTopics.putIfAbsent(topicArn, created);
+            if (topic == null)
+                topic = created;
+        }
+        return topic;
+    }
+
+    /**
+     * @return arns of the topics latencies were recorded for
+     */
+    public Set<String> getTopics() {
+        return mTopics.keySet();
+    }
+
+    /**
+     * @return end to end latencies of the topic's messages, null if none were recorded
+     */
+    public LatencyHistogram getEndToEnd(String aTopicArn) {
+        TopicLatency topic = mTopics.get(aTopicArn);
+        return topic == null ? null : topic.mEndToEnd;
+    }
+
+    /**
+     * @return queue dwell latencies of the topic's messages, null if none were recorded
+     */
+    public LatencyHistogram getQueueDwell(String aTopicArn) {
+        TopicLatency topic = mTopics.get(aTopicArn);
+        return topic == null ? null : topic.mQueueDwell;
+    }
+
+    /**
+     * @return end to end latencies of all of the topics merged into a new histogram
+     */
+    public LatencyHistogram getEndToEnd() {
+        LatencyHistogram merged = new LatencyHistogram();
+        for (TopicLatency topic : mTopics.values()) {
+            merged.merge(topic.mEndToEnd);
+        }
+        return merged;
+    }
+
+    /**
+     * @return queue dwell latencies of all of the topics merged into a new histogram
+     */
+    public LatencyHistogram getQueueDwell() {
+        LatencyHistogram merged = new LatencyHistogram();
+        for (TopicLatency topic : mTopics.values()) {
+            merged.merge(topic.mQueueDwell);
+        }
+        return merged;
+    }
+
+    /**
+     * Adds the other tracker's latencies to this one's, topic by topic.
+     */
+    public void merge(LatencyTracker aOther) {
+        for (Map.Entry<String, TopicLatency> entry : aOther.mTopics.entrySet()) {
+            TopicLatency topic = getTopic(entry.getKey());
+            topic.mEndToEnd.merge(entry.getValue().mEndToEnd);
+            topic.mQueueDwell.merge(entry.getValue().mQueueDwell);
+        }
+    }
+
+    public boolean isEmpty() {
+        return mTopics.isEmpty();
+    }
+
+    public void reset() {
+        mTopics.clear();
+    }
+
+    /**
+     * @return a line for each topic with the count, median, 99th percentile and max in millis
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, TopicLatency> entry : new TreeMap<String, TopicLatency>(mTopics).entrySet()) {
+            if (sb.length() > 0)
+                sb.append('\n');
+            sb.append(entry.getKey()).append(": end-to-end ");
+            append(sb, entry.getValue().mEndToEnd);
+            sb.append(", queue dwell ");
+            append(sb, entry.getValue().mQueueDwell);
+        }
+        return sb.toString();
+    }
+
+    private static void append(StringBuilder aOut, LatencyHistogram aHistogram) {
+        aOut.append(String.format("n=%d p50=%.1fms p99=%.1fms max=%.1fms", aHistogram.getCount(), aHistogram
+                .getPercentile(0.5) / 1000.0, aHistogram.getPercentile(0.99) / 1000.0, aHistogram.getMax() / 1000.0));
+    }
+
+    private static class TopicLatency {
+        private final LatencyHistogram mEndToEnd = new LatencyHistogram();
+        private final LatencyHistogram mQueueDwell = new LatencyHistogram();
+    }
+}
@@ -0,0 +1,107 @@
+package com.massfords.aws.sns.management;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts events and keeps a one minute exponentially weighted moving average
+ * of their rate, the same as the load average in top. Marking an event is an
+ * add on an AtomicLong, the average is brought up to date every five seconds
+ * by whichever thread gets to it first, so there's no lock or background
+ * thread.
+ */
+public class Meter {
+
+    private static final long TICK_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+    private static final double ALPHA = 1 - Math.exp(-5 / 60.0);
+    /** after this many idle ticks the average has decayed to nothing so the rest are skipped */
+    private static final int MAX_TICKS = 120;
+
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mUncounted = new AtomicLong();
+    private final AtomicLong mLastTick;
+    private volatile long mStart;
+    /** events a second, only written by the thread that won the tick */
+    private volatile double mRate;
+    private volatile boolean mInitialized;
+
+    public Meter() {
+        mStart = nanoTime();
+        mLastTick = new AtomicLong(mStart);
+    }
+
+    public void mark() {
+        mark(1);
+    }
+
+    public void mark(long aCount) {
+        tickIfNecessary();
+        mCount.addAndGet(aCount);
+        mUncounted.addAndGet(aCount);
+    }
+
+    private void tickIfNecessary() {
+        long lastTick = mLastTick.get();
+        long now = nanoTime();
+        long age = now - lastTick;
+        if (age >= TICK_INTERVAL && mLastTick.compareAndSet(lastTick, now - age % TICK_INTERVAL)) {
+            long ticks = Math.min(age / TICK_INTERVAL, MAX_TICKS);
+            for (long i = 0; i < ticks; i++) {
+                tick();
+            }
+        }
+    }
+
+    private void tick() {
+        double instantRate = mUncounted.getAndSet(0) / (double) TimeUnit.NANOSECONDS.toSeconds(TICK_INTERVAL);
+        if (mInitialized) {
+            mRate += ALPHA * (instantRate - mRate);
+        } else {
+            mRate = instantRate;
+            mInitialized = true;
+        }
+    }
+
+    /**
+     * @return number of events marked
+     */
+    public long getCount() {
+        return mCount.get();
+    }
+
+    /**
+     * @return events a second averaged over the last minute
+     */
+    public double getOneMinuteRate() {
+        tickIfNecessary();
+        return mRate;
+    }
+
+    /**
+     * @return events a second since the meter was created or reset
+     */
+    public double getMeanRate() {
+        long elapsed = nanoTime() - mStart;
+        return elapsed <= 0 ? 0 : getCount() / (elapsed / 1e9);
+    }
+
+    /**
+     * Starts the count and the rates over. Events marked while the meter is
+     * being reset may or may not be counted.
+     */
+    public void reset() {
+        mCount.set(0);
+        mUncounted.set(0);
+        mRate = 0;
+        mInitialized = false;
+        mStart = nanoTime();
+        mLastTick.set(mStart);
+    }
+
+    /**
+     * Overridden by the tests to move the clock.
+     */
+    protected long nanoTime() {
+        return System.nanoTime();
+    }
+}
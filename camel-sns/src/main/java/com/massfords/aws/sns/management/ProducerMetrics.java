@@ -0,0 +1,93 @@
+package com.massfords.aws.sns.management;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts and times the publishes of an endpoint's producers.
+ */
+public class ProducerMetrics extends EndpointMetrics implements ProducerMetricsMBean {
+
+    private final Meter mPublishes = new Meter();
+    private final AtomicLong mFailures = new AtomicLong();
+    private final LatencyHistogram mLatency = new LatencyHistogram();
+    private final AtomicInteger mInFlight = new AtomicInteger();
+
+    public ProducerMetrics(String aContextName, String aEndpointUri) {
+        super("producers", aContextName, aEndpointUri);
+    }
+
+    /**
+     * @return start time to pass to {@link #publishCompleted(long, boolean)}
+     */
+    public long publishStarted() {
+        mInFlight.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the outcome of a publish, only the latency of a successful one is recorded.
+     */
+    public void publishCompleted(long aStart, boolean aSucceeded) {
+        mInFlight.decrementAndGet();
+        if (aSucceeded) {
+            mLatency.recordSince(aStart);
+            mPublishes.mark();
+        } else {
+            mFailures.incrementAndGet();
+        }
+    }
+
+    public long getPublishCount() {
+        return mPublishes.getCount();
+    }
+
+    public long getPublishFailureCount() {
+        return mFailures.get();
+    }
+
+    public double getPublishRate() {
+        return mPublishes.getOneMinuteRate();
+    }
+
+    public double getPublishMeanRate() {
+        return mPublishes.getMeanRate();
+    }
+
+    public int getInFlight() {
+        return mInFlight.get();
+    }
+
+    public double getPublishLatencyMean() {
+        return millis(mLatency.getMean());
+    }
+
+    public double getPublishLatency50thPercentile() {
+        return millis(mLatency.getPercentile(0.5));
+    }
+
+    public double getPublishLatency95thPercentile() {
+        return millis(mLatency.getPercentile(0.95));
+    }
+
+    public double getPublishLatency99thPercentile() {
+        return millis(mLatency.getPercentile(0.99));
+    }
+
+    public double getPublishLatencyMax() {
+        return millis(mLatency.getMax());
+    }
+
+    /**
+     * @return latencies of the successful publishes in microseconds
+     */
+    public LatencyHistogram getPublishLatency() {
+        return mLatency;
+    }
+
+    public void resetStatistics() {
+        mPublishes.reset();
+        mFailures.set(0);
+        mLatency.reset();
+    }
+}
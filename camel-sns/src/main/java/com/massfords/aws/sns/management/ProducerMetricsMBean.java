@@ -0,0 +1,39 @@
+package com.massfords.aws.sns.management;
+
+/**
+ * Publishes made by the producers of an endpoint. A pack of messages counts
+ * as a single publish, latencies are in millis.
+ */
+public interface ProducerMetricsMBean {
+
+    long getPublishCount();
+
+    long getPublishFailureCount();
+
+    /**
+     * @return publishes a second over the last minute
+     */
+    double getPublishRate();
+
+    /**
+     * @return publishes a second since the metrics were created or reset
+     */
+    double getPublishMeanRate();
+
+    /**
+     * @return publish calls waiting on SNS
+     */
+    int getInFlight();
+
+    double getPublishLatencyMean();
+
+    double getPublishLatency50thPercentile();
+
+    double getPublishLatency95thPercentile();
+
+    double getPublishLatency99thPercentile();
+
+    double getPublishLatencyMax();
+
+    void resetStatistics();
+}
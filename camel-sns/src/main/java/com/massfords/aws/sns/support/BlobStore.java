@@ -0,0 +1,37 @@
+package com.massfords.aws.sns.support;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Storage for bodies too big to publish. The producer puts the body in the
+ * store and publishes a reference to it, the consumer reads the body back
+ * from the store with the reference's key. The producer and consumer have to
+ * share the store, e.g. a directory on a shared file system.
+ */
+public interface BlobStore {
+
+    /**
+     * @param aContent bytes from the position to the limit are stored, the buffer's position is left alone
+     * @return key the content can be read back with
+     */
+    String put(ByteBuffer aContent) throws IOException;
+
+    /**
+     * @param aContent stream that's read to the end but not closed
+     * @return key the content can be read back with
+     */
+    String put(InputStream aContent) throws IOException;
+
+    /**
+     * @return stream over the content, the caller closes it
+     * @throws java.io.FileNotFoundException if there's nothing stored under the key
+     */
+    InputStream get(String aKey) throws IOException;
+
+    /**
+     * Removes the content, a key that isn't there is ignored.
+     */
+    void delete(String aKey) throws IOException;
+}
@@ -0,0 +1,240 @@
+package com.massfords.aws.sns.support;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.PublicKey;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.camel.Service;
+import org.apache.camel.util.concurrent.ExecutorServiceHelper;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Keeps the keys from the SNS signing certificates in memory, keyed by the
+ * SigningCertURL of the notifications they verify.
+ *
+ * Certificates can be preloaded from the classpath or the filesystem so the
+ * first message doesn't wait on a download and hosts without outbound access
+ * can still verify. A preloaded certificate is matched to a notification by
+ * the file name at the end of its SigningCertURL. Certificates that had to be
+ * downloaded are downloaded again in the background every refresh interval,
+ * consumers keep using the cached key in the meantime.
+ *
+ * Only certificates served by amazonaws.com are downloaded, notifications
+ * pointing anywhere else fail verification.
+ *
+ * A provider shared through a #ref is started and stopped by every consumer
+ * that verifies with it, the starts are counted and the refresh only stops
+ * when the last of them is stopped.
+ */
+public class CachingCertificateProvider implements CertificateProvider, Service {
+
+    private static final Log sLog = LogFactory.getLog(CachingCertificateProvider.class);
+
+    /** certificate used for notifications that don't have a SigningCertURL */
+    public static final String DEFAULT_CERT_URL = "http://sns.us-east-1.amazonaws.com/SimpleNotificationService.pem";
+    private static final int FETCH_TIMEOUT = 10000;
+
+    private final String mLocations;
+    private final long mRefreshInterval;
+    /** keys by SigningCertURL */
+    private final ConcurrentMap<String, PublicKey> mKeys = new ConcurrentHashMap<String, PublicKey>();
+    /** preloaded keys by certificate file name */
+    private final ConcurrentMap<String, PublicKey> mPreloaded = new ConcurrentHashMap<String, PublicKey>();
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mRefreshes = new AtomicLong();
+    private ScheduledExecutorService mScheduler;
+    /** starts not yet matched by a stop */
+    private int mStarts;
+
+    /**
+     * @param aLocations comma separated certificates to preload, each one is
+     *            either classpath:path or a file path, may be null
+     * @param aRefreshInterval millis between downloading the certificates
+     *            again, 0 to keep them for good
+     */
+    public CachingCertificateProvider(String aLocations, long aRefreshInterval) {
+        mLocations = aLocations;
+        mRefreshInterval = aRefreshInterval;
+    }
+
+    public synchronized void start() throws Exception {
+        if (mScheduler != null) {
+            mStarts++;
+            return;
+        }
+        preload();
+        mScheduler = ExecutorServiceHelper.newScheduledThreadPool(1, "SNS certificate refresh", true);
+        if (!mPreloaded.containsKey(fileName(DEFAULT_CERT_URL))) {
+            // warm the cache so the first poll doesn't wait on the download
+            mScheduler.execute(new Runnable() {
+                public void run() {
+                    try {
+                        // not counted as a miss, no notification asked for it
+                        mKeys.putIfAbsent(DEFAULT_CERT_URL, download(DEFAULT_CERT_URL));
+                    } catch (Exception e) {
+                        sLog.warn("unable to download the default SNS certificate " + DEFAULT_CERT_URL, e);
+                    }
+                }
+            });
+        }
+        if (mRefreshInterval > 0) {
+            mScheduler.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    refresh();
+                }
+            }, mRefreshInterval, mRefreshInterval, TimeUnit.MILLISECONDS);
+        }
+        mStarts = 1;
+    }
+
+    public synchronized void stop() throws Exception {
+        if (mScheduler == null || --mStarts > 0)
+            return;
+        mScheduler.shutdownNow();
+        mScheduler = null;
+    }
+
+    /**
+     * @return true until the last of the starts has been stopped
+     */
+    public synchronized boolean isStarted() {
+        return mScheduler != null;
+    }
+
+    public PublicKey getPublicKey(String aSigningCertURL) throws Exception {
+        String url = aSigningCertURL == null || aSigningCertURL.length() == 0 ? DEFAULT_CERT_URL : aSigningCertURL;
+        PublicKey key = mKeys.get(url);
+        if (key != null) {
+            mHits.incrementAndGet();
+            return key;
+        }
+
+        key = mPreloaded.get(fileName(url));
+        if (key != null) {
+            mHits.incrementAndGet();
+            mKeys.putIfAbsent(url, key);
+            return key;
+        }
+
+        mMisses.incrementAndGet();
+        if (!isTrusted(url)) {
+            sLog.warn("not downloading certificate from untrusted location " + url);
+            return null;
+        }
+        key = download(url);
+        PublicKey existing = mKeys.putIfAbsent(url, key);
+        return existing != null ? existing : key;
+    }
+
+    /**
+     * Downloads each of the certificates that weren't preloaded again, a
+     * failed download leaves the cached key in place.
+     */
+    protected void refresh() {
+        for (String url : mKeys.keySet()) {
+            if (mPreloaded.containsKey(fileName(url)))
+                continue;
+            try {
+                mKeys.put(url, download(url));
+                mRefreshes.incrementAndGet();
+            } catch (Exception e) {
+                sLog.warn("unable to refresh certificate " + url + ", keeping the cached one", e);
+            }
+        }
+    }
+
+    private void preload() throws Exception {
+        if (mLocations == null)
+            return;
+        for (String location : mLocations.split(",")) {
+            location = location.trim();
+            if (location.length() == 0)
+                continue;
+            InputStream in;
+            if (location.startsWith("classpath:")) {
+                String path = location.substring("classpath:".length());
+                in = getClass().getClassLoader().getResourceAsStream(path.startsWith("/") ? path.substring(1) : path);
+                if (in == null)
+                    throw new IOException("certificate not found on the classpath: " + path);
+            } else {
+                in = new FileInputStream(new File(location));
+            }
+            try {
+                mPreloaded.put(fileName(location), readKey(in));
+                sLog.debug("preloaded certificate " + location);
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+        }
+    }
+
+    /**
+     * @return true if the certificate is served by Amazon
+     */
+    protected boolean isTrusted(String aUrl) {
+        try {
+            URL url = new URL(aUrl);
+            String host = url.getHost().toLowerCase();
+            return ("https".equals(url.getProtocol()) || DEFAULT_CERT_URL.equals(aUrl))
+                    && host.endsWith(".amazonaws.com");
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    protected PublicKey download(String aUrl) throws Exception {
+        sLog.debug("downloading certificate " + aUrl);
+        URLConnection connection = new URL(aUrl).openConnection();
+        connection.setConnectTimeout(FETCH_TIMEOUT);
+        connection.setReadTimeout(FETCH_TIMEOUT);
+        InputStream in = connection.getInputStream();
+        try {
+            return readKey(in);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    protected static PublicKey readKey(InputStream aIn) throws Exception {
+        Certificate cert = CertificateFactory.getInstance("X.509").generateCertificate(aIn);
+        return cert.getPublicKey();
+    }
+
+    private static String fileName(String aLocation) {
+        int slash = Math.max(aLocation.lastIndexOf('/'), Math.max(aLocation.lastIndexOf('\\'),
+                aLocation.lastIndexOf(':')));
+        return aLocation.substring(slash + 1);
+    }
+
+    /**
+     * @return lookups answered from the cache or the preloaded certificates
+     */
+    public long getHits() {
+        return mHits.get();
+    }
+
+    /**
+     * @return lookups that had to download the certificate
+     */
+    public long getMisses() {
+        return mMisses.get();
+    }
+
+    public long getRefreshes() {
+        return mRefreshes.get();
+    }
+}
@@ -0,0 +1,16 @@
+package com.massfords.aws.sns.support;
+
+import java.security.PublicKey;
+
+/**
+ * Source of the keys SNS notifications are signed with.
+ */
+public interface CertificateProvider {
+
+    /**
+     * @param aSigningCertURL the SigningCertURL from the notification, empty if
+     *            it doesn't have one
+     * @return key from the certificate or null if the certificate isn't trusted
+     */
+    PublicKey getPublicKey(String aSigningCertURL) throws Exception;
+}
@@ -0,0 +1,29 @@
+package com.massfords.aws.sns.support;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Compression the producer applies to message bodies, see
+ * {@link CompressionCodecs} for the codecs that are available. The codec's
+ * name is written in the message's marker so the consumer knows how to
+ * decompress it, so it has to be the same on both sides.
+ */
+public interface CompressionCodec {
+
+    /**
+     * @return name used in the marker and the compression option, lower case letters and digits
+     */
+    String getName();
+
+    /**
+     * @return stream that compresses what's written to it into the given stream
+     */
+    OutputStream compress(OutputStream aOut) throws IOException;
+
+    /**
+     * @return stream that decompresses what's read from the given stream
+     */
+    InputStream decompress(InputStream aIn) throws IOException;
+}
@@ -0,0 +1,124 @@
+package com.massfords.aws.sns.support;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Codecs the consumer can decompress messages with, looked up by the name in
+ * the message's marker. gzip and deflate are always there, other codecs are
+ * registered by the endpoint that names them in its compression option or
+ * directly with {@link #register(CompressionCodec)}.
+ */
+public class CompressionCodecs {
+
+    /** gzip format at the default level */
+    public static final CompressionCodec GZIP = new CompressionCodec() {
+        public String getName() {
+            return "gzip";
+        }
+
+        public OutputStream compress(OutputStream aOut) throws IOException {
+            return new GZIPOutputStream(aOut, 4096);
+        }
+
+        public InputStream decompress(InputStream aIn) throws IOException {
+            return new GZIPInputStream(aIn, 4096);
+        }
+    };
+
+    /** zlib format at the fastest level, less CPU than gzip for a slightly bigger message */
+    public static final CompressionCodec DEFLATE = new DeflateCodec("deflate", Deflater.BEST_SPEED);
+
+    private static final ConcurrentMap<String, CompressionCodec> sCodecs = new ConcurrentHashMap<String, CompressionCodec>();
+    static {
+        register(GZIP);
+        register(DEFLATE);
+    }
+
+    private CompressionCodecs() {
+    }
+
+    /**
+     * @return codec with the name, null if there isn't one
+     */
+    public static CompressionCodec get(String aName) {
+        return sCodecs.get(aName);
+    }
+
+    /**
+     * Makes the codec available to consumers under its name, replacing any
+     * codec that was registered with the same name.
+     */
+    public static void register(CompressionCodec aCodec) {
+        String name = aCodec.getName();
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!(c >= 'a' && c <= 'z') && !(c >= '0' && c <= '9'))
+                throw new IllegalArgumentException("compression codec names can only have lower case letters and digits: "
+                        + name);
+        }
+        if (PayloadCodec.BASE64.equals(name))
+            throw new IllegalArgumentException(name + " is reserved for uncompressed binary bodies");
+        sCodecs.put(name, aCodec);
+    }
+
+    /**
+     * zlib format at a given level. The deflater and inflater hold native
+     * memory so they're ended when their stream is closed rather than left for
+     * the finalizer.
+     */
+    public static class DeflateCodec implements CompressionCodec {
+
+        private final String mName;
+        private final int mLevel;
+
+        /**
+         * @param aLevel 1 to 9, see {@link Deflater}
+         */
+        public DeflateCodec(String aName, int aLevel) {
+            mName = aName;
+            mLevel = aLevel;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public OutputStream compress(OutputStream aOut) throws IOException {
+            final Deflater deflater = new Deflater(mLevel);
+            return new DeflaterOutputStream(aOut, deflater, 4096) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        deflater.end();
+                    }
+                }
+            };
+        }
+
+        public InputStream decompress(InputStream aIn) throws IOException {
+            final Inflater inflater = new Inflater();
+            return new InflaterInputStream(aIn, inflater, 4096) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        inflater.end();
+                    }
+                }
+            };
+        }
+    }
+}
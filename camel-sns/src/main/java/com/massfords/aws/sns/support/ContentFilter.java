@@ -0,0 +1,203 @@
+package com.massfords.aws.sns.support;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Precompiled predicate on an XML message body, checked with a streaming scan
+ * instead of building a DOM for an XPath expression. The scan stops as soon as
+ * the outcome is known, for <code>//Priority = 'Rush'</code> that's the first
+ * Priority element whose text is Rush.
+ *
+ * Only a small subset of XPath is supported:
+ * <pre>
+ * //Priority = 'Rush'       any Priority element with the text Rush
+ * /Order/Priority = 'Rush'  Priority elements that are children of the root Order element
+ * //Items/Item              any Item element that's a child of an Items element
+ * //Items/*                 any child element of an Items element, * matches any name
+ * </pre>
+ * Steps are matched against the local name of the elements, a namespace
+ * prefix in a step is ignored. Text is compared as is, whitespace included,
+ * the same as the string value comparison in XPath. Bodies that aren't well
+ * formed XML don't match.
+ */
+public class ContentFilter {
+
+    private static Log sLog = LogFactory.getLog(ContentFilter.class);
+
+    /** factories aren't guaranteed to be thread safe so each thread gets its own */
+    private static final ThreadLocal<XMLInputFactory> sFactory = new ThreadLocal<XMLInputFactory>() {
+        @Override
+        protected XMLInputFactory initialValue() {
+            XMLInputFactory factory = XMLInputFactory.newInstance();
+            factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+            factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+            return factory;
+        }
+    };
+
+    private final String mExpression;
+    /** true if the path starts with // and can match at any depth */
+    private final boolean mAnywhere;
+    private final String[] mSteps;
+    /** text the element has to have, null to only check that it exists */
+    private final String mValue;
+
+    /**
+     * @throws IllegalArgumentException if the expression isn't in the supported subset
+     */
+    public ContentFilter(String aExpression) {
+        mExpression = aExpression;
+        String expression = aExpression.trim();
+        String path = expression;
+        String value = null;
+        int equals = expression.indexOf('=');
+        if (equals >= 0) {
+            path = expression.substring(0, equals).trim();
+            value = parseLiteral(expression.substring(equals + 1).trim());
+        }
+        if (path.startsWith("//")) {
+            mAnywhere = true;
+            path = path.substring(2);
+        } else if (path.startsWith("/")) {
+            mAnywhere = false;
+            path = path.substring(1);
+        } else {
+            throw invalid("the path has to start with / or //");
+        }
+        List<String> steps = new ArrayList<String>();
+        for (String step : path.split("/", -1)) {
+            step = step.trim();
+            if (!isName(step) && !"*".equals(step))
+                throw invalid("only element names and * are supported as steps");
+            steps.add(step.substring(step.indexOf(':') + 1));
+        }
+        mSteps = steps.toArray(new String[steps.size()]);
+        mValue = value;
+    }
+
+    private static boolean isName(String aStep) {
+        if (aStep.length() == 0)
+            return false;
+        for (int i = 0; i < aStep.length(); i++) {
+            char c = aStep.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '_' && c != '-' && c != '.' && c != ':')
+                return false;
+        }
+        return true;
+    }
+
+    private String parseLiteral(String aLiteral) {
+        if (aLiteral.length() < 2)
+            throw invalid("expected a quoted value after =");
+        char quote = aLiteral.charAt(0);
+        if ((quote != '\'' && quote != '"') || aLiteral.charAt(aLiteral.length() - 1) != quote
+                || aLiteral.indexOf(quote, 1) != aLiteral.length() - 1)
+            throw invalid("expected a quoted value after =");
+        return aLiteral.substring(1, aLiteral.length() - 1);
+    }
+
+    private IllegalArgumentException invalid(String aReason) {
+        return new IllegalArgumentException("unsupported content filter " + mExpression + ": " + aReason);
+    }
+
+    /**
+     * @return true if the body has an element on the path with the expected text
+     */
+    public boolean matches(String aXml) {
+        if (aXml == null || aXml.length() == 0)
+            return false;
+        // element names can't be escaped so a body without them can't match and isn't worth parsing
+        for (String step : mSteps) {
+            if (!"*".equals(step) && aXml.indexOf(step) < 0)
+                return false;
+        }
+        try {
+            XMLStreamReader reader = sFactory.get().createXMLStreamReader(new StringReader(aXml));
+            try {
+                return scan(reader);
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            sLog.debug("body isn't well formed XML, not matching " + mExpression, e);
+            return false;
+        }
+    }
+
+    private boolean scan(XMLStreamReader aReader) throws XMLStreamException {
+        String[] stack = new String[16];
+        int depth = 0;
+        // text of the matching element we're in, null if we aren't in one
+        StringBuilder text = null;
+        int textDepth = 0;
+
+        while (aReader.hasNext()) {
+            switch (aReader.next()) {
+            case XMLStreamReader.START_ELEMENT:
+                if (depth == stack.length) {
+                    String[] grown = new String[depth * 2];
+                    System.arraycopy(stack, 0, grown, 0, depth);
+                    stack = grown;
+                }
+                stack[depth++] = aReader.getLocalName();
+                if (!mAnywhere && depth == 1 && !stepMatches(0, stack[0]))
+                    return false;
+                if (text == null && pathMatches(stack, depth)) {
+                    if (mValue == null)
+                        return true;
+                    text = new StringBuilder(mValue.length());
+                    textDepth = depth;
+                }
+                break;
+            case XMLStreamReader.CHARACTERS:
+            case XMLStreamReader.CDATA:
+            case XMLStreamReader.SPACE:
+                if (text != null && text.length() <= mValue.length())
+                    text.append(aReader.getTextCharacters(), aReader.getTextStart(), aReader.getTextLength());
+                break;
+            case XMLStreamReader.END_ELEMENT:
+                if (text != null && depth == textDepth) {
+                    if (text.length() == mValue.length() && mValue.contentEquals(text))
+                        return true;
+                    text = null;
+                }
+                depth--;
+                break;
+            default:
+                break;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the element at the top of the stack is on the path
+     */
+    private boolean pathMatches(String[] aStack, int aDepth) {
+        if (mAnywhere ? aDepth < mSteps.length : aDepth != mSteps.length)
+            return false;
+        int offset = aDepth - mSteps.length;
+        for (int i = 0; i < mSteps.length; i++) {
+            if (!stepMatches(i, aStack[offset + i]))
+                return false;
+        }
+        return true;
+    }
+
+    private boolean stepMatches(int aStep, String aName) {
+        return "*".equals(mSteps[aStep]) || mSteps[aStep].equals(aName);
+    }
+
+    public String getExpression() {
+        return mExpression;
+    }
+}
@@ -0,0 +1,120 @@
+package com.massfords.aws.sns.support;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.UUID;
+
+/**
+ * Blob store that keeps each blob in a file of its own in a directory. The
+ * content is moved with channels, a stream is transferred into the file and
+ * read back out of it without being held in memory. A blob is written to a
+ * temporary file that's renamed once it's complete so a reader never sees a
+ * partial blob.
+ *
+ * The keys are random UUIDs and any other key is rejected, the key comes from
+ * the message so it mustn't be able to name a file outside of the directory.
+ */
+public class FileBlobStore implements BlobStore {
+
+    /** most bytes transferred from a stream in one call */
+    private static final long TRANSFER_SIZE = 64 * 1024;
+
+    private final File mDirectory;
+
+    public FileBlobStore(File aDirectory) {
+        mDirectory = aDirectory;
+    }
+
+    public String put(ByteBuffer aContent) throws IOException {
+        ByteBuffer content = aContent.duplicate();
+        String key = createKey();
+        File temp = getTempFile(key);
+        FileChannel channel = new FileOutputStream(temp).getChannel();
+        try {
+            while (content.hasRemaining()) {
+                channel.write(content);
+            }
+        } catch (IOException e) {
+            channel.close();
+            temp.delete();
+            throw e;
+        }
+        channel.close();
+        commit(temp, key);
+        return key;
+    }
+
+    public String put(InputStream aContent) throws IOException {
+        ReadableByteChannel source = Channels.newChannel(aContent);
+        String key = createKey();
+        File temp = getTempFile(key);
+        FileChannel channel = new FileOutputStream(temp).getChannel();
+        try {
+            long position = 0;
+            long transferred;
+            // 0 once the stream is at its end
+            while ((transferred = channel.transferFrom(source, position, TRANSFER_SIZE)) > 0) {
+                position += transferred;
+            }
+        } catch (IOException e) {
+            channel.close();
+            temp.delete();
+            throw e;
+        }
+        channel.close();
+        commit(temp, key);
+        return key;
+    }
+
+    public InputStream get(String aKey) throws IOException {
+        return Channels.newInputStream(new FileInputStream(getFile(aKey)).getChannel());
+    }
+
+    public void delete(String aKey) throws IOException {
+        File file = getFile(aKey);
+        if (!file.delete() && file.exists())
+            throw new IOException("couldn't delete blob " + file);
+    }
+
+    private String createKey() throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs() && !mDirectory.isDirectory())
+            throw new IOException("couldn't create blob directory " + mDirectory);
+        return UUID.randomUUID().toString();
+    }
+
+    private File getTempFile(String aKey) {
+        return new File(mDirectory, aKey + ".tmp");
+    }
+
+    private void commit(File aTemp, String aKey) throws IOException {
+        if (!aTemp.renameTo(getFile(aKey))) {
+            aTemp.delete();
+            throw new IOException("couldn't rename " + aTemp + " to its key " + aKey);
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the key isn't one this store could have created
+     */
+    private File getFile(String aKey) {
+        if (aKey == null || aKey.length() != 36)
+            throw new IllegalArgumentException("invalid blob key " + aKey);
+        for (int i = 0; i < aKey.length(); i++) {
+            char c = aKey.charAt(i);
+            if (!(c >= '0' && c <= '9') && !(c >= 'a' && c <= 'f') && c != '-')
+                throw new IllegalArgumentException("invalid blob key " + aKey);
+        }
+        return new File(mDirectory, aKey);
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+}
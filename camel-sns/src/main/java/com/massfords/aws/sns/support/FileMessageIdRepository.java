@@ -0,0 +1,287 @@
+package com.massfords.aws.sns.support;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import org.apache.camel.RuntimeCamelException;
+import org.apache.camel.Service;
+import org.apache.camel.spi.IdempotentRepository;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Store of the message ids that were already processed that survives a
+ * restart. The ids are hashed to 64 bits and written to a fixed size ring in
+ * a memory mapped file, once the ring is full the oldest id is overwritten.
+ * The heap only holds an open addressing index of the ring's slots (an int per
+ * slot, twice over) so millions of ids can be tracked without the strings or
+ * their boxed hashes ever being held in memory.
+ *
+ * File layout:
+ * <pre>
+ *   header: magic (int), capacity (int), next slot (int), reserved (int)
+ *   slot:   hash (long), millis added (long) - a time of 0 marks an empty slot
+ * </pre>
+ *
+ * The mapped pages are written back by the OS so the file survives the
+ * process going down, {@link #stop()} forces them to disk.
+ */
+public class FileMessageIdRepository implements IdempotentRepository<String>, Service {
+
+    private static final Log sLog = LogFactory.getLog(FileMessageIdRepository.class);
+
+    private static final int MAGIC = 0x534e5349;
+    private static final int HEADER_SIZE = 16;
+    private static final int SLOT_SIZE = 16;
+    private static final int NEXT_SLOT_OFFSET = 8;
+    /** largest ring that fits in a single mapping */
+    public static final int MAX_CAPACITY = (Integer.MAX_VALUE - HEADER_SIZE) / SLOT_SIZE;
+
+    private final File mFile;
+    private final int mCapacity;
+    private final long mTtl;
+
+    private RandomAccessFile mRaf;
+    private MappedByteBuffer mBuffer;
+    /** open addressing table of ring slots, -1 marks an empty entry */
+    private int[] mIndex;
+    private int mMask;
+    private int mNextSlot;
+    private int mSize;
+
+    /**
+     * @param aFile file that holds the ring, it's created if it doesn't exist
+     * @param aCapacity number of ids to remember
+     * @param aTtl millis an id is remembered for, 0 to keep ids until they're overwritten
+     */
+    public FileMessageIdRepository(File aFile, int aCapacity, long aTtl) {
+        if (aCapacity < 1 || aCapacity > MAX_CAPACITY)
+            throw new IllegalArgumentException("capacity must be between 1 and " + MAX_CAPACITY + " but was "
+                    + aCapacity);
+        mFile = aFile;
+        mCapacity = aCapacity;
+        mTtl = aTtl;
+    }
+
+    public synchronized void start() throws IOException {
+        if (mBuffer != null)
+            return;
+        long fileSize = HEADER_SIZE + (long) mCapacity * SLOT_SIZE;
+        boolean existing = mFile.exists() && mFile.length() == fileSize;
+
+        mRaf = new RandomAccessFile(mFile, "rw");
+        mRaf.setLength(fileSize);
+        mBuffer = mRaf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+
+        int tableSize = Integer.highestOneBit(mCapacity) << 2;
+        mIndex = new int[tableSize];
+        mMask = tableSize - 1;
+        Arrays.fill(mIndex, -1);
+        mSize = 0;
+
+        if (existing && mBuffer.getInt(0) == MAGIC && mBuffer.getInt(4) == mCapacity) {
+            load();
+        } else {
+            if (mFile.length() > 0 && existing)
+                sLog.warn("ignoring message id file with a different layout: " + mFile);
+            for (int i = 0; i < fileSize; i += 8) {
+                mBuffer.putLong(i, 0);
+            }
+            mBuffer.putInt(0, MAGIC);
+            mBuffer.putInt(4, mCapacity);
+            mNextSlot = 0;
+        }
+    }
+
+    public synchronized void stop() throws IOException {
+        if (mBuffer == null)
+            return;
+        mBuffer.force();
+        mRaf.close();
+        mBuffer = null;
+        mRaf = null;
+        mIndex = null;
+    }
+
+    /**
+     * Rebuilds the index from the ring, starting with the oldest slot so that
+     * newer entries for the same hash win.
+     */
+    private void load() {
+        mNextSlot = mBuffer.getInt(NEXT_SLOT_OFFSET);
+        long now = currentTimeMillis();
+        for (int i = 0; i < mCapacity; i++) {
+            int slot = (mNextSlot + i) % mCapacity;
+            if (timeAt(slot) == 0 || isExpired(slot, now))
+                continue;
+            int pos = find(hashAt(slot));
+            if (pos >= 0) {
+                mIndex[pos] = slot;
+            } else {
+                insert(slot);
+            }
+        }
+        sLog.debug("loaded " + mSize + " message ids from " + mFile);
+    }
+
+    public synchronized boolean add(String aMessageId) {
+        ensureStarted();
+        long hash = hash(aMessageId);
+        long now = currentTimeMillis();
+        int pos = find(hash);
+        if (pos >= 0) {
+            if (!isExpired(mIndex[pos], now))
+                return false;
+            deleteAt(pos);
+        }
+
+        int slot = mNextSlot;
+        if (timeAt(slot) != 0) {
+            // the ring is full, the oldest id gives up its slot
+            int oldPos = find(hashAt(slot));
+            if (oldPos >= 0 && mIndex[oldPos] == slot)
+                deleteAt(oldPos);
+        }
+        mBuffer.putLong(offset(slot), hash);
+        mBuffer.putLong(offset(slot) + 8, now);
+        insert(slot);
+        mNextSlot = (slot + 1) % mCapacity;
+        mBuffer.putInt(NEXT_SLOT_OFFSET, mNextSlot);
+        return true;
+    }
+
+    public synchronized boolean contains(String aMessageId) {
+        ensureStarted();
+        int pos = find(hash(aMessageId));
+        return pos >= 0 && !isExpired(mIndex[pos], currentTimeMillis());
+    }
+
+    public synchronized boolean remove(String aMessageId) {
+        ensureStarted();
+        int pos = find(hash(aMessageId));
+        if (pos < 0)
+            return false;
+        int slot = mIndex[pos];
+        deleteAt(pos);
+        mBuffer.putLong(offset(slot) + 8, 0);
+        return true;
+    }
+
+    public boolean confirm(String aMessageId) {
+        return true;
+    }
+
+    /**
+     * @return number of ids in the index, this may include ids whose ttl expired but haven't been overwritten
+     */
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    private void ensureStarted() {
+        if (mBuffer == null) {
+            try {
+                start();
+            } catch (IOException e) {
+                throw new RuntimeCamelException("unable to open message id file " + mFile, e);
+            }
+        }
+    }
+
+    /**
+     * @return position in the index of the slot holding the hash or -1 if it's not there
+     */
+    private int find(long aHash) {
+        int i = (int) aHash & mMask;
+        while (mIndex[i] != -1) {
+            if (hashAt(mIndex[i]) == aHash)
+                return i;
+            i = (i + 1) & mMask;
+        }
+        return -1;
+    }
+
+    private void insert(int aSlot) {
+        int i = (int) hashAt(aSlot) & mMask;
+        while (mIndex[i] != -1) {
+            i = (i + 1) & mMask;
+        }
+        mIndex[i] = aSlot;
+        mSize++;
+    }
+
+    /**
+     * Removes the entry at the position and shifts back any entries that were
+     * displaced past it so that lookups don't stop early.
+     */
+    private void deleteAt(int aPos) {
+        mSize--;
+        int hole = aPos;
+        int i = aPos;
+        while (true) {
+            mIndex[hole] = -1;
+            while (true) {
+                i = (i + 1) & mMask;
+                if (mIndex[i] == -1)
+                    return;
+                int home = (int) hashAt(mIndex[i]) & mMask;
+                // the entry stays put if its home lies cyclically in (hole, i]
+                boolean stays = hole <= i ? (hole < home && home <= i) : (hole < home || home <= i);
+                if (!stays)
+                    break;
+            }
+            mIndex[hole] = mIndex[i];
+            hole = i;
+        }
+    }
+
+    private boolean isExpired(int aSlot, long aNow) {
+        return mTtl > 0 && aNow - timeAt(aSlot) >= mTtl;
+    }
+
+    private long hashAt(int aSlot) {
+        return mBuffer.getLong(offset(aSlot));
+    }
+
+    private long timeAt(int aSlot) {
+        return mBuffer.getLong(offset(aSlot) + 8);
+    }
+
+    private static int offset(int aSlot) {
+        return HEADER_SIZE + aSlot * SLOT_SIZE;
+    }
+
+    /**
+     * 64 bit FNV-1a of the id's chars with a final avalanche so the low bits
+     * used for the index are well mixed.
+     */
+    static long hash(String aMessageId) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < aMessageId.length(); i++) {
+            h ^= aMessageId.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+}
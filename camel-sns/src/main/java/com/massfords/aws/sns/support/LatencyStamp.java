@@ -0,0 +1,163 @@
+package com.massfords.aws.sns.support;
+
+/**
+ * Send time and correlation id a producer with the trackLatency option puts
+ * in front of each message, <code>{sns:ts=1271764800000123;cid=ID-host-1}</code>,
+ * ahead of any other marker the message has. The consumer reads it to
+ * measure how long the message took to get from the producer to the route.
+ *
+ * The send time is in microseconds since the epoch. It's read from
+ * System.nanoTime() against a wall clock time taken once, so it has the
+ * resolution of nanoTime, but the producer and consumer hosts' clocks have
+ * to agree for the latency to mean anything.
+ */
+public class LatencyStamp {
+
+    /** start of a stamp */
+    public static final String STAMP_START = "{sns:ts=";
+
+    private static final String CORRELATION_ID = ";cid=";
+
+    /** longest correlation id that's kept, the rest is cut off */
+    private static final int MAX_CORRELATION_ID = 64;
+
+    /** longest stamp that's looked for: the marker, 20 digits and the correlation id */
+    private static final int MAX_LENGTH = STAMP_START.length() + 20 + CORRELATION_ID.length() + MAX_CORRELATION_ID + 1;
+
+    private static final long BASE_MICROS = System.currentTimeMillis() * 1000;
+    private static final long BASE_NANOS = System.nanoTime();
+
+    /** days before each month in a year that isn't a leap year */
+    private static final int[] DAYS_BEFORE_MONTH = { 0, 31, 59, 90, 120, 151, 181, 212, 243, 273, 304, 334 };
+
+    private final long mSentTime;
+    private final String mCorrelationId;
+
+    public LatencyStamp(long aSentTime, String aCorrelationId) {
+        mSentTime = aSentTime;
+        mCorrelationId = aCorrelationId;
+    }
+
+    /**
+     * @return microseconds since the epoch the message was sent at
+     */
+    public long getSentTime() {
+        return mSentTime;
+    }
+
+    /**
+     * @return id the producer gave the message, null if it didn't give it one
+     */
+    public String getCorrelationId() {
+        return mCorrelationId;
+    }
+
+    /**
+     * @return microseconds since the epoch
+     */
+    public static long currentTimeMicros() {
+        return BASE_MICROS + (System.nanoTime() - BASE_NANOS) / 1000;
+    }
+
+    /**
+     * @param aSentTime microseconds since the epoch
+     * @param aCorrelationId id to send with the message, characters that
+     *            aren't letters, digits, '-', '_', '.' or ':' are replaced
+     *            with '_' so the stamp doesn't need escaping in JSON
+     * @return the stamp followed by the message
+     */
+    public static String stamp(String aMessage, long aSentTime, String aCorrelationId) {
+        StringBuilder sb = new StringBuilder(MAX_LENGTH + (aMessage == null ? 0 : aMessage.length()));
+        sb.append(STAMP_START).append(aSentTime);
+        if (aCorrelationId != null) {
+            sb.append(CORRELATION_ID);
+            int length = Math.min(aCorrelationId.length(), MAX_CORRELATION_ID);
+            for (int i = 0; i < length; i++) {
+                char c = aCorrelationId.charAt(i);
+                boolean safe = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-'
+                        || c == '_' || c == '.' || c == ':';
+                sb.append(safe ? c : '_');
+            }
+        }
+        sb.append('}');
+        if (aMessage != null)
+            sb.append(aMessage);
+        return sb.toString();
+    }
+
+    /**
+     * @return number of chars in the stamp at the offset, 0 if there isn't one
+     */
+    public static int getLength(String aText, int aOffset) {
+        if (aText == null || aOffset < 0 || !aText.startsWith(STAMP_START, aOffset))
+            return 0;
+        int end = aText.indexOf('}', aOffset + STAMP_START.length());
+        if (end < 0 || end - aOffset >= MAX_LENGTH)
+            return 0;
+        return end + 1 - aOffset;
+    }
+
+    /**
+     * @return the stamp at the offset, null if there isn't one or it's malformed
+     */
+    public static LatencyStamp parse(String aText, int aOffset) {
+        int length = getLength(aText, aOffset);
+        if (length == 0)
+            return null;
+        int start = aOffset + STAMP_START.length();
+        int end = aOffset + length - 1;
+        int cid = aText.indexOf(CORRELATION_ID, start);
+        if (cid > end)
+            cid = -1;
+        try {
+            long sentTime = Long.parseLong(aText.substring(start, cid < 0 ? end : cid));
+            return new LatencyStamp(sentTime, cid < 0 ? null : aText.substring(cid + CORRELATION_ID.length(), end));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads the Timestamp SNS puts on a notification, e.g.
+     * 2010-04-20T12:00:00.000Z, without a date format.
+     *
+     * @return millis since the epoch, -1 if it isn't in that format
+     */
+    public static long parseTimestamp(String aTimestamp) {
+        if (aTimestamp == null || aTimestamp.length() < 20 || aTimestamp.charAt(4) != '-'
+                || aTimestamp.charAt(7) != '-' || aTimestamp.charAt(10) != 'T' || aTimestamp.charAt(13) != ':'
+                || aTimestamp.charAt(16) != ':' || aTimestamp.charAt(aTimestamp.length() - 1) != 'Z')
+            return -1;
+        try {
+            int year = Integer.parseInt(aTimestamp.substring(0, 4));
+            int month = Integer.parseInt(aTimestamp.substring(5, 7));
+            int day = Integer.parseInt(aTimestamp.substring(8, 10));
+            int hour = Integer.parseInt(aTimestamp.substring(11, 13));
+            int minute = Integer.parseInt(aTimestamp.substring(14, 16));
+            int second = Integer.parseInt(aTimestamp.substring(17, 19));
+            int millis = 0;
+            if (aTimestamp.charAt(19) == '.') {
+                String fraction = aTimestamp.substring(20, aTimestamp.length() - 1);
+                if (fraction.length() > 0)
+                    millis = Integer.parseInt((fraction + "00").substring(0, 3));
+            }
+            if (month < 1 || month > 12)
+                return -1;
+            long days = daysSinceEpoch(year, month, day);
+            return ((days * 24 + hour) * 60 + minute) * 60000L + second * 1000L + millis;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static long daysSinceEpoch(int aYear, int aMonth, int aDay) {
+        // leap days in the years before this one, counted from year 0
+        int previous = aYear - 1;
+        long leapDays = previous / 4 - previous / 100 + previous / 400 - (1969 / 4 - 1969 / 100 + 1969 / 400);
+        long days = (aYear - 1970) * 365L + leapDays + DAYS_BEFORE_MONTH[aMonth - 1] + aDay - 1;
+        boolean leapYear = aYear % 4 == 0 && (aYear % 100 != 0 || aYear % 400 == 0);
+        if (leapYear && aMonth > 2)
+            days++;
+        return days;
+    }
+}
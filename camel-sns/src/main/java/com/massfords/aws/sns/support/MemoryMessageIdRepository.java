@@ -0,0 +1,90 @@
+package com.massfords.aws.sns.support;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.camel.spi.IdempotentRepository;
+
+/**
+ * In memory store of the message ids that were already processed. The ids are
+ * kept in insertion order so the oldest id is always at the head, this makes
+ * evicting for capacity or for an expired ttl a constant time operation.
+ *
+ * An id that's added again is refreshed and moves to the back of the line.
+ */
+public class MemoryMessageIdRepository implements IdempotentRepository<String> {
+
+    private final int mCapacity;
+    private final long mTtl;
+    /** message id to the time it was added */
+    private final LinkedHashMap<String, Long> mIds;
+
+    /**
+     * @param aCapacity max number of ids to remember
+     * @param aTtl millis an id is remembered for, 0 to keep ids until they're evicted for capacity
+     */
+    public MemoryMessageIdRepository(int aCapacity, long aTtl) {
+        if (aCapacity < 1)
+            throw new IllegalArgumentException("capacity must be at least 1 but was " + aCapacity);
+        mCapacity = aCapacity;
+        mTtl = aTtl;
+        mIds = new LinkedHashMap<String, Long>(Math.min(aCapacity, 1 << 16) * 4 / 3 + 1);
+    }
+
+    public synchronized boolean add(String aMessageId) {
+        long now = currentTimeMillis();
+        expire(now);
+        Long added = mIds.remove(aMessageId);
+        mIds.put(aMessageId, now);
+        if (mIds.size() > mCapacity) {
+            Iterator<String> it = mIds.keySet().iterator();
+            it.next();
+            it.remove();
+        }
+        return added == null;
+    }
+
+    public synchronized boolean contains(String aMessageId) {
+        expire(currentTimeMillis());
+        return mIds.containsKey(aMessageId);
+    }
+
+    public synchronized boolean remove(String aMessageId) {
+        return mIds.remove(aMessageId) != null;
+    }
+
+    public boolean confirm(String aMessageId) {
+        return true;
+    }
+
+    public synchronized int size() {
+        return mIds.size();
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    public long getTtl() {
+        return mTtl;
+    }
+
+    /**
+     * Drops the ids at the head of the map that have outlived the ttl.
+     */
+    private void expire(long aNow) {
+        if (mTtl <= 0)
+            return;
+        Iterator<Map.Entry<String, Long>> it = mIds.entrySet().iterator();
+        while (it.hasNext()) {
+            if (aNow - it.next().getValue() < mTtl)
+                return;
+            it.remove();
+        }
+    }
+
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,129 @@
+package com.massfords.aws.sns.support;
+
+import java.util.regex.Pattern;
+
+/**
+ * Predicate on the fields of the notification's envelope that the consumer
+ * checks before it creates an exchange, a notification that doesn't match is
+ * deleted without being sent to the route. Each of the conditions is optional
+ * and all of the ones that are set have to match.
+ *
+ * The fields are read from the parsed envelope, only the ones with a
+ * condition are unescaped.
+ */
+public class NotificationFilter {
+
+    private String mSubject;
+    private String mSubjectPrefix;
+    private Pattern mSubjectPattern;
+    private String mTopicArn;
+    private String mType;
+    private ContentFilter mContent;
+    private boolean mDecompress;
+    private int mMaxDecompressedSize = PayloadCodec.MAX_DECOMPRESSED_SIZE;
+
+    /**
+     * @param aSubject subject the notification has to have
+     */
+    public NotificationFilter withSubject(String aSubject) {
+        mSubject = aSubject;
+        return this;
+    }
+
+    public NotificationFilter withSubjectPrefix(String aSubjectPrefix) {
+        mSubjectPrefix = aSubjectPrefix;
+        return this;
+    }
+
+    /**
+     * @param aSubjectPattern regular expression the whole subject has to match
+     */
+    public NotificationFilter withSubjectPattern(String aSubjectPattern) {
+        mSubjectPattern = aSubjectPattern == null ? null : Pattern.compile(aSubjectPattern);
+        return this;
+    }
+
+    public NotificationFilter withTopicArn(String aTopicArn) {
+        mTopicArn = aTopicArn;
+        return this;
+    }
+
+    /**
+     * @param aType envelope Type, e.g. Notification or SubscriptionConfirmation
+     */
+    public NotificationFilter withType(String aType) {
+        mType = aType;
+        return this;
+    }
+
+    /**
+     * @param aContentFilter path predicate on the XML message body, see {@link ContentFilter}
+     */
+    public NotificationFilter withContent(String aContentFilter) {
+        mContent = aContentFilter == null ? null : new ContentFilter(aContentFilter);
+        return this;
+    }
+
+    /**
+     * @param aDecompress true to match the content filter against the
+     *            decompressed text of a compressed message, otherwise it's
+     *            matched against the message as it was published
+     */
+    public NotificationFilter withDecompression(boolean aDecompress) {
+        mDecompress = aDecompress;
+        return this;
+    }
+
+    /**
+     * @param aMaxSize a compressed message that decompresses to more bytes
+     *            than this is matched as its text
+     */
+    public NotificationFilter withMaxDecompressedSize(int aMaxSize) {
+        mMaxDecompressedSize = aMaxSize;
+        return this;
+    }
+
+    /**
+     * @return true if none of the conditions are set
+     */
+    public boolean isEmpty() {
+        return mSubject == null && mSubjectPrefix == null && mSubjectPattern == null && mTopicArn == null
+                && mType == null && mContent == null;
+    }
+
+    /**
+     * @return true if the notification should be sent to the route
+     */
+    public boolean accept(SQSObject aSqsObject) {
+        if (mType != null && !mType.equals(aSqsObject.getType()))
+            return false;
+        if (mTopicArn != null && !mTopicArn.equals(aSqsObject.getTopicArn()))
+            return false;
+        if (mSubject != null || mSubjectPrefix != null || mSubjectPattern != null) {
+            String subject = aSqsObject.getSubject();
+            if (mSubject != null && !mSubject.equals(subject))
+                return false;
+            if (mSubjectPrefix != null && !subject.startsWith(mSubjectPrefix))
+                return false;
+            if (mSubjectPattern != null && !mSubjectPattern.matcher(subject).matches())
+                return false;
+        }
+        // the body is scanned last since it's the most expensive check
+        if (mContent != null) {
+            // binary content isn't XML
+            if (aSqsObject.isBinaryMessage())
+                return false;
+            Object message = aSqsObject.getMessage();
+            if (mDecompress && aSqsObject.getEncoding() != null) {
+                try {
+                    message = aSqsObject.getDecodedMessage(mMaxDecompressedSize);
+                } catch (IllegalArgumentException e) {
+                    // matched as the text the route will be sent
+                }
+            }
+            if (!(message instanceof String) || !mContent.matches((String) message))
+                return false;
+        }
+        return true;
+    }
+}
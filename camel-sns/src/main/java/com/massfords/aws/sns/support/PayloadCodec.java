@@ -0,0 +1,463 @@
+package com.massfords.aws.sns.support;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Encodes binary message bodies as base64 text behind a marker so they
+ * survive SNS, which only carries text, and decodes them again on the
+ * consumer. The encoder reads the bytes straight from the body and the
+ * decoder reads the characters straight from the envelope's JSON text, so
+ * neither side copies the payload through an intermediate String or byte[].
+ *
+ * Compressed bodies are base64 encoded the same way behind a marker with the
+ * codec's name, <code>{sns:gzip}</code> for text and
+ * <code>{sns:gzip;bin}</code> for binary bodies. A body that was checked in
+ * to a {@link BlobStore} is sent as <code>{sns:ref}</code> followed by its key.
+ *
+ * Several messages packed into one are sent as <code>{sns:pack}</code>
+ * followed by a frame for each message, its length in chars, a colon and
+ * the message: <code>{sns:pack}5:hello13:{sns:b64}AA==</code>. Each packed
+ * message can have a marker of its own.
+ */
+public class PayloadCodec {
+
+    /** encoding in the marker of uncompressed binary bodies */
+    public static final String BASE64 = "b64";
+
+    /** prefix on a message whose body is base64 encoded bytes */
+    public static final String BASE64_MARKER = "{sns:" + BASE64 + "}";
+
+    /** encoding in the marker of a reference to a body in a blob store */
+    public static final String REFERENCE = "ref";
+
+    /** encoding in the marker of a message that has other messages packed into it */
+    public static final String PACK = "pack";
+
+    /** prefix on a packed message */
+    public static final String PACK_MARKER = "{sns:" + PACK + "}";
+
+    private static final String MARKER_START = "{sns:";
+
+    /** suffix on the codec's name in the marker when a compressed body is binary */
+    private static final String BINARY_SUFFIX = ";bin";
+
+    /** default limit on the size of a decompressed message, see {@link #decodeMessage(String, int, int, String, int)} */
+    public static final int MAX_DECOMPRESSED_SIZE = 16 * 1024 * 1024;
+
+    /** longest encoding that's looked for between the marker's braces */
+    private static final int MAX_ENCODING = 64;
+
+    private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+            .toCharArray();
+    private static final byte[] VALUES = new byte[128];
+    static {
+        Arrays.fill(VALUES, (byte) -1);
+        for (int i = 0; i < ALPHABET.length; i++) {
+            VALUES[ALPHABET[i]] = (byte) i;
+        }
+    }
+
+    /** bytes read from a stream at a time, a multiple of 3 so only the last chunk is padded */
+    private static final int CHUNK = 3 * 1024;
+
+    private PayloadCodec() {
+    }
+
+    /**
+     * @return true if the body is one of the types that's sent as encoded bytes
+     */
+    public static boolean isBinary(Object aBody) {
+        return aBody instanceof byte[] || aBody instanceof ByteBuffer || aBody instanceof InputStream;
+    }
+
+    /**
+     * @param aBody byte[], ByteBuffer or InputStream, the stream is read to the end but not closed
+     * @return the marker followed by the base64 encoded bytes
+     */
+    public static String encode(Object aBody) throws IOException {
+        if (aBody instanceof byte[]) {
+            byte[] bytes = (byte[]) aBody;
+            StringBuilder out = createBuilder(bytes.length);
+            encode(bytes, 0, bytes.length, out);
+            return out.toString();
+        }
+        if (aBody instanceof ByteBuffer) {
+            // duplicated so the caller's position is left alone
+            ByteBuffer buffer = ((ByteBuffer) aBody).duplicate();
+            StringBuilder out = createBuilder(buffer.remaining());
+            if (buffer.hasArray()) {
+                encode(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(), out);
+            } else {
+                byte[] chunk = new byte[Math.min(CHUNK, buffer.remaining())];
+                while (buffer.hasRemaining()) {
+                    int length = Math.min(chunk.length, buffer.remaining());
+                    buffer.get(chunk, 0, length);
+                    encode(chunk, 0, length, out);
+                }
+            }
+            return out.toString();
+        }
+        if (aBody instanceof InputStream) {
+            InputStream in = (InputStream) aBody;
+            StringBuilder out = createBuilder(in.available());
+            byte[] chunk = new byte[CHUNK];
+            int length = 0;
+            int read;
+            while ((read = in.read(chunk, length, chunk.length - length)) != -1) {
+                length += read;
+                if (length == chunk.length) {
+                    encode(chunk, 0, length, out);
+                    length = 0;
+                }
+            }
+            encode(chunk, 0, length, out);
+            return out.toString();
+        }
+        throw new IllegalArgumentException("can't encode a " + (aBody == null ? "null" : aBody.getClass().getName())
+                + " body");
+    }
+
+    private static StringBuilder createBuilder(int aLength) {
+        StringBuilder out = new StringBuilder(BASE64_MARKER.length() + (aLength + 2) / 3 * 4);
+        return out.append(BASE64_MARKER);
+    }
+
+    /**
+     * @return number of bytes in a binary body, -1 if it's a stream and isn't known up front
+     */
+    public static int sizeOf(Object aBody) {
+        if (aBody instanceof byte[])
+            return ((byte[]) aBody).length;
+        if (aBody instanceof ByteBuffer)
+            return ((ByteBuffer) aBody).remaining();
+        return -1;
+    }
+
+    /**
+     * Compresses the body straight into a buffer that's then base64 encoded,
+     * so neither the uncompressed bytes of a String nor a stream's content
+     * are ever held in memory whole.
+     *
+     * @param aBody String or a binary body, the stream is read to the end but not closed
+     * @return the codec's marker followed by the compressed body in base64
+     */
+    public static String compress(Object aBody, CompressionCodec aCodec) throws IOException {
+        Buffer compressed = new Buffer(4096);
+        OutputStream out = aCodec.compress(compressed);
+        try {
+            if (aBody instanceof String) {
+                Writer writer = new OutputStreamWriter(out, "UTF-8");
+                writer.write((String) aBody);
+                writer.flush();
+            } else if (aBody instanceof byte[]) {
+                out.write((byte[]) aBody);
+            } else if (aBody instanceof ByteBuffer) {
+                ByteBuffer buffer = ((ByteBuffer) aBody).duplicate();
+                if (buffer.hasArray()) {
+                    out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                } else {
+                    byte[] chunk = new byte[Math.min(CHUNK, buffer.remaining())];
+                    while (buffer.hasRemaining()) {
+                        int length = Math.min(chunk.length, buffer.remaining());
+                        buffer.get(chunk, 0, length);
+                        out.write(chunk, 0, length);
+                    }
+                }
+            } else if (aBody instanceof InputStream) {
+                copy((InputStream) aBody, out);
+            } else {
+                throw new IllegalArgumentException("can't compress a "
+                        + (aBody == null ? "null" : aBody.getClass().getName()) + " body");
+            }
+        } finally {
+            out.close();
+        }
+        StringBuilder message = new StringBuilder(MAX_ENCODING + (compressed.size() + 2) / 3 * 4);
+        message.append(MARKER_START).append(aCodec.getName());
+        if (isBinary(aBody))
+            message.append(BINARY_SUFFIX);
+        message.append('}');
+        encode(compressed.array(), 0, compressed.size(), message);
+        return message.toString();
+    }
+
+    private static void copy(InputStream aIn, OutputStream aOut) throws IOException {
+        byte[] chunk = new byte[CHUNK];
+        int read;
+        while ((read = aIn.read(chunk)) != -1) {
+            aOut.write(chunk, 0, read);
+        }
+    }
+
+    /**
+     * @return the encoding between the braces of the marker at the offset,
+     *         null if there isn't a marker there
+     */
+    public static String getEncoding(String aText, int aOffset) {
+        if (aOffset < 0 || !aText.startsWith(MARKER_START, aOffset))
+            return null;
+        int start = aOffset + MARKER_START.length();
+        int end = aText.indexOf('}', start);
+        if (end < 0 || end - start > MAX_ENCODING)
+            return null;
+        return aText.substring(start, end);
+    }
+
+    /**
+     * @return the message that refers to the body stored under the key
+     */
+    public static String reference(String aKey) {
+        return MARKER_START + REFERENCE + "}" + aKey;
+    }
+
+    /**
+     * @return key of the blob the message refers to, null if it isn't a reference
+     */
+    public static String getReferenceKey(String aMessage) {
+        if (!REFERENCE.equals(getEncoding(aMessage, 0)))
+            return null;
+        return aMessage.substring(MARKER_START.length() + REFERENCE.length() + 1).trim();
+    }
+
+    /**
+     * Appends the message's frame to a packed message.
+     */
+    public static void appendFrame(StringBuilder aPack, String aMessage) {
+        aPack.append(aMessage.length()).append(':').append(aMessage);
+    }
+
+    /**
+     * @return number of UTF-8 bytes the message's frame adds to a packed message
+     */
+    public static int getFrameSize(String aMessage) {
+        return String.valueOf(aMessage.length()).length() + 1 + getUTF8Length(aMessage);
+    }
+
+    /**
+     * @return number of bytes in the UTF-8 encoding of the text, without encoding it
+     */
+    public static int getUTF8Length(String aText) {
+        int length = aText.length();
+        for (int i = 0; i < aText.length(); i++) {
+            char c = aText.charAt(i);
+            if (c >= 0x800) {
+                // a surrogate pair is 4 bytes for the 2 chars, anything else is 3
+                length += c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE ? 1 : 2;
+            } else if (c >= 0x80) {
+                length++;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * @param aPack text of a packed message, marker included
+     * @return the messages in the pack's frames
+     * @throws IllegalArgumentException if the frames are malformed
+     */
+    public static List<String> unpack(String aPack) {
+        List<String> messages = new ArrayList<String>();
+        int i = PACK_MARKER.length();
+        while (i < aPack.length()) {
+            int colon = aPack.indexOf(':', i);
+            int length;
+            try {
+                length = colon < 0 ? -1 : Integer.parseInt(aPack.substring(i, colon));
+            } catch (NumberFormatException e) {
+                length = -1;
+            }
+            if (length < 0 || colon + 1 + length > aPack.length())
+                throw new IllegalArgumentException("malformed frame at " + i + " of packed message");
+            messages.add(aPack.substring(colon + 1, colon + 1 + length));
+            i = colon + 1 + length;
+        }
+        return messages;
+    }
+
+    /**
+     * @return true if the encoding is base64 or a compression codec that's
+     *         registered, other markers are left for the route
+     */
+    public static boolean isDecodable(String aEncoding) {
+        return aEncoding != null && (BASE64.equals(aEncoding) || getCodec(aEncoding) != null);
+    }
+
+    /**
+     * @return true if the encoding is of a binary body, compressed or not
+     */
+    public static boolean isBinaryEncoding(String aEncoding) {
+        return BASE64.equals(aEncoding) || (aEncoding != null && aEncoding.endsWith(BINARY_SUFFIX));
+    }
+
+    private static CompressionCodec getCodec(String aEncoding) {
+        String name = aEncoding.endsWith(BINARY_SUFFIX) ? aEncoding.substring(0, aEncoding.length()
+                - BINARY_SUFFIX.length()) : aEncoding;
+        return CompressionCodecs.get(name);
+    }
+
+    /**
+     * Undoes the encoding named in the marker at the start of the text, a
+     * compressed message can't decompress to more than
+     * {@link #MAX_DECOMPRESSED_SIZE} bytes.
+     *
+     * @param aEncoding encoding in the marker, see {@link #getEncoding(String, int)}
+     * @return a byte[] for binary bodies and a String for compressed text
+     * @throws IllegalArgumentException if the encoding isn't decodable or the text isn't valid base64
+     */
+    public static Object decodeMessage(String aText, int aStart, int aEnd, String aEncoding) throws IOException {
+        return decodeMessage(aText, aStart, aEnd, aEncoding, MAX_DECOMPRESSED_SIZE);
+    }
+
+    /**
+     * Undoes the encoding named in the marker at the start of the text.
+     *
+     * @param aEncoding encoding in the marker, see {@link #getEncoding(String, int)}
+     * @param aMaxSize most bytes a compressed message can decompress to, so
+     *            a small message can't expand to fill the heap
+     * @return a byte[] for binary bodies and a String for compressed text
+     * @throws IllegalArgumentException if the encoding isn't decodable, the
+     *             text isn't valid base64 or it decompresses to more than
+     *             aMaxSize bytes
+     */
+    public static Object decodeMessage(String aText, int aStart, int aEnd, String aEncoding, int aMaxSize)
+            throws IOException {
+        byte[] bytes = decode(aText, aStart, aEnd);
+        if (BASE64.equals(aEncoding))
+            return bytes;
+        CompressionCodec codec = getCodec(aEncoding);
+        if (codec == null)
+            throw new IllegalArgumentException("no compression codec for " + aEncoding);
+        Buffer out = new Buffer((int) Math.min(bytes.length * 4L, aMaxSize));
+        InputStream in = codec.decompress(new ByteArrayInputStream(bytes));
+        try {
+            byte[] chunk = new byte[CHUNK];
+            int read;
+            while ((read = in.read(chunk)) != -1) {
+                if (read > aMaxSize - out.size())
+                    throw new IllegalArgumentException("message decompresses to more than " + aMaxSize + " bytes");
+                out.write(chunk, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return isBinaryEncoding(aEncoding) ? out.toByteArray() : out.toString("UTF-8");
+    }
+
+    /**
+     * Output that the encoder can read from without copying it first.
+     */
+    private static class Buffer extends ByteArrayOutputStream {
+        Buffer(int aSize) {
+            super(aSize);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
+
+    /**
+     * Appends the base64 encoding of the bytes, padded if the length isn't a multiple of 3.
+     */
+    static void encode(byte[] aBytes, int aOffset, int aLength, StringBuilder aOut) {
+        int end = aOffset + aLength;
+        int i = aOffset;
+        for (; i + 2 < end; i += 3) {
+            int group = (aBytes[i] & 0xff) << 16 | (aBytes[i + 1] & 0xff) << 8 | (aBytes[i + 2] & 0xff);
+            aOut.append(ALPHABET[group >>> 18]).append(ALPHABET[(group >>> 12) & 0x3f])
+                    .append(ALPHABET[(group >>> 6) & 0x3f]).append(ALPHABET[group & 0x3f]);
+        }
+        if (i < end) {
+            int group = (aBytes[i] & 0xff) << 16 | (i + 1 < end ? (aBytes[i + 1] & 0xff) << 8 : 0);
+            aOut.append(ALPHABET[group >>> 18]).append(ALPHABET[(group >>> 12) & 0x3f]);
+            aOut.append(i + 1 < end ? ALPHABET[(group >>> 6) & 0x3f] : '=').append('=');
+        }
+    }
+
+    /**
+     * @return true if the text at the offset starts with the marker
+     */
+    public static boolean isEncoded(String aText, int aOffset) {
+        return aText.startsWith(BASE64_MARKER, aOffset);
+    }
+
+    /**
+     * Decodes the base64 text following the marker, whichever marker it is.
+     * The text can be the raw value from the JSON envelope, escapes such as \/
+     * are resolved as the characters are read and whitespace is skipped.
+     *
+     * @param aText text that contains the encoded value
+     * @param aStart offset of the marker
+     * @param aEnd offset just past the last character of the value
+     * @throws IllegalArgumentException if the text isn't valid base64
+     */
+    public static byte[] decode(String aText, int aStart, int aEnd) {
+        int start = aText.indexOf('}', aStart) + 1;
+        byte[] bytes = new byte[decode(aText, start, aEnd, null)];
+        decode(aText, start, aEnd, bytes);
+        return bytes;
+    }
+
+    /**
+     * Runs over the text once to count the bytes and once more to decode
+     * them, so the result is allocated at its exact size.
+     *
+     * @param aOut bytes to decode into, null to only count them
+     * @return number of bytes decoded
+     */
+    private static int decode(String aText, int aStart, int aEnd, byte[] aOut) {
+        int group = 0;
+        int sextets = 0;
+        int count = 0;
+        for (int i = aStart; i < aEnd; i++) {
+            char c = aText.charAt(i);
+            if (c == '\\' && i + 1 < aEnd) {
+                c = aText.charAt(++i);
+                if (c == 'u' && i + 4 < aEnd) {
+                    c = (char) Integer.parseInt(aText.substring(i + 1, i + 5), 16);
+                    i += 4;
+                } else if (c == 'n' || c == 'r' || c == 't') {
+                    continue;
+                }
+            }
+            if (c == '=' || Character.isWhitespace(c))
+                continue;
+            int value = c < 128 ? VALUES[c] : -1;
+            if (value < 0)
+                throw new IllegalArgumentException("invalid base64 character '" + c + "' at " + i);
+            group = group << 6 | value;
+            if (++sextets == 4) {
+                if (aOut != null) {
+                    aOut[count] = (byte) (group >> 16);
+                    aOut[count + 1] = (byte) (group >> 8);
+                    aOut[count + 2] = (byte) group;
+                }
+                count += 3;
+                group = 0;
+                sextets = 0;
+            }
+        }
+        if (sextets == 1)
+            throw new IllegalArgumentException("truncated base64 value");
+        if (sextets > 1) {
+            group <<= 6 * (4 - sextets);
+            if (aOut != null) {
+                aOut[count] = (byte) (group >> 16);
+                if (sextets == 3)
+                    aOut[count + 1] = (byte) (group >> 8);
+            }
+            count += sextets - 1;
+        }
+        return count;
+    }
+}
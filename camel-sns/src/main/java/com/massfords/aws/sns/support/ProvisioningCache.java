@@ -0,0 +1,128 @@
+package com.massfords.aws.sns.support;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Properties file that remembers the topic, queue and subscription each
+ * consumer resolved when it started so a restart can skip the control plane
+ * calls. Each consumer's values are stored under its own key with the field
+ * name appended, e.g. <code>key.queueURL</code>.
+ *
+ * The cached values are used as is until AWS reports the queue, topic or
+ * subscription doesn't exist, then the consumer drops its entries and
+ * provisions again.
+ *
+ * The file is rewritten whenever a value changes, which only happens when a
+ * consumer starts or stops.
+ */
+public class ProvisioningCache {
+
+    private static final Log sLog = LogFactory.getLog(ProvisioningCache.class);
+
+    /** caches by canonical path so endpoints pointing at the same file share it */
+    private static final Map<String, ProvisioningCache> sCaches = new HashMap<String, ProvisioningCache>();
+
+    private final File mFile;
+    private final Properties mValues = new Properties();
+
+    /**
+     * @return the cache kept in the file, loading it if this is the first endpoint to use it
+     */
+    public static ProvisioningCache forFile(String aPath) throws IOException {
+        File file = new File(aPath).getCanonicalFile();
+        synchronized (sCaches) {
+            ProvisioningCache cache = sCaches.get(file.getPath());
+            if (cache == null) {
+                cache = new ProvisioningCache(file);
+                sCaches.put(file.getPath(), cache);
+            }
+            return cache;
+        }
+    }
+
+    ProvisioningCache(File aFile) throws IOException {
+        mFile = aFile;
+        if (mFile.exists()) {
+            InputStream in = new FileInputStream(mFile);
+            try {
+                mValues.load(in);
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+            sLog.debug("loaded " + mValues.size() + " provisioning values from " + mFile);
+        }
+    }
+
+    public synchronized String get(String aKey, String aField) {
+        return mValues.getProperty(aKey + "." + aField);
+    }
+
+    public synchronized void put(String aKey, String aField, String aValue) {
+        Object old = mValues.setProperty(aKey + "." + aField, aValue);
+        if (!aValue.equals(old))
+            save();
+    }
+
+    public synchronized void remove(String aKey, String aField) {
+        if (mValues.remove(aKey + "." + aField) != null)
+            save();
+    }
+
+    /**
+     * Drops all of the values for the key.
+     *
+     * @return true if there were any
+     */
+    public synchronized boolean removeAll(String aKey) {
+        boolean removed = false;
+        for (Object name : mValues.keySet().toArray()) {
+            if (((String) name).startsWith(aKey + ".")) {
+                mValues.remove(name);
+                removed = true;
+            }
+        }
+        if (removed)
+            save();
+        return removed;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Writes to a temp file that replaces the cache so a crash mid write
+     * doesn't leave a truncated file behind.
+     */
+    private void save() {
+        File temp = new File(mFile.getPath() + ".tmp");
+        try {
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                mValues.store(out, "SNS provisioning cache");
+            } finally {
+                IOUtils.closeQuietly(out);
+            }
+            if (!temp.renameTo(mFile)) {
+                mFile.delete();
+                if (!temp.renameTo(mFile))
+                    throw new IOException("unable to replace " + mFile);
+            }
+        } catch (IOException e) {
+            // the cache is an optimization, the next start resolves whatever didn't make it to disk
+            sLog.warn("unable to save provisioning cache " + mFile, e);
+        }
+    }
+}
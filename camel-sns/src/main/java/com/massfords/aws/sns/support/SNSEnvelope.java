@@ -0,0 +1,307 @@
+package com.massfords.aws.sns.support;
+
+/**
+ * Single pass parser for the JSON envelope SNS wraps around a notification.
+ * The text is scanned once to record where each top level field's name and
+ * value start and end, nothing is copied. A value is only turned into a
+ * String (and unescaped) the first time it's asked for, so reading the
+ * handful of fields the consumer needs doesn't pay for the ones it doesn't.
+ *
+ * Nested objects and arrays are skipped over and returned as their raw JSON
+ * text, the same goes for numbers, booleans and null.
+ */
+public class SNSEnvelope {
+
+    private static final int INITIAL_FIELDS = 12;
+
+    /** scratch space for unescaping, an unescaped value is never longer than its escaped form */
+    private static final ThreadLocal<char[]> sScratch = new ThreadLocal<char[]>() {
+        @Override
+        protected char[] initialValue() {
+            return new char[1024];
+        }
+    };
+
+    private final String mJson;
+    private int mCount;
+    /** offsets of each field, 4 per field: name start, name end, value start, value end */
+    private int[] mOffsets = new int[INITIAL_FIELDS * 4];
+    /** true if the field's value is a string, it's only unescaped if it contains a backslash */
+    private boolean[] mQuoted = new boolean[INITIAL_FIELDS];
+    private boolean[] mEscaped = new boolean[INITIAL_FIELDS];
+    private String[] mValues = new String[INITIAL_FIELDS];
+
+    private int mPos;
+
+    /**
+     * @throws IllegalArgumentException if the text isn't a JSON object
+     */
+    public SNSEnvelope(String aJson) {
+        mJson = aJson;
+        parse();
+    }
+
+    /**
+     * @return the field's value, null if the envelope doesn't have the field
+     */
+    public String get(String aName) {
+        int field = indexOf(aName);
+        if (field < 0)
+            return null;
+        String value = mValues[field];
+        if (value == null) {
+            int start = mOffsets[field * 4 + 2];
+            int end = mOffsets[field * 4 + 3];
+            value = mEscaped[field] ? unescape(start, end) : mJson.substring(start, end);
+            mValues[field] = value;
+        }
+        return value;
+    }
+
+    public boolean has(String aName) {
+        return indexOf(aName) >= 0;
+    }
+
+    /**
+     * @return true if the field's value is a JSON string
+     */
+    public boolean isString(String aName) {
+        int field = indexOf(aName);
+        return field >= 0 && mQuoted[field];
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * @return offset in the JSON text where the field's value starts, without
+     *         the quotes and with any escapes left in, -1 if the envelope
+     *         doesn't have the field
+     */
+    public int getValueStart(String aName) {
+        int field = indexOf(aName);
+        return field < 0 ? -1 : mOffsets[field * 4 + 2];
+    }
+
+    /**
+     * @return offset in the JSON text where the field's value ends, -1 if the envelope doesn't have the field
+     */
+    public int getValueEnd(String aName) {
+        int field = indexOf(aName);
+        return field < 0 ? -1 : mOffsets[field * 4 + 3];
+    }
+
+    /**
+     * @return the text the envelope was parsed from
+     */
+    public String getJson() {
+        return mJson;
+    }
+
+    @Override
+    public String toString() {
+        return mJson;
+    }
+
+    private int indexOf(String aName) {
+        int length = aName.length();
+        for (int i = 0; i < mCount; i++) {
+            int start = mOffsets[i * 4];
+            if (mOffsets[i * 4 + 1] - start == length && mJson.regionMatches(start, aName, 0, length))
+                return i;
+        }
+        return -1;
+    }
+
+    private void parse() {
+        skipWhitespace();
+        expect('{');
+        skipWhitespace();
+        if (peek() == '}') {
+            mPos++;
+            checkTrailing();
+            return;
+        }
+        while (true) {
+            skipWhitespace();
+            expect('"');
+            int nameStart = mPos;
+            if (skipString()) {
+                throw error("escaped field names aren't supported");
+            }
+            int nameEnd = mPos - 1;
+            skipWhitespace();
+            expect(':');
+            skipWhitespace();
+
+            int field = addField();
+            mOffsets[field * 4] = nameStart;
+            mOffsets[field * 4 + 1] = nameEnd;
+            if (peek() == '"') {
+                mPos++;
+                int valueStart = mPos;
+                mEscaped[field] = skipString();
+                mQuoted[field] = true;
+                mOffsets[field * 4 + 2] = valueStart;
+                mOffsets[field * 4 + 3] = mPos - 1;
+            } else {
+                int valueStart = mPos;
+                skipValue();
+                mOffsets[field * 4 + 2] = valueStart;
+                mOffsets[field * 4 + 3] = mPos;
+            }
+
+            skipWhitespace();
+            char c = next();
+            if (c == '}')
+                break;
+            if (c != ',')
+                throw error("expected ',' or '}'");
+        }
+        checkTrailing();
+    }
+
+    private int addField() {
+        if (mCount == mQuoted.length) {
+            int size = mCount * 2;
+            int[] offsets = new int[size * 4];
+            System.arraycopy(mOffsets, 0, offsets, 0, mOffsets.length);
+            mOffsets = offsets;
+            boolean[] quoted = new boolean[size];
+            System.arraycopy(mQuoted, 0, quoted, 0, mCount);
+            mQuoted = quoted;
+            boolean[] escaped = new boolean[size];
+            System.arraycopy(mEscaped, 0, escaped, 0, mCount);
+            mEscaped = escaped;
+            mValues = new String[size];
+        }
+        return mCount++;
+    }
+
+    /**
+     * Moves past the rest of a string whose opening quote was consumed.
+     *
+     * @return true if the string contains escapes
+     */
+    private boolean skipString() {
+        boolean escaped = false;
+        int length = mJson.length();
+        while (mPos < length) {
+            char c = mJson.charAt(mPos++);
+            if (c == '"')
+                return escaped;
+            if (c == '\\') {
+                escaped = true;
+                mPos++;
+            }
+        }
+        throw error("unterminated string");
+    }
+
+    /**
+     * Moves past a number, literal, object or array.
+     */
+    private void skipValue() {
+        int depth = 0;
+        int length = mJson.length();
+        while (mPos < length) {
+            char c = mJson.charAt(mPos);
+            if (c == '"') {
+                mPos++;
+                skipString();
+                continue;
+            }
+            if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                if (depth == 0)
+                    break;
+                depth--;
+            } else if (depth == 0 && (c == ',' || Character.isWhitespace(c))) {
+                break;
+            }
+            mPos++;
+        }
+        if (depth != 0)
+            throw error("unterminated value");
+    }
+
+    private String unescape(int aStart, int aEnd) {
+        char[] buf = sScratch.get();
+        if (buf.length < aEnd - aStart) {
+            buf = new char[Math.max(aEnd - aStart, buf.length * 2)];
+            sScratch.set(buf);
+        }
+        int n = 0;
+        for (int i = aStart; i < aEnd; i++) {
+            char c = mJson.charAt(i);
+            if (c != '\\') {
+                buf[n++] = c;
+                continue;
+            }
+            c = mJson.charAt(++i);
+            switch (c) {
+            case 'b':
+                buf[n++] = '\b';
+                break;
+            case 'f':
+                buf[n++] = '\f';
+                break;
+            case 'n':
+                buf[n++] = '\n';
+                break;
+            case 'r':
+                buf[n++] = '\r';
+                break;
+            case 't':
+                buf[n++] = '\t';
+                break;
+            case 'u':
+                if (i + 4 >= aEnd)
+                    throw error("bad unicode escape");
+                buf[n++] = (char) Integer.parseInt(mJson.substring(i + 1, i + 5), 16);
+                i += 4;
+                break;
+            default:
+                // \" \\ \/
+                buf[n++] = c;
+            }
+        }
+        return new String(buf, 0, n);
+    }
+
+    private void checkTrailing() {
+        skipWhitespace();
+        if (mPos != mJson.length())
+            throw error("unexpected text after the envelope");
+    }
+
+    private void skipWhitespace() {
+        int length = mJson.length();
+        while (mPos < length && Character.isWhitespace(mJson.charAt(mPos))) {
+            mPos++;
+        }
+    }
+
+    private char peek() {
+        if (mPos >= mJson.length())
+            throw error("unexpected end of envelope");
+        return mJson.charAt(mPos);
+    }
+
+    private char next() {
+        char c = peek();
+        mPos++;
+        return c;
+    }
+
+    private void expect(char aExpected) {
+        if (next() != aExpected)
+            throw error("expected '" + aExpected + "'");
+    }
+
+    private IllegalArgumentException error(String aMessage) {
+        return new IllegalArgumentException(aMessage + " at offset " + mPos + " of SNS envelope");
+    }
+}
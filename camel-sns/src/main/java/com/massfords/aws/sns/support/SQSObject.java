@@ -1,5 +1,11 @@
 package com.massfords.aws.sns.support;
 
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.json.JSONException;
@@ -7,13 +13,34 @@ import org.json.JSONObject;
 
 public class SQSObject {
     
-    Log sLog = LogFactory.getLog(SQSObject.class);
+    private static Log sLog = LogFactory.getLog(SQSObject.class);
     
     JSONObject mJO;
+    SNSEnvelope mEnvelope;
+    /** decompressed text of the message, so it's only decompressed once */
+    private String mDecodedText;
+    /** message this one was packed into, null unless it was unpacked */
+    private SQSObject mOuter;
+    private String mInnerId;
+    private String mInnerMessage;
+    /** true if the message may start with a producer's latency stamp */
+    private boolean mStamped;
     
     public SQSObject(JSONObject aJson) {
         mJO = aJson;
     }
+    public SQSObject(SNSEnvelope aEnvelope) {
+        mEnvelope = aEnvelope;
+    }
+    /**
+     * Message packed into the outer one, it has the outer message's fields
+     * except for its own id and message.
+     */
+    private SQSObject(SQSObject aOuter, String aMessageId, String aMessage) {
+        mOuter = aOuter;
+        mInnerId = aMessageId;
+        mInnerMessage = aMessage;
+    }
     public String getMessageId() {
         return getString("MessageId");
     }
@@ -29,19 +56,188 @@ public class SQSObject {
     public String getUnsubscribe() {
         return getString("Unsubscribe");
     }
+    /**
+     * A message is only taken to be stamped when the consumer tracks latency,
+     * otherwise a message that happens to start like a stamp is left as it
+     * is. The messages packed into this one are stamped if it is.
+     *
+     * @param aStamped true if the message may start with a producer's latency stamp
+     */
+    public void setStamped(boolean aStamped) {
+        mStamped = aStamped;
+    }
+    public boolean isStamped() {
+        return mOuter != null ? mOuter.isStamped() : mStamped;
+    }
+    /**
+     * @return the message without the producer's latency stamp if it's
+     *         stamped, use getString("Message") for the text as it was signed
+     */
     public String getMessage() {
-        return getString("Message");
+        String message = getString("Message");
+        if (!isStamped())
+            return message;
+        int stamp = LatencyStamp.getLength(message, 0);
+        return stamp == 0 ? message : message.substring(stamp);
+    }
+    /**
+     * @return send time and correlation id the producer stamped the message
+     *         with, null if it isn't stamped or isn't taken to be
+     */
+    public LatencyStamp getStamp() {
+        if (!isStamped())
+            return null;
+        if (mEnvelope != null) {
+            if (!mEnvelope.isString("Message"))
+                return null;
+            return LatencyStamp.parse(mEnvelope.getJson(), mEnvelope.getValueStart("Message"));
+        }
+        return LatencyStamp.parse(getString("Message"), 0);
+    }
+    /**
+     * @return offset in the envelope's text where the message starts, after the latency stamp if it's stamped
+     */
+    private int getMessageStart() {
+        int start = mEnvelope.getValueStart("Message");
+        return isStamped() ? start + LatencyStamp.getLength(mEnvelope.getJson(), start) : start;
     }
     public String getSubject() {
         return getString("Subject");
     }
+    /**
+     * @return encoding in the message's marker if it's one that can be
+     *         decoded here, null for a plain text message
+     */
+    public String getEncoding() {
+        String encoding = getMarker();
+        return PayloadCodec.isDecodable(encoding) ? encoding : null;
+    }
+    /**
+     * @return encoding in the message's marker whatever it is, null if there isn't one
+     */
+    private String getMarker() {
+        if (mEnvelope != null) {
+            if (mEnvelope.isString("Message"))
+                return PayloadCodec.getEncoding(mEnvelope.getJson(), getMessageStart());
+        } else if (getMessage() != null) {
+            return PayloadCodec.getEncoding(getMessage(), 0);
+        }
+        return null;
+    }
+    /**
+     * @return true if other messages were packed into this one
+     */
+    public boolean isPacked() {
+        return PayloadCodec.PACK.equals(getMarker());
+    }
+    /**
+     * Each packed message gets the id of this message followed by a colon
+     * and its index in the pack, so the packed messages can be told apart
+     * when they're checked for duplicates.
+     *
+     * @return the messages packed into this one or just this one if it isn't packed
+     * @throws IllegalArgumentException if the frames are malformed
+     */
+    public List<SQSObject> unpack() {
+        if (!isPacked())
+            return Collections.singletonList(this);
+        List<String> messages = PayloadCodec.unpack(getMessage());
+        List<SQSObject> unpacked = new ArrayList<SQSObject>(messages.size());
+        String messageId = getMessageId();
+        for (int i = 0; i < messages.size(); i++) {
+            unpacked.add(new SQSObject(this, messageId + ":" + i, messages.get(i)));
+        }
+        return unpacked;
+    }
+    /**
+     * @return key of the blob the message refers to if the producer checked
+     *         the body in to a blob store, otherwise null
+     */
+    public String getBlobKey() {
+        // the marker's checked on the raw text first so a big message isn't unescaped for nothing
+        if (!PayloadCodec.REFERENCE.equals(getMarker()))
+            return null;
+        return PayloadCodec.getReferenceKey(getMessage());
+    }
+    /**
+     * @return true if the message is binary content the producer encoded
+     */
+    public boolean isBinaryMessage() {
+        return PayloadCodec.isBinaryEncoding(getEncoding());
+    }
+    /**
+     * Undoes the producer's encoding, straight from the envelope's text. Text
+     * is decoded once and kept, binary content is decoded on each call so
+     * everyone that asks gets their own copy.
+     *
+     * @return a byte[] for a binary message, otherwise the message as text
+     * @throws IllegalArgumentException if the message isn't valid for its encoding
+     */
+    public Object getDecodedMessage() {
+        return getDecodedMessage(PayloadCodec.MAX_DECOMPRESSED_SIZE);
+    }
+    /**
+     * @param aMaxSize most bytes a compressed message can decompress to
+     * @throws IllegalArgumentException if the message isn't valid for its encoding or decompresses to more than
+     *             aMaxSize bytes
+     * @see #getDecodedMessage()
+     */
+    public synchronized Object getDecodedMessage(int aMaxSize) {
+        if (mDecodedText != null)
+            return mDecodedText;
+        String encoding = getEncoding();
+        if (encoding == null)
+            return getMessage();
+        Object decoded;
+        try {
+            if (mEnvelope != null) {
+                decoded = PayloadCodec.decodeMessage(mEnvelope.getJson(), getMessageStart(),
+                        mEnvelope.getValueEnd("Message"), encoding, aMaxSize);
+            } else {
+                String message = getMessage();
+                decoded = PayloadCodec.decodeMessage(message, 0, message.length(), encoding, aMaxSize);
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("message " + getMessageId() + " isn't valid " + encoding, e);
+        }
+        if (decoded instanceof String)
+            mDecodedText = (String) decoded;
+        return decoded;
+    }
+    /**
+     * @return the decoded content of a binary message or the UTF-8 bytes of a text message
+     */
+    public byte[] getMessageBytes() {
+        return getMessageBytes(PayloadCodec.MAX_DECOMPRESSED_SIZE);
+    }
+    /**
+     * @param aMaxSize most bytes a compressed message can decompress to
+     * @see #getMessageBytes()
+     */
+    public byte[] getMessageBytes(int aMaxSize) {
+        Object decoded = getDecodedMessage(aMaxSize);
+        if (decoded instanceof byte[])
+            return (byte[]) decoded;
+        try {
+            return ((String) decoded).getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
     public String getSignature() {
         return getString("Signature");
     }
+    public String getSigningCertURL() {
+        return getString("SigningCertURL");
+    }
     public String getSignatureVersion() {
         return getString("SignatureVersion");
     }
     public String toString() {
+        if (mOuter != null)
+            return mInnerId + " " + mInnerMessage;
+        if (mEnvelope != null)
+            return mEnvelope.getJson();
         try {
             return mJO.toString(3);
         } catch (JSONException e) {
@@ -49,7 +245,26 @@ public class SQSObject {
             return "";
         }
     }
+    /**
+     * @return true if the envelope has the field, even if it's empty
+     */
+    public boolean has(String prop) {
+        if (mOuter != null)
+            return mOuter.has(prop);
+        return mEnvelope != null ? mEnvelope.has(prop) : mJO.has(prop);
+    }
     public String getString(String prop) {
+        if (mOuter != null) {
+            if ("MessageId".equals(prop))
+                return mInnerId;
+            if ("Message".equals(prop))
+                return mInnerMessage;
+            return mOuter.getString(prop);
+        }
+        if (mEnvelope != null) {
+            String value = mEnvelope.get(prop);
+            return value == null ? "" : value;
+        }
         try {
             return mJO.getString(prop);
         } catch (JSONException e) {
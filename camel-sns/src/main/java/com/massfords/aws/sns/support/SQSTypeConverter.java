@@ -17,28 +17,32 @@
 
 package com.massfords.aws.sns.support;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
-import java.net.URL;
-import java.security.PublicKey;
-import java.security.Signature;
-import java.security.cert.Certificate;
-import java.security.cert.CertificateFactory;
+import java.nio.ByteBuffer;
 
 import org.apache.camel.Converter;
+import org.apache.camel.Endpoint;
 import org.apache.camel.Exchange;
-import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.json.JSONObject;
+
+import com.massfords.aws.sns.SNSEndpoint;
+import com.massfords.aws.sns.management.FlightEvent;
 
 /**
  * SQS Type Converter is a strategy that converts objects to and from
  * {@link SQSObject}s.
- * 
+ *
+ * Parsing and verifying are recorded as {@link FlightEvent#PARSE} and
+ * {@link FlightEvent#VERIFY} events while JFR is recording.
  */
 @Converter
 public class SQSTypeConverter {
-    private static PublicKey sPublicKey;
+    /** verifier for callers that don't have one of their own, it doesn't cache verdicts */
+    private static final SignatureVerifier sVerifier = new SignatureVerifier(0, new CachingCertificateProvider(null,
+            0));
 
     private static final transient Log LOG = LogFactory.getLog(SQSTypeConverter.class);
 
@@ -57,80 +61,88 @@ public class SQSTypeConverter {
     }
 
     public static SQSObject toSQSObject(String aMessage) throws Exception {
+        return toSQSObject(aMessage, (String) null);
+    }
+
+    /**
+     * @param aEndpointUri uri of the endpoint the message was received by, for the flight recorder event
+     */
+    public static SQSObject toSQSObject(String aMessage, String aEndpointUri) throws Exception {
         if (LOG.isDebugEnabled()) {
             LOG.debug("raw SQSMessage: " + aMessage.toString());
         }
 
-        // FIXME replace with commons-io
-//        byte[] decoded = decode(aMessage);
-//        JSONObject json = new JSONObject(new String(decoded, "UTF-8"));
-        
-        JSONObject json = new JSONObject(aMessage);
-
-        SQSObject sqsObject = new SQSObject(json);
-
-        return sqsObject;
+        Object event = FlightEvent.PARSE.begin();
+        try {
+            return new SQSObject(new SNSEnvelope(aMessage));
+        } finally {
+            FlightEvent.PARSE.commit(event, aEndpointUri, aMessage.length());
+        }
     }
 
-    public static boolean verify(SQSObject aSqsObject) throws Exception {
-        byte[] canonicalString = toCanonicalString(aSqsObject);
-
-        String encodedSig = aSqsObject.getSignature();
-        byte[] signed = decode(encodedSig);
-
-        PublicKey publicKey = getAmazonPublicKey();
-
-        Signature signature = Signature.getInstance("SHA1withRSA");
-        signature.initVerify(publicKey);
+    /**
+     * @return content of the notification's message, decoded if the exchange
+     *         came from an SNS endpoint that decodes its encoding
+     */
+    @Converter
+    public static byte[] toByteArray(SQSObject value, Exchange exchange) {
+        return getMessageBytes(value, exchange);
+    }
 
-        signature.update(canonicalString);
-        boolean verified = signature.verify(signed);
+    @Converter
+    public static InputStream toInputStream(SQSObject value, Exchange exchange) {
+        return new ByteArrayInputStream(getMessageBytes(value, exchange));
+    }
 
-        return verified;
+    @Converter
+    public static ByteBuffer toByteBuffer(SQSObject value, Exchange exchange) {
+        return ByteBuffer.wrap(getMessageBytes(value, exchange));
     }
 
-    private static byte[] toCanonicalString(SQSObject aSqsObject)
-            throws UnsupportedEncodingException {
-        String message = aSqsObject.getMessage();
-        String messageId = aSqsObject.getMessageId();
-        String subject = aSqsObject.getSubject();
-        String timestamp = aSqsObject.getTimestamp();
-        String topicArn = aSqsObject.getTopicArn();
-        String type = aSqsObject.getType();
-
-        StringBuilder sb = new StringBuilder();
-        sb.append("Message\n");
-        sb.append(message).append("\n");
-        sb.append("MessageId\n");
-        sb.append(messageId).append("\n");
-        if (subject != null) {
-            sb.append("Subject\n");
-            sb.append(subject).append("\n");
+    /**
+     * Follows the same rule as the consumer, see
+     * {@link SNSEndpoint#isDecoded(String)}, a marked message is only decoded
+     * if the endpoint the exchange came from has the options for it.
+     *
+     * @return the decoded content of the message or the UTF-8 bytes of its text
+     */
+    private static byte[] getMessageBytes(SQSObject aValue, Exchange aExchange) {
+        Endpoint from = aExchange == null ? null : aExchange.getFromEndpoint();
+        if (from instanceof SNSEndpoint && ((SNSEndpoint) from).isDecoded(aValue.getEncoding())) {
+            try {
+                return aValue.getMessageBytes(((SNSEndpoint) from).getMaxDecompressedSize());
+            } catch (IllegalArgumentException e) {
+                LOG.warn("converting the text of message " + aValue.getMessageId() + ", it couldn't be decoded", e);
+            }
+        }
+        try {
+            return aValue.getMessage().getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
         }
-        sb.append("Timestamp\n");
-        sb.append(timestamp).append("\n");
-        sb.append("TopicArn\n");
-        sb.append(topicArn).append("\n");
-        sb.append("Type\n");
-        sb.append(type).append("\n");
-        byte[] canonicalString = sb.toString().getBytes("UTF-8");
-        return canonicalString;
     }
 
-    private static byte[] decode(String aMessage) {
-        byte[] decoded = Base64.decodeBase64(aMessage);
-        return decoded;
+    public static boolean verify(SQSObject aSqsObject) throws Exception {
+        return verify(sVerifier, aSqsObject, null);
     }
 
-    private static PublicKey getAmazonPublicKey() throws Exception {
-        if (sPublicKey == null) {
-            CertificateFactory cf = CertificateFactory.getInstance("X.509");
-            Certificate cert = cf.generateCertificate(new URL(
-                    "http://sns.us-east-1.amazonaws.com/SimpleNotificationService.pem").openStream());
-            PublicKey publicKey = cert.getPublicKey();
-            sPublicKey = publicKey;
+    /**
+     * @param aEndpointUri uri of the endpoint the message was received by, for the flight recorder event
+     * @return true if the verifier found the message's signature was made by the SNS certificate
+     */
+    public static boolean verify(SignatureVerifier aVerifier, SQSObject aSqsObject, String aEndpointUri)
+            throws Exception {
+        Object event = FlightEvent.VERIFY.begin();
+        boolean verified = false;
+        try {
+            verified = aVerifier.verify(aSqsObject);
+            return verified;
+        } finally {
+            if (event != null) {
+                String message = aSqsObject.getString("Message");
+                FlightEvent.VERIFY.commit(event, aEndpointUri, message == null ? 0 : message.length(), verified);
+            }
         }
-        return sPublicKey;
     }
 
 }
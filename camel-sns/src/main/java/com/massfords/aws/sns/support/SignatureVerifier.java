@@ -0,0 +1,253 @@
+package com.massfords.aws.sns.support;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Verifies the signature SNS puts on each notification. It's safe to share
+ * between threads, each thread keeps its own {@link Signature} and the buffer
+ * the canonical form of the message is encoded into so nothing is created or
+ * initialized per message. A batch is verified in parallel simply by having
+ * the workers that process it call {@link #verify(SQSObject)}.
+ *
+ * Verdicts are cached by message id so a redelivered message skips the RSA
+ * work. The cache entry holds a digest of the signed bytes and the signature,
+ * a message that reuses an id with different content is verified again.
+ */
+public class SignatureVerifier {
+
+    private static final String ALGORITHM = "SHA1withRSA";
+
+    private static final byte[] MESSAGE = ascii("Message\n");
+    private static final byte[] MESSAGE_ID = ascii("MessageId\n");
+    private static final byte[] SUBJECT = ascii("Subject\n");
+    private static final byte[] TIMESTAMP = ascii("Timestamp\n");
+    private static final byte[] TOPIC_ARN = ascii("TopicArn\n");
+    private static final byte[] TYPE = ascii("Type\n");
+
+    /**
+     * Per thread state, the signature is only re-initialized when the key
+     * changes since verify() leaves it ready for the next message.
+     */
+    private static class State {
+        final Signature mSignature;
+        final MessageDigest mDigest;
+        PublicKey mKey;
+        byte[] mBuffer = new byte[2048];
+        int mLength;
+
+        State() throws Exception {
+            mSignature = Signature.getInstance(ALGORITHM);
+            mDigest = MessageDigest.getInstance("SHA-256");
+        }
+
+        void append(byte[] aBytes) {
+            ensureCapacity(aBytes.length);
+            System.arraycopy(aBytes, 0, mBuffer, mLength, aBytes.length);
+            mLength += aBytes.length;
+        }
+
+        /**
+         * Encodes the value as UTF-8 straight into the buffer followed by a newline.
+         */
+        void appendLine(String aValue) {
+            int length = aValue.length();
+            ensureCapacity(length * 3 + 1);
+            byte[] buf = mBuffer;
+            int n = mLength;
+            for (int i = 0; i < length; i++) {
+                char c = aValue.charAt(i);
+                if (c < 0x80) {
+                    buf[n++] = (byte) c;
+                } else if (c < 0x800) {
+                    buf[n++] = (byte) (0xc0 | (c >> 6));
+                    buf[n++] = (byte) (0x80 | (c & 0x3f));
+                } else if (Character.isHighSurrogate(c) && i + 1 < length
+                        && Character.isLowSurrogate(aValue.charAt(i + 1))) {
+                    // a pair of chars has room for 6 bytes, it needs 4
+                    int cp = Character.toCodePoint(c, aValue.charAt(++i));
+                    buf[n++] = (byte) (0xf0 | (cp >> 18));
+                    buf[n++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                    buf[n++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                    buf[n++] = (byte) (0x80 | (cp & 0x3f));
+                } else {
+                    if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE)
+                        c = '?';
+                    buf[n++] = (byte) (0xe0 | (c >> 12));
+                    buf[n++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    buf[n++] = (byte) (0x80 | (c & 0x3f));
+                }
+            }
+            buf[n++] = '\n';
+            mLength = n;
+        }
+
+        private void ensureCapacity(int aExtra) {
+            if (mLength + aExtra > mBuffer.length) {
+                mBuffer = Arrays.copyOf(mBuffer, Math.max(mLength + aExtra, mBuffer.length * 2));
+            }
+        }
+    }
+
+    private static class Verdict {
+        final byte[] mDigest;
+        final boolean mVerified;
+
+        Verdict(byte[] aDigest, boolean aVerified) {
+            mDigest = aDigest;
+            mVerified = aVerified;
+        }
+    }
+
+    private final CertificateProvider mCertificateProvider;
+    private final ThreadLocal<State> mState = new ThreadLocal<State>();
+    private final Map<String, Verdict> mVerdicts;
+    private final AtomicLong mVerified = new AtomicLong();
+    private final AtomicLong mCacheHits = new AtomicLong();
+
+    /**
+     * @param aCacheSize number of verdicts to remember, 0 to disable the cache
+     * @param aCertificateProvider source of the keys the signatures are checked against
+     */
+    public SignatureVerifier(final int aCacheSize, CertificateProvider aCertificateProvider) {
+        mCertificateProvider = aCertificateProvider;
+        if (aCacheSize > 0) {
+            mVerdicts = new LinkedHashMap<String, Verdict>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Verdict> aEldest) {
+                    return size() > aCacheSize;
+                }
+            };
+        } else {
+            mVerdicts = null;
+        }
+    }
+
+    /**
+     * @return true if the message's signature was made by the SNS certificate
+     */
+    public boolean verify(SQSObject aSqsObject) throws Exception {
+        State state = getState();
+        state.mLength = 0;
+        encodeCanonical(aSqsObject, state);
+        byte[] signed = Base64.decodeBase64(aSqsObject.getSignature().getBytes("US-ASCII"));
+
+        String messageId = aSqsObject.getMessageId();
+        byte[] digest = null;
+        if (mVerdicts != null) {
+            state.mDigest.update(state.mBuffer, 0, state.mLength);
+            digest = state.mDigest.digest(signed);
+            Verdict verdict;
+            synchronized (mVerdicts) {
+                verdict = mVerdicts.get(messageId);
+            }
+            if (verdict != null && MessageDigest.isEqual(verdict.mDigest, digest)) {
+                mCacheHits.incrementAndGet();
+                return verdict.mVerified;
+            }
+        }
+
+        PublicKey key = getPublicKey(aSqsObject);
+        if (key == null)
+            return false;
+        if (key != state.mKey) {
+            state.mSignature.initVerify(key);
+            state.mKey = key;
+        }
+        state.mSignature.update(state.mBuffer, 0, state.mLength);
+        boolean verified;
+        try {
+            verified = state.mSignature.verify(signed);
+        } catch (SignatureException e) {
+            // a malformed signature, the signature is initialized again for the next message
+            state.mKey = null;
+            verified = false;
+        }
+        mVerified.incrementAndGet();
+
+        if (mVerdicts != null) {
+            synchronized (mVerdicts) {
+                mVerdicts.put(messageId, new Verdict(digest, verified));
+            }
+        }
+        return verified;
+    }
+
+    /**
+     * @return key the message's signature is checked against, null if its certificate isn't trusted
+     */
+    protected PublicKey getPublicKey(SQSObject aSqsObject) throws Exception {
+        return mCertificateProvider.getPublicKey(aSqsObject.getSigningCertURL());
+    }
+
+    public CertificateProvider getCertificateProvider() {
+        return mCertificateProvider;
+    }
+
+    /**
+     * @return number of messages whose signature was checked, not counting cache hits
+     */
+    public long getVerified() {
+        return mVerified.get();
+    }
+
+    public long getCacheHits() {
+        return mCacheHits.get();
+    }
+
+    /**
+     * @return the bytes SNS signs for the message
+     */
+    public byte[] toCanonicalBytes(SQSObject aSqsObject) throws Exception {
+        State state = getState();
+        state.mLength = 0;
+        encodeCanonical(aSqsObject, state);
+        return Arrays.copyOf(state.mBuffer, state.mLength);
+    }
+
+    private void encodeCanonical(SQSObject aSqsObject, State aState) {
+        aState.append(MESSAGE);
+        // the text as it was signed, the latency stamp included
+        aState.appendLine(aSqsObject.getString("Message"));
+        aState.append(MESSAGE_ID);
+        aState.appendLine(aSqsObject.getMessageId());
+        if (aSqsObject.has("Subject")) {
+            aState.append(SUBJECT);
+            aState.appendLine(aSqsObject.getSubject());
+        }
+        aState.append(TIMESTAMP);
+        aState.appendLine(aSqsObject.getTimestamp());
+        aState.append(TOPIC_ARN);
+        aState.appendLine(aSqsObject.getTopicArn());
+        aState.append(TYPE);
+        aState.appendLine(aSqsObject.getType());
+    }
+
+    private State getState() throws Exception {
+        State state = mState.get();
+        if (state == null) {
+            state = new State();
+            mState.set(state);
+        }
+        return state;
+    }
+
+    private static byte[] ascii(String aValue) {
+        try {
+            return aValue.getBytes("US-ASCII");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
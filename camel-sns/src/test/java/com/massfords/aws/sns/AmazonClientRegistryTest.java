@@ -0,0 +1,74 @@
+package com.massfords.aws.sns;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.apache.camel.impl.DefaultCamelContext;
+import org.junit.Test;
+
+public class AmazonClientRegistryTest {
+
+    private SNSEndpoint createEndpoint(String aAccessKey, Integer aMaxConnections) {
+        SNSEndpoint endpoint = new SNSEndpoint("sns:topicName/myTopic?accessKey=" + aAccessKey,
+                new DefaultCamelContext());
+        endpoint.setAccessKey(aAccessKey);
+        endpoint.setSecretKey("secret");
+        endpoint.setMaxConnections(aMaxConnections);
+        return endpoint;
+    }
+
+    @Test
+    public void testSameSettingsShareClient() {
+        AmazonClientRegistry registry = new AmazonClientRegistry();
+        SNSEndpoint one = createEndpoint("key1", 10);
+        SNSEndpoint two = createEndpoint("key1", 10);
+
+        assertSame(registry.getSNSClient(one), registry.getSNSClient(two));
+        assertSame(registry.getSQSClient(one), registry.getSQSClient(two));
+        assertEquals(2, registry.size());
+    }
+
+    @Test
+    public void testDifferentSettingsUseDifferentClients() {
+        AmazonClientRegistry registry = new AmazonClientRegistry();
+
+        assertNotSame(registry.getSNSClient(createEndpoint("key1", 10)),
+                registry.getSNSClient(createEndpoint("key1", 20)));
+        assertNotSame(registry.getSNSClient(createEndpoint("key1", 10)),
+                registry.getSNSClient(createEndpoint("key2", 10)));
+        assertEquals(3, registry.size());
+    }
+
+    @Test
+    public void testKeyDoesNotPrintAccessKey() {
+        String key = new AmazonClientRegistry.ClientKey(createEndpoint("AKIA1234", 10)).toString();
+        assertEquals("accessKey=hidden&maxConnections=10&socketTimeout=null&connectionTimeout=null&maxErrorRetry=null",
+                key);
+    }
+
+    @Test
+    public void testShutdown() {
+        AmazonClientRegistry registry = new AmazonClientRegistry();
+        SNSEndpoint endpoint = createEndpoint("key1", null);
+        registry.getSNSClient(endpoint);
+        registry.getSQSClient(endpoint);
+
+        registry.shutdown();
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void testComponentOwnsRegistry() throws Exception {
+        DefaultCamelContext context = new DefaultCamelContext();
+        SNSComponent component = new SNSComponent();
+        component.setCamelContext(context);
+        context.addComponent("sns", component);
+
+        SNSEndpoint endpoint = (SNSEndpoint) context
+                .getEndpoint("sns:topicName/myTopic?accessKey=abc&secretKey=def&maxConnections=5");
+        assertEquals(Integer.valueOf(5), endpoint.getMaxConnections());
+        assertSame(component.getClientRegistry(), endpoint.getClientRegistry());
+        assertSame(endpoint.getSNSClient(), endpoint.getSNSClient());
+    }
+}
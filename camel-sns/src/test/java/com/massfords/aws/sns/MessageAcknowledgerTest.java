@@ -0,0 +1,153 @@
+package com.massfords.aws.sns;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.apache.camel.impl.DefaultCamelContext;
+import org.junit.Test;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+
+public class MessageAcknowledgerTest {
+
+    StubSQS mQueue = new StubSQS();
+
+    private MessageAcknowledger createAcknowledger(int aFlushSize, long aFlushInterval) {
+        return new MessageAcknowledger("https://queue.amazonaws.com/123456789012/queue", mQueue.createClient(),
+                aFlushSize, aFlushInterval, 2);
+    }
+
+    private void waitForDeletes(int aCount) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (mQueue.mDeleted.size() < aCount && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testFlushOnFlushSize() throws Exception {
+        MessageAcknowledger acknowledger = createAcknowledger(5, 60000);
+        acknowledger.acquire();
+        for (int i = 0; i < 4; i++) {
+            acknowledger.acknowledge("receipt-" + i);
+        }
+        Thread.sleep(100);
+        assertEquals("nothing should be deleted before the flush size is reached", 0, mQueue.mDeleted.size());
+        assertEquals(4, acknowledger.getPending());
+
+        acknowledger.acknowledge("receipt-4");
+        waitForDeletes(5);
+        assertEquals(5, mQueue.mDeleted.size());
+        assertEquals(5, acknowledger.getAcknowledged());
+        acknowledger.release();
+    }
+
+    @Test
+    public void testFlushOnInterval() throws Exception {
+        MessageAcknowledger acknowledger = createAcknowledger(100, 50);
+        acknowledger.acquire();
+        acknowledger.acknowledge("receipt-1");
+
+        waitForDeletes(1);
+        assertEquals(1, mQueue.mDeleted.size());
+        acknowledger.release();
+    }
+
+    @Test
+    public void testFailedDeletesAreRetried() throws Exception {
+        MessageAcknowledger acknowledger = createAcknowledger(10, 60000);
+        acknowledger.acquire();
+        mQueue.mFailDeletes.set(1);
+        acknowledger.acknowledge("receipt-1");
+        acknowledger.flush();
+
+        assertEquals(1, acknowledger.getPending());
+        assertEquals(1, acknowledger.getRetried());
+
+        acknowledger.flush();
+        assertEquals(0, acknowledger.getPending());
+        assertTrue(mQueue.mDeleted.contains("receipt-1"));
+        acknowledger.release();
+    }
+
+    @Test
+    public void testGivesUpAfterRetries() throws Exception {
+        MessageAcknowledger acknowledger = createAcknowledger(10, 60000);
+        acknowledger.acquire();
+        mQueue.mFailDeletes.set(100);
+        acknowledger.acknowledge("receipt-1");
+
+        acknowledger.release();
+        assertEquals(0, acknowledger.getPending());
+        assertEquals(1, acknowledger.getFailed());
+    }
+
+    @Test
+    public void testLastReleaseFlushes() throws Exception {
+        MessageAcknowledger acknowledger = createAcknowledger(100, 60000);
+        acknowledger.acquire();
+        acknowledger.acquire();
+        acknowledger.acknowledge("receipt-1");
+        acknowledger.acknowledge("receipt-2");
+
+        assertFalse(acknowledger.release());
+        assertEquals(2, acknowledger.getPending());
+
+        assertTrue(acknowledger.release());
+        assertEquals(0, acknowledger.getPending());
+        assertEquals(2, mQueue.mDeleted.size());
+    }
+
+    @Test
+    public void testAcknowledgedAfterReleaseDeletedByCaller() throws Exception {
+        MessageAcknowledger acknowledger = createAcknowledger(100, 60000);
+        acknowledger.acquire();
+        acknowledger.release();
+
+        final String[] thread = new String[1];
+        acknowledger.acknowledge("receipt-1", new Runnable() {
+            public void run() {
+                thread[0] = Thread.currentThread().getName();
+            }
+        });
+        assertEquals(0, acknowledger.getPending());
+        assertTrue(mQueue.mDeleted.contains("receipt-1"));
+        assertEquals(Thread.currentThread().getName(), thread[0]);
+    }
+
+    @Test
+    public void testComponentRejectsConflictingSettings() throws Exception {
+        SNSComponent component = new SNSComponent();
+        component.setCamelContext(new DefaultCamelContext());
+        SNSEndpoint first = createEndpoint(component, 10);
+        SNSEndpoint same = createEndpoint(component, 10);
+        SNSEndpoint different = createEndpoint(component, 20);
+
+        MessageAcknowledger acknowledger = component.acquireAcknowledger(first);
+        assertSame(acknowledger, component.acquireAcknowledger(same));
+        try {
+            component.acquireAcknowledger(different);
+            fail("expected the conflicting flush size to be rejected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("ackFlushSize=10"));
+        }
+        component.releaseAcknowledger(acknowledger);
+        component.releaseAcknowledger(acknowledger);
+    }
+
+    private SNSEndpoint createEndpoint(SNSComponent aComponent, int aFlushSize) {
+        final AmazonSQS client = mQueue.createClient();
+        SNSEndpoint endpoint = new SNSEndpoint("sns:topicName/myTopic?asyncAck=true", aComponent) {
+            @Override
+            public AmazonSQS getSQSClient() {
+                return client;
+            }
+        };
+        endpoint.setQueueURL("https://queue.amazonaws.com/123456789012/queue");
+        endpoint.setAckFlushSize(aFlushSize);
+        return endpoint;
+    }
+}
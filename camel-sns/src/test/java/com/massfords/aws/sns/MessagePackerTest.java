@@ -0,0 +1,131 @@
+package com.massfords.aws.sns;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.junit.After;
+import org.junit.Test;
+
+import com.massfords.aws.sns.support.PayloadCodec;
+
+public class MessagePackerTest {
+
+    List<String> mPublished = Collections.synchronizedList(new ArrayList<String>());
+    List<String> mSubjects = Collections.synchronizedList(new ArrayList<String>());
+    List<Exchange> mCompleted = Collections.synchronizedList(new ArrayList<Exchange>());
+    volatile RuntimeException mFailure;
+    ExecutorService mPool = Executors.newSingleThreadExecutor();
+    ScheduledExecutorService mScheduler = Executors.newSingleThreadScheduledExecutor();
+
+    AsyncCallback mCallback = new AsyncCallback() {
+        public void onTaskCompleted(Exchange aExchange) {
+            mCompleted.add(aExchange);
+        }
+    };
+
+    private MessagePacker createPacker(int aMaxCount, int aMaxBytes, long aLinger) {
+        return new MessagePacker(new MessagePacker.Publisher() {
+            public String publish(String aSubject, String aMessage) {
+                if (mFailure != null)
+                    throw mFailure;
+                mSubjects.add(aSubject);
+                mPublished.add(aMessage);
+                return "id-" + mPublished.size();
+            }
+        }, aMaxCount, aMaxBytes, aLinger, mPool, mScheduler);
+    }
+
+    private Exchange add(MessagePacker aPacker, String aSubject, String aMessage) {
+        Exchange exchange = new DefaultExchange(new DefaultCamelContext());
+        aPacker.add(exchange, aSubject, aMessage, mCallback);
+        return exchange;
+    }
+
+    private void waitFor(List<?> aList, int aSize) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (aList.size() < aSize && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mPool.shutdownNow();
+        mScheduler.shutdownNow();
+    }
+
+    @Test
+    public void testPackedByCount() throws Exception {
+        MessagePacker packer = createPacker(3, 10000, 60000);
+        List<Exchange> exchanges = new ArrayList<Exchange>();
+        for (int i = 0; i < 3; i++) {
+            exchanges.add(add(packer, "subject", "message-" + i));
+        }
+        waitFor(mCompleted, 3);
+
+        assertEquals(1, mPublished.size());
+        assertEquals(PayloadCodec.PACK_MARKER + "9:message-09:message-19:message-2", mPublished.get(0));
+        assertEquals(3, PayloadCodec.unpack(mPublished.get(0)).size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals("id-1:" + i, exchanges.get(i).getIn().getHeader("SNS:MessageId"));
+        }
+        assertEquals(1, packer.getPacksPublished());
+        assertEquals(3, packer.getMessagesPublished());
+    }
+
+    @Test
+    public void testLingerPublishesPartialPack() throws Exception {
+        MessagePacker packer = createPacker(100, 10000, 20);
+        add(packer, "subject", "one");
+        add(packer, "subject", "two");
+        waitFor(mCompleted, 2);
+
+        assertEquals(1, mPublished.size());
+        assertEquals(2, PayloadCodec.unpack(mPublished.get(0)).size());
+    }
+
+    @Test
+    public void testSubjectChangeAndSizePublishOpenPack() throws Exception {
+        MessagePacker packer = createPacker(100, 40, 60000);
+        add(packer, "a", "one");
+        Exchange single = add(packer, "b", "two");
+        add(packer, "b", "three");
+        add(packer, "b", "a message that takes the pack over its size");
+        packer.flush();
+        waitFor(mCompleted, 4);
+
+        assertEquals(3, mPublished.size());
+        assertEquals("a", mSubjects.get(0));
+        assertEquals("a pack of one is published as is", "one", mPublished.get(0));
+        assertEquals(PayloadCodec.PACK_MARKER + "3:two5:three", mPublished.get(1));
+        assertEquals("a message that takes the pack over its size", mPublished.get(2));
+        assertEquals("id-2:0", single.getIn().getHeader("SNS:MessageId"));
+    }
+
+    @Test
+    public void testFailureSetOnEveryExchange() throws Exception {
+        mFailure = new IllegalStateException("throttled");
+        MessagePacker packer = createPacker(2, 10000, 60000);
+        Exchange first = add(packer, "subject", "one");
+        Exchange second = add(packer, "subject", "two");
+        waitFor(mCompleted, 2);
+
+        assertSame(mFailure, first.getException());
+        assertSame(mFailure, second.getException());
+        assertNull(first.getIn().getHeader("SNS:MessageId"));
+        assertTrue(mPublished.isEmpty());
+    }
+}
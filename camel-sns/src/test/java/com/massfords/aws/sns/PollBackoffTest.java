@@ -0,0 +1,51 @@
+package com.massfords.aws.sns;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class PollBackoffTest {
+
+    @Test
+    public void testBacksOffExponentially() {
+        PollBackoff backoff = new PollBackoff(100, 2, 1000);
+        assertTrue(backoff.isPollDue(0));
+
+        backoff.onEmpty(0);
+        assertEquals(100, backoff.getCurrentDelay());
+        backoff.onEmpty(0);
+        assertEquals(200, backoff.getCurrentDelay());
+        backoff.onEmpty(0);
+        assertEquals(400, backoff.getCurrentDelay());
+        assertFalse(backoff.isPollDue(399));
+        assertTrue(backoff.isPollDue(400));
+    }
+
+    @Test
+    public void testCappedAtMaxDelay() {
+        PollBackoff backoff = new PollBackoff(100, 3, 1000);
+        for (int i = 0; i < 10; i++) {
+            backoff.onEmpty(0);
+        }
+        assertEquals(1000, backoff.getCurrentDelay());
+        assertEquals(10, backoff.getEmptyReceives());
+    }
+
+    @Test
+    public void testMessagesReset() {
+        PollBackoff backoff = new PollBackoff(100, 2, 1000);
+        backoff.onEmpty(0);
+        backoff.onEmpty(0);
+        backoff.onMessages();
+
+        assertEquals(0, backoff.getCurrentDelay());
+        assertTrue(backoff.isPollDue(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMultiplierBelowOne() {
+        new PollBackoff(100, 0.5, 1000);
+    }
+}
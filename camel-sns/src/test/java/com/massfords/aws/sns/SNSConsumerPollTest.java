@@ -0,0 +1,489 @@
+package com.massfords.aws.sns;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultUnitOfWork;
+import org.apache.camel.util.ExchangeHelper;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Test;
+
+import com.amazonaws.services.sns.model.PublishRequest;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.massfords.aws.sns.emulator.AWSEmulator;
+import com.massfords.aws.sns.management.ConsumerMetrics;
+import com.massfords.aws.sns.management.LatencyTracker;
+import com.massfords.aws.sns.support.BlobStore;
+import com.massfords.aws.sns.support.FileBlobStore;
+import com.massfords.aws.sns.support.LatencyStamp;
+import com.massfords.aws.sns.support.PayloadCodec;
+
+public class SNSConsumerPollTest {
+
+    StubSQS mQueue = new StubSQS();
+    List<String> mBodies = Collections.synchronizedList(new ArrayList<String>());
+    Set<String> mThreads = Collections.synchronizedSet(new HashSet<String>());
+    SNSConsumer mConsumer;
+    long mMaxBackoffDelay;
+    int mConcurrentConsumers = 1;
+    String mFilterSubjectPrefix;
+    BlobStore mBlobStore;
+    boolean mTrackLatency;
+    int mPackSize = 1;
+    boolean mBinaryBodies;
+    /** keeps the scheduler out of the way by default, most of the tests drive poll() themselves */
+    long mInitialDelay = 60 * 60 * 1000;
+
+    private SNSConsumer createConsumer(int aMaxMessagesPerPoll, Processor aProcessor) throws Exception {
+        return createConsumer(aMaxMessagesPerPoll, false, aProcessor);
+    }
+
+    private SNSConsumer createConsumer(int aMaxMessagesPerPoll, boolean aAsyncAck, Processor aProcessor)
+            throws Exception {
+        final AmazonSQS client = mQueue.createClient();
+        SNSEndpoint endpoint = new SNSEndpoint("sns:arn:aws:sns:us-east-1:123456789012:topic?accessKey=a",
+                new DefaultCamelContext()) {
+            @Override
+            public AmazonSQS getSQSClient() {
+                return client;
+            }
+        };
+        endpoint.setQueueURL("https://queue.amazonaws.com/123456789012/queue");
+        endpoint.setMaxMessagesPerPoll(aMaxMessagesPerPoll);
+        endpoint.setIdempotent(true);
+        endpoint.setAsyncAck(aAsyncAck);
+        endpoint.setAckFlushSize(100);
+        endpoint.setAckFlushInterval(60000);
+        endpoint.setMaxBackoffDelay(mMaxBackoffDelay);
+        endpoint.setConcurrentConsumers(mConcurrentConsumers);
+        endpoint.setFilterSubjectPrefix(mFilterSubjectPrefix);
+        endpoint.setBlobStore(mBlobStore);
+        endpoint.setDeleteBlobs(true);
+        endpoint.setTrackLatency(mTrackLatency);
+        endpoint.setPackSize(mPackSize);
+        endpoint.setBinaryBodies(mBinaryBodies);
+        mConsumer = (SNSConsumer) endpoint.createConsumer(aProcessor);
+        mConsumer.setInitialDelay(mInitialDelay);
+        mConsumer.setDelay(10);
+        mConsumer.doStart();
+        return mConsumer;
+    }
+
+    private Processor collectingProcessor() {
+        return new Processor() {
+            public void process(Exchange aExchange) throws Exception {
+                String body = aExchange.getIn().getBody(String.class);
+                if (body.startsWith("fail"))
+                    throw new IllegalStateException(body);
+                mThreads.add(Thread.currentThread().getName());
+                // give the other workers a chance to pick up a message
+                Thread.sleep(20);
+                mBodies.add(body);
+            }
+        };
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mConsumer != null)
+            mConsumer.doStop();
+    }
+
+    @Test
+    public void testBatchesDrainQueue() throws Exception {
+        for (int i = 0; i < 25; i++) {
+            mQueue.withNotification("subject", "body-" + i);
+        }
+        createConsumer(10, collectingProcessor()).poll();
+
+        assertEquals(25, mBodies.size());
+        assertEquals(25, mQueue.mDeleted.size());
+        assertEquals("keeps polling while batches are full", 3, mQueue.mReceiveCalls.get());
+        assertTrue("expected the batch to be processed in parallel", mThreads.size() > 1);
+    }
+
+    @Test
+    public void testSingleMessagePerPoll() throws Exception {
+        mQueue.withNotification("subject", "body-1");
+        createConsumer(1, collectingProcessor()).poll();
+
+        assertEquals(1, mBodies.size());
+        assertEquals(1, mQueue.mDeleted.size());
+    }
+
+    @Test
+    public void testFailedMessageIsNotDeleted() throws Exception {
+        mQueue.withNotification("subject", "body-1");
+        mQueue.withNotification("subject", "fail-2");
+        mQueue.withNotification("subject", "body-3");
+        try {
+            createConsumer(10, collectingProcessor()).poll();
+            fail("expected the processing failure to be reported");
+        } catch (IllegalStateException e) {
+            assertEquals("fail-2", e.getMessage());
+        }
+
+        assertEquals(2, mBodies.size());
+        assertEquals(2, mQueue.mDeleted.size());
+        assertFalse(mQueue.mDeleted.contains("receipt-2"));
+        assertFalse("failed message should be processed when it's redelivered", mConsumer.getEndpoint()
+                .getIdempotentRepository().contains("sns-2"));
+        assertTrue(mConsumer.getEndpoint().getIdempotentRepository().contains("sns-3"));
+    }
+
+    @Test
+    public void testFilteredMessagesDeletedWithoutExchange() throws Exception {
+        mFilterSubjectPrefix = "order-";
+        mQueue.withNotification("order-1", "body-1");
+        mQueue.withNotification("invoice-2", "body-2");
+        mQueue.withNotification("order-3", "body-3");
+        SNSConsumer consumer = createConsumer(10, collectingProcessor());
+        consumer.poll();
+
+        assertEquals(2, mBodies.size());
+        assertFalse(mBodies.contains("body-2"));
+        assertEquals("filtered messages are deleted too", 3, mQueue.mDeleted.size());
+        assertEquals(1, consumer.getFilteredCount());
+        assertEquals(2, consumer.getDeliveredCount());
+    }
+
+    @Test
+    public void testDuplicateIsDeleted() throws Exception {
+        mQueue.withNotification("subject", "body-1");
+        String body = mQueue.mMessages.peek().getBody();
+        mQueue.withBody("dup", body);
+        createConsumer(1, collectingProcessor()).poll();
+
+        assertEquals(1, mBodies.size());
+        assertEquals(2, mQueue.mDeleted.size());
+    }
+
+    @Test
+    public void testMetricsRegisteredWhileRunning() throws Exception {
+        mQueue.withNotification("subject", "body-1");
+        String body = mQueue.mMessages.peek().getBody();
+        mQueue.withBody("dup", body);
+        createConsumer(1, collectingProcessor()).poll();
+
+        ConsumerMetrics metrics = mConsumer.getEndpoint().getConsumerMetrics();
+        assertEquals(3, metrics.getReceiveCount());
+        assertEquals(1, metrics.getEmptyReceiveCount());
+        assertEquals(1 / 3.0, metrics.getEmptyReceiveRatio(), 0.001);
+        assertEquals(2, metrics.getMessagesReceivedCount());
+        assertEquals(1, metrics.getDeliveredCount());
+        assertEquals(1, metrics.getDuplicateCount());
+        assertEquals(2, metrics.getDeleteCount());
+        assertEquals(0, metrics.getInFlight());
+        assertTrue("the route sleeps for 20ms", metrics.getProcessingLatencyMax() >= 20);
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertTrue(metrics.isRegistered());
+        assertEquals(1L, server.getAttribute(metrics.getObjectName(), "DeliveredCount"));
+        assertFalse("credentials are left out of the name", metrics.getObjectName().toString().contains("accessKey=a"));
+
+        mConsumer.doStop();
+        mConsumer = null;
+        assertFalse(server.isRegistered(metrics.getObjectName()));
+    }
+
+    @Test
+    public void testLatencyRecordedByTopic() throws Exception {
+        mTrackLatency = true;
+        long sentTime = LatencyStamp.currentTimeMicros() - 5000;
+        mQueue.withNotification("subject", LatencyStamp.stamp("body-1", sentTime, "cid-1"));
+        mQueue.withNotification("subject", "unstamped");
+        createConsumer(1, collectingProcessor()).poll();
+
+        assertEquals(Arrays.asList("body-1", "unstamped"), mBodies);
+        LatencyTracker latency = mConsumer.getEndpoint().getConsumerMetrics().getLatencyTracker();
+        String topicArn = "arn:aws:sns:us-east-1:123456789012:topic";
+        assertEquals(Collections.singleton(topicArn), latency.getTopics());
+        assertEquals("only the stamped message has an end to end latency", 1, latency.getEndToEnd(topicArn)
+                .getCount());
+        assertTrue(latency.getEndToEnd(topicArn).getMax() >= 5000);
+        assertEquals(2, latency.getQueueDwell(topicArn).getCount());
+        assertTrue("the stub's notifications are from 2010", latency.getQueueDwell(topicArn).getMax() > 1e12);
+    }
+
+    @Test
+    public void testStampLeftInTheBodyWithoutTrackLatency() throws Exception {
+        String stamped = LatencyStamp.stamp("body-1", LatencyStamp.currentTimeMicros(), "cid-1");
+        mQueue.withNotification("subject", stamped);
+        mQueue.withNotification("subject", "{sns:ts=not a stamp}");
+        createConsumer(1, collectingProcessor()).poll();
+
+        assertEquals(Arrays.asList(stamped, "{sns:ts=not a stamp}"), mBodies);
+    }
+
+    @Test
+    public void testCheckedInBodyReadAndDeletedAfterAck() throws Exception {
+        File directory = File.createTempFile("blobs", "");
+        directory.delete();
+        mBlobStore = new FileBlobStore(directory);
+        try {
+            String first = mBlobStore.put(ByteBuffer.wrap("checked in body".getBytes("UTF-8")));
+            String second = mBlobStore.put(ByteBuffer.wrap("batched body".getBytes("UTF-8")));
+            mQueue.withNotification("subject", PayloadCodec.reference(first));
+            createConsumer(1, collectingProcessor()).poll();
+
+            assertEquals("checked in body", mBodies.get(0));
+            assertEquals(1, mQueue.mDeleted.size());
+            assertFalse(new File(directory, first).exists());
+
+            mConsumer.doStop();
+            mQueue.withNotification("subject", PayloadCodec.reference(second));
+            createConsumer(1, true, collectingProcessor()).poll();
+            assertEquals("batched body", mBodies.get(1));
+            assertTrue("kept until the message is deleted", new File(directory, second).exists());
+            mConsumer.doStop();
+            mConsumer = null;
+            assertFalse(new File(directory, second).exists());
+        } finally {
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void testCheckedInBodyClosedWhenTheExchangeIsDone() throws Exception {
+        File directory = File.createTempFile("blobs", "");
+        directory.delete();
+        mBlobStore = new FileBlobStore(directory);
+        try {
+            String key = mBlobStore.put(ByteBuffer.wrap("async body".getBytes("UTF-8")));
+            mQueue.withNotification("subject", PayloadCodec.reference(key));
+            final List<Exchange> handedOver = new ArrayList<Exchange>();
+            createConsumer(1, new Processor() {
+                public void process(Exchange aExchange) throws Exception {
+                    // what threads() and seda do, the route goes on with the copy on another thread
+                    handedOver.add(ExchangeHelper.createCorrelatedCopy(aExchange, true));
+                }
+            }).poll();
+
+            Exchange copy = handedOver.get(0);
+            InputStream body = copy.getIn().getBody(InputStream.class);
+            assertEquals("still open after process returned", "async body", IOUtils.toString(body));
+            DefaultUnitOfWork unitOfWork = new DefaultUnitOfWork(copy);
+            copy.setUnitOfWork(unitOfWork);
+            unitOfWork.done(copy);
+            try {
+                body.read();
+                fail("closed once the exchange is done");
+            } catch (IOException e) {
+                // expected
+            }
+        } finally {
+            mConsumer.doStop();
+            mConsumer = null;
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void testPackedMessagesAreSeparateExchanges() throws Exception {
+        StringBuilder pack = new StringBuilder(PayloadCodec.PACK_MARKER);
+        PayloadCodec.appendFrame(pack, "body-a");
+        PayloadCodec.appendFrame(pack, "fail-b");
+        PayloadCodec.appendFrame(pack, "body-c");
+        mQueue.withNotification("subject", pack.toString());
+        String body = mQueue.mMessages.peek().getBody();
+        mPackSize = 10;
+        SNSConsumer consumer = createConsumer(1, collectingProcessor());
+        try {
+            consumer.poll();
+            fail("expected the processing failure to be reported");
+        } catch (IllegalStateException e) {
+            assertEquals("fail-b", e.getMessage());
+        }
+        assertEquals("the rest of the pack is processed", Arrays.asList("body-a", "body-c"), mBodies);
+        assertTrue(mQueue.mDeleted.isEmpty());
+        assertEquals(3, consumer.getDeliveredCount());
+
+        // redelivered, the packed messages that were processed are skipped as duplicates
+        mQueue.withBody("1", body.replace("fail-b", "body-b"));
+        consumer.poll();
+        assertEquals(Arrays.asList("body-a", "body-c", "body-b"), mBodies);
+        assertEquals(1, mQueue.mDeleted.size());
+    }
+
+    @Test
+    public void testMarkedBodiesDecodedOnlyWithTheProducerOptions() throws Exception {
+        StringBuilder pack = new StringBuilder(PayloadCodec.PACK_MARKER);
+        PayloadCodec.appendFrame(pack, "body-a");
+        PayloadCodec.appendFrame(pack, "body-b");
+        String encoded = PayloadCodec.encode("bytes".getBytes("UTF-8"));
+        mQueue.withNotification("subject", pack.toString());
+        mQueue.withNotification("subject", encoded);
+        createConsumer(1, collectingProcessor()).poll();
+
+        assertEquals(Arrays.asList(pack.toString(), encoded), mBodies);
+        assertEquals(2, mQueue.mDeleted.size());
+    }
+
+    @Test
+    public void testMalformedMarkedBodiesSentAsText() throws Exception {
+        String pack = PayloadCodec.PACK_MARKER + "99:short";
+        String encoded = PayloadCodec.BASE64_MARKER + "not base64!";
+        mQueue.withNotification("subject", pack);
+        mQueue.withNotification("subject", encoded);
+        mPackSize = 10;
+        mBinaryBodies = true;
+        createConsumer(1, collectingProcessor()).poll();
+
+        assertEquals(Arrays.asList(pack, encoded), mBodies);
+        assertEquals(2, mQueue.mDeleted.size());
+    }
+
+    @Test
+    public void testAsyncAcknowledgementsFlushedOnStop() throws Exception {
+        for (int i = 0; i < 7; i++) {
+            mQueue.withNotification("subject", "body-" + i);
+        }
+        SNSConsumer consumer = createConsumer(10, true, collectingProcessor());
+        consumer.poll();
+
+        assertEquals(7, mBodies.size());
+        assertEquals(7, consumer.getAcknowledger().getPending());
+        assertEquals(0, mQueue.mDeleted.size());
+
+        consumer.doStop();
+        mConsumer = null;
+        assertEquals(7, mQueue.mDeleted.size());
+    }
+
+    @Test
+    public void testBackoffDrainsThenSkipsPolls() throws Exception {
+        for (int i = 0; i < 15; i++) {
+            mQueue.withNotification("subject", "body-" + i);
+        }
+        mMaxBackoffDelay = 60000;
+        SNSConsumer consumer = createConsumer(10, collectingProcessor());
+        consumer.poll();
+
+        assertEquals(15, mBodies.size());
+        assertEquals("polls back to back until the queue is empty", 3, mQueue.mReceiveCalls.get());
+        assertEquals(1, consumer.getBackoff().getEmptyReceives());
+
+        consumer.poll();
+        assertEquals("poll should be skipped while backing off", 3, mQueue.mReceiveCalls.get());
+    }
+
+    @Test
+    public void testConcurrentConsumers() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            mQueue.withNotification("subject", "body-" + i);
+        }
+        mConcurrentConsumers = 3;
+        mInitialDelay = 0;
+        final CyclicBarrier barrier = new CyclicBarrier(3);
+        SNSConsumer consumer = createConsumer(1, new Processor() {
+            public void process(Exchange aExchange) throws Exception {
+                // only trips if all three receive loops are processing at the same time
+                barrier.await(5, TimeUnit.SECONDS);
+                mThreads.add(Thread.currentThread().getName());
+                mBodies.add(aExchange.getIn().getBody(String.class));
+            }
+        });
+        long deadline = System.currentTimeMillis() + 5000;
+        while (mQueue.mDeleted.size() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(3, mBodies.size());
+        assertEquals(3, mThreads.size());
+        assertSame("the consumers share the endpoint's pool", consumer.getEndpoint().getExecutorService(),
+                consumer.getEndpoint().getExecutorService());
+    }
+
+    @Test
+    public void testRestartedConsumerKeepsPolling() throws Exception {
+        AWSEmulator emulator = new AWSEmulator();
+        SNSComponent component = new SNSComponent();
+        component.setCamelContext(new DefaultCamelContext());
+        component.setClientSource(emulator);
+        component.start();
+        SNSEndpoint endpoint = (SNSEndpoint) component.createEndpoint("sns:topicName/orders?accessKey=a"
+                + "&secretKey=b&queueName=orders-queue&unsubscribeOnStop=false&concurrentConsumers=2&jmx=false");
+        SNSConsumer consumer = (SNSConsumer) endpoint.createConsumer(collectingProcessor());
+        consumer.setInitialDelay(0);
+        consumer.setDelay(10);
+        try {
+            consumer.start();
+            ExecutorService executor = endpoint.getExecutorService();
+            consumer.stop();
+            assertTrue("released with the last consumer", executor.isShutdown());
+
+            consumer.start();
+            assertNotSame(executor, endpoint.getExecutorService());
+            emulator.getSNSClient().publish(
+                    new PublishRequest().withTopicArn(endpoint.getTopicArn()).withMessage("after restart"));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (mBodies.isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(Arrays.asList("after restart"), mBodies);
+            executor = endpoint.getExecutorService();
+            consumer.stop();
+            assertTrue(executor.isShutdown());
+        } finally {
+            component.stop();
+        }
+    }
+
+    @Test
+    public void testRestartedContextKeepsPolling() throws Exception {
+        AWSEmulator emulator = new AWSEmulator();
+        SNSComponent component = new SNSComponent();
+        component.setClientSource(emulator);
+        DefaultCamelContext context = new DefaultCamelContext();
+        context.addComponent("sns", component);
+        final String uri = "sns:topicName/orders?accessKey=a&secretKey=b&queueName=orders-queue"
+                + "&unsubscribeOnStop=false&concurrentConsumers=2&jmx=false&initialDelay=0&delay=10";
+        context.addRoutes(new RouteBuilder() {
+            @Override
+            public void configure() throws Exception {
+                from(uri).process(collectingProcessor());
+            }
+        });
+        SNSEndpoint endpoint = (SNSEndpoint) context.getEndpoint(uri);
+        try {
+            context.start();
+            context.stop();
+            context.start();
+            emulator.getSNSClient().publish(
+                    new PublishRequest().withTopicArn(endpoint.getTopicArn()).withMessage("after restart"));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (mBodies.isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(Arrays.asList("after restart"), mBodies);
+        } finally {
+            context.stop();
+        }
+    }
+}
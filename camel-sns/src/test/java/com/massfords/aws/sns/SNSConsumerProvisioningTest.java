@@ -0,0 +1,253 @@
+package com.massfords.aws.sns;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.camel.Endpoint;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.sns.AmazonSNS;
+import com.amazonaws.services.sns.model.ListSubscriptionsByTopicResult;
+import com.amazonaws.services.sns.model.SubscribeResult;
+import com.amazonaws.services.sns.model.Subscription;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.CreateQueueResult;
+import com.amazonaws.services.sqs.model.GetQueueAttributesResult;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+
+public class SNSConsumerProvisioningTest {
+
+    static final String TOPIC_ARN = "arn:aws:sns:us-east-1:123456789012:topic";
+    static final String QUEUE_ARN = "arn:aws:sqs:us-east-1:123456789012:queue";
+
+    List<String> mCalls = Collections.synchronizedList(new ArrayList<String>());
+    List<Subscription> mExistingSubscriptions = new ArrayList<Subscription>();
+    AtomicInteger mReceives = new AtomicInteger();
+    /** number of upcoming receives that find the queue gone */
+    AtomicInteger mMissingQueue = new AtomicInteger();
+    /** number of upcoming subscription listings that find the topic gone */
+    AtomicInteger mMissingTopic = new AtomicInteger();
+    volatile CountDownLatch mProvisioningGate = new CountDownLatch(0);
+    File mCacheFile;
+    List<SNSComponent> mComponents = new ArrayList<SNSComponent>();
+
+    @Before
+    public void setUp() throws Exception {
+        mCacheFile = File.createTempFile("sns-provisioning", ".properties");
+        mCacheFile.delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (SNSComponent component : mComponents) {
+            component.stop();
+        }
+        mCacheFile.delete();
+    }
+
+    private Object stub(Class<?> aType) {
+        return Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { aType }, new InvocationHandler() {
+            public Object invoke(Object aProxy, Method aMethod, Object[] aArgs) throws Throwable {
+                String name = aMethod.getName();
+                if (name.equals("receiveMessage")) {
+                    mReceives.incrementAndGet();
+                    if (mMissingQueue.getAndDecrement() > 0)
+                        throw notFound("AWS.SimpleQueueService.NonExistentQueue");
+                    return new ReceiveMessageResult();
+                }
+                mCalls.add(name);
+                if (name.equals("createQueue")) {
+                    mProvisioningGate.await();
+                    return new CreateQueueResult().withQueueUrl("https://queue.amazonaws.com/123456789012/queue");
+                }
+                if (name.equals("getQueueAttributes"))
+                    return new GetQueueAttributesResult().withAttributes(Collections.singletonMap("QueueArn", QUEUE_ARN));
+                if (name.equals("listSubscriptionsByTopic") && mMissingTopic.getAndDecrement() > 0)
+                    throw notFound("NotFound");
+                if (name.equals("listSubscriptionsByTopic"))
+                    return new ListSubscriptionsByTopicResult().withSubscriptions(mExistingSubscriptions);
+                if (name.equals("subscribe"))
+                    return new SubscribeResult().withSubscriptionArn(TOPIC_ARN + ":sub-1");
+                return null;
+            }
+        });
+    }
+
+    private static AmazonServiceException notFound(String aCode) {
+        AmazonServiceException e = new AmazonServiceException("doesn't exist");
+        e.setErrorCode(aCode);
+        return e;
+    }
+
+    private void awaitProvisioned(SNSConsumer aConsumer) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!aConsumer.isProvisioned() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    private SNSConsumer startConsumer(String aOptions) throws Exception {
+        final AmazonSNS sns = (AmazonSNS) stub(AmazonSNS.class);
+        final AmazonSQS sqs = (AmazonSQS) stub(AmazonSQS.class);
+        SNSComponent component = new SNSComponent() {
+            @Override
+            protected Endpoint createEndpoint(String aUri, String aRemaining, Map aParams) throws Exception {
+                return new SNSEndpoint(aUri, this) {
+                    @Override
+                    public AmazonSNS getSNSClient() {
+                        return sns;
+                    }
+
+                    @Override
+                    public AmazonSQS getSQSClient() {
+                        return sqs;
+                    }
+                };
+            }
+        };
+        component.setCamelContext(new DefaultCamelContext());
+        component.start();
+        mComponents.add(component);
+
+        Endpoint endpoint = component.createEndpoint("sns:" + TOPIC_ARN + "?accessKey=a&secretKey=b&queueName=queue"
+                + "&provisioningCache=" + mCacheFile.getPath() + aOptions);
+        SNSConsumer consumer = (SNSConsumer) endpoint.createConsumer(new Processor() {
+            public void process(Exchange aExchange) throws Exception {
+            }
+        });
+        consumer.setInitialDelay(60 * 60 * 1000);
+        consumer.start();
+        return consumer;
+    }
+
+    private SNSConsumer startProvisionedConsumer(String aOptions) throws Exception {
+        SNSConsumer consumer = startConsumer(aOptions);
+        awaitProvisioned(consumer);
+        return consumer;
+    }
+
+    @Test
+    public void testWarmRestartSkipsControlPlane() throws Exception {
+        SNSConsumer consumer = startProvisionedConsumer("&unsubscribeOnStop=false");
+        assertEquals(TOPIC_ARN + ":sub-1", consumer.getSubscriptionArn());
+        assertEquals(5, mCalls.size());
+        assertTrue(mCalls.contains("createQueue"));
+        assertTrue(mCalls.contains("subscribe"));
+        consumer.stop();
+        assertFalse("subscription should be left in place", mCalls.contains("unsubscribe"));
+
+        mCalls.clear();
+        consumer = startProvisionedConsumer("&unsubscribeOnStop=false");
+        assertEquals("warm restart shouldn't touch the control plane", 0, mCalls.size());
+        assertEquals(QUEUE_ARN, consumer.getEndpoint().getQueueArn());
+        assertEquals("https://queue.amazonaws.com/123456789012/queue", consumer.getEndpoint().getQueueURL());
+        assertEquals(TOPIC_ARN + ":sub-1", consumer.getSubscriptionArn());
+        consumer.stop();
+    }
+
+    @Test
+    public void testUnsubscribeOnStopDropsCachedSubscription() throws Exception {
+        SNSConsumer consumer = startProvisionedConsumer("");
+        consumer.stop();
+        assertTrue(mCalls.contains("unsubscribe"));
+
+        mCalls.clear();
+        consumer = startProvisionedConsumer("");
+        assertEquals("only the subscription is resolved again", 2, mCalls.size());
+        assertTrue(mCalls.contains("subscribe"));
+        consumer.stop();
+    }
+
+    @Test
+    public void testMissingQueueProvisionedAgain() throws Exception {
+        SNSConsumer consumer = startProvisionedConsumer("&unsubscribeOnStop=false");
+        consumer.stop();
+        mCalls.clear();
+        consumer = startProvisionedConsumer("&unsubscribeOnStop=false");
+        assertEquals(0, mCalls.size());
+
+        mMissingQueue.set(1);
+        try {
+            consumer.poll();
+            fail("the queue is gone");
+        } catch (AmazonServiceException e) {
+        }
+        awaitProvisioned(consumer);
+        assertTrue("the queue is created again " + mCalls, mCalls.contains("createQueue"));
+        assertTrue(mCalls.contains("setQueueAttributes"));
+        assertTrue(mCalls.contains("subscribe"));
+        assertEquals(TOPIC_ARN + ":sub-1", consumer.getSubscriptionArn());
+        consumer.poll();
+        assertEquals(2, mReceives.get());
+        consumer.stop();
+
+        mCalls.clear();
+        consumer = startProvisionedConsumer("&unsubscribeOnStop=false");
+        assertEquals("the new values are cached", 0, mCalls.size());
+        consumer.stop();
+    }
+
+    @Test
+    public void testStaleCacheProvisionedAgain() throws Exception {
+        SNSConsumer consumer = startProvisionedConsumer("");
+        consumer.stop();
+        mCalls.clear();
+
+        mMissingTopic.set(1);
+        consumer = startProvisionedConsumer("");
+        assertTrue("the cached queue is dropped " + mCalls, mCalls.contains("createQueue"));
+        assertTrue(mCalls.contains("subscribe"));
+        assertEquals(TOPIC_ARN + ":sub-1", consumer.getSubscriptionArn());
+        consumer.stop();
+    }
+
+    @Test
+    public void testExistingSubscriptionReused() throws Exception {
+        mExistingSubscriptions.add(new Subscription().withProtocol("sqs").withEndpoint(QUEUE_ARN)
+                .withSubscriptionArn(TOPIC_ARN + ":existing").withTopicArn(TOPIC_ARN));
+        SNSConsumer consumer = startProvisionedConsumer("&unsubscribeOnStop=false");
+
+        assertEquals(TOPIC_ARN + ":existing", consumer.getSubscriptionArn());
+        assertFalse(mCalls.contains("subscribe"));
+        consumer.stop();
+    }
+
+    @Test
+    public void testPollSkippedUntilProvisioned() throws Exception {
+        mProvisioningGate = new CountDownLatch(1);
+        SNSConsumer consumer = startConsumer("");
+        assertFalse("start shouldn't wait on provisioning", consumer.isProvisioned());
+        assertNull(consumer.getSubscriptionArn());
+        consumer.poll();
+        assertEquals(0, mReceives.get());
+
+        mProvisioningGate.countDown();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!consumer.isProvisioned() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        consumer.poll();
+        assertEquals(1, mReceives.get());
+        consumer.stop();
+    }
+}
@@ -2,6 +2,7 @@ package com.massfords.aws.sns;
 
 import static org.junit.Assert.assertEquals;
 
+import org.apache.camel.impl.DefaultCamelContext;
 import org.junit.Test;
 
 import com.massfords.aws.sns.SNSEndpoint;
@@ -46,5 +47,19 @@ public class SNSEndpointTest {
         String expected = "sns:topicName/myTopic?someParam=foo&accessKey=hidden&secretKey=hidden";
         String actual = SNSEndpoint.stripCredentials(endpointURI);
         assertEquals(expected, actual);
+        assertEquals("sns:topicName/myTopic?accessKey=hidden&secretKey=hidden&delay=500", SNSEndpoint.stripCredentials(
+                "sns:topicName/myTopic?accessKey=AKIA1&secretKey=wJal%2FK7M%2BbPx&delay=500"));
+        assertEquals("sns:topicName/myTopic?secretKey=hidden", SNSEndpoint.stripCredentials(
+                "sns:topicName/myTopic?secretKey=wJal/K7M+bPx"));
+    }
+
+    @Test
+    public void testContentFilterInUri() throws Exception {
+        SNSComponent component = new SNSComponent();
+        component.setCamelContext(new DefaultCamelContext());
+        SNSEndpoint endpoint = (SNSEndpoint) component.createEndpoint(
+                "sns:topicName/myTopic?accessKey=a&contentFilter=//Priority = 'Rush'&filterSubjectPrefix=message-");
+        assertEquals("//Priority = 'Rush'", endpoint.getContentFilter());
+        assertEquals("message-", endpoint.getFilterSubjectPrefix());
     }
 }
@@ -0,0 +1,168 @@
+package com.massfords.aws.sns;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.junit.Test;
+
+import com.massfords.aws.sns.support.CompressionCodecs;
+import com.massfords.aws.sns.support.LatencyStamp;
+import com.massfords.aws.sns.support.PayloadCodec;
+import com.massfords.aws.sns.support.SNSEnvelope;
+import com.massfords.aws.sns.support.SQSObject;
+import com.massfords.aws.sns.support.SQSTypeConverter;
+
+public class SNSMessageTest {
+
+    static class ObservedMessage extends SNSMessage {
+        ObservedMessage(SQSObject aSqsObject) {
+            super(aSqsObject);
+        }
+
+        boolean isHeaderMapCreated() {
+            return hasPopulatedHeaders();
+        }
+    }
+
+    private ObservedMessage createMessage() throws Exception {
+        StubSQS queue = new StubSQS().withNotification("the \"subject\"", "<Order/>");
+        ObservedMessage message = new ObservedMessage(new SQSObject(new SNSEnvelope(queue.mMessages.peek().getBody())));
+        Exchange exchange = new DefaultExchange(new DefaultCamelContext());
+        exchange.setIn(message);
+        return message;
+    }
+
+    @Test
+    public void testHeadersReadWithoutCreatingMap() throws Exception {
+        ObservedMessage message = createMessage();
+        assertEquals("the \"subject\"", message.getHeader("SNS:Subject"));
+        assertEquals("header names aren't case sensitive", "Notification", message.getHeader("sns:type"));
+        assertEquals("", message.getHeader("SNS:UnsubscribeURL"));
+        assertNull(message.getHeader("SNS:Unknown"));
+        assertNull(message.getHeader("CamelFileName"));
+        assertFalse(message.isHeaderMapCreated());
+        assertEquals("sns-1", message.getMessageId());
+    }
+
+    @Test
+    public void testAllHeaders() throws Exception {
+        SNSMessage message = createMessage();
+        message.setHeader("custom", "value");
+        assertEquals(SNSMessage.HEADERS.length + 1, message.getHeaders().size());
+        assertEquals("the \"subject\"", message.getHeader("SNS:Subject"));
+        assertEquals("value", message.getHeader("custom"));
+        assertEquals("arn:aws:sns:us-east-1:123456789012:topic", message.getHeader("SNS:TopicArn", String.class));
+    }
+
+    @Test
+    public void testMessageHeaderIsTheBody() throws Exception {
+        SNSMessage message = createMessage();
+        Object body = message.getBody();
+        assertEquals("<Order/>", body);
+        assertSame(body, message.getHeader("SNS:Message"));
+        assertSame(body, message.getHeaders().get("SNS:Message"));
+    }
+
+    @Test
+    public void testBinaryBodyDecoded() throws Exception {
+        byte[] bytes = new byte[300];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+        }
+        StubSQS queue = new StubSQS().withNotification("binary", PayloadCodec.encode(bytes));
+        String json = queue.mMessages.peek().getBody();
+        SNSMessage message = new SNSMessage(new SQSObject(new SNSEnvelope(json)));
+        Exchange exchange = new DefaultExchange(new DefaultCamelContext());
+        exchange.setIn(message);
+
+        assertArrayEquals(bytes, (byte[]) message.getBody());
+        assertTrue(message.getHeader("SNS:Message", String.class).startsWith(PayloadCodec.BASE64_MARKER));
+        assertArrayEquals(bytes, message.getBody(ByteBuffer.class).array());
+
+        SNSMessage encoded = new SNSMessage(new SQSObject(new SNSEnvelope(json)), false);
+        assertTrue(encoded.getBody() instanceof String);
+    }
+
+    @Test
+    public void testConvertersDecodeOnlyWithTheEndpointsOptions() throws Exception {
+        byte[] bytes = { 0, 1, 2, (byte) 0xff };
+        String encoded = PayloadCodec.encode(bytes);
+        StubSQS queue = new StubSQS().withNotification("binary", encoded);
+        SQSObject sqsObject = new SQSObject(new SNSEnvelope(queue.mMessages.peek().getBody()));
+        SNSEndpoint endpoint = new SNSEndpoint("sns:topic", new DefaultCamelContext());
+
+        assertArrayEquals("no exchange", encoded.getBytes("UTF-8"), SQSTypeConverter.toByteArray(sqsObject, null));
+        assertArrayEquals("binaryBodies is off", encoded.getBytes("UTF-8"), SQSTypeConverter.toByteArray(sqsObject,
+                new DefaultExchange(endpoint)));
+        endpoint.setBinaryBodies(true);
+        assertArrayEquals(bytes, SQSTypeConverter.toByteBuffer(sqsObject, new DefaultExchange(endpoint)).array());
+    }
+
+    @Test
+    public void testStampedMessage() throws Exception {
+        String compressed = PayloadCodec.compress("<Order>" + "<Item/>" + "</Order>", CompressionCodecs.GZIP);
+        String stamped = LatencyStamp.stamp(compressed, 1271764800000123L, "ID-host-1");
+        StubSQS queue = new StubSQS().withNotification("stamped", stamped);
+        SQSObject sqsObject = new SQSObject(new SNSEnvelope(queue.mMessages.peek().getBody()));
+        sqsObject.setStamped(true);
+        SNSMessage message = new SNSMessage(sqsObject);
+        Exchange exchange = new DefaultExchange(new DefaultCamelContext());
+        exchange.setIn(message);
+
+        assertEquals("ID-host-1", message.getHeader("SNS:CorrelationId"));
+        assertEquals(1271764800000123L, message.getHeader("SNS:SentTime"));
+        assertEquals("the stamp isn't part of the body", "<Order><Item/></Order>", message.getBody());
+        assertEquals("the header is the text SNS signed", stamped, message.getHeader("SNS:Message"));
+        assertEquals(SNSMessage.HEADERS.length + 2, message.getHeaders().size());
+    }
+
+    @Test
+    public void testTextSentWhenDecompressedSizeExceeded() throws Exception {
+        StringBuilder xml = new StringBuilder("<Order>");
+        for (int i = 0; i < 1000; i++) {
+            xml.append("<Item/>");
+        }
+        String text = xml.append("</Order>").toString();
+        String compressed = PayloadCodec.compress(text, CompressionCodecs.GZIP);
+        String body = new StubSQS().withNotification("big", compressed).mMessages.peek().getBody();
+
+        SNSMessage message = new SNSMessage(new SQSObject(new SNSEnvelope(body)), true, null, text.length());
+        new DefaultExchange(new DefaultCamelContext()).setIn(message);
+        assertEquals(text, message.getBody());
+
+        message = new SNSMessage(new SQSObject(new SNSEnvelope(body)), true, null, text.length() - 1);
+        new DefaultExchange(new DefaultCamelContext()).setIn(message);
+        assertEquals("over the limit it's left as its text", compressed, message.getBody());
+    }
+
+    @Test
+    public void testStampLeftInTheBodyUnlessStamped() throws Exception {
+        String stamped = LatencyStamp.stamp("<Order/>", 1271764800000123L, "ID-host-1");
+        StubSQS queue = new StubSQS().withNotification("stamped", stamped);
+        SNSMessage message = new SNSMessage(new SQSObject(new SNSEnvelope(queue.mMessages.peek().getBody())));
+        Exchange exchange = new DefaultExchange(new DefaultCamelContext());
+        exchange.setIn(message);
+
+        assertEquals("a publisher's text is left as it is", stamped, message.getBody());
+        assertNull(message.getHeader("SNS:CorrelationId"));
+        assertNull(message.getHeader("SNS:SentTime"));
+        assertEquals(SNSMessage.HEADERS.length, message.getHeaders().size());
+    }
+
+    @Test
+    public void testCopy() throws Exception {
+        SNSMessage message = createMessage();
+        org.apache.camel.Message copy = message.copy();
+        assertEquals("<Order/>", copy.getBody());
+        assertEquals("the \"subject\"", copy.getHeader("SNS:Subject"));
+    }
+}
@@ -0,0 +1,438 @@
+package com.massfords.aws.sns;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.junit.Test;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.sns.AmazonSNS;
+import com.amazonaws.services.sns.model.PublishRequest;
+import com.amazonaws.services.sns.model.PublishResult;
+import com.massfords.aws.sns.management.ProducerMetrics;
+import com.massfords.aws.sns.support.BlobStore;
+import com.massfords.aws.sns.support.LatencyStamp;
+import com.massfords.aws.sns.support.PayloadCodec;
+
+public class SNSProducerTest {
+
+    private final AtomicInteger mPublished = new AtomicInteger();
+    private volatile CountDownLatch mPublishGate = new CountDownLatch(0);
+    private volatile String mLastMessage;
+    private volatile boolean mFailPublish;
+
+    private AmazonSNS createClient() {
+        return (AmazonSNS) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { AmazonSNS.class },
+                new InvocationHandler() {
+                    public Object invoke(Object aProxy, Method aMethod, Object[] aArgs) throws Throwable {
+                        if (!aMethod.getName().equals("publish"))
+                            throw new UnsupportedOperationException(aMethod.getName());
+                        mPublishGate.await();
+                        if (mFailPublish)
+                            throw new AmazonClientException("injected publish failure");
+                        mLastMessage = ((PublishRequest) aArgs[0]).getMessage();
+                        return new PublishResult().withMessageId("id-" + mPublished.incrementAndGet());
+                    }
+                });
+    }
+
+    private SNSEndpoint createEndpoint(int aMaxInFlight) {
+        final AmazonSNS client = createClient();
+        SNSEndpoint endpoint = new SNSEndpoint("sns:arn:aws:sns:us-east-1:123456789012:topic?accessKey=a",
+                new DefaultCamelContext()) {
+            @Override
+            public AmazonSNS getSNSClient() {
+                return client;
+            }
+        };
+        endpoint.setMaxInFlight(aMaxInFlight);
+        endpoint.setPublishPoolSize(aMaxInFlight);
+        return endpoint;
+    }
+
+    @Test
+    public void testSyncPublishSetsMessageId() throws Exception {
+        SNSProducer producer = (SNSProducer) createEndpoint(1).createProducer();
+        producer.start();
+        Exchange exchange = producer.createExchange();
+        exchange.getIn().setBody("hello");
+
+        producer.process(exchange);
+
+        assertEquals("id-1", exchange.getIn().getHeader("SNS:MessageId"));
+        producer.stop();
+    }
+
+    @Test
+    public void testPublishesCounted() throws Exception {
+        SNSEndpoint endpoint = createEndpoint(1);
+        endpoint.setJmx(false);
+        SNSProducer producer = (SNSProducer) endpoint.createProducer();
+        producer.start();
+        for (int i = 0; i < 3; i++) {
+            Exchange exchange = producer.createExchange();
+            exchange.getIn().setBody("hello");
+            producer.process(exchange);
+        }
+        producer.stop();
+
+        ProducerMetrics metrics = endpoint.getProducerMetrics();
+        assertFalse("jmx is off", metrics.isRegistered());
+        assertEquals(3, metrics.getPublishCount());
+        assertEquals(0, metrics.getPublishFailureCount());
+        assertEquals(0, metrics.getInFlight());
+        assertEquals(3, metrics.getPublishLatency().getCount());
+    }
+
+    @Test
+    public void testMessageStampedWhenTrackingLatency() throws Exception {
+        SNSEndpoint endpoint = createEndpoint(1);
+        endpoint.setTrackLatency(true);
+        SNSProducer producer = (SNSProducer) endpoint.createProducer();
+        producer.start();
+        long before = LatencyStamp.currentTimeMicros();
+        Exchange exchange = producer.createExchange();
+        exchange.getIn().setBody("hello");
+        exchange.getIn().setHeader("SNS:CorrelationId", "order-42");
+        producer.process(exchange);
+        producer.stop();
+
+        LatencyStamp stamp = LatencyStamp.parse(mLastMessage, 0);
+        assertEquals("order-42", stamp.getCorrelationId());
+        assertTrue(stamp.getSentTime() >= before && stamp.getSentTime() <= LatencyStamp.currentTimeMicros());
+        assertTrue(mLastMessage.endsWith("}hello"));
+    }
+
+    @Test
+    public void testAsyncPublishCompletesExchange() throws Exception {
+        SNSProducer producer = (SNSProducer) createEndpoint(4).createProducer();
+        producer.start();
+        Exchange exchange = producer.createExchange();
+        exchange.getIn().setBody("hello");
+        final CountDownLatch done = new CountDownLatch(1);
+
+        producer.process(exchange, new AsyncCallback() {
+            public void onTaskCompleted(Exchange aExchange) {
+                done.countDown();
+            }
+        });
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals("id-1", exchange.getIn().getHeader("SNS:MessageId"));
+        assertNull(exchange.getException());
+        producer.stop();
+    }
+
+    @Test
+    public void testWindowBlocksCaller() throws Exception {
+        final SNSProducer producer = (SNSProducer) createEndpoint(2).createProducer();
+        producer.start();
+        mPublishGate = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(3);
+        final AsyncCallback callback = new AsyncCallback() {
+            public void onTaskCompleted(Exchange aExchange) {
+                done.countDown();
+            }
+        };
+
+        producer.process(producer.createExchange(), callback);
+        producer.process(producer.createExchange(), callback);
+        assertEquals(2, producer.getInFlight());
+
+        final CountDownLatch thirdDispatched = new CountDownLatch(1);
+        Thread caller = new Thread() {
+            public void run() {
+                try {
+                    producer.process(producer.createExchange(), callback);
+                    thirdDispatched.countDown();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        caller.start();
+
+        assertFalse("caller should block while the window is full", thirdDispatched.await(200,
+                TimeUnit.MILLISECONDS));
+
+        mPublishGate.countDown();
+        assertTrue(thirdDispatched.await(5, TimeUnit.SECONDS));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(3, mPublished.get());
+        producer.stop();
+    }
+
+    @Test
+    public void testBinaryBodiesEncoded() throws Exception {
+        SNSEndpoint endpoint = createEndpoint(1);
+        endpoint.setBinaryBodies(true);
+        SNSProducer producer = (SNSProducer) endpoint.createProducer();
+        producer.start();
+        Exchange exchange = producer.createExchange();
+        exchange.getIn().setBody(ByteBuffer.wrap(new byte[] { 0, 1, 2, (byte) 0xff }));
+
+        producer.process(exchange);
+
+        assertEquals(PayloadCodec.BASE64_MARKER + "AAEC/w==", mLastMessage);
+
+        exchange.getIn().setBody("text");
+        producer.process(exchange);
+        assertEquals("text bodies are sent as is", "text", mLastMessage);
+        producer.stop();
+    }
+
+    @Test
+    public void testCompressionThreshold() throws Exception {
+        SNSEndpoint endpoint = createEndpoint(1);
+        endpoint.setCompression("gzip");
+        endpoint.setCompressionThreshold(100);
+        SNSProducer producer = (SNSProducer) endpoint.createProducer();
+        producer.start();
+        Exchange exchange = producer.createExchange();
+
+        exchange.getIn().setBody("short");
+        producer.process(exchange);
+        assertEquals("short", mLastMessage);
+
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            body.append("<Item>").append(i).append("</Item>");
+        }
+        exchange.getIn().setBody(body.toString());
+        producer.process(exchange);
+        assertTrue(mLastMessage.startsWith("{sns:gzip}"));
+        assertTrue(mLastMessage.length() < body.length());
+        producer.stop();
+    }
+
+    /**
+     * @return store that keeps the content it's given in the map
+     */
+    private BlobStore createBlobStore(final Map<String, Object> aBlobs) {
+        final AtomicInteger keys = new AtomicInteger();
+        return new BlobStore() {
+            public String put(ByteBuffer aContent) {
+                String key = "key-" + keys.getAndIncrement();
+                aBlobs.put(key, aContent);
+                return key;
+            }
+
+            public String put(InputStream aContent) {
+                String key = "key-" + keys.getAndIncrement();
+                aBlobs.put(key, aContent);
+                return key;
+            }
+
+            public InputStream get(String aKey) {
+                throw new UnsupportedOperationException();
+            }
+
+            public void delete(String aKey) {
+                aBlobs.remove(aKey);
+            }
+        };
+    }
+
+    @Test
+    public void testClaimCheck() throws Exception {
+        final Map<String, Object> blobs = new HashMap<String, Object>();
+        SNSEndpoint endpoint = createEndpoint(1);
+        endpoint.setBlobStore(createBlobStore(blobs));
+        endpoint.setClaimCheckThreshold(10);
+        SNSProducer producer = (SNSProducer) endpoint.createProducer();
+        producer.start();
+        Exchange exchange = producer.createExchange();
+
+        exchange.getIn().setBody("small");
+        producer.process(exchange);
+        assertEquals("small", mLastMessage);
+
+        exchange.getIn().setBody("big enough to check in");
+        producer.process(exchange);
+        assertEquals("{sns:ref}key-0", mLastMessage);
+        assertEquals("key-0", PayloadCodec.getReferenceKey(mLastMessage));
+
+        InputStream stream = new ByteArrayInputStream(new byte[1]);
+        exchange.getIn().setBody(stream);
+        producer.process(exchange);
+        assertEquals("streams are always checked in", "{sns:ref}key-1", mLastMessage);
+        assertSame(stream, blobs.get("key-1"));
+        producer.stop();
+    }
+
+    @Test
+    public void testCheckedInBodyDeletedWhenThePublishFails() throws Exception {
+        Map<String, Object> blobs = Collections.synchronizedMap(new HashMap<String, Object>());
+        SNSEndpoint endpoint = createEndpoint(10);
+        endpoint.setBlobStore(createBlobStore(blobs));
+        endpoint.setClaimCheckThreshold(10);
+        endpoint.setPackSize(2);
+        SNSProducer producer = (SNSProducer) endpoint.createProducer();
+        producer.start();
+        mFailPublish = true;
+
+        final CountDownLatch done = new CountDownLatch(2);
+        AsyncCallback callback = new AsyncCallback() {
+            public void onTaskCompleted(Exchange aExchange) {
+                done.countDown();
+            }
+        };
+        Exchange[] exchanges = new Exchange[2];
+        for (int i = 0; i < exchanges.length; i++) {
+            exchanges[i] = producer.createExchange();
+            exchanges[i].getIn().setBody("big enough to check in " + i);
+            producer.process(exchanges[i], callback);
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(exchanges[1].getException() instanceof AmazonClientException);
+        assertTrue("the failed pack's bodies are deleted " + blobs, blobs.isEmpty());
+        producer.stop();
+
+        endpoint.setPackSize(1);
+        producer = (SNSProducer) endpoint.createProducer();
+        producer.start();
+        Exchange exchange = producer.createExchange();
+        exchange.getIn().setBody("big enough to check in");
+        try {
+            producer.process(exchange);
+            fail("the publish failed");
+        } catch (AmazonClientException e) {
+        }
+        assertTrue("the failed publish's body is deleted " + blobs, blobs.isEmpty());
+        producer.stop();
+    }
+
+    @Test
+    public void testPackedPublish() throws Exception {
+        SNSEndpoint endpoint = createEndpoint(10);
+        endpoint.setPackSize(3);
+        endpoint.setPackLinger(20);
+        SNSProducer producer = (SNSProducer) endpoint.createProducer();
+        producer.start();
+        final CountDownLatch done = new CountDownLatch(3);
+        AsyncCallback callback = new AsyncCallback() {
+            public void onTaskCompleted(Exchange aExchange) {
+                done.countDown();
+            }
+        };
+        Exchange[] exchanges = new Exchange[3];
+        for (int i = 0; i < exchanges.length; i++) {
+            exchanges[i] = producer.createExchange();
+            exchanges[i].getIn().setBody("message-" + i);
+            producer.process(exchanges[i], callback);
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, mPublished.get());
+        assertEquals("id-1:2", exchanges[2].getIn().getHeader("SNS:MessageId"));
+        assertTrue(mLastMessage.startsWith(PayloadCodec.PACK_MARKER));
+
+        // a synchronous caller waits for the linger
+        Exchange exchange = producer.createExchange();
+        exchange.getIn().setBody("alone");
+        producer.process(exchange);
+        assertEquals("id-2", exchange.getIn().getHeader("SNS:MessageId"));
+        assertEquals("alone", mLastMessage);
+        assertEquals(0, producer.getInFlight());
+        producer.stop();
+    }
+
+    @Test
+    public void testSequentialRouteWaitsOutTheLinger() throws Exception {
+        SNSEndpoint endpoint = createEndpoint(10);
+        endpoint.setPackSize(3);
+        endpoint.setPackLinger(100);
+        ProducerTemplate template = startRoute(endpoint);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 3; i++) {
+            template.sendBody("direct:start", "message-" + i);
+        }
+
+        assertEquals("each exchange is published on its own", 3, mPublished.get());
+        assertEquals("message-2", mLastMessage);
+        assertTrue("each exchange waited for the linger", System.currentTimeMillis() - start >= 300);
+        endpoint.getCamelContext().stop();
+    }
+
+    @Test
+    public void testConcurrentCallersShareAPack() throws Exception {
+        SNSEndpoint endpoint = createEndpoint(10);
+        endpoint.setPackSize(3);
+        endpoint.setPackLinger(1000);
+        final ProducerTemplate template = startRoute(endpoint);
+        final CountDownLatch done = new CountDownLatch(3);
+        for (int i = 0; i < 3; i++) {
+            final String body = "message-" + i;
+            new Thread() {
+                @Override
+                public void run() {
+                    template.sendBody("direct:start", body);
+                    done.countDown();
+                }
+            }.start();
+        }
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, mPublished.get());
+        assertTrue(mLastMessage.startsWith(PayloadCodec.PACK_MARKER));
+        endpoint.getCamelContext().stop();
+    }
+
+    private ProducerTemplate startRoute(final SNSEndpoint aEndpoint) throws Exception {
+        CamelContext context = aEndpoint.getCamelContext();
+        context.addRoutes(new RouteBuilder() {
+            @Override
+            public void configure() throws Exception {
+                from("direct:start").to(aEndpoint);
+            }
+        });
+        context.start();
+        return context.createProducerTemplate();
+    }
+
+    @Test
+    public void testUnknownCompressionCodec() throws Exception {
+        SNSEndpoint endpoint = createEndpoint(1);
+        endpoint.setCompression("nosuchcodec");
+        try {
+            endpoint.getCompressionCodec();
+            fail("expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    @Test
+    public void testBinaryBodiesOffByDefault() throws Exception {
+        SNSProducer producer = (SNSProducer) createEndpoint(1).createProducer();
+        producer.start();
+        Exchange exchange = producer.createExchange();
+        exchange.getIn().setBody("text".getBytes("UTF-8"));
+
+        producer.process(exchange);
+
+        assertEquals("text", mLastMessage);
+        producer.stop();
+    }
+}
@@ -28,4 +28,11 @@ public class SNSUriTest {
         
         assertEquals("sns:arn:aws:sns:1234:5678?accessKey=1234&secretKey=abcd&delay=2000&idempotent=true", uri.toString());
     }
+
+    @Test
+    public void testSubscriptionGroup() {
+        SNSUri uri = new SNSUri(new BasicAWSCredentials("1234", "abcd")).withTopicName("topic123").withSubscriptionGroup("group1");
+        
+        assertEquals("sns:topicName/topic123?accessKey=1234&secretKey=abcd&delay=2000&idempotent=true&subscriptionGroup=group1", uri.toString());
+    }
 }
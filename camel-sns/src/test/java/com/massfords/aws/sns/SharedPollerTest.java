@@ -0,0 +1,160 @@
+package com.massfords.aws.sns;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.camel.Endpoint;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.junit.After;
+import org.junit.Test;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+
+public class SharedPollerTest {
+
+    Set<String> mPollingThreads = Collections.synchronizedSet(new HashSet<String>());
+    AtomicInteger mProcessed = new AtomicInteger();
+    List<SNSConsumer> mConsumers = new ArrayList<SNSConsumer>();
+    SNSComponent mComponent;
+    /** queue handed to the next endpoint the component creates */
+    StubSQS mNextQueue;
+
+    /**
+     * Queue that records the threads it's polled from.
+     */
+    class RecordingSQS extends StubSQS {
+        @Override
+        public Object invoke(Object aProxy, Method aMethod, Object[] aArgs) throws Throwable {
+            if (aMethod.getName().equals("receiveMessage"))
+                mPollingThreads.add(Thread.currentThread().getName());
+            return super.invoke(aProxy, aMethod, aArgs);
+        }
+    }
+
+    private SNSComponent createComponent(int aPollerThreads) throws Exception {
+        mComponent = new SNSComponent() {
+            @Override
+            protected Endpoint createEndpoint(String aUri, String aRemaining, Map aParams) throws Exception {
+                final AmazonSQS client = mNextQueue.createClient();
+                return new SNSEndpoint(aUri, this) {
+                    @Override
+                    public AmazonSQS getSQSClient() {
+                        return client;
+                    }
+                };
+            }
+        };
+        mComponent.setPollerThreads(aPollerThreads);
+        mComponent.setCamelContext(new DefaultCamelContext());
+        mComponent.start();
+        return mComponent;
+    }
+
+    private SNSConsumer startConsumer(StubSQS aQueue, String aOptions, Processor aProcessor) throws Exception {
+        mNextQueue = aQueue;
+        SNSEndpoint endpoint = (SNSEndpoint) mComponent.createEndpoint("sns:arn:aws:sns:us-east-1:123456789012:topic"
+                + "?accessKey=a&sharedPoller=true" + aOptions);
+        endpoint.setQueueURL("https://queue.amazonaws.com/123456789012/queue-" + mConsumers.size());
+        SNSConsumer consumer = (SNSConsumer) endpoint.createConsumer(aProcessor);
+        consumer.setDelay(20);
+        consumer.doStart();
+        mConsumers.add(consumer);
+        return consumer;
+    }
+
+    private Processor countingProcessor() {
+        return new Processor() {
+            public void process(Exchange aExchange) throws Exception {
+                mProcessed.incrementAndGet();
+            }
+        };
+    }
+
+    private void waitFor(AtomicInteger aCount, int aExpected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (aCount.get() < aExpected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (SNSConsumer consumer : mConsumers) {
+            consumer.doStop();
+        }
+        if (mComponent != null)
+            mComponent.stop();
+    }
+
+    @Test
+    public void testManyQueuesFewThreads() throws Exception {
+        createComponent(2);
+        for (int i = 0; i < 20; i++) {
+            StubSQS queue = new RecordingSQS();
+            for (int j = 0; j < 3; j++) {
+                queue.withNotification("subject", "body-" + i + "-" + j);
+            }
+            startConsumer(queue, "&maxMessagesPerPoll=2", countingProcessor());
+        }
+        waitFor(mProcessed, 60);
+
+        assertEquals(60, mProcessed.get());
+        assertEquals(20, mComponent.getSharedPoller().size());
+        assertTrue("expected at most 2 polling threads but was " + mPollingThreads,
+                mPollingThreads.size() <= 2);
+    }
+
+    @Test
+    public void testIdleQueueBacksOff() throws Exception {
+        createComponent(1);
+        StubSQS queue = new RecordingSQS();
+        startConsumer(queue, "&maxBackoffDelay=1000", countingProcessor());
+        Thread.sleep(500);
+
+        // 20ms, 40, 80, 160, 320 leaves room for about 5 receives in half a second
+        assertTrue("idle queue was polled " + queue.mReceiveCalls.get() + " times", queue.mReceiveCalls.get() <= 7);
+    }
+
+    @Test
+    public void testSlowRouteDoesNotHoldUpOthers() throws Exception {
+        createComponent(1);
+        final CountDownLatch gate = new CountDownLatch(1);
+        StubSQS slowQueue = new RecordingSQS();
+        for (int i = 0; i < 5; i++) {
+            slowQueue.withNotification("subject", "slow-" + i);
+        }
+        startConsumer(slowQueue, "", new Processor() {
+            public void process(Exchange aExchange) throws Exception {
+                gate.await();
+            }
+        });
+        StubSQS fastQueue = new RecordingSQS();
+        for (int i = 0; i < 10; i++) {
+            fastQueue.withNotification("subject", "fast-" + i);
+        }
+        startConsumer(fastQueue, "", countingProcessor());
+
+        waitFor(mProcessed, 10);
+        assertEquals(10, mProcessed.get());
+        assertEquals("the slow route only takes what its pool has room for", 4, slowQueue.mMessages.size());
+
+        gate.countDown();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (slowQueue.mDeleted.size() < 5 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(5, slowQueue.mDeleted.size());
+    }
+}
@@ -0,0 +1,80 @@
+package com.massfords.aws.sns;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONObject;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+
+/**
+ * Minimal stand-in for a single SQS queue. Messages added to the stub are
+ * handed out by receiveMessage and the receipt handles passed to
+ * deleteMessage are recorded.
+ */
+public class StubSQS implements InvocationHandler {
+
+    final Queue<Message> mMessages = new ConcurrentLinkedQueue<Message>();
+    final Queue<String> mDeleted = new ConcurrentLinkedQueue<String>();
+    final AtomicInteger mReceiveCalls = new AtomicInteger();
+    final AtomicInteger mIds = new AtomicInteger();
+    /** number of upcoming deletes that should fail */
+    final AtomicInteger mFailDeletes = new AtomicInteger();
+
+    public AmazonSQS createClient() {
+        return (AmazonSQS) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { AmazonSQS.class },
+                this);
+    }
+
+    public StubSQS withNotification(String aSubject, String aMessage) throws Exception {
+        String id = String.valueOf(mIds.incrementAndGet());
+        JSONObject json = new JSONObject();
+        json.put("Type", "Notification");
+        json.put("MessageId", "sns-" + id);
+        json.put("TopicArn", "arn:aws:sns:us-east-1:123456789012:topic");
+        json.put("Subject", aSubject);
+        json.put("Message", aMessage);
+        json.put("Timestamp", "2010-05-03T22:04:34.240Z");
+        json.put("SignatureVersion", "1");
+        json.put("Signature", "");
+        return withBody(id, json.toString());
+    }
+
+    public StubSQS withBody(String aId, String aBody) {
+        mMessages.add(new Message().withMessageId("sqs-" + aId).withReceiptHandle("receipt-" + aId).withBody(aBody));
+        return this;
+    }
+
+    public Object invoke(Object aProxy, Method aMethod, Object[] aArgs) throws Throwable {
+        String name = aMethod.getName();
+        if (name.equals("receiveMessage")) {
+            mReceiveCalls.incrementAndGet();
+            ReceiveMessageRequest request = (ReceiveMessageRequest) aArgs[0];
+            int max = request.getMaxNumberOfMessages() == null ? 1 : request.getMaxNumberOfMessages();
+            List<Message> messages = new ArrayList<Message>();
+            Message m;
+            while (messages.size() < max && (m = mMessages.poll()) != null) {
+                messages.add(m);
+            }
+            return new ReceiveMessageResult().withMessages(messages);
+        }
+        if (name.equals("deleteMessage")) {
+            if (mFailDeletes.getAndDecrement() > 0)
+                throw new AmazonClientException("injected delete failure");
+            mDeleted.add(((DeleteMessageRequest) aArgs[0]).getReceiptHandle());
+            return null;
+        }
+        throw new UnsupportedOperationException(name);
+    }
+}
@@ -0,0 +1,251 @@
+package com.massfords.aws.sns;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.camel.Endpoint;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.sns.AmazonSNS;
+import com.amazonaws.services.sns.model.ListSubscriptionsByTopicResult;
+import com.amazonaws.services.sns.model.SubscribeResult;
+import com.amazonaws.services.sqs.AmazonSQS;
+
+public class SubscriptionGroupTest {
+
+    static final String TOPIC_ARN = "arn:aws:sns:us-east-1:123456789012:topic";
+
+    List<String> mSNSCalls = Collections.synchronizedList(new ArrayList<String>());
+    StubSQS mQueue = new StubSQS();
+    SNSComponent mComponent;
+    List<SNSConsumer> mConsumers = new ArrayList<SNSConsumer>();
+
+    /**
+     * Route that records the messages it was sent.
+     */
+    static class Route implements Processor {
+        List<String> mReceived = Collections.synchronizedList(new ArrayList<String>());
+        volatile CountDownLatch mGate = new CountDownLatch(0);
+        volatile boolean mFail;
+
+        public void process(Exchange aExchange) throws Exception {
+            mGate.await();
+            if (mFail)
+                throw new IllegalStateException("fail");
+            mReceived.add(aExchange.getIn().getBody(String.class));
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        final AmazonSNS sns = (AmazonSNS) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[] { AmazonSNS.class }, new InvocationHandler() {
+                    public Object invoke(Object aProxy, Method aMethod, Object[] aArgs) throws Throwable {
+                        mSNSCalls.add(aMethod.getName());
+                        if (aMethod.getName().equals("listSubscriptionsByTopic"))
+                            return new ListSubscriptionsByTopicResult();
+                        if (aMethod.getName().equals("subscribe"))
+                            return new SubscribeResult().withSubscriptionArn(TOPIC_ARN + ":sub-1");
+                        return null;
+                    }
+                });
+        final AmazonSQS sqs = mQueue.createClient();
+        mComponent = new SNSComponent() {
+            @Override
+            protected Endpoint createEndpoint(String aUri, String aRemaining, Map aParams) throws Exception {
+                return new SNSEndpoint(aUri, this) {
+                    @Override
+                    public AmazonSNS getSNSClient() {
+                        return sns;
+                    }
+
+                    @Override
+                    public AmazonSQS getSQSClient() {
+                        return sqs;
+                    }
+                };
+            }
+        };
+        mComponent.setCamelContext(new DefaultCamelContext());
+        mComponent.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (SNSConsumer consumer : mConsumers) {
+            if (!consumer.isStopped())
+                consumer.stop();
+        }
+        mComponent.stop();
+    }
+
+    private SNSConsumer startMember(Route aRoute) throws Exception {
+        return startMember(aRoute, "");
+    }
+
+    private SNSConsumer startMember(Route aRoute, String aOptions) throws Exception {
+        Endpoint endpoint = mComponent.createEndpoint("sns:" + TOPIC_ARN + "?accessKey=a&secretKey=b"
+                + "&queueArn=arn:aws:sqs:us-east-1:123456789012:queue&subscriptionGroup=group" + aOptions);
+        SNSConsumer consumer = (SNSConsumer) endpoint.createConsumer(aRoute);
+        consumer.setDelay(10);
+        consumer.start();
+        mConsumers.add(consumer);
+        return consumer;
+    }
+
+    private void waitFor(List<?> aList, int aSize) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (aList.size() < aSize && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    private void waitForDeletes(int aCount) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (mQueue.mDeleted.size() < aCount && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testEachMemberReceivesEveryNotification() throws Exception {
+        Route[] routes = { new Route(), new Route(), new Route() };
+        for (Route route : routes) {
+            startMember(route);
+        }
+        for (int i = 0; i < 5; i++) {
+            mQueue.withNotification("subject", "body-" + i);
+        }
+        for (Route route : routes) {
+            waitFor(route.mReceived, 5);
+            assertEquals(5, route.mReceived.size());
+        }
+        waitForDeletes(5);
+        assertEquals("each message is deleted once", 5, mQueue.mDeleted.size());
+        assertEquals("only the first member subscribes", 1, Collections.frequency(mSNSCalls, "subscribe"));
+        assertEquals(3, mComponent.getSubscriptionGroup("group").size());
+    }
+
+    @Test
+    public void testDeletedOnlyAfterAllMembersFinish() throws Exception {
+        Route fast = new Route();
+        Route slow = new Route();
+        slow.mGate = new CountDownLatch(1);
+        startMember(fast);
+        startMember(slow);
+        mQueue.withNotification("subject", "body");
+
+        waitFor(fast.mReceived, 1);
+        Thread.sleep(50);
+        assertEquals(1, fast.mReceived.size());
+        assertTrue("deleted before the slow route finished", mQueue.mDeleted.isEmpty());
+
+        slow.mGate.countDown();
+        waitForDeletes(1);
+        assertEquals(1, slow.mReceived.size());
+        assertEquals(1, mQueue.mDeleted.size());
+    }
+
+    @Test
+    public void testSlowMemberDoesNotHoldUpTheOthers() throws Exception {
+        Route fast = new Route();
+        Route slow = new Route();
+        slow.mGate = new CountDownLatch(1);
+        startMember(slow);
+        startMember(fast);
+        for (int i = 0; i < 5; i++) {
+            mQueue.withNotification("subject", "body-" + i);
+        }
+
+        waitFor(fast.mReceived, 5);
+        assertEquals("the fast route isn't paced by the slow one", 5, fast.mReceived.size());
+        assertTrue("deleted before the slow route finished", mQueue.mDeleted.isEmpty());
+
+        slow.mGate.countDown();
+        waitForDeletes(5);
+        assertEquals(5, slow.mReceived.size());
+        assertEquals(5, mQueue.mDeleted.size());
+    }
+
+    @Test
+    public void testFailedMemberLeavesMessageOnQueue() throws Exception {
+        Route ok = new Route();
+        Route failing = new Route();
+        failing.mFail = true;
+        startMember(ok);
+        startMember(failing);
+        mQueue.withNotification("subject", "body");
+
+        waitFor(ok.mReceived, 1);
+        Thread.sleep(50);
+        assertTrue(mQueue.mDeleted.isEmpty());
+    }
+
+    @Test
+    public void testNextMemberTakesOverAndLastUnsubscribes() throws Exception {
+        SNSConsumer first = startMember(new Route());
+        Route second = new Route();
+        startMember(second);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (first.getSubscriptionArn() == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        first.stop();
+        assertFalse("the subscription is still in use", mSNSCalls.contains("unsubscribe"));
+        assertEquals(1, mComponent.getSubscriptionGroup("group").size());
+
+        mQueue.withNotification("subject", "after handover");
+        waitFor(second.mReceived, 1);
+        assertEquals("after handover", second.mReceived.get(0));
+
+        mConsumers.get(1).stop();
+        assertEquals(1, Collections.frequency(mSNSCalls, "unsubscribe"));
+    }
+
+    @Test
+    public void testEachMemberAppliesItsOwnFilter() throws Exception {
+        Route all = new Route();
+        Route orders = new Route();
+        startMember(all);
+        startMember(orders, "&filterSubject=order");
+        mQueue.withNotification("order", "order-1");
+        mQueue.withNotification("invoice", "invoice-1");
+
+        waitFor(all.mReceived, 2);
+        waitForDeletes(2);
+        assertEquals(2, all.mReceived.size());
+        assertEquals(Collections.singletonList("order-1"), orders.mReceived);
+    }
+
+    @Test
+    public void testConflictingMembersRejected() throws Exception {
+        startMember(new Route());
+        String[] conflicts = { "&queueName=other", "&verify=true", "&trackLatency=true" };
+        for (String conflict : conflicts) {
+            try {
+                startMember(new Route(), conflict);
+                fail("joined with " + conflict);
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("can't join subscription group group"));
+            }
+        }
+        assertEquals(1, mComponent.getSubscriptionGroup("group").size());
+    }
+}
@@ -0,0 +1,243 @@
+package com.massfords.aws.sns.emulator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.sns.AmazonSNS;
+import com.amazonaws.services.sns.model.CreateTopicRequest;
+import com.amazonaws.services.sns.model.PublishRequest;
+import com.amazonaws.services.sns.model.SubscribeRequest;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.CreateQueueRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.massfords.aws.sns.SNSComponent;
+import com.massfords.aws.sns.support.SQSObject;
+
+public class AWSEmulatorTest {
+
+    long mNow = 1000000;
+    AWSEmulator mEmulator;
+    AmazonSNS mSNS;
+    AmazonSQS mSQS;
+
+    @Before
+    public void setUp() {
+        mEmulator = new AWSEmulator() {
+            @Override
+            protected long currentTimeMillis() {
+                return mNow;
+            }
+        };
+        mSNS = mEmulator.getSNSClient();
+        mSQS = mEmulator.getSQSClient();
+    }
+
+    private String createQueue(String aName) {
+        String url = mSQS.createQueue(new CreateQueueRequest().withQueueName(aName)).getQueueUrl();
+        return url;
+    }
+
+    private String getQueueArn(String aUrl) {
+        return mSQS.getQueueAttributes(new GetQueueAttributesRequest().withQueueUrl(aUrl).withAttributeNames(
+                "QueueArn")).getAttributes().get("QueueArn");
+    }
+
+    private List<Message> receive(String aUrl, int aMax) {
+        return mSQS.receiveMessage(new ReceiveMessageRequest().withQueueUrl(aUrl).withMaxNumberOfMessages(aMax))
+                .getMessages();
+    }
+
+    @Test
+    public void testPublishFansOutToSubscribedQueues() throws Exception {
+        String topicArn = mSNS.createTopic(new CreateTopicRequest().withName("orders")).getTopicArn();
+        assertEquals("creating it again returns the same topic", topicArn,
+                mSNS.createTopic(new CreateTopicRequest().withName("orders")).getTopicArn());
+        String first = createQueue("first");
+        String second = createQueue("second");
+        createQueue("unsubscribed");
+        mSNS.subscribe(new SubscribeRequest().withTopicArn(topicArn).withProtocol("sqs").withEndpoint(
+                getQueueArn(first)));
+        mSNS.subscribe(new SubscribeRequest().withTopicArn(topicArn).withProtocol("sqs").withEndpoint(
+                getQueueArn(second)));
+
+        String messageId = mSNS.publish(new PublishRequest().withTopicArn(topicArn).withSubject("new order")
+                .withMessage("<Order/>")).getMessageId();
+
+        for (String url : new String[] { first, second }) {
+            List<Message> messages = receive(url, 10);
+            assertEquals(1, messages.size());
+            SQSObject notification = new SQSObject(new JSONObject(messages.get(0).getBody()));
+            assertEquals("Notification", notification.getType());
+            assertEquals(messageId, notification.getMessageId());
+            assertEquals(topicArn, notification.getTopicArn());
+            assertEquals("new order", notification.getSubject());
+            assertEquals("<Order/>", notification.getMessage());
+        }
+        assertEquals(0, mEmulator.getQueue("unsubscribed").getSentCount());
+        assertEquals(1, mEmulator.getPublishedCount());
+    }
+
+    @Test
+    public void testVisibilityTimeoutRedelivers() throws Exception {
+        String url = createQueue("queue");
+        mSQS.sendMessage(new SendMessageRequest().withQueueUrl(url).withMessageBody("hello"));
+
+        Message first = mSQS.receiveMessage(new ReceiveMessageRequest().withQueueUrl(url).withVisibilityTimeout(10))
+                .getMessages().get(0);
+        assertTrue("hidden while it's in flight", receive(url, 1).isEmpty());
+        assertEquals(1, mEmulator.getQueue("queue").getInFlightCount());
+
+        mNow += 10000;
+        List<Message> redelivered = receive(url, 1);
+        assertEquals(1, redelivered.size());
+        assertEquals(first.getMessageId(), redelivered.get(0).getMessageId());
+        assertFalse(first.getReceiptHandle().equals(redelivered.get(0).getReceiptHandle()));
+        assertEquals(1, mEmulator.getQueue("queue").getRedeliveredCount());
+
+        mSQS.deleteMessage(new DeleteMessageRequest().withQueueUrl(url).withReceiptHandle(first.getReceiptHandle()));
+        assertEquals("a stale handle doesn't delete the message", 1, mEmulator.getQueue("queue").getInFlightCount());
+        mSQS.deleteMessage(new DeleteMessageRequest().withQueueUrl(url).withReceiptHandle(
+                redelivered.get(0).getReceiptHandle()));
+        assertEquals(0, mEmulator.getQueue("queue").getInFlightCount());
+
+        mNow += 60000;
+        assertTrue(receive(url, 1).isEmpty());
+        assertEquals(1, mEmulator.getQueue("queue").getDeletedCount());
+    }
+
+    @Test
+    public void testReceiveReturnsUpToTenMessages() throws Exception {
+        String url = createQueue("queue");
+        for (int i = 0; i < 15; i++) {
+            mSQS.sendMessage(new SendMessageRequest().withQueueUrl(url).withMessageBody("message-" + i));
+        }
+        assertEquals(10, receive(url, 10).size());
+        assertEquals(5, receive(url, 10).size());
+        try {
+            receive(url, 11);
+            fail("SQS doesn't return more than 10 messages");
+        } catch (AmazonServiceException e) {
+            assertEquals("InvalidParameterValue", e.getErrorCode());
+        }
+    }
+
+    @Test
+    public void testFaults() throws Exception {
+        String url = createQueue("queue");
+        FaultInjector faults = mEmulator.getFaults();
+        faults.setOperations("SendMessage");
+        faults.setErrorRate(1);
+        try {
+            mSQS.sendMessage(new SendMessageRequest().withQueueUrl(url).withMessageBody("hello"));
+            fail("expected the injected failure");
+        } catch (AmazonServiceException e) {
+            assertEquals("InternalFailure", e.getErrorCode());
+            assertEquals(500, e.getStatusCode());
+        }
+        assertTrue("other operations aren't faulted", receive(url, 1).isEmpty());
+
+        faults.setErrorRate(0);
+        faults.setThrottleRate(2);
+        mSQS.sendMessage(new SendMessageRequest().withQueueUrl(url).withMessageBody("1"));
+        mSQS.sendMessage(new SendMessageRequest().withQueueUrl(url).withMessageBody("2"));
+        try {
+            mSQS.sendMessage(new SendMessageRequest().withQueueUrl(url).withMessageBody("3"));
+            fail("expected the third call in the second to be throttled");
+        } catch (AmazonServiceException e) {
+            assertEquals("Throttling", e.getErrorCode());
+        }
+        assertEquals(1, faults.getErrors());
+        assertEquals(1, faults.getThrottled());
+    }
+
+    @Test
+    public void testSeededErrorsAreRepeatable() throws Exception {
+        assertEquals(failures(42), failures(42));
+        assertFalse(failures(42).equals(failures(7)));
+    }
+
+    private List<Integer> failures(long aSeed) {
+        FaultInjector faults = new FaultInjector();
+        faults.setErrorRate(0.5);
+        faults.setSeed(aSeed);
+        List<Integer> failed = new ArrayList<Integer>();
+        for (int i = 0; i < 32; i++) {
+            try {
+                faults.beforeCall("sns", "Publish");
+            } catch (AmazonServiceException e) {
+                failed.add(i);
+            }
+        }
+        return failed;
+    }
+
+    @Test
+    public void testRoundTripThroughComponent() throws Exception {
+        AWSEmulator emulator = new AWSEmulator();
+        SNSComponent component = new SNSComponent();
+        component.setClientSource(emulator);
+        DefaultCamelContext context = new DefaultCamelContext();
+        context.addComponent("sns", component);
+        final List<String> bodies = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch received = new CountDownLatch(20);
+        context.addRoutes(new RouteBuilder() {
+            @Override
+            public void configure() throws Exception {
+                from("sns:topicName/orders?accessKey=a&secretKey=b&queueName=orders-queue&delay=10").process(
+                        new Processor() {
+                            public void process(Exchange aExchange) throws Exception {
+                                bodies.add(aExchange.getIn().getBody(String.class));
+                                received.countDown();
+                            }
+                        });
+            }
+        });
+        context.start();
+        try {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (emulator.getSNSClient().listSubscriptions().getSubscriptions().isEmpty()
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            ProducerTemplate template = context.createProducerTemplate();
+            for (int i = 0; i < 20; i++) {
+                template.sendBody("sns:topicName/orders?accessKey=a&secretKey=b", "order-" + i);
+            }
+            assertTrue(received.await(5, TimeUnit.SECONDS));
+            assertEquals(20, bodies.size());
+            assertTrue(bodies.contains("order-19"));
+
+            deadline = System.currentTimeMillis() + 5000;
+            EmulatedQueue queue = emulator.getQueue("orders-queue");
+            while (queue.getDeletedCount() < 20 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals("every message is deleted once it's processed", 20, queue.getDeletedCount());
+            assertEquals(0, queue.getRedeliveredCount());
+        } finally {
+            context.stop();
+        }
+    }
+}
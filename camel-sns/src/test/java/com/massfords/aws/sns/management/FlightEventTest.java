@@ -0,0 +1,80 @@
+package com.massfords.aws.sns.management;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * The JFR API is used by reflection here as well, the component is built
+ * for Java 6.
+ */
+public class FlightEventTest {
+
+    @Test
+    public void testEventsRecorded() throws Exception {
+        assumeTrue(FlightEvent.isAvailable());
+        assertNull("no recording", FlightEvent.PUBLISH.begin());
+
+        Object recording = Class.forName("jdk.jfr.Recording").newInstance();
+        invoke(recording, "enable", FlightEvent.PUBLISH.getName());
+        invoke(recording, "enable", FlightEvent.VERIFY.getName());
+        invoke(recording, "start");
+        File file = File.createTempFile("sns", ".jfr");
+        try {
+            Object publish = FlightEvent.PUBLISH.begin();
+            assertNotNull(publish);
+            FlightEvent.PUBLISH.commit(publish, "sns://orders", 42);
+            Object verify = FlightEvent.VERIFY.begin();
+            FlightEvent.VERIFY.commit(verify, "sns://orders", 7, true);
+            assertNull("disabled by default", FlightEvent.PARSE.begin());
+
+            invoke(recording, "stop");
+            assertNull("recording stopped", FlightEvent.PUBLISH.begin());
+            Object path = File.class.getMethod("toPath").invoke(file);
+            invoke(recording, "dump", path);
+
+            Map<String, Object> events = new HashMap<String, Object>();
+            Class<?> recordingFile = Class.forName("jdk.jfr.consumer.RecordingFile");
+            for (Object event : (List<?>) recordingFile.getMethod("readAllEvents", Class.forName("java.nio.file.Path"))
+                    .invoke(null, path)) {
+                Object type = invoke(event, "getEventType");
+                events.put((String) invoke(type, "getName"), event);
+            }
+            assertEquals(events.keySet().toString(), 2, events.size());
+            Object event = events.get(FlightEvent.PUBLISH.getName());
+            assertEquals("sns://orders", invoke(event, "getString", "endpoint"));
+            assertEquals(42L, invoke(event, "getLong", "size"));
+            event = events.get(FlightEvent.VERIFY.getName());
+            assertEquals(7L, invoke(event, "getLong", "size"));
+            assertEquals(Boolean.TRUE, invoke(event, "getBoolean", "verified"));
+        } finally {
+            invoke(recording, "close");
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testNullEventIgnored() throws Exception {
+        FlightEvent.POLL.commit(null, "sns://orders", 10, 1);
+    }
+
+    private static Object invoke(Object aTarget, String aMethod, Object... aArgs) throws Exception {
+        for (Method method : aTarget.getClass().getMethods()) {
+            if (method.getName().equals(aMethod) && method.getParameterTypes().length == aArgs.length
+                    && (aArgs.length == 0 || method.getParameterTypes()[0].isInstance(aArgs[0]))) {
+                method.setAccessible(true);
+                return method.invoke(aTarget, aArgs);
+            }
+        }
+        throw new NoSuchMethodException(aMethod);
+    }
+}
@@ -0,0 +1,95 @@
+package com.massfords.aws.sns.management;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBucketsCoverEveryValue() throws Exception {
+        for (long value : new long[] { 0, 1, 7, 8, 9, 15, 16, 17, 1000, 123456789, Long.MAX_VALUE }) {
+            int bucket = LatencyHistogram.bucketOf(value);
+            assertTrue(value + " below bucket " + bucket, LatencyHistogram.lowerBoundOf(bucket) <= value);
+            assertTrue(value + " above bucket " + bucket, LatencyHistogram.upperBoundOf(bucket) >= value);
+        }
+        for (int bucket = 0; bucket < LatencyHistogram.bucketOf(Long.MAX_VALUE); bucket++) {
+            assertEquals(LatencyHistogram.upperBoundOf(bucket) + 1, LatencyHistogram.lowerBoundOf(bucket + 1));
+        }
+    }
+
+    @Test
+    public void testPercentiles() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(0.99));
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 10);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(5005, histogram.getMean(), 0.001);
+        assertEquals(10000, histogram.getMax());
+        assertWithin(5000, histogram.getPercentile(0.5));
+        assertWithin(9900, histogram.getPercentile(0.99));
+        assertEquals("never more than the max", 10000, histogram.getPercentile(1));
+        assertEquals(10, histogram.getPercentile(0));
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(0.5));
+    }
+
+    private static void assertWithin(long aExpected, long aActual) {
+        assertTrue("expected " + aActual + " to be within 12.5% of " + aExpected,
+                Math.abs(aActual - aExpected) <= aExpected / 8);
+    }
+
+    @Test
+    public void testMerge() throws Exception {
+        LatencyHistogram fast = new LatencyHistogram();
+        LatencyHistogram slow = new LatencyHistogram();
+        for (int i = 0; i < 90; i++) {
+            fast.record(100);
+        }
+        for (int i = 0; i < 10; i++) {
+            slow.record(50000);
+        }
+        LatencyHistogram merged = new LatencyHistogram();
+        merged.merge(fast);
+        merged.merge(slow);
+
+        assertEquals(100, merged.getCount());
+        assertEquals(50000, merged.getMax());
+        assertEquals((90 * 100 + 10 * 50000) / 100.0, merged.getMean(), 0.001);
+        assertWithin(100, merged.getPercentile(0.9));
+        assertWithin(50000, merged.getPercentile(0.91));
+    }
+
+    @Test
+    public void testConcurrentRecordsAreAllCounted() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        histogram.record(i);
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(40000, histogram.getCount());
+        assertEquals(9999, histogram.getMax());
+    }
+}
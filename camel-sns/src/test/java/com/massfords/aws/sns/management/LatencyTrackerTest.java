@@ -0,0 +1,39 @@
+package com.massfords.aws.sns.management;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+public class LatencyTrackerTest {
+
+    @Test
+    public void testMergeByTopic() throws Exception {
+        LatencyTracker first = new LatencyTracker();
+        first.recordEndToEnd("orders", 2000);
+        first.recordQueueDwell("orders", 1000);
+        LatencyTracker second = new LatencyTracker();
+        second.recordEndToEnd("orders", 4000);
+        second.recordEndToEnd("invoices", 8000);
+
+        LatencyTracker merged = new LatencyTracker();
+        merged.merge(first);
+        merged.merge(second);
+
+        assertEquals(new HashSet<String>(Arrays.asList("orders", "invoices")), merged.getTopics());
+        assertEquals(2, merged.getEndToEnd("orders").getCount());
+        assertEquals(1, merged.getQueueDwell("orders").getCount());
+        assertEquals(0, merged.getQueueDwell("invoices").getCount());
+        assertNull(merged.getEndToEnd("unknown"));
+        assertEquals(3, merged.getEndToEnd().getCount());
+        assertEquals(8000, merged.getEndToEnd().getMax());
+
+        String summary = merged.toString();
+        assertTrue(summary, summary.startsWith("invoices: end-to-end n=1"));
+        assertTrue(summary, summary.contains("orders: end-to-end n=2"));
+    }
+}
@@ -0,0 +1,55 @@
+package com.massfords.aws.sns.management;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class MeterTest {
+
+    long mNow = 1000;
+
+    Meter mMeter = new Meter() {
+        @Override
+        protected long nanoTime() {
+            return mNow;
+        }
+    };
+
+    private void advance(long aSeconds) {
+        mNow += TimeUnit.SECONDS.toNanos(aSeconds);
+    }
+
+    @Test
+    public void testOneMinuteRate() throws Exception {
+        // 10 a second for a minute
+        for (int i = 0; i < 12; i++) {
+            mMeter.mark(50);
+            advance(5);
+        }
+        assertEquals(600, mMeter.getCount());
+        assertEquals(10, mMeter.getOneMinuteRate(), 0.001);
+        assertEquals(10, mMeter.getMeanRate(), 0.001);
+
+        // nothing for a minute
+        advance(60);
+        double rate = mMeter.getOneMinuteRate();
+        assertTrue("rate should decay, was " + rate, rate < 10 * 0.4 && rate > 10 * 0.3);
+
+        // idle long enough for the rate to be gone
+        advance(60 * 60);
+        assertEquals(0, mMeter.getOneMinuteRate(), 0.001);
+    }
+
+    @Test
+    public void testReset() throws Exception {
+        mMeter.mark(100);
+        advance(10);
+        mMeter.reset();
+        assertEquals(0, mMeter.getCount());
+        assertEquals(0, mMeter.getOneMinuteRate(), 0.001);
+        assertEquals(0, mMeter.getMeanRate(), 0.001);
+    }
+}
@@ -0,0 +1,134 @@
+package com.massfords.aws.sns.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Test;
+
+public class CachingCertificateProviderTest {
+
+    static final String CERT_URL = "https://sns.us-east-1.amazonaws.com/test-signing-cert.pem";
+
+    List<String> mDownloads = Collections.synchronizedList(new ArrayList<String>());
+    CachingCertificateProvider mProvider;
+
+    private CachingCertificateProvider createProvider(String aLocations) throws Exception {
+        mProvider = new CachingCertificateProvider(aLocations, 0) {
+            @Override
+            protected PublicKey download(String aUrl) throws Exception {
+                mDownloads.add(aUrl);
+                InputStream in = getClass().getResourceAsStream("/test-signing-cert.pem");
+                try {
+                    return readKey(in);
+                } finally {
+                    in.close();
+                }
+            }
+        };
+        return mProvider;
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mProvider != null)
+            mProvider.stop();
+    }
+
+    @Test
+    public void testPreloadedFromClasspath() throws Exception {
+        CachingCertificateProvider provider = createProvider("classpath:test-signing-cert.pem");
+        provider.start();
+        mDownloads.clear();
+
+        PublicKey key = provider.getPublicKey(CERT_URL);
+        assertNotNull(key);
+        assertSame(key, provider.getPublicKey(CERT_URL));
+        assertEquals(2, provider.getHits());
+        assertEquals(0, provider.getMisses());
+        assertEquals("preloaded certificates aren't downloaded", 0, countDownloads(CERT_URL));
+    }
+
+    @Test
+    public void testSharedProviderRunsUntilLastStop() throws Exception {
+        CachingCertificateProvider provider = createProvider("classpath:test-signing-cert.pem");
+        provider.start();
+        provider.start();
+
+        provider.stop();
+        assertTrue("still used by the second consumer", provider.isStarted());
+        provider.stop();
+        assertFalse(provider.isStarted());
+        provider.stop();
+
+        provider.start();
+        assertTrue("restarted", provider.isStarted());
+    }
+
+    @Test
+    public void testPreloadedFromFile() throws Exception {
+        File file = new File(System.getProperty("java.io.tmpdir"), "SimpleNotificationService.pem");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            IOUtils.copy(getClass().getResourceAsStream("/test-signing-cert.pem"), out);
+        } finally {
+            out.close();
+        }
+        try {
+            CachingCertificateProvider provider = createProvider(" " + file.getAbsolutePath() + " ");
+            provider.start();
+            assertNotNull("used for notifications without a SigningCertURL", provider.getPublicKey(""));
+            assertEquals(0, provider.getMisses());
+            assertEquals(0, mDownloads.size());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testDownloadedOnceThenCached() throws Exception {
+        CachingCertificateProvider provider = createProvider(null);
+        assertNotNull(provider.getPublicKey(CERT_URL));
+        assertNotNull(provider.getPublicKey(CERT_URL));
+        assertEquals(1, provider.getMisses());
+        assertEquals(1, provider.getHits());
+        assertEquals(1, mDownloads.size());
+
+        provider.refresh();
+        assertEquals(2, mDownloads.size());
+        assertEquals(1, provider.getRefreshes());
+    }
+
+    @Test
+    public void testUntrustedLocationsAreNotDownloaded() throws Exception {
+        CachingCertificateProvider provider = createProvider(null);
+        assertNull(provider.getPublicKey("https://example.com/test-signing-cert.pem"));
+        assertNull(provider.getPublicKey("http://sns.us-east-1.amazonaws.com/other.pem"));
+        assertNull(provider.getPublicKey("https://sns.us-east-1.amazonaws.com.example.com/cert.pem"));
+        assertEquals(0, mDownloads.size());
+    }
+
+    private int countDownloads(String aUrl) {
+        int count = 0;
+        synchronized (mDownloads) {
+            for (String url : mDownloads) {
+                if (url.equals(aUrl))
+                    count++;
+            }
+        }
+        return count;
+    }
+}
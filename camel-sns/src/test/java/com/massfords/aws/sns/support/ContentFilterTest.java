@@ -0,0 +1,82 @@
+package com.massfords.aws.sns.support;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class ContentFilterTest {
+
+    static final String ORDER = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<Order xmlns=\"urn:orders\">\n"
+            + "    <OrderId>100-1</OrderId>\n"
+            + "    <Items>\n"
+            + "        <Item><Name>Widget &amp; bolt</Name><Cost>100</Cost></Item>\n"
+            + "        <Item><Name><![CDATA[Widget <2>]]></Name><Cost>275</Cost></Item>\n"
+            + "    </Items>\n"
+            + "    <Priority>Rush</Priority>\n"
+            + "</Order>";
+
+    @Test
+    public void testDescendantEquals() throws Exception {
+        assertTrue(new ContentFilter("//Priority = 'Rush'").matches(ORDER));
+        assertTrue(new ContentFilter("//Priority=\"Rush\"").matches(ORDER));
+        assertFalse(new ContentFilter("//Priority = 'Standard'").matches(ORDER));
+        assertFalse("text is compared as is", new ContentFilter("//Priority = 'Rus'").matches(ORDER));
+        assertFalse(new ContentFilter("//Priority = 'Rushed'").matches(ORDER));
+    }
+
+    @Test
+    public void testAbsolutePath() throws Exception {
+        assertTrue(new ContentFilter("/Order/Priority = 'Rush'").matches(ORDER));
+        assertTrue(new ContentFilter("/ns:Order/Items/Item/Cost = '275'").matches(ORDER));
+        assertFalse("Priority isn't the root", new ContentFilter("/Priority = 'Rush'").matches(ORDER));
+        assertFalse(new ContentFilter("/Invoice/Priority").matches(ORDER));
+    }
+
+    @Test
+    public void testExistenceAndWildcard() throws Exception {
+        assertTrue(new ContentFilter("//Items/Item").matches(ORDER));
+        assertTrue(new ContentFilter("//Items/*/Cost = '100'").matches(ORDER));
+        assertFalse(new ContentFilter("//Order/Cost").matches(ORDER));
+    }
+
+    @Test
+    public void testEntitiesAndCData() throws Exception {
+        assertTrue(new ContentFilter("//Name = 'Widget & bolt'").matches(ORDER));
+        assertTrue(new ContentFilter("//Name = 'Widget <2>'").matches(ORDER));
+    }
+
+    @Test
+    public void testNotXml() throws Exception {
+        ContentFilter filter = new ContentFilter("//Priority = 'Rush'");
+        assertFalse(filter.matches("Priority = Rush"));
+        assertFalse(filter.matches("<Order>no priority</Order>"));
+        assertFalse(filter.matches("<Priority>Rush</Prio"));
+        assertFalse(filter.matches(""));
+        assertFalse(filter.matches(null));
+    }
+
+    @Test
+    public void testUnsupportedExpressions() throws Exception {
+        String[] expressions = { "Priority = 'Rush'", "//Priority[1]", "//@id = '1'", "//Priority != 'Rush'",
+                "//Priority = Rush", "//Priority = 'Rush", "//Order//Priority", "count(//Item)" };
+        for (String expression : expressions) {
+            try {
+                new ContentFilter(expression);
+                fail("expected " + expression + " to be rejected");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testNotificationFilter() throws Exception {
+        NotificationFilter filter = new NotificationFilter().withContent("//Priority = 'Rush'");
+        assertTrue(filter.accept(new SQSObject(new SNSEnvelope(SNSEnvelopeTest.notification("s", ORDER)))));
+        assertFalse(filter.accept(new SQSObject(new SNSEnvelope(SNSEnvelopeTest.notification("s", ORDER.replace(
+                "Rush", "Standard"))))));
+    }
+}
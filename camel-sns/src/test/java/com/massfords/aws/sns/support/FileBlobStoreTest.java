@@ -0,0 +1,104 @@
+package com.massfords.aws.sns.support;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FileBlobStoreTest {
+
+    File mDirectory;
+    FileBlobStore mStore;
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = File.createTempFile("blobs", "");
+        mDirectory.delete();
+        mStore = new FileBlobStore(mDirectory);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    private static byte[] bytes(int aLength) {
+        byte[] bytes = new byte[aLength];
+        for (int i = 0; i < aLength; i++) {
+            bytes[i] = (byte) (i * 13);
+        }
+        return bytes;
+    }
+
+    private byte[] read(String aKey) throws Exception {
+        InputStream in = mStore.get(aKey);
+        try {
+            return IOUtils.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void testPutBuffer() throws Exception {
+        byte[] bytes = bytes(100000);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 10, 50000);
+        String key = mStore.put(buffer);
+        assertEquals("position is left alone", 10, buffer.position());
+        byte[] expected = new byte[50000];
+        System.arraycopy(bytes, 10, expected, 0, expected.length);
+        assertArrayEquals(expected, read(key));
+    }
+
+    @Test
+    public void testPutStream() throws Exception {
+        byte[] bytes = bytes(300000);
+        String key = mStore.put(new ByteArrayInputStream(bytes));
+        assertArrayEquals(bytes, read(key));
+        assertArrayEquals(new byte[0], read(mStore.put(new ByteArrayInputStream(new byte[0]))));
+        assertEquals("no temporary files are left behind", 2, mDirectory.list().length);
+    }
+
+    @Test
+    public void testDelete() throws Exception {
+        String key = mStore.put(ByteBuffer.wrap(bytes(10)));
+        assertTrue(new File(mDirectory, key).exists());
+        mStore.delete(key);
+        assertFalse(new File(mDirectory, key).exists());
+        mStore.delete(key);
+        try {
+            mStore.get(key);
+            fail("expected a FileNotFoundException");
+        } catch (FileNotFoundException e) {
+        }
+    }
+
+    @Test
+    public void testKeysCantLeaveTheDirectory() throws Exception {
+        for (String key : new String[] { "../../etc/passwd", "/etc/passwd", "", "a1b2c3d4-0000-0000-0000-00000000000/" }) {
+            try {
+                mStore.get(key);
+                fail("expected an IllegalArgumentException for " + key);
+            } catch (IllegalArgumentException e) {
+            }
+        }
+    }
+}
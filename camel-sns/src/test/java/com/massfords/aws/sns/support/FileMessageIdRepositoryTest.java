@@ -0,0 +1,124 @@
+package com.massfords.aws.sns.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FileMessageIdRepositoryTest {
+
+    File mFile;
+    FileMessageIdRepository mRepo;
+    long mNow = 1000;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("message-ids", ".dat");
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mRepo != null)
+            mRepo.stop();
+        mFile.delete();
+    }
+
+    private FileMessageIdRepository open(int aCapacity, long aTtl) throws Exception {
+        if (mRepo != null)
+            mRepo.stop();
+        mRepo = new FileMessageIdRepository(mFile, aCapacity, aTtl) {
+            @Override
+            protected long currentTimeMillis() {
+                return mNow;
+            }
+        };
+        mRepo.start();
+        return mRepo;
+    }
+
+    @Test
+    public void testAddReportsDuplicates() throws Exception {
+        FileMessageIdRepository repo = open(10, 0);
+        assertTrue(repo.add("a"));
+        assertFalse(repo.add("a"));
+        assertTrue(repo.contains("a"));
+        assertFalse(repo.contains("b"));
+    }
+
+    @Test
+    public void testOldestOverwrittenAtCapacity() throws Exception {
+        FileMessageIdRepository repo = open(3, 0);
+        repo.add("a");
+        repo.add("b");
+        repo.add("c");
+        repo.add("d");
+
+        assertEquals(3, repo.size());
+        assertFalse(repo.contains("a"));
+        assertTrue(repo.contains("b"));
+        assertTrue(repo.contains("d"));
+    }
+
+    @Test
+    public void testTtl() throws Exception {
+        FileMessageIdRepository repo = open(10, 100);
+        repo.add("a");
+        mNow += 50;
+        repo.add("b");
+        mNow += 60;
+
+        assertFalse(repo.contains("a"));
+        assertTrue(repo.contains("b"));
+        assertTrue("expired id should be accepted again", repo.add("a"));
+        assertFalse(repo.add("a"));
+    }
+
+    @Test
+    public void testRemove() throws Exception {
+        FileMessageIdRepository repo = open(10, 0);
+        repo.add("a");
+        assertTrue(repo.remove("a"));
+        assertFalse(repo.contains("a"));
+        assertTrue(repo.add("a"));
+    }
+
+    @Test
+    public void testSurvivesRestart() throws Exception {
+        FileMessageIdRepository repo = open(100, 0);
+        for (int i = 0; i < 150; i++) {
+            repo.add("id-" + i);
+        }
+        repo.remove("id-120");
+
+        repo = open(100, 0);
+        assertEquals(99, repo.size());
+        assertFalse(repo.contains("id-49"));
+        assertTrue(repo.contains("id-50"));
+        assertTrue(repo.contains("id-149"));
+        assertFalse(repo.contains("id-120"));
+        assertTrue("ring position should survive the restart", repo.add("id-150"));
+        assertFalse(repo.contains("id-50"));
+    }
+
+    @Test
+    public void testManyIds() throws Exception {
+        int capacity = 100000;
+        FileMessageIdRepository repo = open(capacity, 0);
+        for (int i = 0; i < capacity * 3; i++) {
+            assertTrue(repo.add("message-" + i));
+        }
+        assertEquals(capacity, repo.size());
+        for (int i = capacity * 2; i < capacity * 3; i++) {
+            assertTrue(repo.contains("message-" + i));
+        }
+        for (int i = 0; i < capacity * 2; i += 97) {
+            assertFalse(repo.contains("message-" + i));
+        }
+    }
+}
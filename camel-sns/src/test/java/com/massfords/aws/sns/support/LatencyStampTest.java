@@ -0,0 +1,57 @@
+package com.massfords.aws.sns.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.text.SimpleDateFormat;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+public class LatencyStampTest {
+
+    @Test
+    public void testStampParsedBack() throws Exception {
+        String stamped = LatencyStamp.stamp("{sns:gzip}H4sI", 1271764800000123L, "ID-host/1 2");
+        assertEquals("{sns:ts=1271764800000123;cid=ID-host_1_2}{sns:gzip}H4sI", stamped);
+
+        LatencyStamp stamp = LatencyStamp.parse(stamped, 0);
+        assertEquals(1271764800000123L, stamp.getSentTime());
+        assertEquals("ID-host_1_2", stamp.getCorrelationId());
+        assertEquals("gzip", PayloadCodec.getEncoding(stamped, LatencyStamp.getLength(stamped, 0)));
+
+        stamp = LatencyStamp.parse(LatencyStamp.stamp("hello", 42, null), 0);
+        assertEquals(42, stamp.getSentTime());
+        assertNull(stamp.getCorrelationId());
+    }
+
+    @Test
+    public void testUnstampedMessages() throws Exception {
+        assertEquals(0, LatencyStamp.getLength("<Order/>", 0));
+        assertEquals(0, LatencyStamp.getLength("{sns:b64}AA==", 0));
+        assertEquals("no closing brace", 0, LatencyStamp.getLength("{sns:ts=12", 0));
+        assertNull(LatencyStamp.parse("{sns:ts=abc}hello", 0));
+        assertNull(LatencyStamp.parse(null, 0));
+    }
+
+    @Test
+    public void testCurrentTimeMicros() throws Exception {
+        long micros = LatencyStamp.currentTimeMicros();
+        assertTrue(Math.abs(micros / 1000 - System.currentTimeMillis()) < 1000);
+    }
+
+    @Test
+    public void testParseTimestamp() throws Exception {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        for (String timestamp : new String[] { "1970-01-01T00:00:00.000Z", "2010-05-03T22:04:34.240Z",
+                "2012-02-29T23:59:59.999Z", "2000-03-01T00:00:00.001Z", "2100-12-31T12:30:00.500Z" }) {
+            assertEquals(timestamp, format.parse(timestamp).getTime(), LatencyStamp.parseTimestamp(timestamp));
+        }
+        assertEquals(format.parse("2010-05-03T22:04:34.000Z").getTime(), LatencyStamp
+                .parseTimestamp("2010-05-03T22:04:34Z"));
+        assertEquals(-1, LatencyStamp.parseTimestamp(""));
+        assertEquals(-1, LatencyStamp.parseTimestamp("Mon, 03 May 2010 22:04:34 GMT"));
+    }
+}
@@ -0,0 +1,65 @@
+package com.massfords.aws.sns.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class MemoryMessageIdRepositoryTest {
+
+    long mNow = 1000;
+
+    private MemoryMessageIdRepository createRepository(int aCapacity, long aTtl) {
+        return new MemoryMessageIdRepository(aCapacity, aTtl) {
+            @Override
+            protected long currentTimeMillis() {
+                return mNow;
+            }
+        };
+    }
+
+    @Test
+    public void testAddReportsDuplicates() throws Exception {
+        MemoryMessageIdRepository repo = createRepository(10, 0);
+        assertTrue(repo.add("a"));
+        assertFalse(repo.add("a"));
+        assertTrue(repo.contains("a"));
+        assertFalse(repo.contains("b"));
+    }
+
+    @Test
+    public void testOldestEvictedAtCapacity() throws Exception {
+        MemoryMessageIdRepository repo = createRepository(3, 0);
+        repo.add("a");
+        repo.add("b");
+        repo.add("c");
+        repo.add("d");
+
+        assertEquals(3, repo.size());
+        assertFalse(repo.contains("a"));
+        assertTrue(repo.contains("d"));
+    }
+
+    @Test
+    public void testTtl() throws Exception {
+        MemoryMessageIdRepository repo = createRepository(10, 100);
+        repo.add("a");
+        mNow += 50;
+        repo.add("b");
+        mNow += 60;
+
+        assertFalse(repo.contains("a"));
+        assertTrue(repo.contains("b"));
+        assertTrue("expired id should be accepted again", repo.add("a"));
+    }
+
+    @Test
+    public void testRemove() throws Exception {
+        MemoryMessageIdRepository repo = createRepository(10, 0);
+        repo.add("a");
+        assertTrue(repo.remove("a"));
+        assertFalse(repo.remove("a"));
+        assertTrue(repo.add("a"));
+    }
+}
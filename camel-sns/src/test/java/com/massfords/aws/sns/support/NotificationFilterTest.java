@@ -0,0 +1,55 @@
+package com.massfords.aws.sns.support;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class NotificationFilterTest {
+
+    private static SQSObject notification(String aSubject) throws Exception {
+        return new SQSObject(new SNSEnvelope(SNSEnvelopeTest.notification(aSubject, "body")));
+    }
+
+    @Test
+    public void testEmptyFilterAcceptsEverything() throws Exception {
+        NotificationFilter filter = new NotificationFilter();
+        assertTrue(filter.isEmpty());
+        assertTrue(filter.accept(notification("anything")));
+    }
+
+    @Test
+    public void testSubject() throws Exception {
+        NotificationFilter filter = new NotificationFilter().withSubject("message-1.xml");
+        assertTrue(filter.accept(notification("message-1.xml")));
+        assertFalse(filter.accept(notification("message-2.xml")));
+    }
+
+    @Test
+    public void testSubjectPrefixAndPattern() throws Exception {
+        NotificationFilter filter = new NotificationFilter().withSubjectPrefix("message-").withSubjectPattern(
+                ".*\\.xml");
+        assertTrue(filter.accept(notification("message-1.xml")));
+        assertFalse("pattern has to match", filter.accept(notification("message-1.txt")));
+        assertFalse("prefix has to match", filter.accept(notification("other-1.xml")));
+        assertFalse("the whole subject has to match", new NotificationFilter().withSubjectPattern("message")
+                .accept(notification("message-1.xml")));
+    }
+
+    @Test
+    public void testTopicArnAndType() throws Exception {
+        SQSObject notification = notification("subject");
+        assertTrue(new NotificationFilter().withTopicArn("arn:aws:sns:us-east-1:123456789012:topic").withType(
+                "Notification").accept(notification));
+        assertFalse(new NotificationFilter().withTopicArn("arn:aws:sns:us-east-1:123456789012:other").accept(
+                notification));
+        assertFalse(new NotificationFilter().withType("SubscriptionConfirmation").accept(notification));
+    }
+
+    @Test
+    public void testMissingSubject() throws Exception {
+        SQSObject notification = new SQSObject(new SNSEnvelope("{\"Type\":\"Notification\",\"Message\":\"m\"}"));
+        assertTrue(new NotificationFilter().withSubjectPattern(".*").accept(notification));
+        assertFalse(new NotificationFilter().withSubjectPrefix("a").accept(notification));
+    }
+}
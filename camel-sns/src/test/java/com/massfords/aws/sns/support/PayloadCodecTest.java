@@ -0,0 +1,237 @@
+package com.massfords.aws.sns.support;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import org.apache.commons.codec.binary.Base64;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class PayloadCodecTest {
+
+    private static byte[] bytes(int aLength) {
+        byte[] bytes = new byte[aLength];
+        for (int i = 0; i < aLength; i++) {
+            bytes[i] = (byte) (i * 31);
+        }
+        return bytes;
+    }
+
+    private static byte[] decode(String aText) {
+        return PayloadCodec.decode(aText, 0, aText.length());
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        for (int length = 0; length < 10; length++) {
+            byte[] bytes = bytes(length);
+            String encoded = PayloadCodec.encode(bytes);
+            assertTrue(PayloadCodec.isEncoded(encoded, 0));
+            assertEquals(PayloadCodec.BASE64_MARKER + new String(Base64.encodeBase64(bytes), "US-ASCII"), encoded);
+            assertArrayEquals(bytes, decode(encoded));
+        }
+    }
+
+    @Test
+    public void testByteBufferAndStream() throws Exception {
+        byte[] bytes = bytes(10000);
+        String expected = PayloadCodec.encode(bytes);
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 100, 5000).slice();
+        assertArrayEquals(slice(bytes, 100, 5000), decode(PayloadCodec.encode(buffer)));
+        assertEquals("position is left alone", 0, buffer.position());
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+        direct.put(bytes).flip();
+        assertEquals(expected, PayloadCodec.encode(direct));
+
+        // hands out a few bytes at a time like a socket would
+        InputStream in = new ByteArrayInputStream(bytes) {
+            @Override
+            public synchronized int read(byte[] aBuffer, int aOffset, int aLength) {
+                return super.read(aBuffer, aOffset, Math.min(aLength, 7));
+            }
+        };
+        assertEquals(expected, PayloadCodec.encode(in));
+    }
+
+    private static byte[] slice(byte[] aBytes, int aOffset, int aLength) {
+        byte[] slice = new byte[aLength];
+        System.arraycopy(aBytes, aOffset, slice, 0, aLength);
+        return slice;
+    }
+
+    @Test
+    public void testDecodeFromEnvelope() throws Exception {
+        byte[] bytes = bytes(1000);
+        // SNS escapes the slashes in the message, which base64 has plenty of
+        String json = SNSEnvelopeTest.notification("binary", PayloadCodec.encode(bytes)).replace("/", "\\/");
+
+        SNSEnvelope envelope = new SNSEnvelope(json);
+        int start = envelope.getValueStart("Message");
+        assertTrue(PayloadCodec.isEncoded(json, start));
+        assertArrayEquals(bytes, PayloadCodec.decode(json, start, envelope.getValueEnd("Message")));
+
+        SQSObject sqsObject = new SQSObject(envelope);
+        assertTrue(sqsObject.isBinaryMessage());
+        assertArrayEquals(bytes, sqsObject.getMessageBytes());
+        assertArrayEquals(bytes, new SQSObject(new JSONObject(json)).getMessageBytes());
+    }
+
+    @Test
+    public void testTextMessage() throws Exception {
+        SQSObject sqsObject = new SQSObject(new SNSEnvelope(SNSEnvelopeTest.notification("text", "caf\u00e9")));
+        assertFalse(sqsObject.isBinaryMessage());
+        assertArrayEquals("caf\u00e9".getBytes("UTF-8"), sqsObject.getMessageBytes());
+    }
+
+    @Test
+    public void testDecodeSkipsWhitespaceAndEscapes() throws Exception {
+        String encoded = PayloadCodec.encode(bytes(6)).substring(PayloadCodec.BASE64_MARKER.length());
+        String text = PayloadCodec.BASE64_MARKER + " " + encoded.substring(0, 4) + "\\n\\u00"
+                + Integer.toHexString(encoded.charAt(4)) + encoded.substring(5) + " ";
+        assertArrayEquals(bytes(6), decode(text));
+    }
+
+    @Test
+    public void testCompressedText() throws Exception {
+        StringBuilder xml = new StringBuilder("<Order>");
+        for (int i = 0; i < 200; i++) {
+            xml.append("<Item><Name>Widget \u00e9 ").append(i).append("</Name></Item>");
+        }
+        String text = xml.append("</Order>").toString();
+        for (CompressionCodec codec : new CompressionCodec[] { CompressionCodecs.GZIP, CompressionCodecs.DEFLATE }) {
+            String compressed = PayloadCodec.compress(text, codec);
+            assertTrue(compressed.startsWith("{sns:" + codec.getName() + "}"));
+            assertTrue(compressed.length() < text.length() / 4);
+
+            String json = SNSEnvelopeTest.notification("text", compressed).replace("/", "\\/");
+            SQSObject sqsObject = new SQSObject(new SNSEnvelope(json));
+            assertEquals(codec.getName(), sqsObject.getEncoding());
+            assertFalse(sqsObject.isBinaryMessage());
+            assertEquals(text, sqsObject.getDecodedMessage());
+            assertSame("text is only decompressed once", sqsObject.getDecodedMessage(), sqsObject
+                    .getDecodedMessage());
+            assertEquals(compressed, sqsObject.getMessage());
+        }
+    }
+
+    @Test
+    public void testCompressedBinary() throws Exception {
+        byte[] bytes = new byte[5000];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (i % 7);
+        }
+        String compressed = PayloadCodec.compress(new ByteArrayInputStream(bytes), CompressionCodecs.GZIP);
+        assertTrue(compressed.startsWith("{sns:gzip;bin}"));
+        assertEquals(compressed, PayloadCodec.compress(ByteBuffer.wrap(bytes), CompressionCodecs.GZIP));
+
+        SQSObject sqsObject = new SQSObject(new JSONObject(SNSEnvelopeTest.notification("binary", compressed)));
+        assertTrue(sqsObject.isBinaryMessage());
+        assertArrayEquals(bytes, sqsObject.getMessageBytes());
+        assertNotSame("each caller gets their own copy", sqsObject.getDecodedMessage(), sqsObject
+                .getDecodedMessage());
+    }
+
+    @Test
+    public void testDecompressedSizeCapped() throws Exception {
+        String compressed = PayloadCodec.compress(new ByteArrayInputStream(new byte[100000]), CompressionCodecs.GZIP);
+        assertTrue(compressed.length() < 1000);
+        assertEquals(100000, ((byte[]) PayloadCodec.decodeMessage(compressed, 0, compressed.length(), "gzip;bin",
+                100000)).length);
+        try {
+            PayloadCodec.decodeMessage(compressed, 0, compressed.length(), "gzip;bin", 99999);
+            fail("expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+        }
+
+        SQSObject sqsObject = new SQSObject(new JSONObject(SNSEnvelopeTest.notification("binary", compressed)));
+        try {
+            sqsObject.getMessageBytes(1024);
+            fail("expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+        }
+        assertEquals("the default limit is well above the message", 100000, sqsObject.getMessageBytes().length);
+    }
+
+    @Test
+    public void testCustomCodecAndUnknownMarkers() throws Exception {
+        CompressionCodecs.register(new CompressionCodecs.DeflateCodec("deflate9", Deflater.BEST_COMPRESSION));
+        String compressed = PayloadCodec.compress("hello hello hello", CompressionCodecs.get("deflate9"));
+        assertEquals("hello hello hello", new SQSObject(new SNSEnvelope(SNSEnvelopeTest.notification("s",
+                compressed))).getDecodedMessage());
+
+        String unknown = "{sns:lz4}AAAA";
+        SQSObject sqsObject = new SQSObject(new SNSEnvelope(SNSEnvelopeTest.notification("s", unknown)));
+        assertNull("markers without a codec are left for the route", sqsObject.getEncoding());
+        assertEquals(unknown, sqsObject.getDecodedMessage());
+        try {
+            CompressionCodecs.register(new CompressionCodecs.DeflateCodec("Deflate", 1));
+            fail("expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    @Test
+    public void testUnpack() throws Exception {
+        StringBuilder pack = new StringBuilder(PayloadCodec.PACK_MARKER);
+        String[] messages = { "caf\u00e9", "", "12:34", PayloadCodec.encode(bytes(5)) };
+        int bytes = PayloadCodec.PACK_MARKER.length();
+        for (String message : messages) {
+            PayloadCodec.appendFrame(pack, message);
+            bytes += PayloadCodec.getFrameSize(message);
+        }
+        assertEquals(Arrays.asList(messages), PayloadCodec.unpack(pack.toString()));
+        assertEquals(pack.toString().getBytes("UTF-8").length, bytes);
+        assertEquals(4, PayloadCodec.getUTF8Length("\ud83d\ude00"));
+
+        SQSObject sqsObject = new SQSObject(new SNSEnvelope(SNSEnvelopeTest.notification("s", pack.toString())));
+        assertTrue(sqsObject.isPacked());
+        List<SQSObject> unpacked = sqsObject.unpack();
+        assertEquals(4, unpacked.size());
+        assertEquals("a1b2c3:3", unpacked.get(3).getMessageId());
+        assertEquals("s", unpacked.get(3).getSubject());
+        assertArrayEquals(bytes(5), unpacked.get(3).getMessageBytes());
+        assertFalse(unpacked.get(0).isPacked());
+
+        for (String malformed : new String[] { "{sns:pack}5:abc", "{sns:pack}x:abc", "{sns:pack}abc" }) {
+            try {
+                PayloadCodec.unpack(malformed);
+                fail("expected an IllegalArgumentException for " + malformed);
+            } catch (IllegalArgumentException e) {
+            }
+        }
+    }
+
+    @Test
+    public void testInvalid() throws Exception {
+        try {
+            decode(PayloadCodec.BASE64_MARKER + "AB*D");
+            fail("expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            decode(PayloadCodec.BASE64_MARKER + "ABCDE");
+            fail("expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            PayloadCodec.encode("text");
+            fail("expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.massfords.aws.sns.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class SNSEnvelopeTest {
+
+    public static String notification(String aSubject, String aMessage) throws Exception {
+        JSONObject json = new JSONObject();
+        json.put("Type", "Notification");
+        json.put("MessageId", "a1b2c3");
+        json.put("TopicArn", "arn:aws:sns:us-east-1:123456789012:topic");
+        json.put("Subject", aSubject);
+        json.put("Message", aMessage);
+        json.put("Timestamp", "2010-04-20T12:00:00.000Z");
+        json.put("SignatureVersion", "1");
+        json.put("Signature", "c2lnbmF0dXJl");
+        json.put("SigningCertURL", "https://sns.us-east-1.amazonaws.com/cert.pem");
+        json.put("UnsubscribeURL", "https://sns.us-east-1.amazonaws.com/?Action=Unsubscribe");
+        return json.toString();
+    }
+
+    @Test
+    public void testMatchesOrgJson() throws Exception {
+        String json = notification("hello \"world\"", "<a href=\"x/y\">\n\ttab\u00e9 \\ slash</a>");
+        JSONObject expected = new JSONObject(json);
+        SNSEnvelope envelope = new SNSEnvelope(json);
+
+        assertEquals(expected.length(), envelope.size());
+        for (String name : JSONObject.getNames(expected)) {
+            assertEquals(name, expected.getString(name), envelope.get(name));
+        }
+    }
+
+    @Test
+    public void testMissingField() throws Exception {
+        SNSEnvelope envelope = new SNSEnvelope(notification("s", "m"));
+        assertNull(envelope.get("Missing"));
+        assertFalse(envelope.has("Missing"));
+        assertEquals("", new SQSObject(envelope).getString("Missing"));
+    }
+
+    @Test
+    public void testNonStringValues() throws Exception {
+        SNSEnvelope envelope = new SNSEnvelope(" { \"a\" : 12 , \"b\":{\"c\":[1,\"}\"]}, \"d\":true,\"e\":null } ");
+        assertEquals(4, envelope.size());
+        assertEquals("12", envelope.get("a"));
+        assertEquals("{\"c\":[1,\"}\"]}", envelope.get("b"));
+        assertEquals("true", envelope.get("d"));
+        assertFalse(envelope.isString("e"));
+    }
+
+    @Test
+    public void testUnicodeEscape() throws Exception {
+        SNSEnvelope envelope = new SNSEnvelope("{\"Message\":\"caf\\u00e9\"}");
+        assertEquals("caf\u00e9", envelope.get("Message"));
+        assertTrue(envelope.isString("Message"));
+    }
+
+    @Test
+    public void testMalformed() throws Exception {
+        String[] bad = { "", "[]", "{\"a\":\"b\"", "{\"a\" \"b\"}", "{\"a\":\"b\"} x", "{\"a\":\"b" };
+        for (String json : bad) {
+            try {
+                new SNSEnvelope(json);
+                fail("expected " + json + " to be rejected");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+}
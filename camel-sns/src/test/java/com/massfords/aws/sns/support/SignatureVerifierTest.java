@@ -0,0 +1,136 @@
+package com.massfords.aws.sns.support;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.codec.binary.Base64;
+import org.json.JSONObject;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class SignatureVerifierTest {
+
+    static KeyPair sKeys;
+
+    @BeforeClass
+    public static void createKeys() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        sKeys = generator.generateKeyPair();
+    }
+
+    static class TestVerifier extends SignatureVerifier {
+        TestVerifier(int aCacheSize) {
+            super(aCacheSize, null);
+        }
+
+        @Override
+        protected PublicKey getPublicKey(SQSObject aSqsObject) {
+            return sKeys.getPublic();
+        }
+    }
+
+    /**
+     * @return a notification signed the way SNS signs them
+     */
+    static String signed(String aId, String aSubject, String aMessage) throws Exception {
+        JSONObject json = new JSONObject();
+        json.put("Type", "Notification");
+        json.put("MessageId", aId);
+        json.put("TopicArn", "arn:aws:sns:us-east-1:123456789012:topic");
+        if (aSubject != null)
+            json.put("Subject", aSubject);
+        json.put("Message", aMessage);
+        json.put("Timestamp", "2010-04-20T12:00:00.000Z");
+        json.put("SignatureVersion", "1");
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("Message\n").append(aMessage).append("\n");
+        sb.append("MessageId\n").append(aId).append("\n");
+        if (aSubject != null)
+            sb.append("Subject\n").append(aSubject).append("\n");
+        sb.append("Timestamp\n").append("2010-04-20T12:00:00.000Z").append("\n");
+        sb.append("TopicArn\n").append("arn:aws:sns:us-east-1:123456789012:topic").append("\n");
+        sb.append("Type\n").append("Notification").append("\n");
+        Signature signature = Signature.getInstance("SHA1withRSA");
+        signature.initSign(sKeys.getPrivate());
+        signature.update(sb.toString().getBytes("UTF-8"));
+        json.put("Signature", new String(Base64.encodeBase64(signature.sign()), "US-ASCII"));
+        return json.toString();
+    }
+
+    @Test
+    public void testCanonicalBytes() throws Exception {
+        String message = "caf\u00e9 \u20ac \ud83d\ude00 <a/>";
+        SQSObject sqs = SQSTypeConverter.toSQSObject(signed("id-1", "subject", message));
+        String expected = "Message\n" + message + "\nMessageId\nid-1\nSubject\nsubject\nTimestamp\n"
+                + "2010-04-20T12:00:00.000Z\nTopicArn\narn:aws:sns:us-east-1:123456789012:topic\nType\nNotification\n";
+        assertArrayEquals(expected.getBytes("UTF-8"), new TestVerifier(0).toCanonicalBytes(sqs));
+    }
+
+    @Test
+    public void testVerify() throws Exception {
+        SignatureVerifier verifier = new TestVerifier(0);
+        assertTrue(verifier.verify(SQSTypeConverter.toSQSObject(signed("id-1", "subject", "body"))));
+        assertTrue("subject is optional", verifier.verify(SQSTypeConverter.toSQSObject(signed("id-2", null,
+                "body"))));
+        assertTrue("the latency stamp is part of what's signed", verifier.verify(SQSTypeConverter
+                .toSQSObject(signed("id-5", "subject", LatencyStamp.stamp("body", 42, "cid")))));
+
+        String tampered = signed("id-3", "subject", "body").replace("body", "b0dy");
+        assertFalse(verifier.verify(SQSTypeConverter.toSQSObject(tampered)));
+        assertTrue("signature should be reusable after a failure", verifier.verify(SQSTypeConverter
+                .toSQSObject(signed("id-4", "subject", "body"))));
+    }
+
+    @Test
+    public void testRedeliveryUsesCachedVerdict() throws Exception {
+        SignatureVerifier verifier = new TestVerifier(100);
+        String json = signed("id-1", "subject", "body");
+        assertTrue(verifier.verify(SQSTypeConverter.toSQSObject(json)));
+        assertTrue(verifier.verify(SQSTypeConverter.toSQSObject(json)));
+        assertEquals(1, verifier.getVerified());
+        assertEquals(1, verifier.getCacheHits());
+
+        String tampered = json.replace("body", "b0dy");
+        assertFalse("reusing an id doesn't reuse the verdict", verifier.verify(SQSTypeConverter
+                .toSQSObject(tampered)));
+        assertEquals(2, verifier.getVerified());
+    }
+
+    @Test
+    public void testParallelBatch() throws Exception {
+        final SignatureVerifier verifier = new TestVerifier(0);
+        List<Callable<Boolean>> batch = new ArrayList<Callable<Boolean>>();
+        for (int i = 0; i < 40; i++) {
+            final String json = signed("id-" + i, "subject", i % 2 == 0 ? "body-" + i : "\u00e9-" + i);
+            batch.add(new Callable<Boolean>() {
+                public Boolean call() throws Exception {
+                    return verifier.verify(SQSTypeConverter.toSQSObject(json));
+                }
+            });
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            for (Future<Boolean> result : pool.invokeAll(batch)) {
+                assertTrue(result.get());
+            }
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(40, verifier.getVerified());
+    }
+}
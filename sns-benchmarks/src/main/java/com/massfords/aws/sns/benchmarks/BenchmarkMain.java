@@ -0,0 +1,24 @@
+package com.massfords.aws.sns.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler added so each one reports its
+ * allocation rate per operation next to its throughput and latency. Takes
+ * the same arguments as the JMH runner, e.g. to run the envelope parsing
+ * benchmarks on the mixed payloads only:
+ * <pre>
+ * mvn package
+ * java -jar target/sns-benchmarks-1.0-SNAPSHOT-jar-with-dependencies.jar EnvelopeParsing -p payload=mixed
+ * </pre>
+ */
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().parent(new CommandLineOptions(args)).addProfiler(GCProfiler.class).build())
+                .run();
+    }
+}
@@ -0,0 +1,87 @@
+package com.massfords.aws.sns.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.massfords.aws.sns.support.CompressionCodec;
+import com.massfords.aws.sns.support.CompressionCodecs;
+import com.massfords.aws.sns.support.PayloadCodec;
+
+/**
+ * Compresses XML orders of a few sizes with each codec on the producer and
+ * decompresses them on the consumer. The size of the published message,
+ * base64 included, against the plain text is printed when each trial starts.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+
+    @Param({ "gzip", "deflate", "deflate6", "deflate9" })
+    String codec;
+
+    @Param({ "5", "50", "500" })
+    int items;
+
+    private CompressionCodec mCodec;
+    private String mXml;
+    private String mCompressed;
+    private String mEncoding;
+
+    @Setup
+    public void setUp() throws Exception {
+        if (CompressionCodecs.get("deflate6") == null)
+            CompressionCodecs.register(new CompressionCodecs.DeflateCodec("deflate6", Deflater.DEFAULT_COMPRESSION));
+        if (CompressionCodecs.get("deflate9") == null)
+            CompressionCodecs.register(new CompressionCodecs.DeflateCodec("deflate9", Deflater.BEST_COMPRESSION));
+        mCodec = CompressionCodecs.get(codec);
+        mXml = order(items);
+        mCompressed = PayloadCodec.compress(mXml, mCodec);
+        mEncoding = PayloadCodec.getEncoding(mCompressed, 0);
+        if (!mXml.equals(decompress()))
+            throw new IllegalStateException("round trip failed for " + codec);
+        System.out.println(String.format("%s %d -> %d chars (%.1f%%)", codec, mXml.length(), mCompressed.length(),
+                100.0 * mCompressed.length() / mXml.length()));
+    }
+
+    /**
+     * @return an order with realistic variety in its values so it doesn't compress unrealistically well
+     */
+    private static String order(int aItems) {
+        StringBuilder body = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<Order xmlns=\"urn:orders\">\n  <OrderId>100-").append(aItems).append("</OrderId>\n"
+                + "  <Customer><Name>Acme Corp</Name><Account>AC-33192</Account></Customer>\n  <Items>\n");
+        for (int i = 0; i < aItems; i++) {
+            body.append("    <Item><Sku>SKU-").append((i * 7919) % 100000).append("</Sku><Name>Widget ")
+                    .append(Integer.toHexString(i * 40503 & 0xffff)).append("</Name><Quantity>")
+                    .append(1 + i % 12).append("</Quantity><Cost>").append((i * 37) % 1000).append('.')
+                    .append(i % 100).append("</Cost></Item>\n");
+        }
+        return body.append("  </Items>\n  <Priority>Rush</Priority>\n</Order>").toString();
+    }
+
+    @Benchmark
+    public String compress() throws Exception {
+        return PayloadCodec.compress(mXml, mCodec);
+    }
+
+    @Benchmark
+    public Object decompress() throws Exception {
+        return PayloadCodec.decodeMessage(mCompressed, 0, mCompressed.length(), mEncoding);
+    }
+}
@@ -0,0 +1,74 @@
+package com.massfords.aws.sns.benchmarks;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+import com.massfords.aws.sns.support.ContentFilter;
+
+/**
+ * Filtering an XML body with a DOM and XPath, the way the demo's
+ * <code>XPathExpression("//Priority = 'Rush'")</code> filter does, against
+ * {@link ContentFilter}. The Priority comes after the items, the worst case
+ * for the streaming scan.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContentFilterBenchmark {
+
+    private static final String EXPRESSION = "//Priority = 'Rush'";
+
+    @Param({ "5", "50", "500" })
+    int items;
+
+    private String mXml;
+    private DocumentBuilderFactory mBuilders;
+    private XPathExpression mXPath;
+    private ContentFilter mFilter;
+
+    @Setup
+    public void setUp() throws Exception {
+        StringBuilder body = new StringBuilder("<Order><OrderId>100-1</OrderId><Items>");
+        for (int i = 0; i < items; i++) {
+            body.append("<Item><Name>Widget ").append(i).append("</Name><Quantity>10</Quantity><Cost>")
+                    .append(i * 3).append("</Cost></Item>\n");
+        }
+        mXml = body.append("</Items><Priority>Rush</Priority></Order>").toString();
+        mBuilders = DocumentBuilderFactory.newInstance();
+        mXPath = XPathFactory.newInstance().newXPath().compile(EXPRESSION);
+        mFilter = new ContentFilter(EXPRESSION);
+    }
+
+    @Benchmark
+    public boolean domXPath() throws Exception {
+        Document doc = mBuilders.newDocumentBuilder().parse(new InputSource(new StringReader(mXml)));
+        return (Boolean) mXPath.evaluate(doc, XPathConstants.BOOLEAN);
+    }
+
+    @Benchmark
+    public boolean contentFilter() {
+        return mFilter.matches(mXml);
+    }
+}
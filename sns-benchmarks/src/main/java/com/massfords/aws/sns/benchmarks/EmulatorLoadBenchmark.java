@@ -0,0 +1,106 @@
+package com.massfords.aws.sns.benchmarks;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.massfords.aws.sns.SNSComponent;
+import com.massfords.aws.sns.emulator.AWSEmulator;
+
+/**
+ * Several producer threads publishing through the {@link AWSEmulator} to a
+ * consumer that receives in batches and acknowledges asynchronously, each
+ * waiting for its message to reach the route. The sample time is the end to
+ * end latency under that load. The emulator's latency param adds that many
+ * millis, plus up to 3 of jitter, to each call the way the real services
+ * do. The number of redelivered messages is printed when each trial ends.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class EmulatorLoadBenchmark {
+
+    private static final String PRODUCER = "sns:topicName/load?accessKey=a&secretKey=b";
+    private static final String CONSUMER = PRODUCER + "&queueName=load-queue&delay=1&maxMessagesPerPoll=10"
+            + "&asyncAck=true&ackFlushSize=10";
+
+    @Param({ "0", "2" })
+    long latency;
+
+    private AWSEmulator mEmulator;
+    private DefaultCamelContext mContext;
+    private ProducerTemplate mTemplate;
+    private final AtomicLong mIds = new AtomicLong();
+    private final ConcurrentMap<String, CountDownLatch> mPending = new ConcurrentHashMap<String, CountDownLatch>();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        mEmulator = new AWSEmulator();
+        mEmulator.getFaults().setLatency(latency);
+        mEmulator.getFaults().setLatencyJitter(latency > 0 ? 3 : 0);
+        mEmulator.getFaults().setSeed(1);
+        SNSComponent component = new SNSComponent();
+        component.setClientSource(mEmulator);
+        mContext = new DefaultCamelContext();
+        mContext.addComponent("sns", component);
+        mContext.addRoutes(new RouteBuilder() {
+            @Override
+            public void configure() throws Exception {
+                from(CONSUMER).process(new Processor() {
+                    public void process(Exchange aExchange) throws Exception {
+                        CountDownLatch received = mPending.remove(aExchange.getIn().getBody(String.class));
+                        if (received != null)
+                            received.countDown();
+                    }
+                });
+            }
+        });
+        mContext.start();
+        while (mEmulator.getSNSClient().listSubscriptions().getSubscriptions().isEmpty()) {
+            Thread.sleep(10);
+        }
+        mTemplate = mContext.createProducerTemplate();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        mContext.stop();
+        System.out.println("redelivered " + mEmulator.getQueue("load-queue").getRedeliveredCount());
+    }
+
+    @Benchmark
+    public void publishAndConsume() throws Exception {
+        String body = String.valueOf(mIds.incrementAndGet());
+        CountDownLatch received = new CountDownLatch(1);
+        mPending.put(body, received);
+        mTemplate.sendBody(PRODUCER, body);
+        if (!received.await(10, TimeUnit.SECONDS))
+            throw new IllegalStateException("message wasn't consumed within 10 seconds");
+    }
+}
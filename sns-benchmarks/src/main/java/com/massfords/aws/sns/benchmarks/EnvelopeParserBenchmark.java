@@ -0,0 +1,70 @@
+package com.massfords.aws.sns.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.massfords.aws.sns.support.SNSEnvelope;
+import com.massfords.aws.sns.support.SQSObject;
+
+/**
+ * Parsing an SNS envelope with org.json against {@link SNSEnvelope}, reading
+ * the same fields the consumer reads for each message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EnvelopeParserBenchmark {
+
+    private static final String[] FIELDS = { "Type", "MessageId", "TopicArn", "Subject", "Message", "Timestamp",
+            "SignatureVersion", "Signature", "UnsubscribeURL" };
+
+    @Param({ "small", "medium", "large", "mixed" })
+    String payload;
+
+    private String[] mNotifications;
+    private int mNext;
+
+    @Setup
+    public void setUp() throws Exception {
+        mNotifications = Payloads.notifications(payload, Payloads.keys());
+    }
+
+    private String next() {
+        String notification = mNotifications[mNext];
+        mNext = (mNext + 1) % mNotifications.length;
+        return notification;
+    }
+
+    private static int read(SQSObject aSqsObject) {
+        int length = 0;
+        for (String field : FIELDS) {
+            length += aSqsObject.getString(field).length();
+        }
+        return length;
+    }
+
+    @Benchmark
+    public int orgJson() throws Exception {
+        return read(new SQSObject(new JSONObject(next())));
+    }
+
+    @Benchmark
+    public int snsEnvelope() throws Exception {
+        return read(new SQSObject(new SNSEnvelope(next())));
+    }
+}
@@ -0,0 +1,62 @@
+package com.massfords.aws.sns.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.massfords.aws.sns.support.SQSObject;
+import com.massfords.aws.sns.support.SQSTypeConverter;
+
+/**
+ * Parsing the notification envelope with {@link SQSTypeConverter#toSQSObject(String)},
+ * on its own and with the fields a route typically reads.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EnvelopeParsingBenchmark {
+
+    @Param({ "small", "medium", "large", "mixed" })
+    String payload;
+
+    private String[] mNotifications;
+    private int mNext;
+
+    @Setup
+    public void setUp() throws Exception {
+        mNotifications = Payloads.notifications(payload, Payloads.keys());
+    }
+
+    private String next() {
+        String notification = mNotifications[mNext];
+        mNext = (mNext + 1) % mNotifications.length;
+        return notification;
+    }
+
+    @Benchmark
+    public SQSObject toSQSObject() throws Exception {
+        return SQSTypeConverter.toSQSObject(next());
+    }
+
+    @Benchmark
+    public void toSQSObjectAndRead(Blackhole aBlackhole) throws Exception {
+        SQSObject sqsObject = SQSTypeConverter.toSQSObject(next());
+        aBlackhole.consume(sqsObject.getMessage());
+        aBlackhole.consume(sqsObject.getSubject());
+        aBlackhole.consume(sqsObject.getMessageId());
+    }
+}
@@ -0,0 +1,77 @@
+package com.massfords.aws.sns.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.camel.Message;
+import org.apache.camel.impl.DefaultMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.massfords.aws.sns.SNSMessage;
+import com.massfords.aws.sns.support.SNSEnvelope;
+import com.massfords.aws.sns.support.SQSObject;
+
+/**
+ * Turning a notification into the message sent to the route when all of the
+ * SNS headers are copied in up front against {@link SNSMessage}, for a route
+ * that reads the body and the subject the way the demo's routes do. Run with
+ * {@link BenchmarkMain} for the bytes allocated per message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageAllocationBenchmark {
+
+    /** the headers SNSMessage reads from the envelope */
+    private static final String[] HEADERS = { "MessageId", "Timestamp", "TopicArn", "Type", "UnsubscribeURL",
+            "Message", "Subject", "Signature", "SignatureVersion" };
+
+    @Param({ "small", "mixed" })
+    String payload;
+
+    private String[] mNotifications;
+    private int mNext;
+
+    @Setup
+    public void setUp() throws Exception {
+        mNotifications = Payloads.notifications(payload, Payloads.keys());
+    }
+
+    private SQSObject next() {
+        String notification = mNotifications[mNext];
+        mNext = (mNext + 1) % mNotifications.length;
+        return new SQSObject(new SNSEnvelope(notification));
+    }
+
+    private static int read(Message aMessage) {
+        return aMessage.getBody(String.class).length() + ((String) aMessage.getHeader("SNS:Subject")).length();
+    }
+
+    @Benchmark
+    public int eager() {
+        SQSObject sqsObject = next();
+        Message message = new DefaultMessage();
+        message.setBody(sqsObject.getMessage());
+        for (String header : HEADERS) {
+            message.setHeader("SNS:" + header, sqsObject.getString(header));
+        }
+        return read(message);
+    }
+
+    @Benchmark
+    public int snsMessage() {
+        return read(new SNSMessage(next()));
+    }
+}
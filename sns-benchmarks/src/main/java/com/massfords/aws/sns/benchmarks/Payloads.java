@@ -0,0 +1,124 @@
+package com.massfords.aws.sns.benchmarks;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.util.Random;
+
+import org.apache.commons.codec.binary.Base64;
+import org.json.JSONObject;
+
+/**
+ * Message bodies and notification envelopes for the benchmarks. The bodies
+ * are XML orders like the demo's, sized by one of the distributions:
+ * <pre>
+ * small   256 bytes
+ * medium  4KB
+ * large   64KB
+ * mixed   70% 256B-1KB, 25% 1KB-8KB, 5% 8KB-64KB, roughly what the demo's topics carry
+ * </pre>
+ * The bodies are generated from a fixed seed so each run sees the same payloads.
+ */
+final class Payloads {
+
+    static final String TOPIC_ARN = "arn:aws:sns:us-east-1:123456789012:orders";
+    static final String TIMESTAMP = "2010-04-20T12:00:00.000Z";
+
+    /** payloads the benchmarks cycle through, enough for the mixed sizes to show up in proportion */
+    static final int COUNT = 1024;
+
+    private Payloads() {
+    }
+
+    /**
+     * @return bodies sized by the distribution
+     */
+    static String[] bodies(String aDistribution) {
+        Random random = new Random(42);
+        String[] bodies = new String[COUNT];
+        for (int i = 0; i < COUNT; i++) {
+            bodies[i] = xml(size(aDistribution, random), random);
+        }
+        return bodies;
+    }
+
+    /**
+     * @return signed notification envelopes around bodies sized by the distribution
+     */
+    static String[] notifications(String aDistribution, KeyPair aKeys) throws Exception {
+        String[] bodies = bodies(aDistribution);
+        String[] notifications = new String[bodies.length];
+        for (int i = 0; i < bodies.length; i++) {
+            notifications[i] = notification("message-" + i, "order update", bodies[i], aKeys.getPrivate());
+        }
+        return notifications;
+    }
+
+    static int size(String aDistribution, Random aRandom) {
+        if ("small".equals(aDistribution))
+            return 256;
+        if ("medium".equals(aDistribution))
+            return 4 * 1024;
+        if ("large".equals(aDistribution))
+            return 64 * 1024;
+        if ("mixed".equals(aDistribution)) {
+            double pick = aRandom.nextDouble();
+            if (pick < 0.70)
+                return 256 + aRandom.nextInt(768);
+            if (pick < 0.95)
+                return 1024 + aRandom.nextInt(7 * 1024);
+            return 8 * 1024 + aRandom.nextInt(56 * 1024);
+        }
+        throw new IllegalArgumentException("unknown payload distribution " + aDistribution);
+    }
+
+    /**
+     * @return an order with as many items as it takes to be about aSize characters
+     */
+    static String xml(int aSize, Random aRandom) {
+        StringBuilder sb = new StringBuilder(aSize + 64);
+        sb.append("<Order id=\"").append(aRandom.nextInt(1000000)).append("\"><Priority>")
+                .append(aRandom.nextInt(10) == 0 ? "Rush" : "Normal").append("</Priority><Items>");
+        while (sb.length() < aSize - 16) {
+            sb.append("<Item sku=\"").append(aRandom.nextInt(100000)).append("\" qty=\"")
+                    .append(1 + aRandom.nextInt(9)).append("\">widget &amp; sprocket</Item>");
+        }
+        return sb.append("</Items></Order>").toString();
+    }
+
+    static KeyPair keys() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        return generator.generateKeyPair();
+    }
+
+    /**
+     * @return a notification signed the way SNS signs them
+     */
+    static String notification(String aId, String aSubject, String aMessage, PrivateKey aKey) throws Exception {
+        JSONObject json = new JSONObject();
+        json.put("Type", "Notification");
+        json.put("MessageId", aId);
+        json.put("TopicArn", TOPIC_ARN);
+        json.put("Subject", aSubject);
+        json.put("Message", aMessage);
+        json.put("Timestamp", TIMESTAMP);
+        json.put("SignatureVersion", "1");
+        json.put("SigningCertURL", "https://sns.us-east-1.amazonaws.com/benchmark.pem");
+        json.put("UnsubscribeURL", "https://sns.us-east-1.amazonaws.com/?Action=Unsubscribe");
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("Message\n").append(aMessage).append("\n");
+        sb.append("MessageId\n").append(aId).append("\n");
+        sb.append("Subject\n").append(aSubject).append("\n");
+        sb.append("Timestamp\n").append(TIMESTAMP).append("\n");
+        sb.append("TopicArn\n").append(TOPIC_ARN).append("\n");
+        sb.append("Type\n").append("Notification").append("\n");
+        Signature signature = Signature.getInstance("SHA1withRSA");
+        signature.initSign(aKey);
+        signature.update(sb.toString().getBytes("UTF-8"));
+        json.put("Signature", new String(Base64.encodeBase64(signature.sign()), "US-ASCII"));
+        return json.toString();
+    }
+}
@@ -0,0 +1,100 @@
+package com.massfords.aws.sns.benchmarks;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.massfords.aws.sns.SNSComponent;
+import com.massfords.aws.sns.emulator.AWSEmulator;
+
+/**
+ * Publishes a message with the producer and waits for the consumer to hand
+ * it to its route, against the in-process {@link AWSEmulator} instead of
+ * AWS. The consumer polls every millisecond so it picks up each message
+ * soon after it's published. The emulator's latency param adds that many millis to each
+ * call, 0 measures the component on its own.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoundTripBenchmark {
+
+    private static final String PRODUCER = "sns:topicName/orders?accessKey=a&secretKey=b";
+    private static final String CONSUMER = PRODUCER + "&queueName=orders-queue&delay=1";
+
+    @Param({ "small", "mixed" })
+    String payload;
+
+    @Param({ "0", "2" })
+    long latency;
+
+    private String[] mBodies;
+    private int mNext;
+    private DefaultCamelContext mContext;
+    private ProducerTemplate mTemplate;
+    private final BlockingQueue<Object> mReceived = new LinkedBlockingQueue<Object>();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        mBodies = Payloads.bodies(payload);
+        AWSEmulator emulator = new AWSEmulator();
+        emulator.getFaults().setLatency(latency);
+        SNSComponent component = new SNSComponent();
+        component.setClientSource(emulator);
+        mContext = new DefaultCamelContext();
+        mContext.addComponent("sns", component);
+        mContext.addRoutes(new RouteBuilder() {
+            @Override
+            public void configure() throws Exception {
+                from(CONSUMER).process(new Processor() {
+                    public void process(Exchange aExchange) throws Exception {
+                        mReceived.add(aExchange.getIn().getBody(String.class));
+                    }
+                });
+            }
+        });
+        mContext.start();
+        while (emulator.getSNSClient().listSubscriptions().getSubscriptions().isEmpty()) {
+            Thread.sleep(10);
+        }
+        mTemplate = mContext.createProducerTemplate();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        mContext.stop();
+    }
+
+    @Benchmark
+    public Object publishAndConsume() throws Exception {
+        String body = mBodies[mNext];
+        mNext = (mNext + 1) % mBodies.length;
+        mTemplate.sendBody(PRODUCER, body);
+        Object received = mReceived.poll(10, TimeUnit.SECONDS);
+        if (received == null)
+            throw new IllegalStateException("message wasn't consumed within 10 seconds");
+        return received;
+    }
+}
@@ -0,0 +1,65 @@
+package com.massfords.aws.sns.benchmarks;
+
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.massfords.aws.sns.support.CertificateProvider;
+import com.massfords.aws.sns.support.SQSTypeConverter;
+import com.massfords.aws.sns.support.SignatureVerifier;
+
+/**
+ * Checking the signature on a notification. {@link SQSTypeConverter#verify}
+ * fetches the signing certificate from AWS so the benchmark runs the same
+ * {@link SignatureVerifier} with a local key instead. With a cache size of 0
+ * every notification is verified, with a cache the notifications after the
+ * first pass are cache hits, the cost of a redelivered message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SignatureVerificationBenchmark {
+
+    @Param({ "small", "mixed", "large" })
+    String payload;
+
+    @Param({ "0", "10000" })
+    int cacheSize;
+
+    private String[] mNotifications;
+    private SignatureVerifier mVerifier;
+    private int mNext;
+
+    @Setup
+    public void setUp() throws Exception {
+        final KeyPair keys = Payloads.keys();
+        mNotifications = Payloads.notifications(payload, keys);
+        mVerifier = new SignatureVerifier(cacheSize, new CertificateProvider() {
+            public PublicKey getPublicKey(String aSigningCertURL) {
+                return keys.getPublic();
+            }
+        });
+    }
+
+    @Benchmark
+    public boolean verify() throws Exception {
+        String notification = mNotifications[mNext];
+        mNext = (mNext + 1) % mNotifications.length;
+        return mVerifier.verify(SQSTypeConverter.toSQSObject(notification));
+    }
+}
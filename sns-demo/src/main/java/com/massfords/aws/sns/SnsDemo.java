@@ -10,7 +10,6 @@ import org.apache.camel.Exchange;
 import org.apache.camel.Processor;
 import org.apache.camel.builder.RouteBuilder;
 import org.apache.camel.impl.DefaultCamelContext;
-import org.apache.camel.model.language.XPathExpression;
 import org.apache.log4j.PropertyConfigurator;
 
 import com.amazonaws.auth.AWSCredentials;
@@ -32,17 +31,24 @@ public class SnsDemo {
         final SNSUri toEndpoint = new SNSUri(mCredentials)
             .withTopicName("final-project-topic");
         
+        // the three routes share a single queue and subscription, the first
+        // one to start creates the queue and polls it for all of them
         final SNSUri fromEndpoint_noFilter = new SNSUri(mCredentials)
             .withTopicName("final-project-topic")
-            .withQueueName("final-project-queue-noFilter");
+            .withQueueName("final-project-queue")
+            .withSubscriptionGroup("final-project");
 
+        // the subject is checked by the consumer before an exchange is created
         final SNSUri fromEndpoint_filterHeader = new SNSUri(mCredentials)
         .withTopicName("final-project-topic")
-        .withQueueName("final-project-queue-filterHeader");
+        .withSubscriptionGroup("final-project")
+        .withProperty("filterSubject", "message-1.xml");
 
+        // the body is scanned for the priority without building a DOM
         final SNSUri fromEndpoint_filterBody = new SNSUri(mCredentials)
         .withTopicName("final-project-topic")
-        .withQueueName("final-project-queue-filterBody");
+        .withSubscriptionGroup("final-project")
+        .withProperty("contentFilter", "//Priority = 'Rush'");
 
         CamelContext context = new DefaultCamelContext();
         context.addRoutes(new RouteBuilder() {
@@ -61,14 +67,11 @@ public class SnsDemo {
 
                 // read with a filter on the header
                 from(fromEndpoint_filterHeader.toString())
-                    .filter(header("SNS:Subject")
-                            .isEqualTo("message-1.xml"))
                     .process(new SubjectAsFilename("header-filter-"))
                     .to(outputFilesUri);
 
                 // read with a filter on the body
                 from(fromEndpoint_filterBody.toString())
-                    .filter(new XPathExpression("//Priority = 'Rush'"))
                     .process(new SubjectAsFilename("body-filter-"))
                     .to(outputFilesUri);
             }